@@ -0,0 +1,102 @@
+package uk.co.gockett.ipbtools.topology.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares two result files written by BenchmarkRunner and lists the
+ * change of every benchmark present in both.
+ *
+ * Exits with status 2 if any benchmark got worse by more than the
+ * threshold (10% by default), so it can gate a build. Worse means a lower
+ * score for throughput benchmarks, a higher one for time benchmarks.
+ *
+ * Usage: BenchmarkCompare [-t percent] baseline.json current.json
+ * @author ruanoj@github
+ */
+public class BenchmarkCompare {
+
+    public final static double DEFAULT_THRESHOLD = 10.0;
+
+    // Just enough of the JMH JSON layout: each result starts with its
+    // "benchmark" name, then "mode", optional "params", "primaryMetric"
+    private final static Pattern BENCHMARK = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+    private final static Pattern MODE = Pattern.compile("\"mode\"\\s*:\\s*\"([^\"]+)\"");
+    private final static Pattern PARAMS = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)\\}");
+    private final static Pattern SCORE = Pattern.compile("\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.eE+NaN]+)");
+
+    public static void main(String[] args) throws IOException {
+        double threshold = DEFAULT_THRESHOLD;
+        int argn = 0;
+        if (args.length == 4 && args[0].equals("-t")) {
+            threshold = Double.parseDouble(args[1]);
+            argn = 2;
+        } else if (args.length != 2) {
+            System.err.println("Usage: BenchmarkCompare [-t percent] baseline.json current.json");
+            System.exit(1);
+        }
+        Map<String, double[]> baseline = read(new File(args[argn]));
+        Map<String, double[]> current = read(new File(args[argn + 1]));
+
+        int regressions = 0;
+        Iterator<Map.Entry<String, double[]>> it = current.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, double[]> e = it.next();
+            double[] before = baseline.get(e.getKey());
+            if (before == null) {
+                System.out.println(e.getKey() + ": new, " + e.getValue()[0]);
+                continue;
+            }
+            double after = e.getValue()[0];
+            double change = 100.0 * (after - before[0]) / before[0];
+            // Throughput: higher is better. Times: lower is better.
+            double worse = e.getValue()[1] > 0 ? -change : change;
+            boolean regressed = worse > threshold;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format("%s: %.3f -> %.3f (%+.1f%%)%s", e.getKey(),
+                    before[0], after, change, regressed ? " REGRESSION" : ""));
+        }
+        if (regressions > 0) {
+            System.err.println(regressions + " benchmark(s) worse by more than " + threshold + "%");
+            System.exit(2);
+        }
+    }
+
+    /*
+     * [ "name [params]" ] = { score, 1 if higher is better else 0 }
+     */
+    private static Map<String, double[]> read(File file) throws IOException {
+        String json = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+        Map<String, double[]> result = new LinkedHashMap<String, double[]>();
+        Matcher m = BENCHMARK.matcher(json);
+        int start = m.find() ? m.start() : -1;
+        while (start >= 0) {
+            String name = m.group(1);
+            int end = m.find() ? m.start() : json.length();
+            String entry = json.substring(start, end);
+
+            Matcher mode = MODE.matcher(entry);
+            Matcher params = PARAMS.matcher(entry);
+            Matcher score = SCORE.matcher(entry);
+            if (score.find()) {
+                String key = name;
+                if (params.find()) {
+                    key += " [" + params.group(1).replaceAll("[\"\\s]", "") + "]";
+                }
+                boolean higherIsBetter = mode.find() && mode.group(1).equals("thrpt");
+                result.put(key, new double[] {
+                    Double.parseDouble(score.group(1)), higherIsBetter ? 1 : 0 });
+            }
+            start = end < json.length() ? end : -1;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,62 @@
+package uk.co.gockett.ipbtools.topology.bench;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes the results as JMH JSON, one file per
+ * run, so runs can be compared with BenchmarkCompare.
+ *
+ * Usage: BenchmarkRunner [-o file] [-f forks] [regexp...]
+ * @author ruanoj@github
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String output = "jmh-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json";
+        int forks = 1;
+        OptionsBuilder options = new OptionsBuilder();
+        boolean selected = false;
+
+        int argn = 0;
+        try {
+            while (argn < args.length) {
+                String arg = args[argn++];
+                if (arg.equals("-o") && argn < args.length) {
+                    output = args[argn++];
+                } else if (arg.equals("-f") && argn < args.length) {
+                    forks = Integer.parseInt(args[argn++]);
+                } else if (arg.startsWith("-")) {
+                    usage();
+                } else {
+                    options.include(arg);
+                    selected = true;
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage();
+        }
+        if (!selected) {
+            options.include(BenchmarkRunner.class.getPackage().getName() + ".*Benchmark");
+        }
+
+        Options opts = options
+            .forks(forks)
+            .resultFormat(ResultFormatType.JSON)
+            .result(output)
+            .build();
+        new Runner(opts).run();
+        System.err.println("Results written to " + output);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: BenchmarkRunner [-o file] [-f forks] [regexp...]");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,97 @@
+package uk.co.gockett.ipbtools.topology.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.co.gockett.ipbtools.topology.IPUtils;
+
+/**
+ * IPv4 address conversions: the String/long based ones used by the
+ * original code against the int based ones.
+ *
+ * Every invocation converts a batch of ADDRESSES addresses.
+ * @author ruanoj@github
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IPUtilsBenchmark {
+
+    private final static int ADDRESSES = 1024;
+
+    private String[] strings;
+    private long[] longs;
+    private int[] ints;
+    private int[][] octets;
+    private StringBuilder sb;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        strings = new String[ADDRESSES];
+        longs = new long[ADDRESSES];
+        ints = new int[ADDRESSES];
+        octets = new int[ADDRESSES][];
+        for (int i = 0; i < ADDRESSES; i++) {
+            int address = random.nextInt();
+            ints[i] = address;
+            longs[i] = address & 0xFFFFFFFFL;
+            strings[i] = IPUtils.intToIp(address);
+            octets[i] = new int[] { 1, 3, 6, 1, address >>> 24, (address >>> 16) & 0xFF,
+                                    (address >>> 8) & 0xFF, address & 0xFF };
+        }
+        sb = new StringBuilder(16);
+    }
+
+    @Benchmark
+    public void ipToLong(Blackhole bh) {
+        for (int i = 0; i < ADDRESSES; i++) {
+            bh.consume(IPUtils.ipToLong(strings[i]));
+        }
+    }
+
+    @Benchmark
+    public void ipToInt(Blackhole bh) {
+        for (int i = 0; i < ADDRESSES; i++) {
+            bh.consume(IPUtils.ipToInt(strings[i]));
+        }
+    }
+
+    @Benchmark
+    public void longToIp(Blackhole bh) {
+        for (int i = 0; i < ADDRESSES; i++) {
+            bh.consume(IPUtils.longToIp(longs[i]));
+        }
+    }
+
+    @Benchmark
+    public void intToIp(Blackhole bh) {
+        for (int i = 0; i < ADDRESSES; i++) {
+            bh.consume(IPUtils.intToIp(ints[i]));
+        }
+    }
+
+    @Benchmark
+    public void appendIp(Blackhole bh) {
+        for (int i = 0; i < ADDRESSES; i++) {
+            sb.setLength(0);
+            bh.consume(IPUtils.appendIp(sb, ints[i]).length());
+        }
+    }
+
+    @Benchmark
+    public void intArrayToIp(Blackhole bh) {
+        for (int i = 0; i < ADDRESSES; i++) {
+            bh.consume(IPUtils.intArrayToIp(octets[i], 4));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package uk.co.gockett.ipbtools.topology.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import uk.co.gockett.ipbtools.topology.DiscoveryMetrics;
+import uk.co.gockett.ipbtools.topology.LatencyHistogram;
+
+/**
+ * Cost of the recording path of DiscoveryMetrics, with 8 threads recording
+ * at once as crawl workers and SNMP dispatcher threads do.
+ * @author ruanoj@github
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(8)
+public class MetricsBenchmark {
+
+    private LatencyHistogram histogram;
+    private DiscoveryMetrics metrics;
+
+    @State(Scope.Thread)
+    public static class Latencies {
+        long next = 1L;
+
+        /*
+         * Spread over the whole range a crawl sees, 1us to a few seconds
+         */
+        long next() {
+            next = next * 6364136223846793005L + 1442695040888963407L;
+            return (next >>> 40) % 4000000L;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        histogram = new LatencyHistogram("bench");
+        metrics = DiscoveryMetrics.getMetrics();
+        metrics.crawlStarted(8);
+    }
+
+    @Benchmark
+    public void histogramRecord(Latencies latencies) {
+        histogram.record(latencies.next());
+    }
+
+    @Benchmark
+    public void router(Latencies latencies) {
+        long start = metrics.routerStarted();
+        metrics.routerFinished("10.0.0.1", start - latencies.next() * 1000L, true);
+    }
+}
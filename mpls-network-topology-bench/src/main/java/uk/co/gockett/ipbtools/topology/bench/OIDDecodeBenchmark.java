@@ -0,0 +1,149 @@
+package uk.co.gockett.ipbtools.topology.bench;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+import uk.co.gockett.ipbtools.topology.IPUtils;
+import uk.co.gockett.ipbtools.topology.IntIntMap;
+import uk.co.gockett.ipbtools.topology.OIDCodec;
+
+/**
+ * Decoding of walked table rows, as getAdjacenciesJuniper() and
+ * getAdjacenciesCisco() (STEP0) do it.
+ *
+ * The *Strings variants follow the original code: index copied out of the
+ * row OID, addresses built as strings and boxed Long keys. The *Codec
+ * variants decode in place with OIDCodec into IntIntMap, as SNMPQuery now
+ * does. Each invocation decodes one whole walk of the given number of rows.
+ * @author ruanoj@github
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OIDDecodeBenchmark {
+
+    // JUNIPER-MPLS-LDP-MIB::jnxMplsLdpHelloAdjType
+    private final static OID JNX_COLUMN = new OID("1.3.6.1.4.1.2636.3.36.1.3.5.1.1.3");
+    private final static int JNX_ADJ_IP_INDEX = 7;
+    private final static int JNX_SNMP_IF_INDEX = 13;
+    // MPLS-LDP-MIB::mplsLdpSesState (Cisco)
+    private final static OID IOS_COLUMN = new OID("1.3.6.1.4.1.9.10.65.1.3.4.1.1");
+    private final static int IOS_LINK_INDEX = 6;
+    private final static int IOS_LOOPBACK_INDEX = 7;
+
+    @Param({"16", "256"})
+    public int rows;
+
+    private List<VariableBinding> juniper;
+    private List<VariableBinding> cisco;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        juniper = new ArrayList<VariableBinding>(rows);
+        cisco = new ArrayList<VariableBinding>(rows);
+        int local = IPUtils.ipToInt("10.0.0.1");
+        for (int i = 0; i < rows; i++) {
+            int peer = SyntheticTopology.address(random.nextInt(1 << 20));
+            int link = random.nextInt();
+            // <local>.0.0.1.<peer>.0.0.<ifIndex> = link(1)|targeted(2)
+            OID jnx = new OID(JNX_COLUMN);
+            appendIp(jnx, local).append(0).append(0).append(1);
+            appendIp(jnx, peer).append(0).append(0).append(500 + i);
+            juniper.add(new VariableBinding(jnx, new Integer32(i % 4 == 3 ? 2 : 1)));
+            // <local>.0.0.<link>.<peer>.0.0.1 = operational(5)
+            OID ios = new OID(IOS_COLUMN);
+            appendIp(ios, local).append(0).append(0).append(link);
+            appendIp(ios, peer).append(0).append(0).append(1);
+            cisco.add(new VariableBinding(ios, new Integer32(i % 4 == 3 ? 4 : 5)));
+        }
+    }
+
+    @Benchmark
+    public Object juniperStrings() {
+        Hashtable<String, Integer> result = new Hashtable<String, Integer>();
+        for (int i = 0; i < juniper.size(); i++) {
+            VariableBinding row = juniper.get(i);
+            int[] index = index(row.getOid(), JNX_COLUMN).getValue();
+            if (row.getVariable().toInt() == 1) {
+                String peer = IPUtils.intArrayToIp(index, JNX_ADJ_IP_INDEX);
+                result.put(peer, Integer.valueOf(index[JNX_SNMP_IF_INDEX]));
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public Object juniperCodec() {
+        IntIntMap result = new IntIntMap();
+        int offset = JNX_COLUMN.size();
+        for (int i = 0; i < juniper.size(); i++) {
+            VariableBinding row = juniper.get(i);
+            if (row.getVariable().toInt() == 1) {
+                OID oid = row.getOid();
+                result.put(OIDCodec.ipAt(oid, offset + JNX_ADJ_IP_INDEX),
+                           OIDCodec.subAt(oid, offset + JNX_SNMP_IF_INDEX));
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public Object ciscoStrings(Blackhole bh) {
+        Hashtable<Long, String> linkToLoopback = new Hashtable<Long, String>(10);
+        for (int i = 0; i < cisco.size(); i++) {
+            VariableBinding row = cisco.get(i);
+            if (row.getVariable().toInt() == 5) {
+                OID index = index(row.getOid(), IOS_COLUMN);
+                Long link = Long.valueOf(index.getUnsigned(IOS_LINK_INDEX));
+                String peer = IPUtils.intArrayToIp(index.getValue(), IOS_LOOPBACK_INDEX);
+                bh.consume(IPUtils.longToIp(link));     // As logged
+                linkToLoopback.put(link, peer);
+            }
+        }
+        return linkToLoopback;
+    }
+
+    @Benchmark
+    public Object ciscoCodec() {
+        IntIntMap linkToLoopback = new IntIntMap(10);
+        int offset = IOS_COLUMN.size();
+        for (int i = 0; i < cisco.size(); i++) {
+            VariableBinding row = cisco.get(i);
+            if (row.getVariable().toInt() == 5) {
+                OID oid = row.getOid();
+                linkToLoopback.put(OIDCodec.subAt(oid, offset + IOS_LINK_INDEX),
+                                   OIDCodec.ipAt(oid, offset + IOS_LOOPBACK_INDEX));
+            }
+        }
+        return linkToLoopback;
+    }
+
+    /*
+     * What BulkWalker.Walk.getIndex() does
+     */
+    private static OID index(OID oid, OID column) {
+        return new OID(oid.getValue(), column.size(), oid.size() - column.size());
+    }
+
+    private static OID appendIp(OID oid, int address) {
+        return oid.append(address >>> 24).append((address >>> 16) & 0xFF)
+                  .append((address >>> 8) & 0xFF).append(address & 0xFF);
+    }
+}
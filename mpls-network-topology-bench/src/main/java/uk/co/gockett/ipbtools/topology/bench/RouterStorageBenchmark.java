@@ -0,0 +1,90 @@
+package uk.co.gockett.ipbtools.topology.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.gockett.ipbtools.topology.IPUtils;
+import uk.co.gockett.ipbtools.topology.RouterStorage;
+
+/**
+ * The crawl frontier under contention: workers reporting neighbours, most
+ * of them already known, while other workers take pending nodes.
+ *
+ * RouterStorage is a singleton, so the state is shared by the whole run and
+ * emptied before every iteration; iterations are kept short so the graph
+ * does not grow without bound.
+ * @author ruanoj@github
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RouterStorageBenchmark {
+
+    private final static int KNOWN = 1024;
+
+    private final Object node = new Object();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger known = new AtomicInteger();
+    private String[] knownAddresses;
+    private RouterStorage storage;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        storage = RouterStorage.getAdjStorage();
+        storage.reset();
+        knownAddresses = new String[KNOWN];
+        for (int i = 0; i < KNOWN; i++) {
+            knownAddresses[i] = IPUtils.intToIp(SyntheticTopology.address(i));
+            storage.newAdjacency(knownAddresses[i], node);
+        }
+        next.set(KNOWN);
+    }
+
+    /**
+     * A neighbour never seen before: goes to the graph and the frontier.
+     */
+    @Benchmark
+    @Group("frontier")
+    @GroupThreads(2)
+    public boolean newNode() {
+        int n = next.getAndIncrement();
+        return storage.newAdjacency(IPUtils.intToIp(SyntheticTopology.address(n)), node);
+    }
+
+    /**
+     * A neighbour already discovered: only looked up.
+     */
+    @Benchmark
+    @Group("frontier")
+    @GroupThreads(4)
+    public boolean knownNode() {
+        int n = known.getAndIncrement() & (KNOWN - 1);
+        return storage.newAdjacency(knownAddresses[n], node);
+    }
+
+    @Benchmark
+    @Group("frontier")
+    @GroupThreads(2)
+    public Object take() {
+        Object taken = storage.getPendingAdj();
+        if (taken != null) {
+            storage.completeAdj(taken);
+        }
+        return taken;
+    }
+}
@@ -0,0 +1,126 @@
+package uk.co.gockett.ipbtools.topology.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.gockett.ipbtools.topology.CrawlScheduler;
+import uk.co.gockett.ipbtools.topology.DiscoveryListener;
+import uk.co.gockett.ipbtools.topology.PersonalityCache;
+import uk.co.gockett.ipbtools.topology.Router;
+import uk.co.gockett.ipbtools.topology.RouterStorage;
+import uk.co.gockett.ipbtools.topology.SNMPEngine;
+import uk.co.gockett.ipbtools.topology.SNMPQuery;
+import uk.co.gockett.ipbtools.topology.sim.AgentSimulator;
+import uk.co.gockett.ipbtools.topology.sim.DeviceProfile;
+import uk.co.gockett.ipbtools.topology.sim.SimulatedBackbone;
+
+/**
+ * A whole crawl, from the seed router until nothing is left pending,
+ * against a simulated backbone on the loopback interface.
+ *
+ * Every invocation starts from scratch (empty storage, no personalities
+ * cached). No link is targeted-only, as a Juniper end would hide it and
+ * cut a ring short; Cisco routers still get their targeted sessions to
+ * routers two hops away. Diagnostics the crawl writes to System.err are discarded, so
+ * they do not weigh on the results.
+ * @author ruanoj@github
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SimulatedCrawlBenchmark implements DiscoveryListener {
+
+    @Param({"ring", "hubspoke"})
+    public String shape;
+
+    @Param({"100", "1000"})
+    public int routers;
+
+    @Param({"0", "5"})
+    public long latency;        // ms, plus the same again of jitter
+
+    @Param({"16"})
+    public int workers;
+
+    @Param({"16171"})
+    public int port;
+
+    private AgentSimulator simulator;
+    private InetAddress seed;
+    private PrintStream err;
+
+    @Setup
+    public void setup() throws IOException {
+        SimulatedBackbone backbone = shape.equals("ring")
+            ? SimulatedBackbone.ring(routers, 1L)
+            : SimulatedBackbone.hubSpoke(Math.max(1, routers / 50), routers - Math.max(1, routers / 50), 1L);
+        backbone.setProfile(new DeviceProfile(latency, latency, 0.0, 0.0, 0L, false));
+        backbone.build();
+        simulator = new AgentSimulator(backbone, port);
+        simulator.start();
+        seed = InetAddress.getByName(backbone.getSeedAddress());
+        SNMPQuery.setDefaultPort(port);
+
+        err = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setErr(err);
+        simulator.stop();
+        SNMPEngine.shutdown();
+    }
+
+    @Benchmark
+    public int crawl() throws InterruptedException {
+        RouterStorage storage = RouterStorage.getAdjStorage();
+        storage.reset();
+        PersonalityCache.getCache().clear();
+        storage.newAdjacency(seed.getHostAddress(), new Router(seed));
+        CrawlScheduler scheduler = new CrawlScheduler(workers, false, this);
+        scheduler.start();
+        scheduler.awaitTermination();
+        return storage.getGraph().size();
+    }
+
+    public void join() {
+    }
+
+    public void leave() {
+    }
+
+    public void working() {
+    }
+
+    public void successResult() {
+    }
+
+    public void errorResult() {
+    }
+}
@@ -0,0 +1,78 @@
+package uk.co.gockett.ipbtools.topology.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.gockett.ipbtools.topology.RouterStorage;
+import uk.co.gockett.ipbtools.topology.TopologySnapshot;
+
+/**
+ * TopologySnapshot for synthetic graphs of 1k, 10k and 50k routers with
+ * about ten adjacencies each: writing one, opening one, and opening one
+ * and reading every adjacency.
+ * @author ruanoj@github
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SnapshotBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    public int routers;
+
+    private File file;
+    private File scratch;
+
+    @Setup
+    public void setup() throws IOException {
+        SyntheticTopology.build(routers, SyntheticTopology.DEFAULT_DEGREE, 42L);
+        file = File.createTempFile("topology", ".snap");
+        scratch = File.createTempFile("topology", ".snap");
+        TopologySnapshot.write(RouterStorage.getAdjStorage().getGraph(), file);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+        scratch.delete();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        TopologySnapshot.write(RouterStorage.getAdjStorage().getGraph(), scratch);
+        return scratch.length();
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        return TopologySnapshot.open(file).size();
+    }
+
+    @Benchmark
+    public long openAndScan() throws IOException {
+        TopologySnapshot snapshot = TopologySnapshot.open(file);
+        long sum = 0L;
+        int total = snapshot.getAdjacencyTotal();
+        for (int a = 0; a < total; a++) {
+            sum += snapshot.getPeerNode(a) + snapshot.getSpeed(a);
+        }
+        return sum;
+    }
+}
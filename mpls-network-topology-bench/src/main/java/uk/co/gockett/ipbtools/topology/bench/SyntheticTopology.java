@@ -0,0 +1,82 @@
+package uk.co.gockett.ipbtools.topology.bench;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Hashtable;
+import java.util.Random;
+
+import uk.co.gockett.ipbtools.topology.Adjacency;
+import uk.co.gockett.ipbtools.topology.IPUtils;
+import uk.co.gockett.ipbtools.topology.Router;
+import uk.co.gockett.ipbtools.topology.RouterStorage;
+
+/**
+ * Builds synthetic topologies in RouterStorage, as a finished discovery
+ * would leave them, without any SNMP nor DNS traffic.
+ *
+ * Routers get loopbacks from 10.0.0.0/8 in node order and a random set of
+ * neighbours; about one router in fifty is named as a shadow router so the
+ * output filter has work to do. The same seed gives the same topology.
+ * @author ruanoj@github
+ */
+public class SyntheticTopology {
+
+    public final static int FIRST_ADDRESS = 0x0A000001;    // 10.0.0.1
+    public final static int DEFAULT_DEGREE = 10;
+    private final static int SHADOW_EVERY = 50;
+
+    private SyntheticTopology() {
+    }
+
+    /**
+     * @return The loopback of node n
+     */
+    public static int address(int n) {
+        return FIRST_ADDRESS + n;
+    }
+
+    /**
+     * Replaces the contents of RouterStorage with a topology of the given
+     * number of routers, each one with about degree adjacencies.
+     */
+    public static void build(int routers, int degree, long seed) throws UnknownHostException {
+        RouterStorage storage = RouterStorage.getAdjStorage();
+        storage.reset();
+        Random random = new Random(seed);
+
+        Router[] nodes = new Router[routers];
+        for (int n = 0; n < routers; n++) {
+            int address = address(n);
+            Router r = new Router(InetAddress.getByAddress(toBytes(address)));
+            storage.newAdjacency(IPUtils.intToIp(address), r);
+            r.setHostname((n % SHADOW_EVERY == 1 ? "pe-shadow-" : "pe-") + n);
+            nodes[n] = r;
+        }
+        // Nodes are handed out as a discovery would
+        while (storage.getPendingAdj() != null) {
+            storage.completeAdj(null);
+        }
+
+        for (int n = 0; n < routers; n++) {
+            Hashtable<String, Adjacency> adjs = new Hashtable<String, Adjacency>(degree * 2 + 1);
+            for (int i = 0; i < degree && routers > 1; i++) {
+                int peer = random.nextInt(routers);
+                if (peer == n) {
+                    continue;
+                }
+                String peerAddress = IPUtils.intToIp(address(peer));
+                Adjacency adj = new Adjacency(peerAddress);
+                adj.setSNMPInterface(500 + i);
+                adj.setRouterInterface("xe-" + (i / 4) + "/0/" + (i % 4), 10000L);
+                adjs.put(peerAddress, adj);
+            }
+            nodes[n].addAllAdjacencies(adjs);
+        }
+    }
+
+    public static byte[] toBytes(int address) {
+        return new byte[] {
+            (byte) (address >>> 24), (byte) (address >>> 16),
+            (byte) (address >>> 8), (byte) address };
+    }
+}
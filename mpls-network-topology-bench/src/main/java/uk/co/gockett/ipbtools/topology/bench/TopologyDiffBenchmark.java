@@ -0,0 +1,75 @@
+package uk.co.gockett.ipbtools.topology.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.gockett.ipbtools.topology.RouterStorage;
+import uk.co.gockett.ipbtools.topology.TopologyDiff;
+import uk.co.gockett.ipbtools.topology.TopologyGraph;
+import uk.co.gockett.ipbtools.topology.TopologySnapshot;
+
+/**
+ * TopologyDiff of synthetic graphs of 10k and 50k routers (100k and 500k
+ * adjacencies): two graphs built alike, so every row is matched in full,
+ * and a graph against a snapshot of one of another seed, where most
+ * adjacencies change.
+ * @author ruanoj@github
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TopologyDiffBenchmark {
+
+    @Param({"10000", "50000"})
+    public int routers;
+
+    private TopologyGraph before;
+    private TopologyGraph after;
+    private TopologySnapshot other;
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        // reset() leaves every graph built before valid
+        SyntheticTopology.build(routers, SyntheticTopology.DEFAULT_DEGREE, 43L);
+        file = File.createTempFile("topology", ".snap");
+        TopologySnapshot.write(RouterStorage.getAdjStorage().getGraph(), file);
+        other = TopologySnapshot.open(file);
+        SyntheticTopology.build(routers, SyntheticTopology.DEFAULT_DEGREE, 42L);
+        before = RouterStorage.getAdjStorage().getGraph();
+        SyntheticTopology.build(routers, SyntheticTopology.DEFAULT_DEGREE, 42L);
+        after = RouterStorage.getAdjStorage().getGraph();
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public int unchanged() {
+        return TopologyDiff.diff(before, after).size();
+    }
+
+    @Benchmark
+    public int snapshotToGraph() {
+        return TopologyDiff.diff(other, after).size();
+    }
+}
@@ -0,0 +1,70 @@
+package uk.co.gockett.ipbtools.topology.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.gockett.ipbtools.topology.Main;
+
+/**
+ * End-to-end output of a finished discovery, Main.printTopology(), for
+ * synthetic graphs of 1k, 10k and 50k routers with about ten adjacencies
+ * each. Output goes to a stream that only counts bytes.
+ * @author ruanoj@github
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TopologyDumpBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    public int routers;
+
+    private PrintStream out;
+    private CountingStream counter;
+
+    /**
+     * Discards everything written to it, keeping the count.
+     */
+    static class CountingStream extends OutputStream {
+        long bytes = 0L;
+
+        public void write(int b) {
+            bytes++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        SyntheticTopology.build(routers, SyntheticTopology.DEFAULT_DEGREE, 42L);
+        counter = new CountingStream();
+        out = new PrintStream(counter, false);
+    }
+
+    @Benchmark
+    public long printTopology() {
+        Main.printTopology(out);
+        out.flush();
+        return counter.bytes;
+    }
+}
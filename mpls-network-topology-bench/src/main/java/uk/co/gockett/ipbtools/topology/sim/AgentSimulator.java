@@ -0,0 +1,341 @@
+package uk.co.gockett.ipbtools.topology.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.snmp4j.PDU;
+import org.snmp4j.PDUv1;
+import org.snmp4j.asn1.BER;
+import org.snmp4j.asn1.BERInputStream;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OctetString;
+
+/**
+ * SNMP agents for every router of a SimulatedBackbone, each one listening
+ * on its own loopback address and the same UDP port.
+ *
+ * A single thread receives for all of them; answers are sent once the
+ * delay given by the device profile has passed. Requests with another
+ * community, or that cannot be decoded, are ignored as real agents do.
+ *
+ * Binding to 127.1.0.1 and up works out of the box on Linux. Other systems
+ * need the addresses configured on the loopback interface. Each router
+ * takes a socket, so large backbones may need a higher open files limit.
+ * @author ruanoj@github
+ */
+public class AgentSimulator implements Runnable {
+
+    public final static int DEFAULT_PORT = 16161;
+    public final static String DEFAULT_COMMUNITY = "public";
+    private final static int BUFFER_SIZE = 65535;
+    private final static int SENDER_THREADS = 2;
+
+    private final SimulatedBackbone backbone;
+    private final int port;
+    private final OctetString community;
+    private Selector selector = null;
+    private final List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+    private ScheduledExecutorService sender = null;
+    private Thread receiver = null;
+    private volatile boolean running = false;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong answered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public AgentSimulator(SimulatedBackbone backbone, int port, String community) {
+        this.backbone = backbone;
+        this.port = port;
+        this.community = new OctetString(community);
+    }
+
+    public AgentSimulator(SimulatedBackbone backbone, int port) {
+        this(backbone, port, DEFAULT_COMMUNITY);
+    }
+
+    /**
+     * Binds the agents of every router and starts answering.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        try {
+            Iterator<SimulatedDevice> it = backbone.getDevices().iterator();
+            while (it.hasNext()) {
+                SimulatedDevice device = it.next();
+                DatagramChannel channel = DatagramChannel.open();
+                channels.add(channel);
+                channel.bind(new InetSocketAddress(
+                        InetAddress.getByName(device.getHostAddress()), port));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, device);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        sender = Executors.newScheduledThreadPool(SENDER_THREADS);
+        running = true;
+        receiver = new Thread(this, "AgentSimulator");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Stops answering and releases every socket.
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            t = receiver;
+            selector.wakeup();
+        }
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sender.shutdownNow();
+        close();
+    }
+
+    private void close() {
+        for (int i = 0; i < channels.size(); i++) {
+            try {
+                channels.get(i).close();
+            } catch (IOException e) {} // ignore
+        }
+        channels.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {} // ignore
+    }
+
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    buffer.clear();
+                    SocketAddress from;
+                    while ((from = channel.receive(buffer)) != null) {
+                        buffer.flip();
+                        handle(channel, (SimulatedDevice) key.attachment(), buffer, from);
+                        buffer.clear();
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("AgentSimulator: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handle(final DatagramChannel channel, SimulatedDevice device,
+            ByteBuffer request, final SocketAddress from) {
+        received.incrementAndGet();
+        try {
+            BERInputStream in = new BERInputStream(request);
+            BER.MutableByte type = new BER.MutableByte();
+            BER.decodeHeader(in, type);
+            Integer32 version = new Integer32();
+            version.decodeBER(in);
+            OctetString reqCommunity = new OctetString();
+            reqCommunity.decodeBER(in);
+            if (!community.equals(reqCommunity)) {
+                dropped.incrementAndGet();
+                return;
+            }
+            PDU pdu = version.getValue() == SnmpConstants.version1 ? new PDUv1() : new PDU();
+            pdu.decodeBER(in);
+
+            if (device.drop()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            PDU response = device.respond(version.getValue(), pdu);
+            if (response == null) {
+                dropped.incrementAndGet();
+                return;
+            }
+            final ByteBuffer message = encode(version, reqCommunity, response);
+            long delay = device.delay();
+            if (delay == 0) {
+                send(channel, message, from);
+            } else {
+                sender.schedule(new Runnable() {
+                    public void run() {
+                        send(channel, message, from);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+            dropped.incrementAndGet();      // Not SNMP
+        }
+    }
+
+    private void send(DatagramChannel channel, ByteBuffer message, SocketAddress to) {
+        try {
+            channel.send(message, to);
+            answered.incrementAndGet();
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("AgentSimulator: send: " + e.getMessage());
+            }
+        }
+    }
+
+    private static ByteBuffer encode(Integer32 version, OctetString community, PDU pdu)
+            throws IOException {
+        int length = version.getBERLength() + community.getBERLength() + pdu.getBERLength();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 8);
+        BER.encodeHeader(out, BER.SEQUENCE, length);
+        version.encodeBER(out);
+        community.encodeBER(out);
+        pdu.encodeBER(out);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getAnswered() {
+        return answered.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public SimulatedBackbone getBackbone() {
+        return backbone;
+    }
+
+    /**
+     * Serves a backbone until killed.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String shape = "ring";
+        int routers = 100;
+        int hubs = 4;
+        int port = DEFAULT_PORT;
+        long seed = 1L;
+        long latency = 0L;
+        long jitter = 0L;
+        double loss = 0.0;
+        double tailProbability = 0.0;
+        long tailLatency = 0L;
+        double dead = 0.0;
+        double slow = 0.0;
+        long slowLatency = 0L;
+        double juniper = 0.5;
+        double targeted = 0.0;
+
+        int argn = 0;
+        try {
+            while (argn < args.length) {
+                String opt = args[argn++];
+                if (opt.equals("-shape") && argn < args.length) {
+                    shape = args[argn++];
+                } else if (opt.equals("-n") && argn < args.length) {
+                    routers = Integer.parseInt(args[argn++]);
+                } else if (opt.equals("-hubs") && argn < args.length) {
+                    hubs = Integer.parseInt(args[argn++]);
+                } else if (opt.equals("-port") && argn < args.length) {
+                    port = Integer.parseInt(args[argn++]);
+                } else if (opt.equals("-seed") && argn < args.length) {
+                    seed = Long.parseLong(args[argn++]);
+                } else if (opt.equals("-latency") && argn+1 < args.length) {
+                    latency = Long.parseLong(args[argn++]);
+                    jitter = Long.parseLong(args[argn++]);
+                } else if (opt.equals("-loss") && argn < args.length) {
+                    loss = Double.parseDouble(args[argn++]);
+                } else if (opt.equals("-tail") && argn+1 < args.length) {
+                    tailProbability = Double.parseDouble(args[argn++]);
+                    tailLatency = Long.parseLong(args[argn++]);
+                } else if (opt.equals("-dead") && argn < args.length) {
+                    dead = Double.parseDouble(args[argn++]);
+                } else if (opt.equals("-slow") && argn+1 < args.length) {
+                    slow = Double.parseDouble(args[argn++]);
+                    slowLatency = Long.parseLong(args[argn++]);
+                } else if (opt.equals("-juniper") && argn < args.length) {
+                    juniper = Double.parseDouble(args[argn++]);
+                } else if (opt.equals("-targeted") && argn < args.length) {
+                    targeted = Double.parseDouble(args[argn++]);
+                } else {
+                    usage();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            usage();
+        }
+
+        SimulatedBackbone backbone = null;
+        try {
+            if (shape.equals("ring")) {
+                backbone = SimulatedBackbone.ring(routers, seed);
+            } else if (shape.equals("mesh")) {
+                backbone = SimulatedBackbone.mesh(routers, seed);
+            } else if (shape.equals("hubspoke")) {
+                backbone = SimulatedBackbone.hubSpoke(hubs, routers - hubs, seed);
+            } else {
+                usage();
+            }
+            backbone.setProfile(new DeviceProfile(latency, jitter, loss, tailProbability, tailLatency, false));
+        } catch (IllegalArgumentException e) {
+            usage();
+        }
+        backbone.setDeadFraction(dead);
+        backbone.setSlow(slow, slowLatency);
+        backbone.setJuniperFraction(juniper);
+        backbone.setTargetedOnlyFraction(targeted);
+        backbone.build();
+
+        AgentSimulator simulator = new AgentSimulator(backbone, port);
+        simulator.start();
+        System.err.println("Serving " + routers + " routers, " + backbone.getLinkCount()
+                + " links, on port " + port + ". Seed router: " + backbone.getSeedAddress());
+        while (true) {
+            Thread.sleep(10000L);
+            System.err.println("Requests:" + simulator.getReceived() + ", answered:"
+                    + simulator.getAnswered() + ", dropped:" + simulator.getDropped());
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: AgentSimulator [-shape ring|mesh|hubspoke] [-n routers] [-hubs n] [-port n] [-seed n] [-latency ms jitter] [-loss p] [-tail p ms] [-dead p] [-slow p ms] [-juniper p] [-targeted p]");
+        System.exit(1);
+    }
+}
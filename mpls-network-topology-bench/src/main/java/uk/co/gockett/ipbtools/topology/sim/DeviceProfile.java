@@ -0,0 +1,95 @@
+package uk.co.gockett.ipbtools.topology.sim;
+
+import java.util.Random;
+
+/**
+ * How a simulated agent behaves on the wire: how long it takes to answer,
+ * how often requests get lost, and whether it answers at all.
+ *
+ * Latency is latency + a uniform jitter, plus tailLatency for a fraction
+ * tailProbability of the requests, so tail latency can be studied apart
+ * from the median.
+ * @author ruanoj@github
+ */
+public class DeviceProfile {
+
+    public final static DeviceProfile IDEAL = new DeviceProfile(0L, 0L, 0.0, 0.0, 0L, false);
+
+    private final long latency;         // ms
+    private final long jitter;          // ms
+    private final double loss;          // Fraction of requests dropped
+    private final double tailProbability;
+    private final long tailLatency;     // ms
+    private final boolean dead;         // Never answers
+
+    public DeviceProfile(long latency, long jitter, double loss,
+            double tailProbability, long tailLatency, boolean dead) {
+        if (latency < 0 || jitter < 0 || tailLatency < 0
+                || loss < 0.0 || loss > 1.0
+                || tailProbability < 0.0 || tailProbability > 1.0) {
+            throw new IllegalArgumentException("Invalid device profile");
+        }
+        this.latency = latency;
+        this.jitter = jitter;
+        this.loss = loss;
+        this.tailProbability = tailProbability;
+        this.tailLatency = tailLatency;
+        this.dead = dead;
+    }
+
+    /**
+     * @return The same profile, but for a device that never answers
+     */
+    public DeviceProfile dead() {
+        return new DeviceProfile(latency, jitter, loss, tailProbability, tailLatency, true);
+    }
+
+    /**
+     * @return The same profile, with extra latency added to every answer
+     */
+    public DeviceProfile slower(long extra) {
+        return new DeviceProfile(latency + extra, jitter, loss, tailProbability, tailLatency, dead);
+    }
+
+    /**
+     * @return true if the request is to be ignored
+     */
+    boolean drop(Random random) {
+        return dead || (loss > 0.0 && random.nextDouble() < loss);
+    }
+
+    /**
+     * @return Milliseconds to wait before answering
+     */
+    long delay(Random random) {
+        long delay = latency;
+        if (jitter > 0) {
+            delay += (long) (random.nextDouble() * jitter);
+        }
+        if (tailProbability > 0.0 && random.nextDouble() < tailProbability) {
+            delay += tailLatency;
+        }
+        return delay;
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    public long getJitter() {
+        return jitter;
+    }
+
+    public double getLoss() {
+        return loss;
+    }
+
+    public boolean isDead() {
+        return dead;
+    }
+
+    public String toString() {
+        return "DeviceProfile[latency:" + latency + "+" + jitter + "ms, loss:" + loss
+            + ", tail:" + tailProbability + "/" + tailLatency + "ms" + (dead ? ", dead" : "") + "]";
+    }
+}
@@ -0,0 +1,343 @@
+package uk.co.gockett.ipbtools.topology.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.snmp4j.smi.Gauge32;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+
+import uk.co.gockett.ipbtools.topology.IPUtils;
+import uk.co.gockett.ipbtools.topology.OIDCodec;
+
+/**
+ * A synthetic MPLS backbone: routers, the links between them, and the MIB
+ * each router would show for it.
+ *
+ * Shapes:
+ *  - ring: router i linked to router i+1
+ *  - mesh: every router linked to every other one (a full-mesh core)
+ *  - hub-and-spoke: a full-mesh core of hubs, each spoke PE dual-homed
+ *    to two consecutive hubs (single-homed if there is only one hub)
+ *
+ * Routers get loopbacks from 127.1.0.1 onwards, so each one can have its
+ * own agent on the loopback interface; links get a /30 from 10.128.0.0/9.
+ *
+ * Juniper routers show jnxMplsLdpHelloAdjType. Cisco routers show the
+ * MPLS-LDP session and entity tables, plus ipRouteTable entries for the
+ * peers of their targeted sessions: one per link marked targeted-only
+ * (LDP sessions seen as targeted over a direct link, resolved by
+ * SNMPQuery through the route metric), and one to a router two hops
+ * away for every router, which must not be taken as adjacent.
+ * @author ruanoj@github
+ */
+public class SimulatedBackbone {
+
+    public final static int FIRST_ADDRESS = 0x7F010001;     // 127.1.0.1
+    private final static int FIRST_LINK = 0x0A800000;       // 10.128.0.0
+
+    public enum Shape { RING, MESH, HUB_SPOKE }
+
+    // MIB objects
+    private final static OID SYS_DESCR = new OID("1.3.6.1.2.1.1.1.0");
+    private final static OID SYS_OBJECT_ID = new OID("1.3.6.1.2.1.1.2.0");
+    private final static OID SYS_NAME = new OID("1.3.6.1.2.1.1.5.0");
+    private final static OID IF_TABLE_LAST_CHANGE = new OID("1.3.6.1.2.1.31.1.5.0");
+    private final static OID IF_DESCR = new OID("1.3.6.1.2.1.2.2.1.2");
+    private final static OID IF_HIGH_SPEED = new OID("1.3.6.1.2.1.31.1.1.1.15");
+    private final static OID IP_ROUTE_IF_INDEX = new OID("1.3.6.1.2.1.4.21.1.2");
+    private final static OID IP_ROUTE_METRIC1 = new OID("1.3.6.1.2.1.4.21.1.3");
+    private final static OID IP_ROUTE_NEXT_HOP = new OID("1.3.6.1.2.1.4.21.1.7");
+    private final static OID JNX_LDP_ADJ_TYPE = new OID("1.3.6.1.4.1.2636.3.36.1.3.5.1.1.3");
+    private final static OID LDP_SES_STATE = new OID("1.3.6.1.4.1.9.10.65.1.3.4.1.1");
+    private final static OID LDP_ENTITY_TARGETED = new OID("1.3.6.1.4.1.9.10.65.1.2.2.1.17");
+    private final static OID LDP_ENTITY_IF_INDEX = new OID("1.3.6.1.4.1.9.10.65.1.2.3.1.1.3");
+
+    private final static String IOS_DESCR = "Cisco IOS XR Software (Cisco ASR9K Series), Version 6.1.4[Default]";
+    private final static String JNX_DESCR = "Juniper Networks, Inc. mx960 internet router, kernel JUNOS 15.1R7.9";
+    private final static OID IOS_OBJECT_ID = new OID("1.3.6.1.4.1.9.1.1017");
+    private final static OID JNX_OBJECT_ID = new OID("1.3.6.1.4.1.2636.1.1.1.2.25");
+    private final static int IOS_FIRST_IF_INDEX = 1;
+    private final static int JNX_FIRST_IF_INDEX = 500;
+    private final static long LINK_SPEED = 10000L;          // Mb/s
+
+    private final Shape shape;
+    private final int routers;
+    private final int hubs;
+    private final long seed;
+    private double juniperFraction = 0.5;
+    private double targetedOnlyFraction = 0.0;
+    private DeviceProfile profile = DeviceProfile.IDEAL;
+    private double deadFraction = 0.0;
+    private double slowFraction = 0.0;
+    private long slowLatency = 0L;
+
+    private final List<SimulatedDevice> devices = new ArrayList<SimulatedDevice>();
+    private final List<int[]> links = new ArrayList<int[]>();  // { router a, router b }
+
+    /**
+     * @param routers Number of routers; for HUB_SPOKE, hubs included
+     * @param hubs Number of hubs, for HUB_SPOKE only
+     */
+    public SimulatedBackbone(Shape shape, int routers, int hubs, long seed) {
+        if (routers < 1 || (shape == Shape.HUB_SPOKE && (hubs < 1 || hubs > routers))) {
+            throw new IllegalArgumentException("Invalid backbone size");
+        }
+        this.shape = shape;
+        this.routers = routers;
+        this.hubs = hubs;
+        this.seed = seed;
+    }
+
+    public static SimulatedBackbone ring(int routers, long seed) {
+        return new SimulatedBackbone(Shape.RING, routers, 0, seed);
+    }
+
+    public static SimulatedBackbone mesh(int routers, long seed) {
+        return new SimulatedBackbone(Shape.MESH, routers, 0, seed);
+    }
+
+    public static SimulatedBackbone hubSpoke(int hubs, int spokes, long seed) {
+        return new SimulatedBackbone(Shape.HUB_SPOKE, hubs + spokes, hubs, seed);
+    }
+
+    public void setJuniperFraction(double fraction) {
+        juniperFraction = fraction;
+    }
+
+    /**
+     * Fraction of the links on which LDP only sees a targeted session.
+     */
+    public void setTargetedOnlyFraction(double fraction) {
+        targetedOnlyFraction = fraction;
+    }
+
+    /**
+     * Profile given to every device by build().
+     */
+    public void setProfile(DeviceProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Fraction of the devices that never answer. The first router, the
+     * usual seed, is always alive.
+     */
+    public void setDeadFraction(double fraction) {
+        deadFraction = fraction;
+    }
+
+    /**
+     * Fraction of the devices that take latency ms more than the others
+     * to answer.
+     */
+    public void setSlow(double fraction, long latency) {
+        slowFraction = fraction;
+        slowLatency = latency;
+    }
+
+    /**
+     * Creates the routers and links, and fills in their MIBs.
+     */
+    public void build() {
+        devices.clear();
+        links.clear();
+        Random random = new Random(seed);
+
+        for (int i = 0; i < routers; i++) {
+            boolean juniper = random.nextDouble() < juniperFraction;
+            String name = (shape == Shape.HUB_SPOKE && i >= hubs ? "pe-" : "p-") + i;
+            SimulatedDevice device = new SimulatedDevice(FIRST_ADDRESS + i, name, juniper, random.nextLong());
+            DeviceProfile p = profile;
+            if (i > 0 && random.nextDouble() < deadFraction) {
+                p = p.dead();
+            } else if (random.nextDouble() < slowFraction) {
+                p = p.slower(slowLatency);
+            }
+            device.setProfile(p);
+            devices.add(device);
+        }
+
+        switch (shape) {
+        case RING:
+            for (int i = 0; routers > 1 && i < routers; i++) {
+                if (routers > 2 || i == 0) {
+                    links.add(new int[] { i, (i + 1) % routers });
+                }
+            }
+            break;
+        case MESH:
+            mesh(routers);
+            break;
+        case HUB_SPOKE:
+            mesh(hubs);
+            for (int s = hubs; s < routers; s++) {
+                int hub = s % hubs;
+                links.add(new int[] { s, hub });
+                if (hubs > 1) {
+                    links.add(new int[] { s, (hub + 1) % hubs });
+                }
+            }
+            break;
+        }
+
+        populate(random);
+    }
+
+    private void mesh(int n) {
+        for (int a = 0; a < n; a++) {
+            for (int b = a + 1; b < n; b++) {
+                links.add(new int[] { a, b });
+            }
+        }
+    }
+
+    public List<SimulatedDevice> getDevices() {
+        return devices;
+    }
+
+    public SimulatedDevice getDevice(int i) {
+        return devices.get(i);
+    }
+
+    /**
+     * @return Number of links between routers
+     */
+    public int getLinkCount() {
+        return links.size();
+    }
+
+    /**
+     * @return The loopback of the first router, to start a crawl from
+     */
+    public String getSeedAddress() {
+        return IPUtils.intToIp(FIRST_ADDRESS);
+    }
+
+    /*
+     * Interfaces are numbered per router in link order. Link k uses
+     * 10.128.0.0 + 4k + 1 on its 'a' end and + 2 on its 'b' end.
+     */
+    private void populate(Random random) {
+        int[] interfaces = new int[routers];
+        // Per router: { peer, local ifIndex, peer interface address, targeted only }
+        List<List<int[]>> neighbours = new ArrayList<List<int[]>>(routers);
+        for (int i = 0; i < routers; i++) {
+            neighbours.add(new ArrayList<int[]>());
+        }
+        for (int k = 0; k < links.size(); k++) {
+            int a = links.get(k)[0];
+            int b = links.get(k)[1];
+            int targeted = random.nextDouble() < targetedOnlyFraction ? 1 : 0;
+            neighbours.get(a).add(new int[] { b, ifIndex(devices.get(a), interfaces[a]++), FIRST_LINK + 4 * k + 2, targeted });
+            neighbours.get(b).add(new int[] { a, ifIndex(devices.get(b), interfaces[b]++), FIRST_LINK + 4 * k + 1, targeted });
+        }
+
+        for (int i = 0; i < routers; i++) {
+            SimulatedDevice d = devices.get(i);
+            int local = d.getAddress();
+            boolean juniper = d.isJuniper();
+
+            d.put(SYS_DESCR, new OctetString(juniper ? JNX_DESCR : IOS_DESCR));
+            d.put(SYS_OBJECT_ID, juniper ? JNX_OBJECT_ID : IOS_OBJECT_ID);
+            d.put(SimulatedDevice.SYS_UPTIME, new TimeTicks(0L));   // Computed when asked
+            d.put(SYS_NAME, new OctetString(d.getName()));
+            d.put(IF_TABLE_LAST_CHANGE, new TimeTicks(0L));
+
+            List<int[]> mine = neighbours.get(i);
+            for (int n = 0; n < mine.size(); n++) {
+                int[] nb = mine.get(n);
+                int peer = devices.get(nb[0]).getAddress();
+                int ifIndex = nb[1];
+                d.put(OIDCodec.appendIndex(IF_DESCR, ifIndex), new OctetString(ifName(juniper, n)));
+                d.put(OIDCodec.appendIndex(IF_HIGH_SPEED, ifIndex), new Gauge32(LINK_SPEED));
+
+                if (juniper) {
+                    // <local>.0.0.1.<peer>.0.0.<ifIndex> = link(1) | targeted(2)
+                    OID index = appendLdpId(appendLdpId(new OID(), local).append(1), peer);
+                    d.put(OIDCodec.appendIndex(new OID(JNX_LDP_ADJ_TYPE).append(index), nb[3] == 1 ? 0 : ifIndex),
+                          new Integer32(nb[3] == 1 ? 2 : 1));
+                } else if (nb[3] == 0) {
+                    ciscoSession(d, local, nb[2], peer, false, ifIndex);
+                } else {
+                    // Targeted over a direct link: the route tells
+                    ciscoSession(d, local, peer, peer, true, 0);
+                    ciscoRoute(d, peer, nb[2], ifIndex, 1);
+                }
+            }
+            if (!juniper && !mine.isEmpty()) {
+                // A targeted session to a router two hops away
+                int[] via = mine.get(random.nextInt(mine.size()));
+                List<int[]> theirs = neighbours.get(via[0]);
+                int[] far = theirs.get(random.nextInt(theirs.size()));
+                int remote = devices.get(far[0]).getAddress();
+                if (far[0] != i && !isNeighbour(mine, far[0])) {
+                    ciscoSession(d, local, remote, remote, true, 0);
+                    ciscoRoute(d, remote, via[2], via[1], 2);
+                }
+            }
+        }
+    }
+
+    private static boolean isNeighbour(List<int[]> neighbours, int router) {
+        for (int n = 0; n < neighbours.size(); n++) {
+            if (neighbours.get(n)[0] == router) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * mplsLdpSesState.<local>.0.0.<entity>.<peer>.0.0.1 = operational(5)
+     * mplsLdpEntityTargetedPeer.<local>.0.0.<entity> = true(1) | false(2)
+     * mplsLdpEntityConfGenIfIndxOrZero.<local>.0.0.<entity> = ifIndex | 0
+     *
+     * Link entities are identified by the address of the peer interface,
+     * the next hop of routes through the link.
+     */
+    private static void ciscoSession(SimulatedDevice d, int local, int entity, int peer,
+            boolean targeted, int ifIndex) {
+        OID entityIndex = appendLdpId(new OID(), local).append(entity);
+        OID session = new OID(entityIndex);
+        appendLdpId(session, peer).append(1);
+        d.put(new OID(LDP_SES_STATE).append(session), new Integer32(5));
+        d.put(new OID(LDP_ENTITY_TARGETED).append(entityIndex), new Integer32(targeted ? 1 : 2));
+        d.put(new OID(LDP_ENTITY_IF_INDEX).append(entityIndex), new Integer32(ifIndex));
+    }
+
+    private static void ciscoRoute(SimulatedDevice d, int destination, int nextHop, int ifIndex, int metric) {
+        d.put(OIDCodec.appendIp(IP_ROUTE_NEXT_HOP, destination),
+              new IpAddress(toBytes(nextHop)));
+        d.put(OIDCodec.appendIp(IP_ROUTE_METRIC1, destination), new Integer32(metric));
+        d.put(OIDCodec.appendIp(IP_ROUTE_IF_INDEX, destination), new Integer32(ifIndex));
+    }
+
+    private static byte[] toBytes(int address) {
+        return new byte[] {
+            (byte) (address >>> 24), (byte) (address >>> 16),
+            (byte) (address >>> 8), (byte) address };
+    }
+
+    /*
+     * LDP identifier: router id and label space (0.0)
+     */
+    private static OID appendLdpId(OID oid, int address) {
+        return oid.append((address >>> 24) & 0xFF).append((address >>> 16) & 0xFF)
+                  .append((address >>> 8) & 0xFF).append(address & 0xFF)
+                  .append(0).append(0);
+    }
+
+    private static int ifIndex(SimulatedDevice d, int n) {
+        return (d.isJuniper() ? JNX_FIRST_IF_INDEX : IOS_FIRST_IF_INDEX) + n;
+    }
+
+    private static String ifName(boolean juniper, int n) {
+        return juniper ? "xe-" + (n / 8) + "/0/" + (n % 8)
+                       : "TenGigE0/0/" + (n / 8) + "/" + (n % 8);
+    }
+}
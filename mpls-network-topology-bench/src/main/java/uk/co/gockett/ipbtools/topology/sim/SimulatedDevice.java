@@ -0,0 +1,238 @@
+package uk.co.gockett.ipbtools.topology.sim;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.snmp4j.PDU;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Null;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+
+import uk.co.gockett.ipbtools.topology.IPUtils;
+
+/**
+ * One simulated router: its MIB, as a sorted map of instances, and the
+ * profile it answers with.
+ *
+ * Answers GET, GETNEXT and GETBULK following SNMPv1 or SNMPv2c rules.
+ * GETBULK responses are cut to fit maxSize, as real agents do; other
+ * responses that do not fit get tooBig. sysUpTime runs from the moment
+ * the device is created, or restarted.
+ * @author ruanoj@github
+ */
+public class SimulatedDevice {
+
+    public final static int DEFAULT_MAX_SIZE = 1472;    // UDP payload on Ethernet
+    final static OID SYS_UPTIME = new OID("1.3.6.1.2.1.1.3.0");
+    private final static int MESSAGE_OVERHEAD = 32;     // Version, community, headers
+
+    private final int address;
+    private final String name;
+    private final boolean juniper;
+    private final TreeMap<OID, Variable> mib = new TreeMap<OID, Variable>();
+    private final Random random;
+    private DeviceProfile profile = DeviceProfile.IDEAL;
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private long upSince = System.currentTimeMillis();
+    private long requests = 0L;
+
+    public SimulatedDevice(int address, String name, boolean juniper, long seed) {
+        this.address = address;
+        this.name = name;
+        this.juniper = juniper;
+        this.random = new Random(seed);
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    public String getHostAddress() {
+        return IPUtils.intToIp(address);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isJuniper() {
+        return juniper;
+    }
+
+    public synchronized DeviceProfile getProfile() {
+        return profile;
+    }
+
+    public synchronized void setProfile(DeviceProfile profile) {
+        this.profile = profile;
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Makes sysUpTime start again from 0.
+     */
+    public synchronized void restart() {
+        upSince = System.currentTimeMillis();
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    synchronized void put(OID oid, Variable value) {
+        mib.put(oid, value);
+    }
+
+    public synchronized int getMibSize() {
+        return mib.size();
+    }
+
+    /**
+     * @return true if the request is to be ignored, as the profile says
+     */
+    synchronized boolean drop() {
+        requests++;
+        return profile.drop(random);
+    }
+
+    /**
+     * @return Milliseconds to wait before answering, as the profile says
+     */
+    synchronized long delay() {
+        return profile.delay(random);
+    }
+
+    /**
+     * Builds the response to a request.
+     *
+     * @param version SnmpConstants.version1 or version2c
+     * @return The response, null if the request is not one to answer
+     */
+    public synchronized PDU respond(int version, PDU request) {
+        PDU response = new PDU();
+        response.setType(PDU.RESPONSE);
+        response.setRequestID(request.getRequestID());
+        boolean v1 = version == SnmpConstants.version1;
+
+        switch (request.getType()) {
+        case PDU.GET:
+            for (int i = 0; i < request.size(); i++) {
+                OID oid = request.get(i).getOid();
+                Variable value = lookup(oid);
+                if (value == null) {
+                    if (v1) {
+                        return error(request, PDU.noSuchName, i);
+                    }
+                    value = Null.noSuchInstance;
+                }
+                response.add(new VariableBinding(oid, value));
+            }
+            break;
+        case PDU.GETNEXT:
+            for (int i = 0; i < request.size(); i++) {
+                VariableBinding next = next(request.get(i).getOid());
+                if (next == null) {
+                    if (v1) {
+                        return error(request, PDU.noSuchName, i);
+                    }
+                    next = new VariableBinding(request.get(i).getOid(), Null.endOfMibView);
+                }
+                response.add(next);
+            }
+            break;
+        case PDU.GETBULK:
+            if (v1) {
+                return null;
+            }
+            return bulk(request, response);
+        default:
+            return null;
+        }
+        if (response.getBERLength() + MESSAGE_OVERHEAD > maxSize) {
+            return error(request, PDU.tooBig, -1);
+        }
+        return response;
+    }
+
+    private PDU bulk(PDU request, PDU response) {
+        int nonRepeaters = Math.max(0, Math.min(request.getNonRepeaters(), request.size()));
+        int repeaters = request.size() - nonRepeaters;
+        int limit = maxSize - MESSAGE_OVERHEAD;
+
+        for (int i = 0; i < nonRepeaters; i++) {
+            if (!addNext(response, request.get(i).getOid(), limit)) {
+                return response;
+            }
+        }
+        OID[] last = new OID[repeaters];
+        for (int i = 0; i < repeaters; i++) {
+            last[i] = request.get(nonRepeaters + i).getOid();
+        }
+        for (int r = 0; r < Math.max(1, request.getMaxRepetitions()) && repeaters > 0; r++) {
+            boolean more = false;
+            for (int i = 0; i < repeaters; i++) {
+                if (!addNext(response, last[i], limit)) {
+                    return response;
+                }
+                VariableBinding added = response.get(response.size() - 1);
+                last[i] = added.getOid();
+                more |= !added.getVariable().isException();
+            }
+            if (!more) {
+                break;      // Every column is past the end of the MIB
+            }
+        }
+        return response;
+    }
+
+    /*
+     * Adds the instance following oid, unless it does not fit
+     */
+    private boolean addNext(PDU response, OID oid, int limit) {
+        VariableBinding next = next(oid);
+        if (next == null) {
+            next = new VariableBinding(oid, Null.endOfMibView);
+        }
+        response.add(next);
+        if (response.getBERLength() > limit && response.size() > 1) {
+            response.trim();
+            return false;
+        }
+        return true;
+    }
+
+    private Variable lookup(OID oid) {
+        if (oid.equals(SYS_UPTIME)) {
+            return new TimeTicks((System.currentTimeMillis() - upSince) / 10);
+        }
+        return mib.get(oid);
+    }
+
+    private VariableBinding next(OID oid) {
+        Map.Entry<OID, Variable> e = mib.higherEntry(oid);
+        if (e == null) {
+            return null;
+        }
+        return new VariableBinding(e.getKey(), lookup(e.getKey()));
+    }
+
+    private static PDU error(PDU request, int status, int index) {
+        PDU response = new PDU(request);
+        response.setType(PDU.RESPONSE);
+        response.setErrorStatus(status);
+        response.setErrorIndex(index + 1);
+        return response;
+    }
+
+    public String toString() {
+        return "SimulatedDevice[" + getHostAddress() + ", " + name
+            + (juniper ? ", Juniper" : ", Cisco") + ", " + profile + "]";
+    }
+}
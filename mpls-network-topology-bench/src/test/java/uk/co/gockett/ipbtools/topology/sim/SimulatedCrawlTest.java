@@ -0,0 +1,144 @@
+package uk.co.gockett.ipbtools.topology.sim;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Iterator;
+
+import uk.co.gockett.ipbtools.topology.CrawlScheduler;
+import uk.co.gockett.ipbtools.topology.DeviceHealth;
+import uk.co.gockett.ipbtools.topology.DiscoveryListener;
+import uk.co.gockett.ipbtools.topology.ResultListener;
+import uk.co.gockett.ipbtools.topology.Router;
+import uk.co.gockett.ipbtools.topology.RouterStorage;
+import uk.co.gockett.ipbtools.topology.SNMPEngine;
+import uk.co.gockett.ipbtools.topology.SNMPQuery;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Whole crawls of a simulated ring, in both CrawlScheduler modes.
+ */
+public class SimulatedCrawlTest
+    extends TestCase
+    implements DiscoveryListener, ResultListener
+{
+    private final static int PORT = 16182;
+    private final static int ROUTERS = 20;
+
+    private SimulatedBackbone backbone;
+    private AgentSimulator simulator;
+    private int completed;
+    private int answered;
+
+    public SimulatedCrawlTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SimulatedCrawlTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        backbone = SimulatedBackbone.ring( ROUTERS, 1L );
+        backbone.build();
+        simulator = new AgentSimulator( backbone, PORT );
+        simulator.start();
+        SNMPQuery.setDefaultPort( PORT );
+        DeviceHealth.getHealth().setLimits( DeviceHealth.MIN_TIMEOUT, 0 );
+    }
+
+    protected void tearDown()
+    {
+        simulator.stop();
+        SNMPEngine.shutdown();
+        DeviceHealth.getHealth().setLimits( DeviceHealth.DEFAULT_MAX_TIMEOUT, DeviceHealth.DEFAULT_RETRIES );
+        RouterStorage.getAdjStorage().reset();
+    }
+
+    /*
+     * @return Number of adjacencies found
+     */
+    private int crawl( boolean threadPerRouter ) throws Exception
+    {
+        RouterStorage storage = RouterStorage.getAdjStorage();
+        storage.reset();
+        DeviceHealth.getHealth().reset();
+        completed = answered = 0;
+        String seed = backbone.getSeedAddress();
+        storage.newAdjacency( seed, new Router( InetAddress.getByName( seed ) ) );
+
+        CrawlScheduler scheduler = new CrawlScheduler( 4, threadPerRouter, this );
+        scheduler.setResultListener( this );
+        scheduler.start();
+        scheduler.awaitTermination();
+        assertTrue( storage.isFinished() );
+        assertEquals( 0, storage.getInFlightCount() );
+
+        int adjacencies = 0;
+        Iterator<Object> it = storage.getData();
+        while ( it.hasNext() )
+        {
+            adjacencies += ( (Router) it.next() ).getAdjacencies().size();
+        }
+        return adjacencies;
+    }
+
+    public void testCrawl() throws Exception
+    {
+        assertEquals( 2 * ROUTERS, crawl( false ) );
+        assertEquals( ROUTERS, completed );
+        assertEquals( ROUTERS, answered );
+
+        assertEquals( 2 * ROUTERS, crawl( true ) );
+        assertEquals( ROUTERS, completed );
+        assertEquals( ROUTERS, answered );
+    }
+
+    public void testDeadRouter() throws Exception
+    {
+        // Still reached through both neighbours, which report it
+        backbone.getDevice( 5 ).setProfile( DeviceProfile.IDEAL.dead() );
+
+        assertEquals( 2 * ROUTERS - 2, crawl( false ) );
+        assertEquals( ROUTERS, completed );
+        assertEquals( ROUTERS - 1, answered );
+
+        assertEquals( 2 * ROUTERS - 2, crawl( true ) );
+        assertEquals( ROUTERS, completed );
+        assertEquals( ROUTERS - 1, answered );
+    }
+
+    public synchronized void routerCompleted( Router router, boolean ok )
+    {
+        completed++;
+        if ( ok )
+        {
+            answered++;
+        }
+    }
+
+    public void join()
+    {
+    }
+
+    public void leave()
+    {
+    }
+
+    public void working()
+    {
+    }
+
+    public void successResult()
+    {
+    }
+
+    public void errorResult()
+    {
+    }
+}
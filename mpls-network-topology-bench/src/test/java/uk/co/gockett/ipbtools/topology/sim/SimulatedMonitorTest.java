@@ -0,0 +1,148 @@
+package uk.co.gockett.ipbtools.topology.sim;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.co.gockett.ipbtools.topology.Adjacency;
+import uk.co.gockett.ipbtools.topology.DeviceHealth;
+import uk.co.gockett.ipbtools.topology.Router;
+import uk.co.gockett.ipbtools.topology.SNMPEngine;
+import uk.co.gockett.ipbtools.topology.SNMPQuery;
+import uk.co.gockett.ipbtools.topology.TopologyListener;
+import uk.co.gockett.ipbtools.topology.TopologyMonitor;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * TopologyMonitor rounds against a simulated ring.
+ */
+public class SimulatedMonitorTest
+    extends TestCase
+    implements TopologyListener
+{
+    private final static int PORT = 16181;
+
+    private SimulatedBackbone backbone;
+    private AgentSimulator simulator;
+    private List<String> changes = new ArrayList<String>();
+
+    public SimulatedMonitorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SimulatedMonitorTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        backbone = SimulatedBackbone.ring( 6, 1L );
+        backbone.build();
+        simulator = new AgentSimulator( backbone, PORT );
+        simulator.start();
+        SNMPQuery.setDefaultPort( PORT );
+        DeviceHealth.getHealth().setLimits( DeviceHealth.MIN_TIMEOUT, 0 );
+    }
+
+    protected void tearDown()
+    {
+        simulator.stop();
+        SNMPEngine.shutdown();
+        DeviceHealth.getHealth().setLimits( DeviceHealth.DEFAULT_MAX_TIMEOUT, DeviceHealth.DEFAULT_RETRIES );
+    }
+
+    public void testTransientFailure() throws Exception
+    {
+        List<InetAddress> seeds = new ArrayList<InetAddress>();
+        seeds.add( InetAddress.getByName( backbone.getSeedAddress() ) );
+        TopologyMonitor monitor = new TopologyMonitor( seeds, 4, false, 0L );
+        monitor.addListener( this );
+
+        monitor.runRound();
+        assertTrue( changes.contains( "+" + backbone.getDevice( 2 ).getHostAddress() ) );
+        changes.clear();
+
+        // Not answering is not a change, until MISSED_ROUNDS rounds in a row
+        SimulatedDevice device = backbone.getDevice( 2 );
+        device.setProfile( DeviceProfile.IDEAL.dead() );
+        for ( int i = 1; i < TopologyMonitor.MISSED_ROUNDS; i++ )
+        {
+            monitor.runRound();
+            assertEquals( changes.toString(), 0, changes.size() );
+        }
+        monitor.runRound();
+        assertEquals( changes.toString(), 2, changes.size() );
+        assertTrue( changes.get( 0 ).startsWith( "-ADJ " + device.getHostAddress() ) );
+        changes.clear();
+
+        // Back: its adjacencies too
+        device.setProfile( DeviceProfile.IDEAL );
+        monitor.runRound();
+        assertEquals( changes.toString(), 2, changes.size() );
+        assertTrue( changes.get( 0 ).startsWith( "+ADJ " + device.getHostAddress() ) );
+    }
+
+    public void roundStarted( int round )
+    {
+    }
+
+    public void routerAppeared( Router router )
+    {
+        changes.add( "+" + router.getHostAddress() );
+    }
+
+    public void routerDisappeared( Router router )
+    {
+        changes.add( "-" + router.getHostAddress() );
+    }
+
+    public void adjacencyAdded( Router router, Adjacency adjacency )
+    {
+        changes.add( "+ADJ " + router.getHostAddress() + " " + adjacency.getAdjacentAddress() );
+    }
+
+    public void adjacencyRemoved( Router router, Adjacency adjacency )
+    {
+        changes.add( "-ADJ " + router.getHostAddress() + " " + adjacency.getAdjacentAddress() );
+    }
+
+    public void linkSpeedChanged( Router router, Adjacency before, Adjacency after )
+    {
+        changes.add( "SPEED " + router.getHostAddress() );
+    }
+
+    public void interfaceRenamed( Router router, Adjacency before, Adjacency after )
+    {
+        changes.add( "IF " + router.getHostAddress() );
+    }
+
+    public void roundFinished( int round )
+    {
+    }
+
+    public void join()
+    {
+    }
+
+    public void leave()
+    {
+    }
+
+    public void working()
+    {
+    }
+
+    public void successResult()
+    {
+    }
+
+    public void errorResult()
+    {
+    }
+}
@@ -6,13 +6,22 @@ import java.util.Map;
 /**
  * AdjDiscoverer is the central class for router discovery.
  * 
- * TODO: Implement file-based cache
+ * When a DiscoveryCache is open, routers that have not changed since
+ * they were cached are served from it; only their personality is queried.
+ *
+ * In incremental mode, the decision is based on change indicators rather
+ * than on the age of the cached results: sysUpTime, ifTableLastChange
+ * (both in the personality probe) and the LDP session count, which takes
+ * a single column walk. The full adjacency walk is only done for routers
+ * where any of them moved.
  * @author ruanoj@github
  */
 public class AdjDiscoverer {
 
     public final static String DEFAULT_COMMUNITY = "public";
 
+    private static boolean incremental = false;
+
     private final SNMPQuery query = new SNMPQuery();
 
     public AdjDiscoverer() {
@@ -20,23 +29,76 @@ public class AdjDiscoverer {
         query.setCommunity(DEFAULT_COMMUNITY);
     }
 
+    public static void setIncremental(boolean enabled) {
+        incremental = enabled;
+    }
+
+    public static boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Keeps the router just asked for its hostname in the DiscoveryCache,
+     * with no adjacency, so later crawls know its hostname before querying
+     * it and ScopePolicy can leave it out straight away.
+     */
+    public void rememberExcluded() {
+        DiscoveryCache cache = DiscoveryCache.getCache();
+        DevicePersonality personality = query.getDevicePersonality();
+        if (cache != null && personality != null) {
+            cache.put(personality, new Hashtable<String, Adjacency>(), -1);
+        }
+    }
+
     public Map<String, Adjacency> findAdjacencies( Router node ) {
         Hashtable<String, Adjacency> result = null;
         // Set address
         if (query.setAddress(node.getInetAddress()) == false) {
             return null;
         }
+        // Try the cache first
+        DiscoveryCache cache = DiscoveryCache.getCache();
+        DevicePersonality personality = query.getDevicePersonality();
+        if (cache != null && personality != null) {
+            DiscoveryCache.Entry cached = incremental
+                ? lookupUnchanged(cache, personality)
+                : cache.lookup(personality);
+            if (cached != null) {
+                result = cached.getAdjacencies();
+                node.addAllAdjacencies(result);
+                return result;
+            }
+        }
+
         // Ask SNMPQuery to set adjacencies
         result = query.getAdjacencies();
 
         if (result != null) {
             node.addAllAdjacencies(result);
+            if (cache != null && personality != null) {
+                cache.put(personality, result, query.getLdpSessions());
+            }
         }
 
         //System.out.println(node);
         return result;
     }
 
+    /*
+     * Cheap indicators first; the LDP session count only for routers that
+     * pass them.
+     */
+    private DiscoveryCache.Entry lookupUnchanged(DiscoveryCache cache,
+            DevicePersonality personality) {
+        DiscoveryCache.Entry cached = cache.get(personality.getAddress());
+        boolean unchanged = cached != null
+            && cache.isUnchanged(cached, personality)
+            && cached.getLdpSessions() >= 0
+            && cached.getLdpSessions() == query.getLdpSessionCount();
+        cache.count(unchanged);
+        return unchanged ? cached : null;
+    }
+
     public String getHostname(Router node) {
         if (query.setAddress(node.getInetAddress()) == false) {
             return null;
@@ -10,18 +10,14 @@ import java.util.Map;
  * AdjDiscoveryTask: Threaded task meant to retrieve pending nodes and populate
  * their adjacency nodes.
  *
- * TODO: Notification of operations done. This will enable to a) count the
- * number of routers queried,and b) detect whether first router answers (if
- * first router is not reachable/does not reply, the threads will wait for
- * new nodes forever.) Currently, boolean 'finished' used.
+ * Pending nodes are taken from RouterStorage, which blocks until one is
+ * available and hands out null once no node is pending nor being processed
+ * by any other task; that is when run() returns.
  * 
  * @author ruanoj@github
  */
 public class AdjDiscoveryTask implements Runnable {
 
-    private final static long SLEEP_TIME = 1000L;  // Pause between checks for pending nodes
-    public static boolean finished = false; // See todo
-
     private static int instanceid = 1;      // Internal instance counter for class
     private final int here = instanceid++;  // # of this instance
 
@@ -29,110 +25,116 @@ public class AdjDiscoveryTask implements Runnable {
     private final RouterStorage storage = RouterStorage.getAdjStorage();
     private AdjDiscoverer discoverer = new AdjDiscoverer();
     private DiscoveryListener status;
+    private ResultListener results;
 
     AdjDiscoveryTask(DiscoveryListener status) {
-        this.status = status;
+        this(status, null);
     }
 
-    // Method that will make other objects to exit upon checking for
-    // finished status.
-    AdjDiscoveryTask(boolean finish) {
-        finished = finish;
+    AdjDiscoveryTask(DiscoveryListener status, ResultListener results) {
+        this.status = status;
+        this.results = results;
     }
 
     public void run() {
         Router node;
-        String anAdjacency;
-        Map<?, ?> found;
-        
+
         status.join();
         // loop run
-        do {
-            node = null;
-            while(node == null) {
-                // loop get
-                //  if finished then return
-                if (finished) {
-                    status.leave();
-                    return;
-                }
-                //  get pending node
-                node = (Router) storage.getPendingAdj();
-                //  if no new node then pause
-                if (node == null) {
-                    try {
-                        Thread.sleep(SLEEP_TIME);
-                    } catch(InterruptedException e) { } // Ignored
+        try {
+            while ((node = (Router) storage.takePendingAdj()) != null) {
+                try {
+                    process(node);
+                } finally {
+                    // inform of current node completeness
+                    storage.completeAdj(node);
                 }
-            // end loop get
             }
+        } catch(InterruptedException e) { } // Ignored, just leave
+//        outprintln("getting out of run()");
+        status.leave();
+    }
 
-            /*
-             * Originally, adjacencies were received here and added to
-             * the router node, but I decided to delegate this latter
-             * process to the AdjDiscoverer object itself.
-             *
-             * The resulting solution is less loosely coupled, but we
-             * save code in encoding the results, return them, parse
-             * them and add the adjacencies.
-             *
-             */
-//            outprintln("Processing node " + node.getHostAddress());
-            status.working();
-
-            String hostname = discoverer.getHostname(node);
-            if (hostname !=null && hostname.matches("^.+-shadow-.+$")) {
-                // Ignoring shadow routers
-//                errprintln("Ignoring shadow router:" + hostname);
-                // XXX mark node as ignored;
-                status.successResult();
-                continue;
+    /**
+     * Queries a node and queues its newly discovered adjacencies, timing
+     * it into DiscoveryMetrics. The CrawlJournal and the result listener,
+     * if any, are told straight away.
+     */
+    void process(Router node) {
+        DiscoveryMetrics metrics = DiscoveryMetrics.getMetrics();
+        long start = metrics.routerStarted();
+        boolean ok = false;
+        try {
+            ok = discover(node);
+        } finally {
+            metrics.routerFinished(node.getHostAddress(), start, ok);
+            CrawlJournal journal = CrawlJournal.getJournal();
+            if (journal != null) {
+                journal.completed(node, ok);
             }
-            node.setHostname(hostname);
-            
-            found = discoverer.findAdjacencies(node);
-            if (found==null) {
-                errprintln("Error while finding adjacencies.");
-                status.errorResult();
-                continue;
+            if (results != null) {
+                results.routerCompleted(node, ok);
             }
+        }
+    }
 
-            // Add newly discovered adjacencies as nodes to storage
-            Iterator<?> it = found.keySet().iterator();
-            while (it.hasNext()) {
-                anAdjacency = (String)it.next();
-                try {
-                    Router newnode = new Router(InetAddress.getByName(anAdjacency));
-
-                    /*// Query node for hostname
-                    String hn = discoverer.getHostname(newnode);    // This resets target ip address
-                    if (hn == null) {
-                    // Get
-                    hn = newnode.getHostname();
-                    }
-                    if (hn.matches("^.+-shadow-.+$")) {
-                    continue;
-                    // Ignoring shadow routers
-                    //                        System.out.println("(Ignoring  )"+hn);
-                    }*/
-                    
-                    if (storage.newAdjacency(anAdjacency, newnode)) {
-//                        System.out.println("(Discovered)"+hn);
-                    } else {
-                        // XXX: Error, need to throw something
-                    }
-
-                } catch(UnknownHostException ex) {} // ignore
-            }
-            // inform of current node completeness
+    /*
+     * @return false if the node could not be queried
+     */
+    private boolean discover(Router node) {
+        String anAdjacency;
+        Map<?, ?> found;
 
-            // if not finished then repeat loop
-          // end loop run
-//            outprintln("finished node " + node.getHostAddress());
+        /*
+         * Originally, adjacencies were received here and added to
+         * the router node, but I decided to delegate this latter
+         * process to the AdjDiscoverer object itself.
+         *
+         * The resulting solution is less loosely coupled, but we
+         * save code in encoding the results, return them, parse
+         * them and add the adjacencies.
+         *
+         */
+//        outprintln("Processing node " + node.getHostAddress());
+        status.working();
+
+        String hostname = discoverer.getHostname(node);
+        if (!ScopePolicy.getPolicy().admitsHostname(hostname)) {
+            // Ignoring shadow routers, and any other excluded by hostname
+//            errprintln("Ignoring shadow router:" + hostname);
+            node.setHostname(hostname);
+            discoverer.rememberExcluded();
+            DiscoveryMetrics.getMetrics().excluded(true);
             status.successResult();
-        } while( !finished );
-//        outprintln("getting out of run()");
-        status.leave();
+            return true;
+        }
+        node.setHostname(hostname);
+
+        found = discoverer.findAdjacencies(node);
+        if (found==null) {
+            errprintln("Error while finding adjacencies.");
+            status.errorResult();
+            return false;
+        }
+
+        // Add newly discovered adjacencies as nodes to storage
+        Iterator<?> it = found.keySet().iterator();
+        while (it.hasNext()) {
+            anAdjacency = (String)it.next();
+            try {
+                Router newnode = new Router(InetAddress.getByName(anAdjacency));
+
+                if (storage.newAdjacency(anAdjacency, newnode)) {
+//                    System.out.println("(Discovered)"+anAdjacency);
+                } else {
+                    // XXX: Error, need to throw something
+                }
+
+            } catch(UnknownHostException ex) {} // ignore
+        }
+//        outprintln("finished node " + node.getHostAddress());
+        status.successResult();
+        return true;
     }
 
     private void print(PrintStream ps, String text ) {
@@ -0,0 +1,49 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.Hashtable;
+import org.snmp4j.smi.OID;
+
+/**
+ * A MIB, or set of MIBs, the adjacencies of a router can be learnt from.
+ *
+ * SNMPQuery finds which columns of the candidate sources the device
+ * answers with a single capability probe (see MibCapabilities), asks
+ * each source what it would cost, and executes the plan of the cheapest
+ * one. A plan that fails, or finds the adjacencies it sees incomplete,
+ * lets the next cheapest source have a go; the VendorDriver of the
+ * device is the last resort. What another source finds is only taken if
+ * it is as many adjacencies as the LDP sessions the driver counts, since
+ * the topology is that of LDP.
+ *
+ * Adjacencies are keyed by the address the adjacent router is known by in
+ * the topology, its loopback or router id, as LDP identifiers are.
+ * Sources are stateless and shared by every query.
+ * @author ruanoj@github
+ */
+public interface AdjacencySource {
+
+    /**
+     * @return Short name, for plans, metrics and -sources
+     */
+    public String getName();
+
+    /**
+     * @return The columns the plan walks, for the capability probe
+     */
+    public OID[] getColumns();
+
+    /**
+     * @return Estimated cost of the plan on the device, in table walks and
+     * batches of GETs, -1 if the device does not support the source
+     */
+    public int getCost(MibCapabilities capabilities);
+
+    /**
+     * Builds the plan finding the adjacencies of the current address of
+     * the query. Once executed, adjacencies holds one Adjacency per
+     * adjacent router, keyed by its address, with the SNMP ifIndex it is
+     * seen on; SNMPQuery looks up interface names and speeds afterwards.
+     * The plan fails if the adjacencies it found are not complete.
+     */
+    public QueryPlan planAdjacencies(SNMPQuery query, Hashtable<String, Adjacency> adjacencies);
+}
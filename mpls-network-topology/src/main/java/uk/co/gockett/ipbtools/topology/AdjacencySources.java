@@ -0,0 +1,144 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.List;
+import org.snmp4j.smi.OID;
+
+/**
+ * Registry of the vendor neutral AdjacencySources (LLDP-MIB, ISIS-MIB,
+ * OSPF-MIB), which of them are enabled, and the MibCapabilities of every
+ * device probed for them. None is enabled unless asked for, so by default
+ * adjacencies come from the VendorDriver alone, with no probe.
+ *
+ * Capabilities are kept per address for as long as the personality they
+ * were probed under is the one in PersonalityCache, so they follow its
+ * TTL and a reboot probes them again.
+ * @author ruanoj@github
+ */
+public class AdjacencySources {
+
+    private final static List<AdjacencySource> sources = new ArrayList<AdjacencySource>();
+    private static List<AdjacencySource> enabled;
+    // [ String address ] = MibCapabilities
+    private final static Hashtable<String, MibCapabilities> capabilities =
+        new Hashtable<String, MibCapabilities>();
+
+    static {
+        sources.add(new LldpSource());
+        sources.add(new IsisSource());
+        sources.add(new OspfSource());
+        enabled = new ArrayList<AdjacencySource>();
+    }
+
+    private AdjacencySources() {
+    }
+
+    /**
+     * Enables only the sources named, e.g. "lldp,ospf". "ldp" alone, or
+     * an empty list, leaves the VendorDriver of each device as the only
+     * source, with no capability probe.
+     *
+     * @throws IllegalArgumentException if a name is not known
+     */
+    public static synchronized void setEnabled(String names) {
+        List<AdjacencySource> list = new ArrayList<AdjacencySource>();
+        String[] parts = names.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            String name = parts[i].trim();
+            if (name.length() == 0 || name.equals("ldp")) {
+                continue;
+            }
+            AdjacencySource source = null;
+            for (int j = 0; j < sources.size() && source == null; j++) {
+                if (sources.get(j).getName().equals(name)) {
+                    source = sources.get(j);
+                }
+            }
+            if (source == null) {
+                throw new IllegalArgumentException("Unknown adjacency source " + name);
+            }
+            list.add(source);
+        }
+        enabled = list;
+        capabilities.clear();
+    }
+
+    /**
+     * @return Enabled sources, then the driver if not null
+     */
+    public static synchronized List<AdjacencySource> candidates(VendorDriver driver) {
+        List<AdjacencySource> list = new ArrayList<AdjacencySource>(enabled);
+        if (driver != null) {
+            list.add(driver);
+        }
+        return list;
+    }
+
+    /**
+     * @return Every column the candidates walk, once each
+     */
+    public static OID[] columns(List<AdjacencySource> candidates) {
+        List<OID> columns = new ArrayList<OID>();
+        for (int i = 0; i < candidates.size(); i++) {
+            OID[] walked = candidates.get(i).getColumns();
+            for (int j = 0; j < walked.length; j++) {
+                if (!columns.contains(walked[j])) {
+                    columns.add(walked[j]);
+                }
+            }
+        }
+        return columns.toArray(new OID[columns.size()]);
+    }
+
+    /**
+     * Orders the candidates by cost, leaving out those the device does not
+     * support or has proven incomplete on. Other sources than the driver
+     * cost one walk more, the LDP session count they are checked against.
+     * The driver, if any, is kept as the last resort whatever its cost.
+     * Equal costs keep their order.
+     */
+    public static List<AdjacencySource> rank(List<AdjacencySource> candidates,
+            final MibCapabilities caps, VendorDriver driver) {
+        final Hashtable<AdjacencySource, Integer> costs = new Hashtable<AdjacencySource, Integer>();
+        List<AdjacencySource> ranked = new ArrayList<AdjacencySource>();
+        for (int i = 0; i < candidates.size(); i++) {
+            AdjacencySource source = candidates.get(i);
+            int cost = source.getCost(caps);
+            if (source != driver && (cost < 0 || caps.isIncomplete(source))) {
+                continue;
+            }
+            if (cost < 0) {
+                cost = Integer.MAX_VALUE;
+            } else if (source != driver) {
+                cost++;
+            }
+            costs.put(source, Integer.valueOf(cost));
+            ranked.add(source);
+        }
+        Collections.sort(ranked, new Comparator<AdjacencySource>() {
+            public int compare(AdjacencySource a, AdjacencySource b) {
+                return costs.get(a).compareTo(costs.get(b));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * @return The capabilities of the device, null if not probed under its
+     * current personality
+     */
+    public static MibCapabilities getCapabilities(DevicePersonality personality) {
+        MibCapabilities caps = capabilities.get(personality.getAddress());
+        if (caps == null || caps.getPersonality() != personality) {
+            return null;
+        }
+        return caps;
+    }
+
+    public static void putCapabilities(MibCapabilities caps) {
+        capabilities.put(caps.getPersonality().getAddress(), caps);
+    }
+}
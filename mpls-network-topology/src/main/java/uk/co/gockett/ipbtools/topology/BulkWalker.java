@@ -0,0 +1,199 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import org.snmp4j.PDU;
+import org.snmp4j.Target;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Walks a single table column, bounded to the column subtree.
+ *
+ * SNMPv2c targets are walked with GETBULK. The number of max-repetitions
+ * is kept per device and adapted as walks go: doubled while responses
+ * come back full, halved on tooBig or timeouts. SNMPv1 targets fall back
+ * to GETNEXT, one row per round-trip.
+ *
+ * Each walk reports how many round-trips it took.
+ * @author ruanoj@github
+ */
+public class BulkWalker {
+
+    public final static int DEFAULT_MAX_REPETITIONS = 25;
+    public final static int MAX_MAX_REPETITIONS = 200;
+
+    private static int defaultMaxRepetitions = DEFAULT_MAX_REPETITIONS;
+    // [ String address ] = Integer max-repetitions that last worked
+    private final static Hashtable<String, Integer> deviceMaxRepetitions =
+        new Hashtable<String, Integer>(DEFAULT_MAX_REPETITIONS);
+
+    private final SNMPEngine engine;
+
+    /**
+     * Result of a column walk. Rows are the variable bindings under the
+     * column, in order; the index of a row is its OID past the column.
+     */
+    public static class Walk {
+        private final OID column;
+        private final List<VariableBinding> rows = new ArrayList<VariableBinding>();
+        private boolean ok = false;
+        private int roundTrips = 0;
+        private int maxRepetitions = 0;
+
+        Walk(OID column) {
+            this.column = column;
+        }
+
+        public boolean isOk() {
+            return ok;
+        }
+
+        public List<VariableBinding> getRows() {
+            return rows;
+        }
+
+        public OID getColumn() {
+            return column;
+        }
+
+        /**
+         * @return Position of the index in row OIDs, for OIDCodec
+         */
+        public int getIndexOffset() {
+            return column.size();
+        }
+
+        /**
+         * @return The index part of a row OID
+         */
+        public OID getIndex(VariableBinding row) {
+            OID oid = row.getOid();
+            return new OID(oid.getValue(), column.size(), oid.size() - column.size());
+        }
+
+        public int getRoundTrips() {
+            return roundTrips;
+        }
+
+        public int getMaxRepetitions() {
+            return maxRepetitions;
+        }
+
+        public String toString() {
+            return "Walk[" + column + ": " + rows.size() + " rows, "
+                + roundTrips + " round-trips (GETNEXT: " + (rows.size() + 1)
+                + "), max-repetitions " + maxRepetitions + "]";
+        }
+    }
+
+    public BulkWalker(SNMPEngine engine) {
+        this.engine = engine;
+    }
+
+    public static void setDefaultMaxRepetitions(int maxRepetitions) {
+        if (maxRepetitions < 1 || maxRepetitions > MAX_MAX_REPETITIONS) {
+            throw new IllegalArgumentException("max-repetitions out of range: " + maxRepetitions);
+        }
+        defaultMaxRepetitions = maxRepetitions;
+    }
+
+    /**
+     * Fixes the starting max-repetitions for a device. It still adapts to
+     * the responses received.
+     */
+    public static void setMaxRepetitions(String address, int maxRepetitions) {
+        deviceMaxRepetitions.put(address, Integer.valueOf(maxRepetitions));
+    }
+
+    public static int getMaxRepetitions(String address) {
+        Integer reps = deviceMaxRepetitions.get(address);
+        return reps == null ? defaultMaxRepetitions : reps.intValue();
+    }
+
+    /**
+     * Walks a column on the given target.
+     *
+     * @return The walk; isOk() is false if the device did not answer or
+     * returned an error
+     */
+    public Walk walk(Target target, OID column) {
+        Walk walk = new Walk(column);
+        String address = target.getAddress().toString();
+        boolean bulk = target.getVersion() != SnmpConstants.version1;
+        int reps = bulk ? getMaxRepetitions(address) : 1;
+        OID next = column;
+
+        while (true) {
+            PDU pdu = new PDU();
+            pdu.add(new VariableBinding(next));
+            if (bulk) {
+                pdu.setType(PDU.GETBULK);
+                pdu.setNonRepeaters(0);
+                pdu.setMaxRepetitions(reps);
+            } else {
+                pdu.setType(PDU.GETNEXT);
+            }
+
+            ResponseEvent re;
+            try {
+                re = engine.send(pdu, target);
+            } catch (IOException e) {
+                System.err.println("walk: IOException on " + column);
+                break;
+            }
+            walk.roundTrips++;
+            PDU response = re == null ? null : re.getResponse();
+            if (response == null) {
+                // Timeout. Big responses are more likely to get lost
+                if (bulk) {
+                    deviceMaxRepetitions.put(address, Integer.valueOf(Math.max(1, reps / 2)));
+                }
+                break;
+            }
+            int error = response.getErrorStatus();
+            if (error == PDU.tooBig && bulk && reps > 1) {
+                reps = reps / 2;
+                continue;
+            }
+            if (error == PDU.noSuchName && !bulk) {
+                // SNMPv1 end of MIB
+                walk.ok = true;
+                break;
+            }
+            if (error != PDU.noError) {
+                System.err.println("walk: " + response.getErrorStatusText() + " on " + column);
+                break;
+            }
+
+            boolean end = response.size() == 0;
+            for (int i = 0; i < response.size() && !end; i++) {
+                VariableBinding vb = response.get(i);
+                if (vb.isException() || !vb.getOid().startsWith(column)
+                        || vb.getOid().compareTo(next) <= 0) {
+                    end = true;
+                } else {
+                    walk.rows.add(vb);
+                    next = vb.getOid();
+                }
+            }
+            if (end) {
+                walk.ok = true;
+                break;
+            }
+            if (bulk && response.size() >= reps) {
+                reps = Math.min(MAX_MAX_REPETITIONS, reps * 2);
+            }
+        }
+
+        if (bulk && walk.ok) {
+            deviceMaxRepetitions.put(address, Integer.valueOf(reps));
+        }
+        walk.maxRepetitions = reps;
+        return walk;
+    }
+}
@@ -0,0 +1,397 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * VendorDriver of Cisco devices.
+ *
+ * Adjacencies come out of the MPLS-LDP-MIB: operational sessions give the
+ * link to loopback association, and sessions that are not targeted give
+ * the ifIndex of their link. Targeted sessions on links with no other LDP
+ * peer are promoted to adjacencies when their route has the lowest metric
+ * over that next hop; RFC1213-MIB ipRouteIfIndex then gives their ifIndex.
+ *
+ * The three LDP walks do not depend on each other, so the plan runs them
+ * at the same time; each one is processed as soon as what it needs has
+ * come back.
+ * @author ruanoj@github
+ */
+public class CiscoDriver implements VendorDriver {
+
+    // other cisco-only stuff - new approach
+    final private static String OIDMplsLdpSesState = "1.3.6.1.4.1.9.10.65.1.3.4.1.1";
+    final private static int indexLinkOIDMplsLdpSesState = 6; //20;  // link address - 32-bit integer
+    final private static int indexLoopbackOIDMplsLdpSesState = 7; //21;  // loopback address - 4 integers
+    //
+    final private static String OIDMplsLdpEntityTargetedPeer = "1.3.6.1.4.1.9.10.65.1.2.2.1.17";
+    final private static int indexOIDMplsLdpEntityTargetedPeer = 6; //20; // link address - 32-bit integer
+    //
+    final private static String OIDMplsLdpEntityConfGenIfIndxOrZero = "1.3.6.1.4.1.9.10.65.1.2.3.1.1.3";
+    final private static int indexOIDMplsLdpEntityConfGenIfIndxOrZero = 6; // link address - 32-bit integer
+    //
+    final private static String prefixOIDRfc1213IpRouteNextHop = "1.3.6.1.2.1.4.21.1.7.";
+    final private static int indexOIDRfc1213IpRouteNextHop = 10;
+    //
+    final private static String prefixOIDRfc1213IpRouteIfIndex = "1.3.6.1.2.1.4.21.1.2.";
+    //
+    final private static String prefixOIDRfc1213IpRouteMetric1 = "1.3.6.1.2.1.4.21.1.3.";
+    //
+    // other cisco-only stuff - end of new approach
+
+    // Columns walked
+    final private static OID mplsLdpSesStateOID = new OID(OIDMplsLdpSesState);
+    final private static OID mplsLdpEntityTargetedPeerOID = new OID(OIDMplsLdpEntityTargetedPeer);
+    final private static OID mplsLdpEntityConfGenIfIndxOrZeroOID = new OID(OIDMplsLdpEntityConfGenIfIndxOrZero);
+    // Route table columns, indexed by destination address
+    final private static OID ipRouteNextHopOID = new OID(prefixOIDRfc1213IpRouteNextHop);
+    final private static OID ipRouteIfIndexOID = new OID(prefixOIDRfc1213IpRouteIfIndex);
+    final private static OID ipRouteMetric1OID = new OID(prefixOIDRfc1213IpRouteMetric1);
+    final private static OID[] columns = { mplsLdpSesStateOID, mplsLdpEntityTargetedPeerOID,
+                                           mplsLdpEntityConfGenIfIndxOrZeroOID };
+
+    // Batches of route GETs promoting targeted sessions: next hops,
+    // metrics, ifIndexes
+    final private static int ROUTE_ROUND_TRIPS = 3;
+
+    public String getName() {
+        return "cisco";
+    }
+
+    public boolean accepts(DevicePersonality personality) {
+        return personality.getVendor() == DevicePersonality.Vendor.CISCO;
+    }
+
+    public OID[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * The three walks, and the route GETs as if there were targeted
+     * sessions to promote.
+     */
+    public int getCost(MibCapabilities capabilities) {
+        if (!capabilities.responds(mplsLdpSesStateOID)) {
+            return -1;
+        }
+        return columns.length + ROUTE_ROUND_TRIPS;
+    }
+
+    /**
+     * Three walks at once, then:
+     * <pre>
+     *   mplsLdpSesState ---------------------> STEP0 --\
+     *   mplsLdpEntityTargetedPeer --> STEP1 --\         STEP3 --> STEP4
+     *   mplsLdpEntityConfGenIfIndxOrZero ----> STEP2 --/
+     * </pre>
+     */
+    public QueryPlan planAdjacencies(final SNMPQuery query,
+            final Hashtable<String, Adjacency> adjacencies) {
+        QueryPlan plan = new QueryPlan(getName() + " " + query.getAddress());
+        System.err.println("Retrieving adjacencies for node " + query.getAddress());
+
+        // [ int linkAddress ] = int ldpPeer
+        final IntIntMap linkToLoopback = new IntIntMap(10);
+        // [ int linkAddress ] = int ifNumber
+        final IntIntMap notTargeted = new IntIntMap(10);
+
+        final QueryPlan.WalkStep sesState = plan.add(
+            new QueryPlan.WalkStep("mplsLdpSesState", query, mplsLdpSesStateOID));
+        final QueryPlan.WalkStep targetedPeer = plan.add(
+            new QueryPlan.WalkStep("mplsLdpEntityTargetedPeer", query, mplsLdpEntityTargetedPeerOID));
+        final QueryPlan.WalkStep confGenIfIndex = plan.add(
+            new QueryPlan.WalkStep("mplsLdpEntityConfGenIfIndxOrZero", query,
+                                   mplsLdpEntityConfGenIfIndxOrZeroOID));
+
+        // 0 - Retrieve hash of link->loopback association of all operational LDP sessions
+        QueryPlan.Step step0 = plan.add(new QueryPlan.Step("STEP0", sesState) {
+            protected boolean run() {
+                query.setLdpSessions(countOperational(sesState.getWalk()));
+                operationalSessions(sesState.getWalk(), linkToLoopback);
+                return true;
+            }
+        });
+
+        // 1 - Obtain non-targeted LDP peers (link only)
+        QueryPlan.Step step1 = plan.add(new QueryPlan.Step("STEP1", targetedPeer) {
+            protected boolean run() {
+                notTargetedLinks(targetedPeer.getWalk(), notTargeted);
+                return true;
+            }
+        });
+
+        // 2 - Get ifNumber for results of previous step
+        QueryPlan.Step step2 = plan.add(new QueryPlan.Step("STEP2", step1, confGenIfIndex) {
+            protected boolean run() {
+                linkIfIndexes(confGenIfIndex.getWalk(), notTargeted);
+                return true;
+            }
+        });
+
+        // 3 - For operational LDP sessions that are targeted, iterate and find out
+        //     the ones with the lowest metric, cause those are direct adjacencies
+        QueryPlan.Step step3 = plan.add(new QueryPlan.Step("STEP3", step0, step2) {
+            protected boolean run() {
+                return promoteTargeted(query, linkToLoopback, notTargeted);
+            }
+        });
+
+        // 4 - Translate link to loopback, for results. Addresses become
+        //     strings only here.
+        plan.add(new QueryPlan.Step("STEP4", step3) {
+            protected boolean run() {
+                results(linkToLoopback, notTargeted, adjacencies);
+                return true;
+            }
+        });
+        return plan;
+    }
+
+    private static void operationalSessions(BulkWalker.Walk walk, IntIntMap linkToLoopback) {
+        int offset = walk.getIndexOffset();
+
+        // Here are the results. We are only interested in the
+        // LDP sessions that are operational(5)
+        Iterator<VariableBinding> it = walk.getRows().iterator();
+        while(it.hasNext()) {
+            VariableBinding row = it.next();
+
+            // cisco: node queried -> AA.BB.CC.DD (loopback address)
+            // org.snmp4j.util.TableEvent[
+            //       localLoopback       remotelinkip  remoteLoopback
+            //                           INTERFACE-IP
+            // index=(AA.BB.CC.DD).0.0.(1424602962).(EE.FF.GG.HH).0.0.1,
+            // vbs=[1.3.6.1.4.1.9.10.65.1.3.2.1.1.3.AA.BB.CC.DD.0.0.1424602962.EE.FF.GG.HH.0.0.1 = 1],
+            // status=0,exception=null,report=null]
+
+            // This is the value for the OID
+            int sesState = row.getVariable().toInt();
+            if (sesState == 5) { // operational
+                OID oid = row.getOid();
+                // Operational LDP session - link address
+                int linkAddress = OIDCodec.subAt(oid, offset + indexLinkOIDMplsLdpSesState);
+                // Operational LDP session - loopback, or LDP ident
+                int ldpPeer = OIDCodec.ipAt(oid, offset + indexLoopbackOIDMplsLdpSesState);
+                System.err.println("Operational LDP session: " + IPUtils.intToIp(ldpPeer)
+                        + ", (link/"+IPUtils.intToIp(linkAddress)+")");
+
+                linkToLoopback.put(linkAddress, ldpPeer);
+            }
+        }
+    }
+
+    private static void notTargetedLinks(BulkWalker.Walk walk, IntIntMap notTargeted) {
+        int offset = walk.getIndexOffset();
+
+        Iterator<VariableBinding> it = walk.getRows().iterator();
+        while( it.hasNext()) {
+            VariableBinding row = it.next();
+            // This is the value for the OID
+            int targetedPeer = row.getVariable().toInt();
+            if (targetedPeer == 2) { // not targeted
+
+                //System.err.println(row);
+                // Operational LDP session - link address
+                int linkAddress = OIDCodec.subAt(row.getOid(), offset + indexOIDMplsLdpEntityTargetedPeer);
+                // Operational LDP session - loopback, or LDP ident
+                System.err.println("Non-targeted LDP session: x.x.x.x" +
+                        ", (link/"+IPUtils.intToIp(linkAddress)+")");
+
+                notTargeted.put(linkAddress, 0);
+            }
+        }
+    }
+
+    private static void linkIfIndexes(BulkWalker.Walk walk, IntIntMap notTargeted) {
+        int offset = walk.getIndexOffset();
+        Iterator<VariableBinding> it = walk.getRows().iterator();
+        while( it.hasNext()) {
+            VariableBinding row = it.next();
+            // This is the value for the OID
+            int ifIndex = row.getVariable().toInt();
+            if (ifIndex != 0) { // not targeted
+                // Operational LDP session - link address
+                int linkAddress = OIDCodec.subAt(row.getOid(), offset + indexOIDMplsLdpEntityConfGenIfIndxOrZero);
+                if (notTargeted.containsKey(linkAddress)) {
+                    notTargeted.put(linkAddress, ifIndex);
+                    System.err.println("(link/"+IPUtils.intToIp(linkAddress)+") = ifIndex "+ifIndex);
+                }
+            }
+        }
+    }
+
+    /*
+     * @return false if the device did not answer
+     */
+    private static boolean promoteTargeted(SNMPQuery query, IntIntMap linkToLoopback,
+            IntIntMap notTargeted) {
+        final GetCoalescer batch = query.newCoalescer();
+        final List<GetCoalescer.Request> nextHops = new ArrayList<GetCoalescer.Request>();
+        final IntIntMap known = notTargeted;
+
+        // Iterating thru link addresses
+        linkToLoopback.forEach(new IntIntMap.Visitor() {
+            public void visit(int link, int ldpPeer) {
+                if (! known.containsKey(link)) {
+                    // This targeted may be a valid hello adjacency
+                    System.err.println("Targeted LDP session "+IPUtils.intToIp(ldpPeer)+" may be adjacent.");
+                    nextHops.add(batch.add(OIDCodec.appendIp(ipRouteNextHopOID, ldpPeer)));
+                }
+            }
+        });
+
+        // Make query and, grouping by next hop, get the adjacency with the
+        // lowest metric. Query ipRouteIndex to find on the next hop to get
+        // ifIndex
+        //
+        // Only if next hop is not in nonTargeted list, means that is a
+        // previously unknown adjacency
+
+        if (nextHops.isEmpty()) {
+            return true;
+        }
+        System.err.println("Retrieving ipRouteNextHop ");
+        long start = System.nanoTime();
+
+        if (query.unreachable() || !batch.flush()) {
+            System.err.println("getAdjacenciesCisco: snmp timeout");
+            DiscoveryMetrics.getMetrics().getRoutesLatency().recordSince(start);
+            return false;
+        }
+
+        // nexthop means the same as link address
+        IntIntMap candidateMetric = new IntIntMap(10);      // [int nexthop] = int metric1
+        IntIntMap candidateLoopback = new IntIntMap(10);    // [int nexthop] = int loopback
+
+        // Metric1 of every route whose next hop is not a known link,
+        // all queried at once
+        int[] routeNexthop = new int[nextHops.size()];
+        int[] routePeer = new int[nextHops.size()];
+        List<GetCoalescer.Request> routeMetric = new ArrayList<GetCoalescer.Request>();
+
+        System.err.println("Size of VariableBinding: " + nextHops.size());
+        // Iterating results
+        for(int i=0; i<nextHops.size(); i++) {
+            GetCoalescer.Request oneVb = nextHops.get(i);
+            if (!oneVb.isAnswered()) {
+                System.err.println("WARNING: RFC1213:ipRouteNextHop returned null");
+                continue;
+            }
+            // nexthop contains the next hop for this reply
+            int nexthop = OIDCodec.ipValue(oneVb.getVariable(), 0);
+            System.err.println(i+": link/"+IPUtils.intToIp(nexthop));
+
+            if (! notTargeted.containsKey(nexthop)) {
+                // This link is not known = candidate to new adjacency
+                // obtain LDP peer ID (loopback)
+                int ldpPeer = OIDCodec.ipAt(oneVb.getOid(), indexOIDRfc1213IpRouteNextHop);
+
+                routeNexthop[routeMetric.size()] = nexthop;
+                routePeer[routeMetric.size()] = ldpPeer;
+                routeMetric.add(batch.add(OIDCodec.appendIp(ipRouteMetric1OID, ldpPeer)));
+            }
+        }
+        batch.flush();
+
+        for(int i=0; i<routeMetric.size(); i++) {
+            int nexthop = routeNexthop[i];
+            int ldpPeer = routePeer[i];
+
+            int metric1 = 49152;
+            if (routeMetric.get(i).isAnswered()) {
+                metric1 = routeMetric.get(i).toInt(metric1);
+            } else {
+                System.err.println("WARNING: RFC1213:Metric1 returned null");
+            }
+
+            if (!candidateMetric.containsKey(nexthop) // If it does not exist yet
+                    ||
+                metric1 < candidateMetric.get(nexthop, 0)) {   // or if its metric is lower
+
+                System.err.println("Targeted adjacency "+ IPUtils.intToIp(ldpPeer) +
+                        "(link/"+IPUtils.intToIp(nexthop)+") candidate to LDP peer, metric("+metric1+")");
+
+                candidateMetric.put(nexthop, metric1);
+                candidateLoopback.put(nexthop, ldpPeer);
+            }
+        }
+
+        /**
+         * At this point we have candidateLoopback containing reportedly
+         * targeted LDP peers (on interfaces with no other LDP peers),
+         * that happen to have the shortest metric, so we can conclude
+         * they belong to adjacent devices.
+         */
+
+        // This adjacency is reported as targeted, so getting ifNumber via
+        // MplsLdpEntityConfGenIfIndexOrZero will return 0 no matter what.
+
+        final int[] candidateLink = new int[candidateLoopback.size()];
+        final int[] candidatePeer = new int[candidateLoopback.size()];
+        final GetCoalescer.Request[] candidateIfIndex =
+            new GetCoalescer.Request[candidateLoopback.size()];
+        candidateLoopback.forEach(new IntIntMap.Visitor() {
+            int n = 0;
+            public void visit(int link, int ldpPeer) {
+                candidateLink[n] = link;
+                candidatePeer[n] = ldpPeer;
+                candidateIfIndex[n++] = batch.add(OIDCodec.appendIp(ipRouteIfIndexOID, ldpPeer));
+            }
+        });
+        batch.flush();
+
+        for (int i = 0; i < candidateLink.length; i++) {
+            GetCoalescer.Request re = candidateIfIndex[i];
+            if (!re.isAnswered()) {
+                System.err.println("WARNING: RFC1213:ipRouteIfIndex returned null");
+            }
+            int ifIndex = re.toInt(0);
+
+            // and add to hashes
+            linkToLoopback.put(candidateLink[i], candidatePeer[i]); // XXX Is this needed?
+            notTargeted.put(candidateLink[i], ifIndex);
+            System.err.println("Promoted:"+IPUtils.intToIp(candidatePeer[i]));
+        }
+        DiscoveryMetrics.getMetrics().getRoutesLatency().recordSince(start);
+        return true;
+    }
+
+    private static void results(IntIntMap linkToLoopback, final IntIntMap known,
+            final Hashtable<String, Adjacency> adjacencyHash) {
+        System.err.println("STEP4: Results");
+        linkToLoopback.forEach(new IntIntMap.Visitor() {
+            public void visit(int link, int ldpPeer) {
+                if (known.containsKey(link)) {
+                    String adjAddress = IPUtils.intToIp(ldpPeer);
+                    Adjacency remote = new Adjacency(adjAddress);
+                    remote.setSNMPInterface(known.get(link, 0));
+
+                    // We have ifIndex, so let's add it as valid adjacency.
+                    // XXX might not be a valid assumption
+                    System.err.println("Adjacency: "+adjAddress+", remote:"+remote);
+                    adjacencyHash.put(adjAddress, remote);  // Adding adjacency
+                }
+            }
+        });
+    }
+
+    public int countLdpSessions(SNMPQuery query) {
+        BulkWalker.Walk walk = query.walk(mplsLdpSesStateOID);
+        return walk == null ? -1 : countOperational(walk);
+    }
+
+    private static int countOperational(BulkWalker.Walk sesState) {
+        int count = 0;
+        Iterator<VariableBinding> it = sesState.getRows().iterator();
+        while (it.hasNext()) {
+            if (it.next().getVariable().toInt() == 5) { // operational
+                count++;
+            }
+        }
+        return count;
+    }
+}
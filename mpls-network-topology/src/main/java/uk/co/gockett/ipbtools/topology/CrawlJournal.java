@@ -0,0 +1,516 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of a crawl, so one interrupted by the JVM dying can be
+ * resumed rather than started again.
+ *
+ * Three events are logged: a node discovered (accepted by RouterStorage),
+ * a node completed with its hostname and adjacencies, and a node that
+ * could not be queried. Each record is written straight to the file,
+ * framed by its length and CRC32, so it survives the process; a record
+ * torn by a crash ends the log. Every CHECKPOINT records, and on close(),
+ * the state is compacted into a checkpoint file (file.ckpt), written
+ * aside and renamed over the old one, and the log starts again. Both are
+ * synced to disk then.
+ *
+ * resume() rebuilds RouterStorage from the checkpoint and the log: nodes
+ * finished come back with their results, in the order they were
+ * discovered, and only the others are queued to be queried.
+ *
+ * Singleton, only present once open() has been called.
+ * @author ruanoj@github
+ */
+public class CrawlJournal {
+
+    public final static int DEFAULT_CHECKPOINT = 1000;     // Records between checkpoints
+
+    private final static int LOG_MAGIC = 0x4950434a;        // "IPCJ"
+    private final static int CHECKPOINT_MAGIC = 0x49504343; // "IPCC"
+    private final static int VERSION = 1;
+
+    private final static byte DISCOVERED = 'N';
+    private final static byte COMPLETED = 'C';
+    private final static byte FAILED = 'F';
+
+    private final static int PENDING = 0;
+    private final static int DONE = 1;
+    private final static int ERROR = 2;
+
+    private static CrawlJournal theJournal = null;
+    private final static Object lock = new Object();
+
+    private final File file;
+    private final File checkpointFile;
+    private FileChannel log = null;
+    private long generation = 0L;       // Of the log; a checkpoint covers up to one
+    private int records = 0;            // Since the last checkpoint
+    private int checkpointInterval = DEFAULT_CHECKPOINT;
+    private boolean broken = false;     // Not written any more after an error
+    private int torn = 0;               // Records lost at the end of the log
+
+    // Nodes in discovery order, and by address
+    private final List<Node> order = new ArrayList<Node>();
+    private final Hashtable<String, Node> nodes = new Hashtable<String, Node>();
+    private int finished = 0;
+
+    /*
+     * What the journal knows about one node
+     */
+    private static class Node {
+        final String address;
+        int state = PENDING;
+        String hostname = null;
+        List<Adjacency> adjacencies = null;
+
+        Node(String address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * Opens the journal of a crawl.
+     *
+     * @param resume true to load what a previous crawl left in the file,
+     * false to start a new journal over it
+     */
+    public static CrawlJournal open(File file, boolean resume) throws IOException {
+        CrawlJournal journal = new CrawlJournal(file);
+        if (resume) {
+            journal.load();
+        }
+        // A clean start: whatever was loaded, compacted, and a new log
+        journal.checkpoint();
+        synchronized (lock) {
+            theJournal = journal;
+        }
+        return journal;
+    }
+
+    /**
+     * @return The open journal, null if there is none
+     */
+    public static CrawlJournal getJournal() {
+        synchronized (lock) {
+            return theJournal;
+        }
+    }
+
+    private CrawlJournal(File file) {
+        this.file = file;
+        this.checkpointFile = new File(file.getPath() + ".ckpt");
+    }
+
+    public synchronized void setCheckpointInterval(int records) {
+        if (records < 1) {
+            throw new IllegalArgumentException("Invalid checkpoint interval " + records);
+        }
+        checkpointInterval = records;
+    }
+
+    /**
+     * @return Nodes known, finished or not
+     */
+    public synchronized int size() {
+        return order.size();
+    }
+
+    /**
+     * @return Nodes completed or failed
+     */
+    public synchronized int getFinished() {
+        return finished;
+    }
+
+    /**
+     * @return Records lost at the end of the log when it was loaded
+     */
+    public int getTorn() {
+        return torn;
+    }
+
+    /**
+     * A node has been accepted by RouterStorage. Nodes already known are
+     * not logged again. RouterStorage calls this out of its lock, so
+     * another worker may complete the node first; completed() then makes
+     * it known.
+     */
+    public synchronized void discovered(String address) {
+        if (nodes.containsKey(address)) {
+            return;
+        }
+        node(address);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(DISCOVERED);
+            out.writeUTF(address);
+        } catch (IOException e) { } // Not on a byte array
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * A node has been queried, and its hostname and adjacencies stored in
+     * the router; or it could not be.
+     */
+    public synchronized void completed(Router router, boolean answered) {
+        String address = router.getHostAddress();
+        String hostname = router.getKnownHostname();
+        List<Adjacency> adjacencies = answered ? new ArrayList<Adjacency>(router.getAdjacencies()) : null;
+        finish(node(address), answered ? DONE : ERROR, hostname, adjacencies);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(answered ? COMPLETED : FAILED);
+            out.writeUTF(address);
+            writeString(out, hostname);
+            if (answered) {
+                writeAdjacencies(out, adjacencies);
+            }
+        } catch (IOException e) { } // Not on a byte array
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * Puts every node known back into RouterStorage, which should be
+     * empty: finished ones with their results, the rest queued. The
+     * listener, if any, is told about every finished node, as if it had
+     * just been queried.
+     *
+     * @return Nodes queued to be queried
+     */
+    public int resume(RouterStorage storage, ResultListener results) {
+        List<Node> known;
+        synchronized (this) {
+            known = new ArrayList<Node>(order);
+        }
+        List<Router> restored = new ArrayList<Router>();
+        for (int i = 0; i < known.size(); i++) {
+            Node n = known.get(i);
+            Router router = router(n.address);
+            if (router == null) {
+                continue;
+            }
+            if (n.state == PENDING) {
+                storage.newAdjacency(n.address, router);
+                continue;
+            }
+            if (storage.restoreNode(n.address, router)) {
+                router.setHostname(n.hostname);
+                if (n.adjacencies != null) {
+                    Hashtable<String, Adjacency> table = new Hashtable<String, Adjacency>(n.adjacencies.size() * 2 + 1);
+                    for (int j = 0; j < n.adjacencies.size(); j++) {
+                        table.put(n.adjacencies.get(j).getAdjacentAddress(), n.adjacencies.get(j));
+                    }
+                    router.addAllAdjacencies(table);
+                }
+                restored.add(router);
+            }
+        }
+
+        // Peers of finished nodes whose discovery did not make it to the log
+        for (int i = 0; i < restored.size(); i++) {
+            Iterator<Adjacency> it = restored.get(i).getAdjacencies().iterator();
+            while (it.hasNext()) {
+                String peer = it.next().getAdjacentAddress();
+                Router router = router(peer);
+                if (router != null) {
+                    storage.newAdjacency(peer, router);
+                }
+            }
+        }
+
+        if (results != null) {
+            for (int i = 0; i < restored.size(); i++) {
+                Router router = restored.get(i);
+                Node n = nodes.get(router.getHostAddress());
+                results.routerCompleted(router, n.state == DONE);
+            }
+        }
+        return storage.getPendingCount();
+    }
+
+    private static Router router(String address) {
+        try {
+            return new Router(InetAddress.getByName(address));
+        } catch (UnknownHostException e) {
+            System.err.println("CrawlJournal: invalid address " + address + ", ignored");
+            return null;
+        }
+    }
+
+    /**
+     * Compacts everything known into the checkpoint file and starts a new
+     * log.
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (log != null) {
+            log.force(false);
+            log.close();
+            log = null;
+        }
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(order.size());
+            for (int i = 0; i < order.size(); i++) {
+                Node n = order.get(i);
+                out.writeUTF(n.address);
+                out.writeByte(n.state);
+                writeString(out, n.hostname);
+                if (n.state == DONE) {
+                    writeAdjacencies(out, n.adjacencies);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        replace(tmp, checkpointFile);
+
+        // Records up to this generation are in the checkpoint now
+        generation++;
+        tmp = new File(file.getPath() + ".tmp");
+        fos = new FileOutputStream(tmp);
+        out = new DataOutputStream(fos);
+        try {
+            out.writeInt(LOG_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        replace(tmp, file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        log = raf.getChannel();
+        records = 0;
+    }
+
+    /**
+     * Writes a last checkpoint and closes the journal. It is left on disk,
+     * so resuming a finished crawl queries nothing.
+     */
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (theJournal == this) {
+                theJournal = null;
+            }
+        }
+        synchronized (this) {
+            if (!broken) {
+                checkpoint();
+            }
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+        }
+    }
+
+    private Node node(String address) {
+        Node n = nodes.get(address);
+        if (n == null) {
+            n = new Node(address);
+            nodes.put(address, n);
+            order.add(n);
+        }
+        return n;
+    }
+
+    private void finish(Node n, int state, String hostname, List<Adjacency> adjacencies) {
+        if (n.state == PENDING) {
+            finished++;
+        }
+        n.state = state;
+        n.hostname = hostname;
+        n.adjacencies = adjacencies;
+    }
+
+    /*
+     * Length, CRC32 and payload, in a single write
+     */
+    private void append(byte[] payload) {
+        if (broken || log == null) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            if (++records >= checkpointInterval) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            System.err.println("CrawlJournal: could not write " + file + ", journal stopped: " + e.getMessage());
+            broken = true;
+        }
+    }
+
+    /*
+     * The checkpoint, then the log if it is newer
+     */
+    private void load() throws IOException {
+        long covered = -1L;
+        if (checkpointFile.exists()) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(checkpointFile)));
+            try {
+                if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != VERSION) {
+                    throw new IOException(checkpointFile + " is not a journal checkpoint");
+                }
+                covered = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Node n = node(in.readUTF());
+                    int state = in.readByte();
+                    String hostname = readString(in);
+                    if (state != PENDING) {
+                        finish(n, state, hostname, state == DONE ? readAdjacencies(in) : null);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        generation = Math.max(generation, covered);
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != LOG_MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a journal");
+            }
+            long logGeneration = in.readLong();
+            generation = Math.max(generation, logGeneration);
+            if (logGeneration <= covered) {
+                return;     // Already in the checkpoint
+            }
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] payload;
+                try {
+                    int sum = in.readInt();
+                    if (length < 1 || length > 1 << 24) {
+                        throw new EOFException();
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != sum) {
+                        throw new EOFException();
+                    }
+                } catch (EOFException e) {
+                    torn++;
+                    System.err.println("CrawlJournal: " + file + " ends in a torn record, ignored");
+                    break;
+                }
+                replay(new DataInputStream(new ByteArrayInputStream(payload)));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void replay(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        Node n = node(in.readUTF());
+        if (type == COMPLETED) {
+            String hostname = readString(in);
+            finish(n, DONE, hostname, readAdjacencies(in));
+        } else if (type == FAILED) {
+            finish(n, ERROR, readString(in), null);
+        }
+    }
+
+    private static void replace(File tmp, File target) throws IOException {
+        if (!tmp.renameTo(target)) {
+            target.delete();
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Could not replace " + target);
+            }
+        }
+    }
+
+    private static void writeAdjacencies(DataOutputStream out, Collection<Adjacency> adjacencies)
+            throws IOException {
+        out.writeInt(adjacencies.size());
+        Iterator<Adjacency> it = adjacencies.iterator();
+        while (it.hasNext()) {
+            Adjacency adj = it.next();
+            out.writeUTF(adj.getAdjacentAddress());
+            out.writeInt(adj.getSNMPInterface());
+            writeString(out, adj.getRouterInterface());
+            out.writeLong(adj.getSpeed());
+        }
+    }
+
+    private static List<Adjacency> readAdjacencies(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        List<Adjacency> adjs = new ArrayList<Adjacency>(n);
+        for (int i = 0; i < n; i++) {
+            Adjacency adj = new Adjacency(in.readUTF());
+            adj.setSNMPInterface(in.readInt());
+            String ifDescr = readString(in);
+            adj.setRouterInterface(ifDescr, in.readLong());
+            adjs.add(adj);
+        }
+        return adjs;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,156 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs AdjDiscoveryTask work over the RouterStorage frontier.
+ *
+ * By default a pool of workers blocks on the frontier rather than polling
+ * it, so a node is picked up as soon as it is discovered. In thread per
+ * router mode, every node accepted by RouterStorage gets its own thread
+ * instead (a virtual one where the JDK provides them), and the worker
+ * count becomes the limit of routers queried at the same time.
+ *
+ * Either way the crawl is over the instant no node is pending nor in
+ * flight, which RouterStorage detects on its own.
+ * @author ruanoj@github
+ */
+public class CrawlScheduler implements FrontierListener {
+
+    public final static int DEFAULT_WORKERS = 2;
+    public final static int DEFAULT_ROUTER_LIMIT = 256;
+
+    private final RouterStorage storage = RouterStorage.getAdjStorage();
+    private final DiscoveryListener status;
+    private final int workerCount;
+    private final boolean threadPerRouter;
+    private Thread[] workers = null;
+    private ResultListener results = null;
+
+    // Thread per router mode
+    private ExecutorService executor = null;
+    private Semaphore limit = null;
+
+    public CrawlScheduler(int workers, boolean threadPerRouter, DiscoveryListener status) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one worker is needed");
+        }
+        this.status = status;
+        this.workerCount = workers;
+        this.threadPerRouter = threadPerRouter;
+    }
+
+    public CrawlScheduler(int workers, DiscoveryListener status) {
+        this(workers, false, status);
+    }
+
+    public CrawlScheduler(DiscoveryListener status) {
+        this(DEFAULT_WORKERS, false, status);
+    }
+
+    public int getWorkers() {
+        return workerCount;
+    }
+
+    public boolean isThreadPerRouter() {
+        return threadPerRouter;
+    }
+
+    /**
+     * Sets the object told about each router as soon as it is done. It has
+     * only effect before start().
+     */
+    public void setResultListener(ResultListener results) {
+        this.results = results;
+    }
+
+    /**
+     * Starts the workers. Initial nodes should already be in RouterStorage,
+     * otherwise workers will find nothing to do and leave straight away.
+     */
+    public void start() {
+        DiscoveryMetrics.getMetrics().crawlStarted(workerCount);
+        if (threadPerRouter) {
+            limit = new Semaphore(workerCount);
+            executor = newRouterExecutor(workerCount);
+            storage.setFrontierListener(this);
+            return;
+        }
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new AdjDiscoveryTask(status, results), "discovery-" + (i + 1));
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Waits until the frontier is exhausted and every worker has left.
+     */
+    public void awaitTermination() throws InterruptedException {
+        storage.awaitFinished(0);
+        if (executor != null) {
+            storage.setFrontierListener(null);
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        if (workers != null) {
+            for (int i = 0; i < workers.length; i++) {
+                workers[i].join();
+            }
+        }
+    }
+
+    /**
+     * Stops the crawl: nodes still pending will not be queried. Nodes in
+     * flight are allowed to finish.
+     */
+    public void shutdown() {
+        storage.shutdown();
+    }
+
+    /*
+     * Thread per router mode: one task per accepted node. Each task takes
+     * whichever node is first in the frontier once it gets a slot, so every
+     * node is taken by exactly one task.
+     */
+    public void nodeQueued(Object node) {
+        executor.execute(new Runnable() {
+            public void run() {
+                limit.acquireUninterruptibly();
+                try {
+                    Router next = (Router) storage.getPendingAdj();
+                    if (next == null) {
+                        return;     // shut down
+                    }
+                    try {
+                        status.join();
+                        new AdjDiscoveryTask(status, results).process(next);
+                    } finally {
+                        storage.completeAdj(next);
+                        status.leave();
+                    }
+                } finally {
+                    limit.release();
+                }
+            }
+        });
+    }
+
+    /*
+     * Virtual threads are only there from JDK 21 on. Older runtimes get a
+     * fixed pool of platform threads, as large as the concurrency limit.
+     */
+    private static ExecutorService newRouterExecutor(int limit) {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            System.err.println("Virtual threads not available, using " + limit + " platform threads");
+            return Executors.newFixedThreadPool(limit);
+        }
+    }
+}
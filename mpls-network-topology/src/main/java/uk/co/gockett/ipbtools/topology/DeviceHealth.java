@@ -0,0 +1,217 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import org.snmp4j.PDU;
+import org.snmp4j.Target;
+import org.snmp4j.TimeoutModel;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.IpAddress;
+
+/**
+ * Singleton keeping, for every device, an estimate of its SNMP round-trip
+ * time and whether it has proven unreachable in this crawl.
+ *
+ * Timeouts follow the TCP retransmission timer (RFC 6298): smoothed RTT
+ * plus four times its mean deviation, between MIN_TIMEOUT and the maximum
+ * timeout. A device with no sample yet gets INITIAL_TIMEOUT, so the
+ * personality probe doubles as a fast liveness check. Answers to retried
+ * requests are not sampled, as they may answer any of the attempts
+ * (Karn's algorithm). Each retry waits twice as long as the one before
+ * (see BACKOFF).
+ *
+ * A device whose requests time out, retries and all, trips its circuit
+ * breaker: at once if it has not answered anything in this crawl, after
+ * FAILURES requests in a row if it has. SNMPQuery then fails the rest of
+ * its steps without sending anything. reset() closes every breaker and
+ * keeps the estimates.
+ * @author ruanoj@github
+ */
+public class DeviceHealth {
+
+    public final static long INITIAL_TIMEOUT = 1000L;
+    public final static long MIN_TIMEOUT = 500L;
+    public final static long DEFAULT_MAX_TIMEOUT = 5000L;
+    public final static int DEFAULT_RETRIES = 1;
+    public final static int FAILURES = 3;
+
+    /**
+     * Exponential backoff: retry n waits the target timeout times 2^n.
+     */
+    public final static TimeoutModel BACKOFF = new TimeoutModel() {
+        public long getRetryTimeout(int retryCount, int totalNumberOfRetries, long targetTimeout) {
+            return targetTimeout << retryCount;
+        }
+
+        public long getRequestTimeout(int totalNumberOfRetries, long targetTimeout) {
+            return targetTimeout * ((1L << (totalNumberOfRetries + 1)) - 1);
+        }
+    };
+
+    private static DeviceHealth theHealth = null;
+    private final static Object lock = new Object();
+
+    private final ConcurrentHashMap<String, Device> devices =
+        new ConcurrentHashMap<String, Device>();
+    private volatile long maxTimeout = DEFAULT_MAX_TIMEOUT;
+    private volatile int retries = DEFAULT_RETRIES;
+
+    /*
+     * Estimate and breaker of one device, in microseconds
+     */
+    private static class Device {
+        long srtt = -1L;        // -1 until the first sample
+        long rttvar = 0L;
+        int failures = 0;       // Timed out requests in a row
+        boolean answered = false;
+        boolean open = false;
+    }
+
+    public static DeviceHealth getHealth() {
+        synchronized (lock) {
+            if (theHealth == null) {
+                theHealth = new DeviceHealth();
+            }
+        }
+        return theHealth;
+    }
+
+    private DeviceHealth() {
+    }
+
+    /**
+     * @param maxTimeout Longest timeout, in milliseconds, of a single
+     * attempt
+     * @param retries Attempts after the first one
+     */
+    public void setLimits(long maxTimeout, int retries) {
+        if (maxTimeout < 1L || retries < 0) {
+            throw new IllegalArgumentException("Invalid timeout " + maxTimeout + " or retries " + retries);
+        }
+        this.maxTimeout = maxTimeout;
+        this.retries = retries;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return Timeout, in milliseconds, of the first attempt of a request
+     * to the device
+     */
+    public long getTimeout(String address) {
+        long max = maxTimeout;
+        Device d = devices.get(address);
+        if (d == null) {
+            return Math.min(INITIAL_TIMEOUT, max);
+        }
+        long rto;
+        synchronized (d) {
+            if (d.srtt < 0L) {
+                return Math.min(INITIAL_TIMEOUT, max);
+            }
+            rto = (d.srtt + 4L * d.rttvar + 999L) / 1000L;
+        }
+        return Math.min(Math.max(rto, MIN_TIMEOUT), max);
+    }
+
+    /**
+     * @return true if the device has proven unreachable in this crawl
+     */
+    public boolean isOpen(String address) {
+        Device d = devices.get(address);
+        if (d == null) {
+            return false;
+        }
+        synchronized (d) {
+            return d.open;
+        }
+    }
+
+    /**
+     * A request has been answered, or has timed out after every retry.
+     *
+     * @param response Null on timeout
+     */
+    public void exchange(Target target, PDU response, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000L;
+        Device d = device(target.getAddress());
+        boolean tripped = false;
+        synchronized (d) {
+            if (response == null) {
+                d.failures++;
+                if (!d.open && (!d.answered || d.failures >= FAILURES)) {
+                    d.open = true;
+                    tripped = true;
+                }
+            } else {
+                d.failures = 0;
+                d.answered = true;
+                if (micros < target.getTimeout() * 1000L) {
+                    sample(d, micros);
+                }
+            }
+        }
+        if (tripped) {
+            DiscoveryMetrics.getMetrics().unreachable();
+        }
+    }
+
+    /*
+     * RFC 6298, section 2
+     */
+    private static void sample(Device d, long micros) {
+        if (d.srtt < 0L) {
+            d.srtt = micros;
+            d.rttvar = micros / 2L;
+        } else {
+            d.rttvar = (3L * d.rttvar + Math.abs(d.srtt - micros)) / 4L;
+            d.srtt = (7L * d.srtt + micros) / 8L;
+        }
+    }
+
+    /**
+     * Closes every breaker, for a new crawl. Estimates are kept.
+     */
+    public void reset() {
+        Iterator<Device> it = devices.values().iterator();
+        while (it.hasNext()) {
+            Device d = it.next();
+            synchronized (d) {
+                d.failures = 0;
+                d.answered = false;
+                d.open = false;
+            }
+        }
+    }
+
+    /**
+     * @return Number of retries a request must have gone through to take
+     * the given time, under BACKOFF
+     */
+    public static int retriesWithin(long millis, long timeout, int retries) {
+        int n = 0;
+        long waited = timeout;
+        while (n < retries && millis >= waited) {
+            n++;
+            waited += timeout << n;
+        }
+        return n;
+    }
+
+    private Device device(Address address) {
+        String key = address instanceof IpAddress
+            ? ((IpAddress) address).getInetAddress().getHostAddress()
+            : address.toString();
+        Device d = devices.get(key);
+        if (d == null) {
+            Device created = new Device();
+            d = devices.putIfAbsent(key, created);
+            if (d == null) {
+                d = created;
+            }
+        }
+        return d;
+    }
+}
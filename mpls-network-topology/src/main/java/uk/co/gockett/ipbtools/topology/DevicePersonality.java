@@ -0,0 +1,104 @@
+package uk.co.gockett.ipbtools.topology;
+
+/**
+ * Identity of a device as learnt from the SNMPv2-MIB system group:
+ * sysDescr, sysObjectID, sysUpTime and sysName, plus the vendor they
+ * point to. IF-MIB ifTableLastChange comes along as a change indicator.
+ * @author ruanoj@github
+ */
+public class DevicePersonality {
+
+    public enum Vendor { UNKNOWN, CISCO, JUNIPER }
+
+    final private static String IOS_DESCR = "Cisco";
+    final private static String JNX_DESCR = "Juniper";
+    // SNMPv2-SMI::enterprises.9 and .2636
+    final private static String IOS_ENTERPRISE = "1.3.6.1.4.1.9.";
+    final private static String JNX_ENTERPRISE = "1.3.6.1.4.1.2636.";
+
+    private final String address;
+    private final String sysDescr;
+    private final String sysObjectID;
+    private final long sysUpTime;       // hundredths of a second
+    private final String sysName;
+    private final long ifTableLastChange;   // -1 if not supported
+    private final Vendor vendor;
+    private final long probedAt;        // System.currentTimeMillis()
+
+    public DevicePersonality(String address, String sysDescr, String sysObjectID,
+            long sysUpTime, String sysName, long ifTableLastChange) {
+        this.address = address;
+        this.sysDescr = sysDescr;
+        this.sysObjectID = sysObjectID;
+        this.sysUpTime = sysUpTime;
+        this.sysName = sysName;
+        this.ifTableLastChange = ifTableLastChange;
+        this.vendor = classify(sysDescr, sysObjectID);
+        this.probedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Finds out the vendor from sysDescr, or from sysObjectID if the
+     * description is not conclusive.
+     */
+    public static Vendor classify(String sysDescr, String sysObjectID) {
+        if (sysDescr != null) {
+            if (sysDescr.startsWith(IOS_DESCR)) {
+                return Vendor.CISCO;
+            } else if (sysDescr.startsWith(JNX_DESCR)) {
+                return Vendor.JUNIPER;
+            }
+        }
+        if (sysObjectID != null) {
+            if (sysObjectID.startsWith(IOS_ENTERPRISE)) {
+                return Vendor.CISCO;
+            } else if (sysObjectID.startsWith(JNX_ENTERPRISE)) {
+                return Vendor.JUNIPER;
+            }
+        }
+        return Vendor.UNKNOWN;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getSysDescr() {
+        return sysDescr;
+    }
+
+    public String getSysObjectID() {
+        return sysObjectID;
+    }
+
+    public long getSysUpTime() {
+        return sysUpTime;
+    }
+
+    public String getSysName() {
+        return sysName;
+    }
+
+    /**
+     * @return sysUpTime of the last change in the interface table, -1 if
+     * the device does not report it
+     */
+    public long getIfTableLastChange() {
+        return ifTableLastChange;
+    }
+
+    public Vendor getVendor() {
+        return vendor;
+    }
+
+    public long getProbedAt() {
+        return probedAt;
+    }
+
+    public String toString() {
+        return "DevicePersonality[address:" + address + ", vendor:" + vendor
+            + ", sysName:" + sysName + ", sysObjectID:" + sysObjectID
+            + ", sysUpTime:" + sysUpTime
+            + ", ifTableLastChange:" + ifTableLastChange + "]";
+    }
+}
@@ -0,0 +1,371 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * File-backed cache of per-router discovery results, so a crawl can start
+ * warm from the results of the previous one.
+ *
+ * Entries are keyed by router address and stamped with the sysUpTime the
+ * router had when it was queried. An entry is served as long as it is
+ * younger than the maximum age and the router has not been restarted since
+ * (its sysUpTime has not gone backwards). Anything else is stale, and the
+ * router is queried again.
+ *
+ * Entries also keep the change indicators seen when they were stored
+ * (ifTableLastChange, LDP session count), which incremental discovery
+ * compares instead of looking at their age.
+ *
+ * Singleton, only present once open() has been called. Without a file,
+ * it only lasts for the life of the process.
+ * @author ruanoj@github
+ */
+public class DiscoveryCache {
+
+    public final static long DEFAULT_MAX_AGE = 86400000L;  // 1 day
+    public final static int INITIAL_CAPACITY = 100;
+
+    private final static int MAGIC = 0x49504443;    // "IPDC"
+    private final static int VERSION = 2;
+
+    private static DiscoveryCache theCache = null;
+    private final static Object lock = new Object();
+
+    private final File file;
+    private final Hashtable<String, Entry> entries =
+        new Hashtable<String, Entry>(INITIAL_CAPACITY);
+    private long maxAge = DEFAULT_MAX_AGE;
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * Cached results for one router.
+     */
+    public static class Entry {
+        private final String address;
+        private final long stamp;           // System.currentTimeMillis()
+        private final long sysUpTime;
+        private final String sysName;
+        private final String sysDescr;
+        private final String sysObjectID;
+        private final long ifTableLastChange;
+        private final int ldpSessions;
+        private final List<Adjacency> adjacencies;
+
+        Entry(String address, long stamp, long sysUpTime, String sysName,
+                String sysDescr, String sysObjectID, long ifTableLastChange,
+                int ldpSessions, List<Adjacency> adjacencies) {
+            this.address = address;
+            this.stamp = stamp;
+            this.sysUpTime = sysUpTime;
+            this.sysName = sysName;
+            this.sysDescr = sysDescr;
+            this.sysObjectID = sysObjectID;
+            this.ifTableLastChange = ifTableLastChange;
+            this.ldpSessions = ldpSessions;
+            this.adjacencies = adjacencies;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public long getStamp() {
+            return stamp;
+        }
+
+        public long getSysUpTime() {
+            return sysUpTime;
+        }
+
+        public String getSysName() {
+            return sysName;
+        }
+
+        public long getIfTableLastChange() {
+            return ifTableLastChange;
+        }
+
+        public int getLdpSessions() {
+            return ldpSessions;
+        }
+
+        /**
+         * @return A fresh copy of the cached adjacencies, keyed by remote
+         * address as SNMPQuery.getAdjacencies() does
+         */
+        public Hashtable<String, Adjacency> getAdjacencies() {
+            Hashtable<String, Adjacency> result =
+                new Hashtable<String, Adjacency>(adjacencies.size() * 2 + 1);
+            for (int i = 0; i < adjacencies.size(); i++) {
+                Adjacency cached = adjacencies.get(i);
+                Adjacency adj = new Adjacency(cached.getAdjacentAddress());
+                adj.setSNMPInterface(cached.getSNMPInterface());
+                adj.setRouterInterface(cached.getRouterInterface(), cached.getSpeed());
+                result.put(adj.getAdjacentAddress(), adj);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Opens the cache backed by the given file, loading it if it exists.
+     * A null file opens an in-memory cache.
+     */
+    public static DiscoveryCache open(File file) throws IOException {
+        DiscoveryCache cache = new DiscoveryCache(file);
+        if (file != null && file.exists()) {
+            cache.load();
+        }
+        synchronized (lock) {
+            theCache = cache;
+        }
+        return cache;
+    }
+
+    /**
+     * @return The open cache, null if there is none
+     */
+    public static DiscoveryCache getCache() {
+        synchronized (lock) {
+            return theCache;
+        }
+    }
+
+    private DiscoveryCache(File file) {
+        this.file = file;
+    }
+
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return The entry for the router if it is still valid for the
+     * personality just probed, null otherwise
+     */
+    public synchronized Entry lookup(DevicePersonality current) {
+        Entry e = entries.get(current.getAddress());
+        if (e == null || !isFresh(e, current)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e;
+    }
+
+    /**
+     * @return The entry for the router whatever its state, null if there
+     * is none
+     */
+    public Entry get(String address) {
+        return entries.get(address);
+    }
+
+    /**
+     * Compares the change indicators of the personality just probed with
+     * the ones of the entry: same hardware, no restart and no change in the
+     * interface table. Age is not taken into account.
+     *
+     * The LDP session count is left to the caller, as it takes a walk.
+     */
+    public boolean isUnchanged(Entry e, DevicePersonality current) {
+        if (!isSameDevice(e, current)) {
+            return false;
+        }
+        if (e.ifTableLastChange != current.getIfTableLastChange()) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Counts a lookup made through get()/isUnchanged().
+     */
+    public synchronized void count(boolean hit) {
+        if (hit) {
+            hits++;
+        } else {
+            misses++;
+        }
+    }
+
+    private boolean isFresh(Entry e, DevicePersonality current) {
+        if (!isRecent(e)) {
+            return false;
+        }
+        return isSameDevice(e, current);
+    }
+
+    /**
+     * @return true if the entry is younger than the maximum age
+     */
+    public boolean isRecent(Entry e) {
+        return System.currentTimeMillis() - e.stamp < maxAge;
+    }
+
+    /*
+     * Restarted routers come back with a lower sysUpTime. A change of
+     * sysObjectID means different hardware behind the address, and one of
+     * sysName a router renamed, maybe in or out of ScopePolicy.
+     */
+    private boolean isSameDevice(Entry e, DevicePersonality current) {
+        if (current.getSysUpTime() < e.sysUpTime) {
+            return false;
+        }
+        if (e.sysObjectID != null && !e.sysObjectID.equals(current.getSysObjectID())) {
+            return false;
+        }
+        if (e.sysName != null && current.getSysName() != null
+                && !e.sysName.equals(current.getSysName())) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stores the results just obtained for a router.
+     *
+     * @param ldpSessions LDP session count seen while obtaining them, -1
+     * if unknown
+     */
+    public void put(DevicePersonality personality, Map<String, Adjacency> adjacencies,
+            int ldpSessions) {
+        List<Adjacency> adjs = new ArrayList<Adjacency>(adjacencies.values());
+        entries.put(personality.getAddress(), new Entry(personality.getAddress(),
+                System.currentTimeMillis(), personality.getSysUpTime(),
+                personality.getSysName(), personality.getSysDescr(),
+                personality.getSysObjectID(), personality.getIfTableLastChange(),
+                ldpSessions, adjs));
+    }
+
+    public void remove(String address) {
+        entries.remove(address);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int version = 0;
+            if (in.readInt() != MAGIC || (version = in.readInt()) < 1 || version > VERSION) {
+                System.err.println("DiscoveryCache: " + file + " is not a cache file, ignored");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                long stamp = in.readLong();
+                long sysUpTime = in.readLong();
+                String sysName = readString(in);
+                String sysDescr = readString(in);
+                String sysObjectID = readString(in);
+                long ifTableLastChange = -1L;
+                int ldpSessions = -1;
+                if (version >= 2) {
+                    ifTableLastChange = in.readLong();
+                    ldpSessions = in.readInt();
+                }
+                int n = in.readInt();
+                List<Adjacency> adjs = new ArrayList<Adjacency>(n);
+                for (int j = 0; j < n; j++) {
+                    Adjacency adj = new Adjacency(in.readUTF());
+                    adj.setSNMPInterface(in.readInt());
+                    String ifDescr = readString(in);
+                    adj.setRouterInterface(ifDescr, in.readLong());
+                    adjs.add(adj);
+                }
+                entries.put(address, new Entry(address, stamp, sysUpTime,
+                        sysName, sysDescr, sysObjectID, ifTableLastChange,
+                        ldpSessions, adjs));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the cache back to its file. The file is replaced only once
+     * the new contents are complete. In-memory caches are not written.
+     */
+    public void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            synchronized (entries) {
+                out.writeInt(entries.size());
+                Enumeration<Entry> en = entries.elements();
+                while (en.hasMoreElements()) {
+                    Entry e = en.nextElement();
+                    out.writeUTF(e.address);
+                    out.writeLong(e.stamp);
+                    out.writeLong(e.sysUpTime);
+                    writeString(out, e.sysName);
+                    writeString(out, e.sysDescr);
+                    writeString(out, e.sysObjectID);
+                    out.writeLong(e.ifTableLastChange);
+                    out.writeInt(e.ldpSessions);
+                    out.writeInt(e.adjacencies.size());
+                    Iterator<Adjacency> it = e.adjacencies.iterator();
+                    while (it.hasNext()) {
+                        Adjacency adj = it.next();
+                        out.writeUTF(adj.getAdjacentAddress());
+                        out.writeInt(adj.getSNMPInterface());
+                        writeString(out, adj.getRouterInterface());
+                        out.writeLong(adj.getSpeed());
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,544 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.snmp4j.PDU;
+import org.snmp4j.Target;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.IpAddress;
+
+/**
+ * Singleton with the instrumentation of the crawl: latency histograms per
+ * router and per discovery step, SNMP traffic, timeouts and retries per
+ * device, frontier size, worker utilisation, the slowest routers, the
+ * routers ScopePolicy left out, the time RateLimiter held requests back
+ * and the AdjacencySource each router's adjacencies came from.
+ *
+ * Recording never takes a lock: counters are atomic, histograms are
+ * LatencyHistogram and per device counters live in a ConcurrentHashMap.
+ * Only a router slower than every one in the slowest list takes the
+ * monitor, to enter the list.
+ *
+ * register() exposes it all as MBeans under
+ * uk.co.gockett.ipbtools.topology:type=DiscoveryMetrics.
+ *
+ * snmp4j retries are not visible from outside, so they are inferred from
+ * the time a response took against the target timeout, backed off as
+ * DeviceHealth.BACKOFF does.
+ * @author ruanoj@github
+ */
+public class DiscoveryMetrics implements DiscoveryMetricsMBean {
+
+    public final static String DOMAIN = "uk.co.gockett.ipbtools.topology";
+    public final static int SLOWEST = 10;
+    public final static int TROUBLED = 20;
+
+    private static DiscoveryMetrics theMetrics = null;
+    private final static Object lock = new Object();
+
+    // Whole router, and each step of it
+    private final LatencyHistogram router = new LatencyHistogram("router");
+    private final LatencyHistogram personality = new LatencyHistogram("personality");
+    private final LatencyHistogram capabilities = new LatencyHistogram("capabilities");
+    private final LatencyHistogram walk = new LatencyHistogram("walk");
+    private final LatencyHistogram routes = new LatencyHistogram("routes");
+    private final LatencyHistogram interfaces = new LatencyHistogram("interfaces");
+    private final LatencyHistogram pdu = new LatencyHistogram("pdu");
+
+    private final AtomicLong pdus = new AtomicLong();
+    private final AtomicLong varbindsSent = new AtomicLong();
+    private final AtomicLong varbindsReceived = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong unreachable = new AtomicLong();
+    private final AtomicLong throttledGlobal = new AtomicLong();    // ns
+    private final AtomicLong throttledDevice = new AtomicLong();    // ns
+    private final AtomicLong queried = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong outOfScope = new AtomicLong();
+    private final AtomicLong excludedBefore = new AtomicLong();
+    private final AtomicLong excludedAfter = new AtomicLong();
+    private final ConcurrentHashMap<String, Device> devices =
+        new ConcurrentHashMap<String, Device>();
+    // [ String source ] = AtomicLong routers
+    private final ConcurrentHashMap<String, AtomicLong> sources =
+        new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    private volatile int workers = 0;
+    private final AtomicInteger busy = new AtomicInteger();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private volatile long since = System.nanoTime();
+
+    // Slowest routers, slowest first
+    private final long[] slowMicros = new long[SLOWEST];
+    private final String[] slowAddress = new String[SLOWEST];
+    private int slowCount = 0;
+    private volatile long slowThreshold = 0L;
+
+    /*
+     * Counters for one device
+     */
+    private static class Device {
+        final String address;
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+
+        Device(String address) {
+            this.address = address;
+        }
+    }
+
+    public static DiscoveryMetrics getMetrics() {
+        synchronized (lock) {
+            if (theMetrics == null) {
+                theMetrics = new DiscoveryMetrics();
+            }
+        }
+        return theMetrics;
+    }
+
+    private DiscoveryMetrics() {
+    }
+
+    /**
+     * Registers the metrics and every histogram with the platform MBean
+     * server.
+     *
+     * @return false if any could not be registered
+     */
+    public boolean register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=DiscoveryMetrics");
+            if (server.isRegistered(name)) {
+                return true;
+            }
+            server.registerMBean(this, name);
+            LatencyHistogram[] histograms = getHistograms();
+            for (int i = 0; i < histograms.length; i++) {
+                server.registerMBean(histograms[i], new ObjectName(DOMAIN
+                        + ":type=DiscoveryMetrics,name=" + histograms[i].getName()));
+            }
+        } catch (JMException e) {
+            System.err.println("DiscoveryMetrics: could not register MBeans: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    public LatencyHistogram[] getHistograms() {
+        return new LatencyHistogram[] { router, personality, capabilities, walk, routes, interfaces, pdu };
+    }
+
+    public LatencyHistogram getRouterLatency() {
+        return router;
+    }
+
+    public LatencyHistogram getPersonalityLatency() {
+        return personality;
+    }
+
+    public LatencyHistogram getCapabilitiesLatency() {
+        return capabilities;
+    }
+
+    public LatencyHistogram getWalkLatency() {
+        return walk;
+    }
+
+    public LatencyHistogram getRoutesLatency() {
+        return routes;
+    }
+
+    public LatencyHistogram getInterfacesLatency() {
+        return interfaces;
+    }
+
+    public LatencyHistogram getPDULatency() {
+        return pdu;
+    }
+
+    /**
+     * A crawl is starting with the given number of workers, or routers
+     * queried at the same time.
+     */
+    public void crawlStarted(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * @return A System.nanoTime() reading to give to routerFinished()
+     */
+    public long routerStarted() {
+        busy.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    public void routerFinished(String address, long startNanos, boolean ok) {
+        long nanos = System.nanoTime() - startNanos;
+        busy.decrementAndGet();
+        busyNanos.addAndGet(nanos);
+        (ok ? queried : errors).incrementAndGet();
+        long micros = nanos / 1000L;
+        router.record(micros);
+        if (micros > slowThreshold) {
+            offerSlow(address, micros);
+        }
+    }
+
+    private synchronized void offerSlow(String address, long micros) {
+        int i = Math.min(slowCount, SLOWEST - 1);
+        if (slowCount == SLOWEST && micros <= slowMicros[i]) {
+            return;     // Beaten meanwhile
+        }
+        while (i > 0 && slowMicros[i - 1] < micros) {
+            slowMicros[i] = slowMicros[i - 1];
+            slowAddress[i] = slowAddress[i - 1];
+            i--;
+        }
+        slowMicros[i] = micros;
+        slowAddress[i] = address;
+        if (slowCount < SLOWEST) {
+            slowCount++;
+        }
+        if (slowCount == SLOWEST) {
+            slowThreshold = slowMicros[SLOWEST - 1];
+        }
+    }
+
+    /**
+     * A request has been answered, or has timed out.
+     *
+     * @param response Null on timeout
+     */
+    public void exchange(Target target, PDU request, PDU response, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000L;
+        Device device = device(target.getAddress());
+        pdus.incrementAndGet();
+        device.requests.incrementAndGet();
+        varbindsSent.addAndGet(request.size());
+        long timeout = Math.max(1L, target.getTimeout());
+        long retried;
+        if (response == null) {
+            timeouts.incrementAndGet();
+            device.timeouts.incrementAndGet();
+            retried = target.getRetries();
+        } else {
+            varbindsReceived.addAndGet(response.size());
+            pdu.record(micros);
+            retried = DeviceHealth.retriesWithin(micros / 1000L, timeout, target.getRetries());
+        }
+        if (retried > 0) {
+            retries.addAndGet(retried);
+            device.retries.addAndGet(retried);
+        }
+    }
+
+    /**
+     * RateLimiter has held a request back.
+     *
+     * @param globalNanos Time waited for the global limits
+     * @param deviceNanos Time waited for the limits of the device
+     */
+    public void throttled(long globalNanos, long deviceNanos) {
+        throttledGlobal.addAndGet(globalNanos);
+        throttledDevice.addAndGet(deviceNanos);
+    }
+
+    /**
+     * A device has tripped its DeviceHealth circuit breaker.
+     */
+    public void unreachable() {
+        unreachable.incrementAndGet();
+    }
+
+    /**
+     * An address out of the ScopePolicy prefixes has been left out.
+     */
+    public void outOfScope() {
+        outOfScope.incrementAndGet();
+    }
+
+    /**
+     * A router has been left out by its hostname.
+     *
+     * @param queried false if the hostname was known without querying it
+     */
+    public void excluded(boolean queried) {
+        (queried ? excludedAfter : excludedBefore).incrementAndGet();
+    }
+
+    /**
+     * The adjacencies of a router have come from a source.
+     *
+     * @param fallback true if a cheaper source was tried first and failed
+     */
+    public void adjacencySource(String name, boolean fallback) {
+        AtomicLong count = sources.get(name);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = sources.putIfAbsent(name, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+        if (fallback) {
+            fallbacks.incrementAndGet();
+        }
+    }
+
+    private Device device(Address address) {
+        String key = address instanceof IpAddress
+            ? ((IpAddress) address).getInetAddress().getHostAddress()
+            : address.toString();
+        Device d = devices.get(key);
+        if (d == null) {
+            Device created = new Device(key);
+            d = devices.putIfAbsent(key, created);
+            if (d == null) {
+                d = created;
+            }
+        }
+        return d;
+    }
+
+    private double seconds() {
+        return Math.max(1e-3, (System.nanoTime() - since) / 1e9);
+    }
+
+    public long getPDUs() {
+        return pdus.get();
+    }
+
+    public long getVarbindsSent() {
+        return varbindsSent.get();
+    }
+
+    public long getVarbindsReceived() {
+        return varbindsReceived.get();
+    }
+
+    public double getPDURate() {
+        return pdus.get() / seconds();
+    }
+
+    public double getVarbindRate() {
+        return (varbindsSent.get() + varbindsReceived.get()) / seconds();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getUnreachable() {
+        return unreachable.get();
+    }
+
+    public long getThrottledGlobalMillis() {
+        return throttledGlobal.get() / 1000000L;
+    }
+
+    public long getThrottledDeviceMillis() {
+        return throttledDevice.get() / 1000000L;
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public String[] getAdjacencySources() {
+        List<String> result = new ArrayList<String>();
+        Iterator<Map.Entry<String, AtomicLong>> it = sources.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, AtomicLong> e = it.next();
+            result.add(e.getKey() + ": " + e.getValue().get());
+        }
+        Collections.sort(result);
+        return result.toArray(new String[result.size()]);
+    }
+
+    public long getSourceFallbacks() {
+        return fallbacks.get();
+    }
+
+    public long getRoutersQueried() {
+        return queried.get();
+    }
+
+    public long getRouterErrors() {
+        return errors.get();
+    }
+
+    public long getPrunedOutOfScope() {
+        return outOfScope.get();
+    }
+
+    public long getPrunedByHostname() {
+        return excludedBefore.get();
+    }
+
+    public long getExcludedAfterQuery() {
+        return excludedAfter.get();
+    }
+
+    public int getRoutersDiscovered() {
+        return RouterStorage.getAdjStorage().getGraph().size();
+    }
+
+    public int getFrontierSize() {
+        return RouterStorage.getAdjStorage().getPendingCount();
+    }
+
+    public int getInFlight() {
+        return RouterStorage.getAdjStorage().getInFlightCount();
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getBusyWorkers() {
+        return busy.get();
+    }
+
+    /**
+     * @return Fraction of the worker time spent querying routers
+     */
+    public double getWorkerUtilisation() {
+        if (workers == 0) {
+            return 0.0;
+        }
+        return Math.min(1.0, busyNanos.get() / (workers * seconds() * 1e9));
+    }
+
+    /**
+     * @return "address: ms" of the slowest routers, slowest first
+     */
+    public synchronized String[] getSlowestRouters() {
+        String[] result = new String[slowCount];
+        for (int i = 0; i < slowCount; i++) {
+            result[i] = slowAddress[i] + ": " + (slowMicros[i] / 1000L) + "ms";
+        }
+        return result;
+    }
+
+    /**
+     * @return "address: requests, timeouts, retries" of the devices with
+     * the most timeouts and retries, worst first
+     */
+    public String[] getTroubledDevices() {
+        List<Device> troubled = new ArrayList<Device>();
+        Iterator<Map.Entry<String, Device>> it = devices.entrySet().iterator();
+        while (it.hasNext()) {
+            Device d = it.next().getValue();
+            if (d.timeouts.get() > 0 || d.retries.get() > 0) {
+                troubled.add(d);
+            }
+        }
+        Collections.sort(troubled, new Comparator<Device>() {
+            public int compare(Device a, Device b) {
+                long ta = a.timeouts.get() + a.retries.get();
+                long tb = b.timeouts.get() + b.retries.get();
+                return ta > tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        String[] result = new String[Math.min(TROUBLED, troubled.size())];
+        for (int i = 0; i < result.length; i++) {
+            Device d = troubled.get(i);
+            result[i] = d.address + ": requests " + d.requests.get() + ", timeouts "
+                + d.timeouts.get() + ", retries " + d.retries.get();
+        }
+        return result;
+    }
+
+    /**
+     * Starts counting again. Values recorded meanwhile may be partly kept.
+     */
+    public void reset() {
+        LatencyHistogram[] histograms = getHistograms();
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i].reset();
+        }
+        pdus.set(0L);
+        varbindsSent.set(0L);
+        varbindsReceived.set(0L);
+        timeouts.set(0L);
+        retries.set(0L);
+        unreachable.set(0L);
+        throttledGlobal.set(0L);
+        throttledDevice.set(0L);
+        queried.set(0L);
+        errors.set(0L);
+        outOfScope.set(0L);
+        excludedBefore.set(0L);
+        excludedAfter.set(0L);
+        devices.clear();
+        sources.clear();
+        fallbacks.set(0L);
+        busyNanos.set(0L);
+        since = System.nanoTime();
+        synchronized (this) {
+            slowCount = 0;
+            slowThreshold = 0L;
+        }
+    }
+
+    /**
+     * @return A few lines summing up the crawl so far
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("PDUs:").append(getPDUs())
+          .append(" (").append(Math.round(getPDURate())).append("/s), varbinds out:")
+          .append(getVarbindsSent()).append(", in:").append(getVarbindsReceived())
+          .append(", timeouts:").append(getTimeouts())
+          .append(", retries:").append(getRetries())
+          .append(", unreachable:").append(getUnreachable())
+          .append(", worker utilisation:").append(Math.round(100 * getWorkerUtilisation())).append('%');
+        if (getPrunedOutOfScope() + getPrunedByHostname() + getExcludedAfterQuery() > 0) {
+            sb.append("\npruned: ").append(getPrunedOutOfScope()).append(" out of scope, ")
+              .append(getPrunedByHostname()).append(" by hostname before querying, ")
+              .append(getExcludedAfterQuery()).append(" by hostname after");
+        }
+        if (throttledGlobal.get() + throttledDevice.get() > 0L) {
+            sb.append("\nthrottled: ").append(getThrottledGlobalMillis()).append(" ms by global limits, ")
+              .append(getThrottledDeviceMillis()).append(" ms by device limits");
+        }
+        String[] used = getAdjacencySources();
+        if (used.length > 0) {
+            sb.append("\nadjacency sources:");
+            for (int i = 0; i < used.length; i++) {
+                sb.append(i == 0 ? " " : ", ").append(used[i]);
+            }
+            sb.append(" (").append(getSourceFallbacks()).append(" after a fallback)");
+        }
+        LatencyHistogram[] histograms = getHistograms();
+        for (int i = 0; i < histograms.length; i++) {
+            if (histograms[i].getCount() > 0) {
+                sb.append('\n').append(histograms[i]);
+            }
+        }
+        String[] slowest = getSlowestRouters();
+        if (slowest.length > 0) {
+            sb.append("\nslowest routers:");
+            for (int i = 0; i < Math.min(3, slowest.length); i++) {
+                sb.append(' ').append(slowest[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
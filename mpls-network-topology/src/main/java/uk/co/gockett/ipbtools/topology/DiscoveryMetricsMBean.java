@@ -0,0 +1,61 @@
+package uk.co.gockett.ipbtools.topology;
+
+/**
+ * JMX view of DiscoveryMetrics. Rates are per second since the metrics
+ * were created or last reset.
+ * @author ruanoj@github
+ */
+public interface DiscoveryMetricsMBean {
+
+    public long getPDUs();
+
+    public long getVarbindsSent();
+
+    public long getVarbindsReceived();
+
+    public double getPDURate();
+
+    public double getVarbindRate();
+
+    public long getTimeouts();
+
+    public long getRetries();
+
+    public long getUnreachable();
+
+    public long getThrottledGlobalMillis();
+
+    public long getThrottledDeviceMillis();
+
+    public String[] getAdjacencySources();
+
+    public long getSourceFallbacks();
+
+    public long getRoutersQueried();
+
+    public long getRouterErrors();
+
+    public long getPrunedOutOfScope();
+
+    public long getPrunedByHostname();
+
+    public long getExcludedAfterQuery();
+
+    public int getRoutersDiscovered();
+
+    public int getFrontierSize();
+
+    public int getInFlight();
+
+    public int getWorkers();
+
+    public int getBusyWorkers();
+
+    public double getWorkerUtilisation();
+
+    public String[] getSlowestRouters();
+
+    public String[] getTroubledDevices();
+
+    public void reset();
+}
@@ -0,0 +1,15 @@
+package uk.co.gockett.ipbtools.topology;
+
+/**
+ * Interface meant to be told about nodes as RouterStorage queues them
+ * @author ruanoj@github
+ */
+public interface FrontierListener {
+
+    /**
+     * Called once per node accepted into the pending list. It is called
+     * with the storage locked, so it must not block.
+     */
+    void nodeQueued(Object node);
+
+}
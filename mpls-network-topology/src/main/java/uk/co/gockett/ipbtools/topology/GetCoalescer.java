@@ -0,0 +1,201 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.snmp4j.PDU;
+import org.snmp4j.Target;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Batches independent GETs to the same target.
+ *
+ * Callers add the OIDs they need and get a Request back for each of them.
+ * flush() packs pending requests into as few PDUs as the varbind and size
+ * limits allow, splits a PDU in two whenever the agent answers tooBig, and
+ * fills in every Request with its own value.
+ *
+ * The size limit is checked against the encoded request plus an allowance
+ * per varbind for the value that will come back.
+ * @author ruanoj@github
+ */
+public class GetCoalescer {
+
+    public final static int DEFAULT_MAX_VARBINDS = 40;
+    public final static int DEFAULT_MAX_BYTES = 1400;   // Below usual MTU
+    public final static int VALUE_ALLOWANCE = 24;       // Expected value size
+    private final static int PDU_OVERHEAD = 48;         // Message and PDU headers
+
+    private static int defaultMaxVarbinds = DEFAULT_MAX_VARBINDS;
+    private static int defaultMaxBytes = DEFAULT_MAX_BYTES;
+
+    private final SNMPEngine engine;
+    private final Target target;
+    private final List<Request> pending = new ArrayList<Request>();
+    private int maxVarbinds = defaultMaxVarbinds;
+    private int maxBytes = defaultMaxBytes;
+    private int pdus = 0;       // PDUs sent by last flush()
+
+    /**
+     * A single GET. Its value is available once flush() has returned.
+     */
+    public static class Request {
+        private final VariableBinding vb;
+        private Variable value = null;
+
+        Request(OID oid) {
+            vb = new VariableBinding(oid);
+        }
+
+        public OID getOid() {
+            return vb.getOid();
+        }
+
+        /**
+         * @return The value, or null if the device did not answer
+         */
+        public Variable getVariable() {
+            return value;
+        }
+
+        /**
+         * @return true if there is a value for the OID (not a timeout,
+         * error or noSuchObject/noSuchInstance)
+         */
+        public boolean isAnswered() {
+            return value != null && !value.isException();
+        }
+
+        public int toInt(int defaultValue) {
+            return isAnswered() ? value.toInt() : defaultValue;
+        }
+
+        public long toLong(long defaultValue) {
+            return isAnswered() ? value.toLong() : defaultValue;
+        }
+
+        public String toString() {
+            return vb.getOid() + " = " + value;
+        }
+    }
+
+    public GetCoalescer(SNMPEngine engine, Target target) {
+        this.engine = engine;
+        this.target = target;
+    }
+
+    /**
+     * Sets the limits for coalescers created from now on.
+     */
+    public static void setDefaultLimits(int maxVarbinds, int maxBytes) {
+        if (maxVarbinds < 1 || maxBytes < PDU_OVERHEAD) {
+            throw new IllegalArgumentException("PDU limits too small");
+        }
+        defaultMaxVarbinds = maxVarbinds;
+        defaultMaxBytes = maxBytes;
+    }
+
+    public void setLimits(int maxVarbinds, int maxBytes) {
+        this.maxVarbinds = maxVarbinds;
+        this.maxBytes = maxBytes;
+    }
+
+    public Request add(OID oid) {
+        Request r = new Request(oid);
+        pending.add(r);
+        return r;
+    }
+
+    public Request add(String oid) {
+        return add(new OID(oid));
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return Number of PDUs the last flush() sent, tooBig splits included
+     */
+    public int getPDUCount() {
+        return pdus;
+    }
+
+    /**
+     * Sends all pending requests.
+     *
+     * @return false if any PDU went unanswered. Requests in it are left
+     * without value.
+     */
+    public boolean flush() {
+        boolean ok = true;
+        List<Request> batch = new ArrayList<Request>();
+        int bytes = PDU_OVERHEAD;
+        pdus = 0;
+
+        for (int i = 0; i < pending.size(); i++) {
+            Request r = pending.get(i);
+            int size = r.vb.getBERLength() + VALUE_ALLOWANCE;
+            if (!batch.isEmpty()
+                    && (batch.size() >= maxVarbinds || bytes + size > maxBytes)) {
+                ok &= send(batch);
+                batch = new ArrayList<Request>();
+                bytes = PDU_OVERHEAD;
+            }
+            batch.add(r);
+            bytes += size;
+        }
+        if (!batch.isEmpty()) {
+            ok &= send(batch);
+        }
+        pending.clear();
+        return ok;
+    }
+
+    private boolean send(List<Request> batch) {
+        PDU pdu = new PDU();
+        for (int i = 0; i < batch.size(); i++) {
+            pdu.add(batch.get(i).vb);
+        }
+        ResponseEvent re;
+        try {
+            pdus++;
+            re = engine.send(pdu, target);
+        } catch (IOException e) {
+            System.err.println("GetCoalescer: IOException");
+            return false;
+        }
+        PDU response = re == null ? null : re.getResponse();
+        if (response == null) {
+            return false;
+        }
+
+        int error = response.getErrorStatus();
+        if (error == PDU.tooBig && batch.size() > 1) {
+            int half = batch.size() / 2;
+            boolean ok = send(batch.subList(0, half));
+            return send(batch.subList(half, batch.size())) && ok;
+        }
+        if (error == PDU.noSuchName && batch.size() > 1) {
+            // SNMPv1: leave the offending OID out, and retry the rest
+            int bad = response.getErrorIndex() - 1;
+            if (bad >= 0 && bad < batch.size()) {
+                List<Request> rest = new ArrayList<Request>(batch);
+                rest.remove(bad);
+                return send(rest);
+            }
+        }
+        if (error != PDU.noError) {
+            // Answered, but no value to give
+            return true;
+        }
+
+        for (int i = 0; i < batch.size() && i < response.size(); i++) {
+            batch.get(i).value = response.get(i).getVariable();
+        }
+        return true;
+    }
+}
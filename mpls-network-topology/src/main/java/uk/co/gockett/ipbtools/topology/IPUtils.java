@@ -63,4 +63,69 @@ public class IPUtils {
     public static String intArrayToIp(final int[]array) {
         return intArrayToIp(array, 0);
     }
+
+    /**
+    * Convert a dotted-quad IPv4 address to a 32-bit integer, without
+    * regular expressions nor intermediate objects
+    *
+    * @param ipAddress Input IP address
+    *
+    * @return The IP address as an int (use & 0xFFFFFFFFL for the unsigned
+    * value)
+    *
+    * @throws IllegalArgumentException if ipAddress is not a dotted quad
+    */
+    public static int ipToInt(String ipAddress) {
+        int result = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < ipAddress.length(); i++) {
+            char c = ipAddress.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    throw new IllegalArgumentException("Invalid IPv4 address: " + ipAddress);
+                }
+            } else if (c == '.' && digits > 0 && dots < 3) {
+                result = (result << 8) | octet;
+                octet = 0;
+                digits = 0;
+                dots++;
+            } else {
+                throw new IllegalArgumentException("Invalid IPv4 address: " + ipAddress);
+            }
+        }
+        if (dots != 3 || digits == 0) {
+            throw new IllegalArgumentException("Invalid IPv4 address: " + ipAddress);
+        }
+        return (result << 8) | octet;
+    }
+
+    /**
+    * @return true if the string is a dotted-quad IPv4 address
+    */
+    public static boolean isIPv4(String ipAddress) {
+        try {
+            ipToInt(ipAddress);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public static String intToIp(int intValue) {
+        return appendIp(new StringBuilder(15), intValue).toString();
+    }
+
+    /**
+    * Append an IPv4 address in dotted-quad form to a StringBuilder
+    */
+    public static StringBuilder appendIp(StringBuilder sb, int intValue) {
+        sb.append((intValue >>> 24) & 0xFF).append('.')
+          .append((intValue >>> 16) & 0xFF).append('.')
+          .append((intValue >>> 8) & 0xFF).append('.')
+          .append(intValue & 0xFF);
+        return sb;
+    }
 }
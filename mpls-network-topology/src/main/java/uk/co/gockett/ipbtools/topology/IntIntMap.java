@@ -0,0 +1,164 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from int to int, with no boxing. Meant for
+ * keys like IPv4 addresses or ifIndexes, where Hashtable<Long, ...> would
+ * allocate on every lookup.
+ *
+ * Not synchronized.
+ * @author ruanoj@github
+ */
+public class IntIntMap {
+
+    private final static int FREE = 0;      // Marks an empty slot
+    private final static float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    private int[] values;
+    private int size = 0;
+    private int mask;
+    // Key 0 cannot be stored in the table, as it marks empty slots
+    private boolean hasFreeKey = false;
+    private int freeValue = 0;
+
+    public IntIntMap(int initialCapacity) {
+        int capacity = 4;
+        while (capacity * LOAD_FACTOR < initialCapacity) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return The value for the key, or missing if there is none
+     */
+    public int get(int key, int missing) {
+        if (key == FREE) {
+            return hasFreeKey ? freeValue : missing;
+        }
+        int i = hash(key) & mask;
+        while (true) {
+            int k = keys[i];
+            if (k == FREE) {
+                return missing;
+            }
+            if (k == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        if (key == FREE) {
+            return hasFreeKey;
+        }
+        int i = hash(key) & mask;
+        while (true) {
+            int k = keys[i];
+            if (k == FREE) {
+                return false;
+            }
+            if (k == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * @return The previous value for the key, or missing if there was none
+     */
+    public int put(int key, int value, int missing) {
+        if (key == FREE) {
+            int previous = hasFreeKey ? freeValue : missing;
+            if (!hasFreeKey) {
+                size++;
+            }
+            hasFreeKey = true;
+            freeValue = value;
+            return previous;
+        }
+        int i = hash(key) & mask;
+        while (true) {
+            int k = keys[i];
+            if (k == FREE) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size > keys.length * LOAD_FACTOR) {
+                    rehash(keys.length << 1);
+                }
+                return missing;
+            }
+            if (k == key) {
+                int previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public void put(int key, int value) {
+        put(key, value, 0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+        hasFreeKey = false;
+    }
+
+    /**
+     * Visits every entry, in no particular order.
+     */
+    public interface Visitor {
+        void visit(int key, int value);
+    }
+
+    public void forEach(Visitor visitor) {
+        if (hasFreeKey) {
+            visitor.visit(FREE, freeValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        size = hasFreeKey ? 1 : 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                put(oldKeys[i], oldValues[i], 0);
+            }
+        }
+    }
+}
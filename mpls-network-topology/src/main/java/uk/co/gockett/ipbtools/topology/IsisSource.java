@@ -0,0 +1,158 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * AdjacencySource of the ISIS-MIB (RFC 4444).
+ *
+ * isisISAdjState gives the adjacencies that are up, isisISAdjNeighSysID
+ * the system id of their neighbours, and isisCircIfIndex the ifIndex of
+ * each circuit; the three are walked at once.
+ *
+ * The MIB has no IPv4 router id, so neighbours are only known by address
+ * when their system id follows the usual convention of spelling their
+ * loopback in decimal, three digits an octet (1921.6800.1001 for
+ * 192.168.1.1). Adjacencies are complete when every neighbour up does.
+ * @author ruanoj@github
+ */
+public class IsisSource implements AdjacencySource {
+
+    // ISIS-MIB::isisISAdjState = up(3), indexed by circIndex.adjIndex
+    final private static String ISIS_IS_ADJ_STATE = "1.3.6.1.2.1.138.1.6.1.1.2";
+    // ISIS-MIB::isisISAdjNeighSysID, indexed by circIndex.adjIndex
+    final private static String ISIS_IS_ADJ_NEIGH_SYS_ID = "1.3.6.1.2.1.138.1.6.1.1.6";
+    // ISIS-MIB::isisCircIfIndex, indexed by circIndex
+    final private static String ISIS_CIRC_IF_INDEX = "1.3.6.1.2.1.138.1.3.2.1.2";
+
+    final private static OID isisISAdjStateOID = new OID(ISIS_IS_ADJ_STATE);
+    final private static OID isisISAdjNeighSysIDOID = new OID(ISIS_IS_ADJ_NEIGH_SYS_ID);
+    final private static OID isisCircIfIndexOID = new OID(ISIS_CIRC_IF_INDEX);
+    final private static OID[] columns = { isisISAdjStateOID, isisISAdjNeighSysIDOID, isisCircIfIndexOID };
+
+    final private static int CIRC_INDEX = 0;
+    final private static int ADJ_UP = 3;
+
+    public String getName() {
+        return "isis";
+    }
+
+    public OID[] getColumns() {
+        return columns;
+    }
+
+    public int getCost(MibCapabilities capabilities) {
+        if (!capabilities.responds(isisISAdjNeighSysIDOID)) {
+            return -1;
+        }
+        return columns.length;
+    }
+
+    public QueryPlan planAdjacencies(final SNMPQuery query,
+            final Hashtable<String, Adjacency> adjacencies) {
+        QueryPlan plan = new QueryPlan(getName() + " " + query.getAddress());
+        final QueryPlan.WalkStep state = plan.add(
+            new QueryPlan.WalkStep("isisISAdjState", query, isisISAdjStateOID));
+        final QueryPlan.WalkStep sysId = plan.add(
+            new QueryPlan.WalkStep("isisISAdjNeighSysID", query, isisISAdjNeighSysIDOID));
+        final QueryPlan.WalkStep circuits = plan.add(
+            new QueryPlan.WalkStep("isisCircIfIndex", query, isisCircIfIndexOID));
+        plan.add(new QueryPlan.Step("adjacencies", state, sysId, circuits) {
+            protected boolean run() {
+                return addAdjacencies(query, state.getWalk(), sysId.getWalk(),
+                                      circuits.getWalk(), adjacencies);
+            }
+        });
+        return plan;
+    }
+
+    /*
+     * @return false if a neighbour up cannot be told by address, or its
+     * circuit has no ifIndex
+     */
+    private static boolean addAdjacencies(SNMPQuery query, BulkWalker.Walk state,
+            BulkWalker.Walk sysId, BulkWalker.Walk circuits,
+            Hashtable<String, Adjacency> adjacencies) {
+        // [ int circIndex ] = int ifIndex
+        IntIntMap ifIndexes = new IntIntMap(circuits.getRows().size());
+        int offset = circuits.getIndexOffset();
+        Iterator<VariableBinding> it = circuits.getRows().iterator();
+        while (it.hasNext()) {
+            VariableBinding row = it.next();
+            ifIndexes.put(OIDCodec.subAt(row.getOid(), offset + CIRC_INDEX), row.getVariable().toInt());
+        }
+
+        // [ "circIndex.adjIndex" ] = OctetString system id, of every adjacency
+        Hashtable<String, OctetString> neighbours = new Hashtable<String, OctetString>();
+        it = sysId.getRows().iterator();
+        while (it.hasNext()) {
+            VariableBinding row = it.next();
+            if (row.getVariable() instanceof OctetString) {
+                neighbours.put(sysId.getIndex(row).toString(), (OctetString) row.getVariable());
+            }
+        }
+
+        Hashtable<String, Adjacency> found = new Hashtable<String, Adjacency>();
+        offset = state.getIndexOffset();
+        it = state.getRows().iterator();
+        while (it.hasNext()) {
+            VariableBinding row = it.next();
+            if (row.getVariable().toInt() != ADJ_UP) {
+                continue;
+            }
+            OctetString id = neighbours.get(state.getIndex(row).toString());
+            int address = id == null ? 0 : sysIdToIp(id.getValue(), 0);
+            int ifIndex = ifIndexes.get(OIDCodec.subAt(row.getOid(), offset + CIRC_INDEX), 0);
+            if (address == 0 || ifIndex == 0) {
+                System.err.println("isis " + query.getAddress() + ": neighbour "
+                                   + (id == null ? "?" : id.toHexString()) + " on circuit "
+                                   + OIDCodec.subAt(row.getOid(), offset + CIRC_INDEX)
+                                   + " has no address or ifIndex");
+                return false;
+            }
+            Adjacency adj = new Adjacency(IPUtils.intToIp(address));
+            adj.setSNMPInterface(ifIndex);
+            found.put(adj.getAdjacentAddress(), adj);
+        }
+
+        Iterator<Adjacency> adjs = found.values().iterator();
+        while (adjs.hasNext()) {
+            Adjacency adj = adjs.next();
+            System.err.println("Adjacency: " + adj.getAdjacentAddress() + ", remote:" + adj);
+            adjacencies.put(adj.getAdjacentAddress(), adj);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a system id spelling an IPv4 address in decimal, three digits
+     * an octet, e.g. 19 21 68 00 10 01 for 192.168.1.1.
+     *
+     * @return The address, or missing if the id does not spell one
+     */
+    public static int sysIdToIp(byte[] sysId, int missing) {
+        if (sysId.length != 6) {
+            return missing;
+        }
+        int address = 0;
+        int octet = 0;
+        for (int i = 0; i < 12; i++) {
+            int digit = (i % 2 == 0 ? sysId[i / 2] >> 4 : sysId[i / 2]) & 0x0F;
+            if (digit > 9) {
+                return missing;
+            }
+            octet = octet * 10 + digit;
+            if (i % 3 == 2) {
+                if (octet > 255) {
+                    return missing;
+                }
+                address = (address << 8) | octet;
+                octet = 0;
+            }
+        }
+        return address;
+    }
+}
@@ -0,0 +1,121 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * VendorDriver of Juniper devices.
+ *
+ * The list of adjacent nodes is obtained by walking jnxMplsLdpHelloAdjType,
+ * which returns the LDP Hello adjacencies; those seen via 'Link' (value 1)
+ * are taken. The SNMP ifIndex of the interface where each adjacency has
+ * been established is encoded in the row OID.
+ * @author ruanoj@github
+ */
+public class JuniperDriver implements VendorDriver {
+
+    // JUNIPER-MPLS-LDP-MIB::jnxMplsLdpHelloAdjType = 1(link), 2(targeted)
+    final private static String JNX_LDP_ADJ = "1.3.6.1.4.1.2636.3.36.1.3.5.1.1.3";
+    final private static OID jnxMplsLdpHelloAdjTypeOID = new OID(JNX_LDP_ADJ);
+    final private static OID[] columns = { jnxMplsLdpHelloAdjTypeOID };
+
+    final private static int JNX_ADJ_IP_INDEX = 7;     // First IP address octect for field on TableEvent
+    final private static int JNX_SNMP_IF_INDEX = 13;   // SNMP ifNumber index for field on TableEvent
+
+    public String getName() {
+        return "juniper";
+    }
+
+    public boolean accepts(DevicePersonality personality) {
+        return personality.getVendor() == DevicePersonality.Vendor.JUNIPER;
+    }
+
+    public OID[] getColumns() {
+        return columns;
+    }
+
+    public int getCost(MibCapabilities capabilities) {
+        if (!capabilities.responds(jnxMplsLdpHelloAdjTypeOID)) {
+            return -1;
+        }
+        return columns.length;
+    }
+
+    /**
+     * A single walk, and its rows turned into adjacencies.
+     */
+    public QueryPlan planAdjacencies(final SNMPQuery query,
+            final Hashtable<String, Adjacency> adjacencies) {
+        QueryPlan plan = new QueryPlan(getName() + " " + query.getAddress());
+        final QueryPlan.WalkStep hello = plan.add(
+            new QueryPlan.WalkStep("jnxMplsLdpHelloAdjType", query, jnxMplsLdpHelloAdjTypeOID));
+        plan.add(new QueryPlan.Step("adjacencies", hello) {
+            protected boolean run() {
+                BulkWalker.Walk walk = hello.getWalk();
+                query.setLdpSessions(countLinkPeers(walk));
+                addAdjacencies(walk, adjacencies);
+                return true;
+            }
+        });
+        return plan;
+    }
+
+    private static void addAdjacencies(BulkWalker.Walk walk, Hashtable<String, Adjacency> adjacencyHash) {
+        // Here are the results. We are only interested in the
+        // adjacencies found on links(1), not targeted(2)
+        Iterator<VariableBinding> it = walk.getRows().iterator();
+        int offset = walk.getIndexOffset();
+        int adjType;
+        String adjAddress;
+        while( it.hasNext()) {
+            VariableBinding row = it.next();
+            // juniper: node queried -> AA.BB.CC.DD
+            // org.snmp4j.util.TableEvent[
+            //       THIS NODE IP          ADJACENCY IP        SNMP IF
+            // index=(AA.BB.CC.DD).0.0.1.(EE.FF.GG.HH).0.0.(16),
+            // vbs=[1.3.6.1.4.1.2636.3.36.1.3.5.1.1.3.AA.BB.CC.DD.0.0.1.EE.FF.GG.HH.0.0.16 = 2],
+            // status=0,exception=null,report=null]
+            // index, integers from 7 to 10 are the peer
+            // value of vbs shows adjacency type
+            // This is the value for the OID
+            adjType = row.getVariable().toInt();
+
+            if (adjType == 1) { // link-type adjacency
+                // Build string literal with adjacency IP address
+                OID oid = row.getOid();
+                adjAddress = IPUtils.intToIp(OIDCodec.ipAt(oid, offset + JNX_ADJ_IP_INDEX));
+
+                Adjacency remote = new Adjacency(adjAddress);
+                // Set SNMP local interface number (ifNumber)
+                remote.setSNMPInterface(OIDCodec.subAt(oid, offset + JNX_SNMP_IF_INDEX));
+                adjacencyHash.put(adjAddress, remote);
+
+                System.err.println("Adjacency: "+adjAddress+", remote:"+remote);
+            }
+        }
+    }
+
+    /**
+     * Peers with a link hello adjacency, once each however many links
+     * they are seen on.
+     */
+    public int countLdpSessions(SNMPQuery query) {
+        BulkWalker.Walk walk = query.walk(jnxMplsLdpHelloAdjTypeOID);
+        return walk == null ? -1 : countLinkPeers(walk);
+    }
+
+    private static int countLinkPeers(BulkWalker.Walk walk) {
+        IntIntMap peers = new IntIntMap(walk.getRows().size());
+        int offset = walk.getIndexOffset();
+        Iterator<VariableBinding> it = walk.getRows().iterator();
+        while (it.hasNext()) {
+            VariableBinding row = it.next();
+            if (row.getVariable().toInt() == 1) { // link-type adjacency
+                peers.put(OIDCodec.ipAt(row.getOid(), offset + JNX_ADJ_IP_INDEX), 1);
+            }
+        }
+        return peers.size();
+    }
+}
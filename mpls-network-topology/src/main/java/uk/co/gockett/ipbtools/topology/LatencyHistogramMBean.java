@@ -0,0 +1,22 @@
+package uk.co.gockett.ipbtools.topology;
+
+/**
+ * JMX view of a LatencyHistogram. Times are in milliseconds.
+ * @author ruanoj@github
+ */
+public interface LatencyHistogramMBean {
+
+    public long getCount();
+
+    public double getMean();
+
+    public double getMax();
+
+    public double getMedian();
+
+    public double getPercentile90();
+
+    public double getPercentile99();
+
+    public void reset();
+}
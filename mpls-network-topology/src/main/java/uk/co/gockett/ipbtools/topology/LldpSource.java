@@ -0,0 +1,248 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * AdjacencySource of the LLDP-MIB (IEEE 802.1AB).
+ *
+ * lldpRemSysCapEnabled lists the neighbours and whether they act as
+ * routers; only routers are taken. lldpRemManAddrIfSubtype gives, in its
+ * index, the management addresses they advertise, the loopback on most
+ * backbones. Both are walked at once. Every router neighbour must
+ * advertise an IPv4 management address for the adjacencies to be
+ * complete.
+ *
+ * The local port of each neighbour, lldpRemLocalPortNum, is an LLDP port
+ * number and not an ifIndex. lldpLocPortTable maps it to the interface:
+ * a local(7) port id that is a number is the ifIndex (Junos), and an
+ * interfaceName(5) one, or any other local(7) one, is looked up in ifName
+ * (IOS XR, EOS), walked only then. A router neighbour on a port mapped to
+ * no interface makes the adjacencies incomplete.
+ * @author ruanoj@github
+ */
+public class LldpSource implements AdjacencySource {
+
+    // LLDP-MIB::lldpRemSysCapEnabled, indexed by timeMark.localPortNum.remIndex
+    final private static String LLDP_REM_SYS_CAP_ENABLED = "1.0.8802.1.1.2.1.4.1.1.12";
+    // LLDP-MIB::lldpRemManAddrIfSubtype, indexed by
+    // timeMark.localPortNum.remIndex.addrSubtype.addrLen.addr
+    final private static String LLDP_REM_MAN_ADDR_IF_SUBTYPE = "1.0.8802.1.1.2.1.4.2.1.3";
+    // LLDP-MIB::lldpLocPortIdSubtype and lldpLocPortId, indexed by localPortNum
+    final private static String LLDP_LOC_PORT_ID_SUBTYPE = "1.0.8802.1.1.2.1.3.7.1.2";
+    final private static String LLDP_LOC_PORT_ID = "1.0.8802.1.1.2.1.3.7.1.3";
+    // IF-MIB::ifName, indexed by ifIndex
+    final private static String IF_NAME = "1.3.6.1.2.1.31.1.1.1.1";
+
+    final private static OID lldpRemSysCapEnabledOID = new OID(LLDP_REM_SYS_CAP_ENABLED);
+    final private static OID lldpRemManAddrIfSubtypeOID = new OID(LLDP_REM_MAN_ADDR_IF_SUBTYPE);
+    final private static OID lldpLocPortIdSubtypeOID = new OID(LLDP_LOC_PORT_ID_SUBTYPE);
+    final private static OID lldpLocPortIdOID = new OID(LLDP_LOC_PORT_ID);
+    final private static OID ifNameOID = new OID(IF_NAME);
+    final private static OID[] columns = { lldpRemSysCapEnabledOID, lldpRemManAddrIfSubtypeOID,
+                                           lldpLocPortIdSubtypeOID, lldpLocPortIdOID };
+
+    final private static int LOCAL_PORT_INDEX = 1;
+    final private static int REM_INDEX = 2;
+    final private static int ADDR_SUBTYPE_INDEX = 3;
+    final private static int ADDR_LEN_INDEX = 4;
+    final private static int ADDR_INDEX = 5;
+    final private static int IPV4 = 1;              // IANA AddressFamilyNumbers
+    final private static int ROUTER_BIT = 0x08;     // router(4) of LldpSystemCapabilitiesMap
+    final private static int PORT_INTERFACE_NAME = 5;  // LldpPortIdSubtype
+    final private static int PORT_LOCAL = 7;
+
+    public String getName() {
+        return "lldp";
+    }
+
+    public OID[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * The four walks, and that of ifName as if the ports were named.
+     */
+    public int getCost(MibCapabilities capabilities) {
+        if (!capabilities.responds(lldpRemManAddrIfSubtypeOID)
+                || !capabilities.responds(lldpLocPortIdOID)) {
+            return -1;
+        }
+        return columns.length + 1;
+    }
+
+    /**
+     * Four walks at once; ifName is walked next only if a port id is a
+     * name.
+     */
+    public QueryPlan planAdjacencies(final SNMPQuery query,
+            final Hashtable<String, Adjacency> adjacencies) {
+        QueryPlan plan = new QueryPlan(getName() + " " + query.getAddress());
+        // [ int localPortNum ] = int ifIndex
+        final IntIntMap ports = new IntIntMap(10);
+
+        final QueryPlan.WalkStep sysCap = plan.add(
+            new QueryPlan.WalkStep("lldpRemSysCapEnabled", query, lldpRemSysCapEnabledOID));
+        final QueryPlan.WalkStep manAddr = plan.add(
+            new QueryPlan.WalkStep("lldpRemManAddrIfSubtype", query, lldpRemManAddrIfSubtypeOID));
+        final QueryPlan.WalkStep portSubtype = plan.add(
+            new QueryPlan.WalkStep("lldpLocPortIdSubtype", query, lldpLocPortIdSubtypeOID));
+        final QueryPlan.WalkStep portId = plan.add(
+            new QueryPlan.WalkStep("lldpLocPortId", query, lldpLocPortIdOID));
+        QueryPlan.Step local = plan.add(new QueryPlan.Step("ports", portSubtype, portId) {
+            protected boolean run() {
+                return mapPorts(query, portSubtype.getWalk(), portId.getWalk(), ports);
+            }
+        });
+        plan.add(new QueryPlan.Step("adjacencies", sysCap, manAddr, local) {
+            protected boolean run() {
+                return addAdjacencies(query, sysCap.getWalk(), manAddr.getWalk(), ports, adjacencies);
+            }
+        });
+        return plan;
+    }
+
+    /*
+     * Fills ports with the ifIndex of every local port that has one,
+     * walking ifName if any port id is a name
+     *
+     * @return false if ifName was needed and could not be walked
+     */
+    private static boolean mapPorts(SNMPQuery query, BulkWalker.Walk portSubtype,
+            BulkWalker.Walk portId, IntIntMap ports) {
+        // [ int localPortNum ] = int subtype
+        IntIntMap subtypes = new IntIntMap(portSubtype.getRows().size());
+        int offset = portSubtype.getIndexOffset();
+        Iterator<VariableBinding> it = portSubtype.getRows().iterator();
+        while (it.hasNext()) {
+            VariableBinding row = it.next();
+            subtypes.put(OIDCodec.subAt(row.getOid(), offset), row.getVariable().toInt());
+        }
+
+        // [ int localPortNum ] = String portId
+        Hashtable<Integer, String> ids = new Hashtable<Integer, String>();
+        boolean named = false;
+        offset = portId.getIndexOffset();
+        it = portId.getRows().iterator();
+        while (it.hasNext()) {
+            VariableBinding row = it.next();
+            int port = OIDCodec.subAt(row.getOid(), offset);
+            String id = row.getVariable().toString();
+            int subtype = subtypes.get(port, 0);
+            ids.put(Integer.valueOf(port), id);
+            named |= (subtype == PORT_LOCAL || subtype == PORT_INTERFACE_NAME)
+                && portIfIndex(subtype, id, null) == 0;
+        }
+
+        // [ String ifName ] = Integer ifIndex
+        Hashtable<String, Integer> ifNames = null;
+        if (named) {
+            BulkWalker.Walk walk = query.walk(ifNameOID);
+            if (walk == null) {
+                return false;
+            }
+            ifNames = new Hashtable<String, Integer>();
+            offset = walk.getIndexOffset();
+            it = walk.getRows().iterator();
+            while (it.hasNext()) {
+                VariableBinding row = it.next();
+                ifNames.put(row.getVariable().toString(),
+                            Integer.valueOf(OIDCodec.subAt(row.getOid(), offset)));
+            }
+        }
+
+        Iterator<Integer> en = ids.keySet().iterator();
+        while (en.hasNext()) {
+            int port = en.next().intValue();
+            int ifIndex = portIfIndex(subtypes.get(port, 0), ids.get(Integer.valueOf(port)), ifNames);
+            if (ifIndex > 0) {
+                ports.put(port, ifIndex);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * ifIndex of a local port, from its lldpLocPortIdSubtype and
+     * lldpLocPortId.
+     *
+     * @param ifNames [ String ifName ] = Integer ifIndex, null if not walked
+     * @return The ifIndex, 0 if not known
+     */
+    static int portIfIndex(int subtype, String portId, Hashtable<String, Integer> ifNames) {
+        if (subtype == PORT_LOCAL && portId.matches("^[0-9]{1,9}$")) {
+            return Integer.parseInt(portId);
+        }
+        if ((subtype == PORT_LOCAL || subtype == PORT_INTERFACE_NAME) && ifNames != null) {
+            Integer ifIndex = ifNames.get(portId);
+            return ifIndex == null ? 0 : ifIndex.intValue();
+        }
+        return 0;
+    }
+
+    /*
+     * @return false if a router neighbour has no IPv4 management address,
+     * or is on a port with no ifIndex
+     */
+    private static boolean addAdjacencies(SNMPQuery query, BulkWalker.Walk sysCap,
+            BulkWalker.Walk manAddr, IntIntMap ports, Hashtable<String, Adjacency> adjacencies) {
+        // [ "localPortNum.remIndex" ] = Integer localPortNum, of router neighbours
+        Hashtable<String, Integer> routers = new Hashtable<String, Integer>();
+        int offset = sysCap.getIndexOffset();
+        Iterator<VariableBinding> it = sysCap.getRows().iterator();
+        while (it.hasNext()) {
+            VariableBinding row = it.next();
+            if (!(row.getVariable() instanceof OctetString)) {
+                continue;
+            }
+            byte[] caps = ((OctetString) row.getVariable()).getValue();
+            if (caps.length > 0 && (caps[0] & ROUTER_BIT) != 0) {
+                int port = OIDCodec.subAt(row.getOid(), offset + LOCAL_PORT_INDEX);
+                routers.put(port + "." + OIDCodec.subAt(row.getOid(), offset + REM_INDEX),
+                            Integer.valueOf(port));
+            }
+        }
+
+        // [ "localPortNum.remIndex" ] = Adjacency, the first IPv4 address of each
+        Hashtable<String, Adjacency> found = new Hashtable<String, Adjacency>();
+        offset = manAddr.getIndexOffset();
+        it = manAddr.getRows().iterator();
+        while (it.hasNext()) {
+            OID oid = it.next().getOid();
+            if (oid.size() < offset + ADDR_INDEX + 4
+                    || OIDCodec.subAt(oid, offset + ADDR_SUBTYPE_INDEX) != IPV4
+                    || OIDCodec.subAt(oid, offset + ADDR_LEN_INDEX) != 4) {
+                continue;
+            }
+            int port = OIDCodec.subAt(oid, offset + LOCAL_PORT_INDEX);
+            String remote = port + "." + OIDCodec.subAt(oid, offset + REM_INDEX);
+            if (routers.containsKey(remote) && !found.containsKey(remote)) {
+                int ifIndex = ports.get(port, 0);
+                if (ifIndex == 0) {
+                    System.err.println("lldp " + query.getAddress() + ": local port " + port
+                                       + " is no interface");
+                    return false;
+                }
+                Adjacency adj = new Adjacency(IPUtils.intToIp(OIDCodec.ipAt(oid, offset + ADDR_INDEX)));
+                adj.setSNMPInterface(ifIndex);
+                found.put(remote, adj);
+            }
+        }
+
+        if (found.size() < routers.size()) {
+            System.err.println("lldp " + query.getAddress() + ": " + (routers.size() - found.size())
+                               + " of " + routers.size() + " routers with no IPv4 management address");
+            return false;
+        }
+        Iterator<Adjacency> adjs = found.values().iterator();
+        while (adjs.hasNext()) {
+            Adjacency adj = adjs.next();
+            System.err.println("Adjacency: " + adj.getAdjacentAddress() + ", remote:" + adj);
+            adjacencies.put(adj.getAdjacentAddress(), adj);
+        }
+        return true;
+    }
+}
@@ -1,16 +1,28 @@
 package uk.co.gockett.ipbtools.topology;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
+import org.snmp4j.mp.SnmpConstants;
 
 /**
  * Description: Main class for topol project
  * @author ruanoj@github
  */
-public class Main implements DiscoveryListener, Runnable {
+public class Main implements TopologyListener, Runnable {
+
+  private final static long STATUS_INTERVAL = 3000L;  // Between status lines
+  private final static int OUTPUT_BUFFER = 65536;
 
   private final Object lock= new Object();
   @SuppressWarnings("unused")
@@ -19,102 +31,377 @@ public class Main implements DiscoveryListener, Runnable {
   private int inProgress = 0;
   private int completed = 0;
   private int errored = 0;
-  private boolean finished = false;
 
   public static void main(String[] args) {
 
     final String DEFAULT_FIRST_NODE = "1.1.1.1";
     String firstNode = DEFAULT_FIRST_NODE;
-    if ( args.length > 0) {
-      firstNode = args[0];
+    int workerCount = 0;
+    boolean threadPerRouter = false;
+    String cacheFile = null;
+    long cacheMaxAge = DiscoveryCache.DEFAULT_MAX_AGE;
+    int transports = SNMPEngine.DEFAULT_TRANSPORTS;
+    int window = SNMPEngine.DEFAULT_WINDOW;
+    long daemonInterval = 0L;
+    TopologyWriter.Format streamFormat = null;
+    String snapshotFile = null;
+    String printFile = null;
+    String sinceFile = null;
+    String[] diffFiles = null;
+    String journalFile = null;
+    boolean resume = false;
+
+    int argn = 0;
+    try {
+      while (argn < args.length && args[argn].startsWith("-")) {
+        String opt = args[argn++];
+        if (opt.equals("-w") && argn < args.length) {
+          workerCount = Integer.parseInt(args[argn++]);
+        } else if (opt.equals("-vt")) {
+          threadPerRouter = true;
+        } else if (opt.equals("-v1")) {
+          SNMPQuery.setDefaultVersion(SnmpConstants.version1);
+        } else if (opt.equals("-maxrep") && argn < args.length) {
+          BulkWalker.setDefaultMaxRepetitions(Integer.parseInt(args[argn++]));
+        } else if (opt.equals("-maxvbs") && argn+1 < args.length) {
+          GetCoalescer.setDefaultLimits(Integer.parseInt(args[argn]),
+                                        Integer.parseInt(args[argn+1]));
+          argn += 2;
+        } else if (opt.equals("-ttl") && argn < args.length) {
+          PersonalityCache.getCache().setTTL(1000L * Long.parseLong(args[argn++]));
+        } else if (opt.equals("-cache") && argn < args.length) {
+          cacheFile = args[argn++];
+        } else if (opt.equals("-maxage") && argn < args.length) {
+          cacheMaxAge = 1000L * Long.parseLong(args[argn++]);
+        } else if (opt.equals("-incremental")) {
+          AdjDiscoverer.setIncremental(true);
+        } else if (opt.equals("-daemon") && argn < args.length) {
+          daemonInterval = 1000L * Long.parseLong(args[argn++]);
+        } else if (opt.equals("-timeout") && argn+1 < args.length) {
+          DeviceHealth.getHealth().setLimits(Long.parseLong(args[argn]),
+                                             Integer.parseInt(args[argn+1]));
+          argn += 2;
+        } else if (opt.equals("-rate") && argn+1 < args.length) {
+          RateLimiter.getLimiter().setGlobal(Double.parseDouble(args[argn]),
+                                             Double.parseDouble(args[argn+1]));
+          argn += 2;
+        } else if (opt.equals("-devrate") && argn < args.length) {
+          RateLimiter.getLimiter().setDeviceLimits(args[argn++]);
+        } else if (opt.equals("-transports") && argn < args.length) {
+          transports = Integer.parseInt(args[argn++]);
+        } else if (opt.equals("-window") && argn < args.length) {
+          window = Integer.parseInt(args[argn++]);
+        } else if (opt.equals("-port") && argn < args.length) {
+          SNMPQuery.setDefaultPort(Integer.parseInt(args[argn++]));
+        } else if (opt.equals("-resolvers") && argn < args.length) {
+          ReverseResolver.getResolver().setThreads(Integer.parseInt(args[argn++]));
+        } else if (opt.equals("-sources") && argn < args.length) {
+          AdjacencySources.setEnabled(args[argn++]);
+        } else if (opt.equals("-include") && argn < args.length) {
+          ScopePolicy.getPolicy().include(args[argn++]);
+        } else if (opt.equals("-exclude") && argn < args.length) {
+          ScopePolicy.getPolicy().exclude(args[argn++]);
+        } else if (opt.equals("-skiphost") && argn < args.length) {
+          ScopePolicy.getPolicy().excludeHostname(args[argn++]);
+        } else if (opt.equals("-stream") && argn < args.length) {
+          streamFormat = TopologyWriter.parseFormat(args[argn++]);
+        } else if (opt.equals("-snapshot") && argn < args.length) {
+          snapshotFile = args[argn++];
+        } else if (opt.equals("-print") && argn < args.length) {
+          printFile = args[argn++];
+        } else if (opt.equals("-since") && argn < args.length) {
+          sinceFile = args[argn++];
+        } else if (opt.equals("-diff") && argn+1 < args.length) {
+          diffFiles = new String[] { args[argn], args[argn+1] };
+          argn += 2;
+        } else if (opt.equals("-journal") && argn < args.length) {
+          journalFile = args[argn++];
+        } else if (opt.equals("-resume")) {
+          resume = true;
+        } else if (opt.equals("-record") && argn < args.length) {
+          SNMPEngine.record(new File(args[argn++]));
+        } else if (opt.equals("-replay") && argn+1 < args.length) {
+          SNMPEngine.replay(new File(args[argn]), Double.parseDouble(args[argn+1]));
+          argn += 2;
+        } else {
+          usage();
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      usage();
+    }
+    if (sinceFile != null && streamFormat != null) {
+      usage();
+    }
+    if (daemonInterval > 0 && (streamFormat != null || snapshotFile != null
+        || printFile != null || sinceFile != null || diffFiles != null
+        || journalFile != null)) {
+      // The monitor publishes changes only, and keeps no journal
+      usage();
     }
-    Router node = null;
+    if (resume && journalFile == null) {
+      usage();
+    }
+    if ( args.length > argn) {
+      firstNode = args[argn];
+    }
+    if (printFile != null) {
+      // Nothing to crawl, only a snapshot to print
+      try {
+        TopologySnapshot snapshot = TopologySnapshot.open(new File(printFile));
+        PrintStream out = new PrintStream(new BufferedOutputStream(
+            new FileOutputStream(FileDescriptor.out), OUTPUT_BUFFER), false);
+        printTopology(snapshot, new Date(snapshot.getStamp()), out);
+        out.flush();
+      } catch (IOException e) {
+        System.err.println("Could not read snapshot " + printFile + ": " + e.getMessage());
+        System.exit(1);
+      }
+      return;
+    }
+    if (diffFiles != null) {
+      // Nothing to crawl either, only two snapshots to compare
+      try {
+        TopologySnapshot before = TopologySnapshot.open(new File(diffFiles[0]));
+        TopologySnapshot after = TopologySnapshot.open(new File(diffFiles[1]));
+        System.exit(printChanges(before, after) ? 1 : 0);
+      } catch (IOException e) {
+        System.err.println("Could not read snapshot: " + e.getMessage());
+        System.exit(2);
+      }
+    }
+    TopologySnapshot since = null;
+    if (sinceFile != null) {
+      try {
+        since = TopologySnapshot.open(new File(sinceFile));
+      } catch (IOException e) {
+        System.err.println("Could not read snapshot " + sinceFile + ": " + e.getMessage());
+        System.exit(2);
+      }
+    }
+    DiscoveryCache cache = null;
+    if (cacheFile != null || AdjDiscoverer.isIncremental()) {
+      try {
+        cache = DiscoveryCache.open(cacheFile == null ? null : new File(cacheFile));
+        cache.setMaxAge(cacheMaxAge);
+      } catch (IOException e) {
+        System.err.println("Could not read cache " + cacheFile + ": " + e.getMessage());
+        System.exit(1);
+      }
+    }
+
+    InetAddress seed = null;
     try {
-      InetAddress add = InetAddress.getByName(firstNode);
-      firstNode = add.getHostAddress();
-      node = new Router(add);
-      RouterStorage.getAdjStorage().newAdjacency( firstNode, node );
+      seed = InetAddress.getByName(firstNode);
     } catch (UnknownHostException e) {
       System.err.println("Invalid IP/unknown hostname");
       System.exit(1);
     }
 
     Main main = new Main();
-    new Thread(main).start();
-    new Thread(new AdjDiscoveryTask(main)).start();
-    new Thread(new AdjDiscoveryTask(main)).start();
-    /*
-    new Thread(new AdjDiscoveryTask(main)).start();
-    new Thread(new AdjDiscoveryTask(main)).start();
-    new Thread(new AdjDiscoveryTask(main)).start();
-    */
-
-    // Common thread waiting for finished flag
-    while(!main.finished) {
+    DiscoveryMetrics.getMetrics().register();
+    if (workerCount == 0) {
+      workerCount = threadPerRouter ? CrawlScheduler.DEFAULT_ROUTER_LIMIT
+                                    : CrawlScheduler.DEFAULT_WORKERS;
+    }
+    CrawlScheduler scheduler = null;
+    try {
+      scheduler = new CrawlScheduler(workerCount, threadPerRouter, main);
+      SNMPEngine.configure(transports, window);
+    } catch (IllegalArgumentException e) {
+      usage();
+    }
+
+    if (daemonInterval > 0) {
+      // Re-crawl forever, publishing changes only
+      List<InetAddress> seeds = new ArrayList<InetAddress>();
+      seeds.add(seed);
+      TopologyMonitor monitor = new TopologyMonitor(seeds, workerCount, threadPerRouter, daemonInterval);
+      monitor.addListener(main);
+      monitor.run();
+      SNMPEngine.shutdown();
+      return;
+    }
+
+    // Standard output goes through our own buffer, not line by line
+    FileOutputStream stdout = new FileOutputStream(FileDescriptor.out);
+    TopologyWriter writer = null;
+    if (streamFormat != null) {
+      writer = new TopologyWriter(Channels.newChannel(stdout), streamFormat);
+      writer.start();
+      scheduler.setResultListener(writer);
+    }
+
+    CrawlJournal journal = null;
+    if (journalFile != null) {
+      try {
+        journal = CrawlJournal.open(new File(journalFile), resume);
+      } catch (IOException e) {
+        System.err.println("Could not open journal " + journalFile + ": " + e.getMessage());
+        System.exit(1);
+      }
+    }
+    if (journal != null && journal.size() > 0) {
+      // Carry on where the journal left, the seed is in it already
+      int pending = journal.resume(RouterStorage.getAdjStorage(), writer);
+      System.err.println("Journal: " + journal.getFinished() + " routers restored, " + pending + " pending");
+    } else if (!RouterStorage.getAdjStorage().newAdjacency(seed.getHostAddress(), new Router(seed))) {
+      System.err.println("First node " + seed.getHostAddress() + " is out of scope");
+      System.exit(1);
+    }
+    Thread status = new Thread(main, "status");
+    status.start();
+    scheduler.start();
+
+    // Wait until there are no more nodes pending nor being queried
+    try {
+      scheduler.awaitTermination();
+      status.join();
+    } catch(InterruptedException ex) {} // ignore
+    SNMPEngine.shutdown();
+    System.err.println(DiscoveryMetrics.getMetrics());
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException e) {
+        System.err.println("Could not write journal " + journalFile + ": " + e.getMessage());
+      }
+    }
+    if (cache != null) {
+      System.err.println("Cache: " + cache.getHits() + " routers served, " + cache.getMisses() + " queried");
       try {
-        Thread.sleep(1000);
-      } catch(InterruptedException ex) {} // ignore
-    }
-    // Print out
-/*System.out.println(
-        "Hold:"+main.idle+
-        ", Pending:"+main.inProgress+
-        ", Done:"+main.completed+
-        ", Error:"+main.errored);*/
-
-    // Wait for inProgress variable to get to zero
-    // (set a timeout just in case any of the threads died
-    // unexpectedly)
-    while(main.inProgress!=0) {
+        cache.save();
+      } catch (IOException e) {
+        System.err.println("Could not write cache " + cacheFile + ": " + e.getMessage());
+      }
+    }
+
+    boolean changed = false;
+    if (writer != null) {
       try {
-        Thread.sleep(500);
-      } catch(InterruptedException ex) {} // ignore
+        writer.close();
+      } catch (IOException e) {
+        System.err.println("Could not write topology: " + e.getMessage());
+      }
+    } else if (since != null) {
+      // Hostnames looked up, as the dump would
+      Iterator<Object> it = RouterStorage.getAdjStorage().getData();
+      while (it.hasNext()) {
+        ((Router) it.next()).getHostname();
+      }
+      changed = printChanges(since, RouterStorage.getAdjStorage().getGraph());
+    } else {
+      PrintStream out = new PrintStream(new BufferedOutputStream(stdout, OUTPUT_BUFFER), false);
+      printTopology(out);
+      out.flush();
+    }
+
+    // Hostnames have all been looked up by now
+    if (snapshotFile != null) {
+      try {
+        TopologySnapshot.write(RouterStorage.getAdjStorage().getGraph(), new File(snapshotFile));
+      } catch (IOException e) {
+        System.err.println("Could not write snapshot " + snapshotFile + ": " + e.getMessage());
+      }
+    }
+    if (changed) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Prints the hostname list and the adjacency list of the discovered
+   * topology, leaving out adjacencies to shadow routers, or any other
+   * excluded by hostname in ScopePolicy.
+   */
+  public static void printTopology(PrintStream out) {
+    TopologyGraph graph = RouterStorage.getAdjStorage().getGraph();
+    graph.compact();
+
+    // Hostnames sysName did not give are looked up now
+    Iterator<Object> it = RouterStorage.getAdjStorage().getData();
+    while(it.hasNext()) {
+      ((Router)it.next()).getHostname();
     }
+    printTopology(graph, new Date(), out);
+  }
 
+  /**
+   * Prints the hostname list and the adjacency list of a topology, that of
+   * a discovery or a snapshot, in node id order.
+   *
+   * @param date Date given in the header
+   */
+  public static void printTopology(TopologyView view, Date date, PrintStream out) {
     // Header
-    System.out.println("# Topology output");
-    System.out.println("# " + new Date());
+    out.println("# Topology output");
+    out.println("# " + date);
+
+    int nodes = view.size();
 
-    // XXX quick hack to allow filtering
-    Hashtable<String, String> shadowDevices = new Hashtable<String, String>(30);
+    // XXX quick hack to allow filtering, by node id
+    ScopePolicy policy = ScopePolicy.getPolicy();
+    boolean[] shadowDevices = new boolean[nodes];
+    boolean shadows = false;
+    String[] addresses = new String[nodes];
+    String[] hostnames = new String[nodes];
 
     // Dump router/hostname list
-    System.out.println("# HOSTNAME");
-    Iterator<?> it = RouterStorage.getAdjStorage().getData();
-    while(it.hasNext()) {
-      Router r = (Router)it.next();
-      String hostname = r.getHostname();
-      String hostaddress = r.getHostAddress();
+    out.println("# HOSTNAME");
+    for (int id = 0; id < nodes; id++) {
+      String hostname = view.getHostname(id);
       // This if clause adds shadow routers to filter list
-      if (hostname.matches("^.+-shadow-.+$")) {
-        shadowDevices.put(hostaddress, hostname);
+      if (!policy.admitsHostname(hostname)) {
+        shadowDevices[id] = true;
+        shadows = true;
       }
-      System.out.println("# "+hostaddress+":"+hostname);
-//            System.out.println("# "+r.getHostAddress()+":"+r.getHostname());
+      addresses[id] = IPUtils.intToIp(view.getAddress(id));
+      hostnames[id] = hostname;
+      out.println("# "+addresses[id]+":"+hostname);
     }
 
-    System.out.println("# ");
+    out.println("# ");
 
-    // Dump adjacency list
-    System.out.println("# DATA");
-    it = RouterStorage.getAdjStorage().getData();
-    while(it.hasNext()) {
-      Router r = (Router)it.next();
-      System.out.println("# "+r.getHostAddress()+" ("+r.getHostname()+")");
-      Iterator<?> it2 = r.getAdjacencies().iterator();
-      while(it2.hasNext()) {
-        Adjacency adj = (Adjacency)it2.next();
+    // Dump adjacency list, straight from the node rows
+    out.println("# DATA");
+    StringBuilder line = new StringBuilder(80);
+    for (int id = 0; id < nodes; id++) {
+      out.println("# "+addresses[id]+" ("+hostnames[id]+")");
+      int end = view.getAdjacencyStart(id) + view.getAdjacencyCount(id);
+      for (int a = view.getAdjacencyStart(id); a < end; a++) {
         // The if clause avoids adjacencies to shadow routers to appear
-        if (! shadowDevices.containsKey(adj.getAdjacentAddress()))
-          System.out.println(r.getHostAddress()
-                        +":"+adj.getAdjacentAddress()
-                        +":"+adj.getRouterInterface()
-                        +":"+(1000*adj.getSpeed())
-                        );
+        if (shadows) {
+          int peer = view.nodeOf(view.getPeerAddress(a));
+          if (peer != TopologyGraph.NO_NODE && shadowDevices[peer])
+            continue;
+        }
+        line.setLength(0);
+        line.append(addresses[id]).append(':');
+        IPUtils.appendIp(line, view.getPeerAddress(a)).append(':')
+            .append(view.getInterface(a)).append(':')
+            .append(1000*view.getSpeed(a));
+        out.println(line);
       }
     }
   }
 
+  /**
+   * Prints the changes from one topology to another, one per line, in
+   * the style of the daemon mode.
+   *
+   * @return true if there was any
+   */
+  public static boolean printChanges(TopologyView before, TopologyView after) {
+    List<TopologyDiff.Change> changes = TopologyDiff.diff(before, after);
+    PrintStream out = new PrintStream(new BufferedOutputStream(
+        new FileOutputStream(FileDescriptor.out), OUTPUT_BUFFER), false);
+    for (int i = 0; i < changes.size(); i++) {
+      out.println(changes.get(i));
+    }
+    out.flush();
+    return !changes.isEmpty();
+  }
+
   public void join() {
     synchronized(lock) {
       workers++;
@@ -158,47 +445,90 @@ public class Main implements DiscoveryListener, Runnable {
     }
   }
 
+  /*
+   * Daemon mode: changes between rounds go to standard output, one per
+   * line, in the same colon-separated style as the adjacency dump.
+   */
+  public void roundStarted(int round) {
+    synchronized(lock) {
+      completed = 0;
+      errored = 0;
+    }
+    System.err.println("Round " + round + " started " + new Date());
+  }
+
+  public void routerAppeared(Router router) {
+    event("+ROUTER " + router.getHostAddress() + ":" + router.getHostname());
+  }
+
+  public void routerDisappeared(Router router) {
+    event("-ROUTER " + router.getHostAddress() + ":" + router.getHostname());
+  }
+
+  public void adjacencyAdded(Router router, Adjacency adj) {
+    event("+ADJ " + router.getHostAddress() + ":" + adj.getAdjacentAddress()
+          + ":" + adj.getRouterInterface() + ":" + (1000*adj.getSpeed()));
+  }
+
+  public void adjacencyRemoved(Router router, Adjacency adj) {
+    event("-ADJ " + router.getHostAddress() + ":" + adj.getAdjacentAddress()
+          + ":" + adj.getRouterInterface() + ":" + (1000*adj.getSpeed()));
+  }
+
+  public void linkSpeedChanged(Router router, Adjacency before, Adjacency after) {
+    event("~SPEED " + router.getHostAddress() + ":" + after.getAdjacentAddress()
+          + ":" + after.getRouterInterface() + ":" + (1000*before.getSpeed())
+          + ":" + (1000*after.getSpeed()));
+  }
+
+  public void interfaceRenamed(Router router, Adjacency before, Adjacency after) {
+    event("~IF " + router.getHostAddress() + ":" + after.getAdjacentAddress()
+          + ":" + before.getRouterInterface() + ":" + after.getRouterInterface());
+  }
+
+  public void roundFinished(int round) {
+    System.out.flush();
+    synchronized(lock) {
+      System.err.println("Round " + round + " finished. Nodes succesfully queried:"
+                         + completed + ", not responding:" + errored);
+    }
+  }
+
+  private void event(String line) {
+    System.out.println(line);
+  }
+
+  private static void usage() {
+    System.err.println("Usage: Main [-w workers] [-vt] [-v1] [-maxrep n] [-maxvbs n bytes] [-ttl seconds] [-cache file [-maxage seconds]] [-incremental] [-daemon seconds] [-timeout ms retries] [-rate pdus bytes] [-devrate [vendor:]inflight:pdus] [-transports n] [-window n] [-port n] [-resolvers n] [-sources list] [-include prefix] [-exclude prefix] [-skiphost regex] [-stream text|csv|ndjson] [-snapshot file] [-print snapshot] [-since snapshot | -diff before after] [-journal file [-resume]] [-record file | -replay file scale] [first-node]");
+    System.exit(1);
+  }
+
   /**
    * This method will print out status from time to time, and will
    * also detect a first-node-error status, and also the end of the
    * topology discovery.
    */
   public void run() {
-    int st = 0;
-    while(true) {
-      if (completed==0 && errored==1) {
+    RouterStorage storage = RouterStorage.getAdjStorage();
+    try {
+      while (!storage.awaitFinished(STATUS_INTERVAL)) {
+        synchronized(lock) {
+          System.err.println("Idle:"+idle+", Querying:"+inProgress+", Pending:"+storage.getPendingCount()+", Nodes completed:"+completed+", errors:"+errored);
+        }
+      }
+    } catch(InterruptedException ex) {} // ignore
+
+    synchronized(lock) {
+      if (completed==0 && errored>0) {
         // This means the first node queried was an error.
-        // Critical situation, we need to finish
         System.err.println("Node specified could not be queried. Bailing out.");
-        new AdjDiscoveryTask(true);
-        break;
-      }
-      if (inProgress==0 && completed>0) {
-        // This means there are no more nodes to be queried, nor
-        // nodes currently being treated. This marks the end of
-        // the discovery
+      } else {
+        // There are no more nodes to be queried, nor nodes currently
+        // being treated. This marks the end of the discovery
         System.err.println("End of discovery");
         System.err.println("Nodes succesfully queried:" + completed);
         System.err.println("Nodes not responding:" + errored);
-        new AdjDiscoveryTask(true);
-        break;
-      }
-      if (st++ > 2) {
-        st = 0;
-        synchronized(lock) {
-          System.err.println("Idle:"+idle+", Querying:"+inProgress+", Nodes completed:"+completed+", errors:"+errored);
-        }
       }
-      // Testing. When 10 nodes have been processed, we will shutdown
-      /*if (completed>=20) {
-        System.err.println("At least 20 nodes completed. Testing finished.");
-        new AdjDiscoveryTask(true);
-        break;
-      }*/
-      try {
-        Thread.sleep(1000);
-      } catch(InterruptedException ex) {} // ignore
     }
-    finished=true;
   }
 }
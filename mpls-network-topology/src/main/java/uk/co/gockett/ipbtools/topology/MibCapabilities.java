@@ -0,0 +1,81 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.Hashtable;
+import org.snmp4j.PDU;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * What a device answered to the capability probe: which columns of the
+ * candidate AdjacencySources have any row on it, from the first rows of
+ * every column in a single GETBULK (GETNEXT on SNMPv1).
+ *
+ * The probe sees no more than PROBE_REPETITIONS rows of a column, fewer
+ * than a walk fetches in one request, so it tells nothing of the size of
+ * the tables; sources are costed by the walks they make instead.
+ *
+ * It also remembers the sources found incomplete on the device, so they
+ * are not tried again. It is valid for as long as the DevicePersonality
+ * it was probed under.
+ * @author ruanoj@github
+ */
+public class MibCapabilities {
+
+    public final static int PROBE_REPETITIONS = 10;
+
+    private final DevicePersonality personality;
+    // [ OID column ] = Integer rows seen, for columns with any
+    private final Hashtable<OID, Integer> rows = new Hashtable<OID, Integer>();
+    private final Hashtable<String, Boolean> incomplete = new Hashtable<String, Boolean>();
+
+    /**
+     * @param columns The columns probed, in the order of the request
+     * @param response The response, rows of every column in turn
+     */
+    public MibCapabilities(DevicePersonality personality, OID[] columns, PDU response) {
+        this.personality = personality;
+        boolean[] ended = new boolean[columns.length];
+        int[] count = new int[columns.length];
+        for (int i = 0; i < response.size(); i++) {
+            int c = i % columns.length;
+            if (ended[c]) {
+                continue;
+            }
+            VariableBinding vb = response.get(i);
+            if (vb.isException() || !vb.getOid().startsWith(columns[c])) {
+                ended[c] = true;
+            } else {
+                count[c]++;
+            }
+        }
+        for (int c = 0; c < columns.length; c++) {
+            if (count[c] > 0) {
+                rows.put(columns[c], Integer.valueOf(count[c]));
+            }
+        }
+    }
+
+    public DevicePersonality getPersonality() {
+        return personality;
+    }
+
+    /**
+     * @return true if the column has any row on the device
+     */
+    public boolean responds(OID column) {
+        return rows.containsKey(column);
+    }
+
+    public void setIncomplete(AdjacencySource source) {
+        incomplete.put(source.getName(), Boolean.TRUE);
+    }
+
+    public boolean isIncomplete(AdjacencySource source) {
+        return incomplete.containsKey(source.getName());
+    }
+
+    public String toString() {
+        return "MibCapabilities[address:" + personality.getAddress() + ", rows:" + rows
+            + ", incomplete:" + incomplete.keySet() + "]";
+    }
+}
@@ -0,0 +1,92 @@
+package uk.co.gockett.ipbtools.topology;
+
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.Variable;
+
+/**
+ * Decodes table indexes straight from OID sub-identifiers into ints, and
+ * builds instance OIDs from ints, so walking a table does not go through
+ * strings nor boxed values.
+ *
+ * Offsets are absolute positions in the OID; for a row of a walk, add
+ * BulkWalker.Walk.getIndexOffset() to the position within the index.
+ * IPv4 addresses are packed big-endian, as IPUtils.ipToInt() does, and
+ * only turned into dotted-quad form (IPUtils.intToIp()) for output.
+ * @author ruanoj@github
+ */
+public class OIDCodec {
+
+    private OIDCodec() {
+    }
+
+    /**
+     * @return The IPv4 address encoded in the 4 sub-identifiers at offset
+     */
+    public static int ipAt(OID oid, int offset) {
+        return ((oid.get(offset) & 0xFF) << 24)
+                | ((oid.get(offset + 1) & 0xFF) << 16)
+                | ((oid.get(offset + 2) & 0xFF) << 8)
+                | (oid.get(offset + 3) & 0xFF);
+    }
+
+    /**
+     * @return The sub-identifier at offset, e.g. an ifIndex or an address
+     * encoded as a single 32-bit value
+     */
+    public static int subAt(OID oid, int offset) {
+        return oid.get(offset);
+    }
+
+    /**
+     * @return The IPv4 address held by a variable, or missing if it does
+     * not hold one
+     */
+    public static int ipValue(Variable v, int missing) {
+        if (v == null || v.isException()) {
+            return missing;
+        }
+        if (v instanceof IpAddress) {
+            byte[] b = ((IpAddress) v).toByteArray();
+            if (b.length != 4) {
+                return missing;
+            }
+            return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16)
+                    | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+        }
+        try {
+            return IPUtils.ipToInt(v.toString());
+        } catch (IllegalArgumentException e) {
+            return missing;
+        }
+    }
+
+    /**
+     * @return A new OID made of prefix followed by the IPv4 address
+     */
+    public static OID appendIp(OID prefix, int address) {
+        int n = prefix.size();
+        int[] value = new int[n + 4];
+        for (int i = 0; i < n; i++) {
+            value[i] = prefix.get(i);
+        }
+        value[n] = (address >>> 24) & 0xFF;
+        value[n + 1] = (address >>> 16) & 0xFF;
+        value[n + 2] = (address >>> 8) & 0xFF;
+        value[n + 3] = address & 0xFF;
+        return new OID(value);
+    }
+
+    /**
+     * @return A new OID made of prefix followed by one sub-identifier
+     */
+    public static OID appendIndex(OID prefix, int index) {
+        int n = prefix.size();
+        int[] value = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            value[i] = prefix.get(i);
+        }
+        value[n] = index;
+        return new OID(value);
+    }
+}
@@ -0,0 +1,132 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * AdjacencySource of the OSPF-MIB (RFC 1850), with next hops resolved to
+ * interfaces through the ARP table.
+ *
+ * ospfNbrState gives the neighbours in full state, and ospfNbrRtrId their
+ * router id, the loopback on most backbones. The ifIndex of a neighbour
+ * is its ospfNbrAddressLessIndex on unnumbered links; on numbered ones,
+ * that of the ARP entry (RFC1213-MIB ipNetToMediaIfIndex) of its address.
+ * The three columns are walked at once, the ARP table making most of the
+ * cost on routers with many hosts attached. Adjacencies are complete when
+ * every full neighbour has a router id and an ifIndex.
+ * @author ruanoj@github
+ */
+public class OspfSource implements AdjacencySource {
+
+    // OSPF-MIB::ospfNbrState = full(8), indexed by ospfNbrIpAddr.ospfNbrAddressLessIndex
+    final private static String OSPF_NBR_STATE = "1.3.6.1.2.1.14.10.1.6";
+    // OSPF-MIB::ospfNbrRtrId, same index
+    final private static String OSPF_NBR_RTR_ID = "1.3.6.1.2.1.14.10.1.3";
+    // RFC1213-MIB::ipNetToMediaIfIndex, indexed by ifIndex.ipAddress
+    final private static String IP_NET_TO_MEDIA_IF_INDEX = "1.3.6.1.2.1.4.22.1.1";
+
+    final private static OID ospfNbrStateOID = new OID(OSPF_NBR_STATE);
+    final private static OID ospfNbrRtrIdOID = new OID(OSPF_NBR_RTR_ID);
+    final private static OID ipNetToMediaIfIndexOID = new OID(IP_NET_TO_MEDIA_IF_INDEX);
+    final private static OID[] columns = { ospfNbrStateOID, ospfNbrRtrIdOID, ipNetToMediaIfIndexOID };
+
+    final private static int NBR_IP_INDEX = 0;
+    final private static int NBR_ADDRESS_LESS_INDEX = 4;
+    final private static int ARP_IP_INDEX = 1;
+    final private static int NBR_FULL = 8;
+
+    public String getName() {
+        return "ospf";
+    }
+
+    public OID[] getColumns() {
+        return columns;
+    }
+
+    public int getCost(MibCapabilities capabilities) {
+        if (!capabilities.responds(ospfNbrRtrIdOID)) {
+            return -1;
+        }
+        return columns.length;
+    }
+
+    public QueryPlan planAdjacencies(final SNMPQuery query,
+            final Hashtable<String, Adjacency> adjacencies) {
+        QueryPlan plan = new QueryPlan(getName() + " " + query.getAddress());
+        final QueryPlan.WalkStep state = plan.add(
+            new QueryPlan.WalkStep("ospfNbrState", query, ospfNbrStateOID));
+        final QueryPlan.WalkStep rtrId = plan.add(
+            new QueryPlan.WalkStep("ospfNbrRtrId", query, ospfNbrRtrIdOID));
+        final QueryPlan.WalkStep arp = plan.add(
+            new QueryPlan.WalkStep("ipNetToMediaIfIndex", query, ipNetToMediaIfIndexOID));
+        plan.add(new QueryPlan.Step("adjacencies", state, rtrId, arp) {
+            protected boolean run() {
+                return addAdjacencies(query, state.getWalk(), rtrId.getWalk(),
+                                      arp.getWalk(), adjacencies);
+            }
+        });
+        return plan;
+    }
+
+    /*
+     * @return false if a full neighbour has no router id or no ifIndex
+     */
+    private static boolean addAdjacencies(SNMPQuery query, BulkWalker.Walk state,
+            BulkWalker.Walk rtrId, BulkWalker.Walk arp,
+            Hashtable<String, Adjacency> adjacencies) {
+        // [ int address ] = int ifIndex
+        IntIntMap arpIfIndex = new IntIntMap(arp.getRows().size());
+        int offset = arp.getIndexOffset();
+        Iterator<VariableBinding> it = arp.getRows().iterator();
+        while (it.hasNext()) {
+            VariableBinding row = it.next();
+            arpIfIndex.put(OIDCodec.ipAt(row.getOid(), offset + ARP_IP_INDEX), row.getVariable().toInt());
+        }
+
+        // [ "nbrIpAddr.addressLessIndex" ] = int router id, packed
+        Hashtable<String, Integer> routerIds = new Hashtable<String, Integer>();
+        it = rtrId.getRows().iterator();
+        while (it.hasNext()) {
+            VariableBinding row = it.next();
+            int id = OIDCodec.ipValue(row.getVariable(), 0);
+            if (id != 0) {
+                routerIds.put(rtrId.getIndex(row).toString(), Integer.valueOf(id));
+            }
+        }
+
+        Hashtable<String, Adjacency> found = new Hashtable<String, Adjacency>();
+        offset = state.getIndexOffset();
+        it = state.getRows().iterator();
+        while (it.hasNext()) {
+            VariableBinding row = it.next();
+            if (row.getVariable().toInt() != NBR_FULL) {
+                continue;
+            }
+            OID oid = row.getOid();
+            int neighbour = OIDCodec.ipAt(oid, offset + NBR_IP_INDEX);
+            Integer id = routerIds.get(state.getIndex(row).toString());
+            int ifIndex = OIDCodec.subAt(oid, offset + NBR_ADDRESS_LESS_INDEX);
+            if (ifIndex == 0) {
+                ifIndex = arpIfIndex.get(neighbour, 0);
+            }
+            if (id == null || ifIndex == 0) {
+                System.err.println("ospf " + query.getAddress() + ": neighbour "
+                                   + IPUtils.intToIp(neighbour) + " has no router id or ifIndex");
+                return false;
+            }
+            Adjacency adj = new Adjacency(IPUtils.intToIp(id.intValue()));
+            adj.setSNMPInterface(ifIndex);
+            found.put(adj.getAdjacentAddress(), adj);
+        }
+
+        Iterator<Adjacency> adjs = found.values().iterator();
+        while (adjs.hasNext()) {
+            Adjacency adj = adjs.next();
+            System.err.println("Adjacency: " + adj.getAdjacentAddress() + ", remote:" + adj);
+            adjacencies.put(adj.getAdjacentAddress(), adj);
+        }
+        return true;
+    }
+}
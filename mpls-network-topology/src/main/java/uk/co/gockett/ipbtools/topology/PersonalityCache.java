@@ -0,0 +1,76 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.Hashtable;
+
+/**
+ * Singleton holding the personality of every device probed in this run,
+ * keyed by address. Entries expire after a TTL, so long runs eventually
+ * notice a device being replaced or upgraded.
+ * @author ruanoj@github
+ */
+public class PersonalityCache {
+
+    public final static long DEFAULT_TTL = 600000L;    // 10 minutes
+    public final static int INITIAL_CAPACITY = 100;
+
+    private static PersonalityCache theCache = null;
+    private final static Object lock = new Object();
+
+    private final Hashtable<String, DevicePersonality> cache =
+        new Hashtable<String, DevicePersonality>(INITIAL_CAPACITY);
+    private long ttl = DEFAULT_TTL;
+
+    public static PersonalityCache getCache() {
+        synchronized (lock) {
+            if (theCache == null) {
+                theCache = new PersonalityCache();
+            }
+        }
+        return theCache;
+    }
+
+    private PersonalityCache() {
+    }
+
+    /**
+     * @param ttl Time, in milliseconds, entries are valid for. 0 disables
+     * the cache.
+     */
+    public void setTTL(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return The personality of the device, or null if it is not known or
+     * has expired
+     */
+    public DevicePersonality get(String address) {
+        DevicePersonality p = cache.get(address);
+        if (p == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - p.getProbedAt() >= ttl) {
+            cache.remove(address);
+            return null;
+        }
+        return p;
+    }
+
+    public void put(DevicePersonality personality) {
+        if (ttl > 0) {
+            cache.put(personality.getAddress(), personality);
+        }
+    }
+
+    public void remove(String address) {
+        cache.remove(address);
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+}
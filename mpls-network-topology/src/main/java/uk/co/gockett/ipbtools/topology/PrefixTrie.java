@@ -0,0 +1,109 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.Arrays;
+
+/**
+ * Binary trie of IPv4 prefixes, each one with an int value, answering
+ * longest prefix matches.
+ *
+ * Nodes live in two int arrays, children and values, with no object per
+ * node: a lookup is at most 32 array reads, and a table of a few hundred
+ * prefixes takes a few tens of KB.
+ *
+ * Not synchronized.
+ * @author ruanoj@github
+ */
+public class PrefixTrie {
+
+    public final static int NONE = Integer.MIN_VALUE;  // Value of no prefix
+    private final static int NO_CHILD = 0;              // The root is nobody's child
+    private final static int INITIAL_NODES = 64;
+
+    private int[] children = new int[INITIAL_NODES * 2];    // [ node * 2 + bit ] = child node
+    private int[] values = new int[INITIAL_NODES];
+    private int nodes = 1;      // The root, for 0.0.0.0/0
+    private int prefixes = 0;
+
+    public PrefixTrie() {
+        values[0] = NONE;
+    }
+
+    /**
+     * Sets the value of a prefix; host bits of the address are ignored.
+     *
+     * @param length Prefix length, 0 to 32
+     */
+    public void put(int address, int length, int value) {
+        if (length < 0 || length > 32) {
+            throw new IllegalArgumentException("Invalid prefix length " + length);
+        }
+        int node = 0;
+        for (int i = 0; i < length; i++) {
+            int slot = node * 2 + ((address >>> (31 - i)) & 1);
+            if (children[slot] == NO_CHILD) {
+                int child = newNode();      // May replace children
+                children[slot] = child;
+            }
+            node = children[slot];
+        }
+        if (values[node] == NONE) {
+            prefixes++;
+        }
+        values[node] = value;
+    }
+
+    private int newNode() {
+        if (nodes == values.length) {
+            values = Arrays.copyOf(values, nodes * 2);
+            children = Arrays.copyOf(children, nodes * 4);
+        }
+        values[nodes] = NONE;
+        return nodes++;
+    }
+
+    /**
+     * Parses a prefix as "a.b.c.d/length", or "a.b.c.d" for a /32, and
+     * sets its value.
+     *
+     * @throws IllegalArgumentException if it is not a prefix
+     */
+    public void put(String prefix, int value) {
+        int slash = prefix.indexOf('/');
+        if (slash < 0) {
+            put(IPUtils.ipToInt(prefix), 32, value);
+        } else {
+            put(IPUtils.ipToInt(prefix.substring(0, slash)),
+                Integer.parseInt(prefix.substring(slash + 1)), value);
+        }
+    }
+
+    /**
+     * @return The value of the longest prefix holding the address, NONE if
+     * there is none
+     */
+    public int match(int address) {
+        int found = values[0];
+        int node = 0;
+        for (int i = 0; i < 32; i++) {
+            node = children[node * 2 + ((address >>> (31 - i)) & 1)];
+            if (node == NO_CHILD) {
+                break;
+            }
+            if (values[node] != NONE) {
+                found = values[node];
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return Number of prefixes with a value
+     */
+    public int size() {
+        return prefixes;
+    }
+
+    public boolean isEmpty() {
+        return prefixes == 0;
+    }
+}
@@ -0,0 +1,232 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.snmp4j.smi.OID;
+
+/**
+ * Small DAG of SNMP steps, walks and GETs, each one run once every step
+ * it depends on has succeeded.
+ *
+ * execute() starts every step with no pending dependency at once, and
+ * each of the others as soon as its last dependency succeeds, so
+ * independent walks overlap and dependent steps do not wait for unrelated
+ * ones. A step that fails makes the plan fail: steps not started yet are
+ * skipped, those running are waited for.
+ *
+ * Steps run on a shared pool of at most POOL_THREADS daemon threads. A
+ * step started while every pool thread is busy is run by the caller of
+ * execute() instead, so plans of many routers at once neither grow the
+ * pool nor wait for each other. A plan is built for one execution, and
+ * its steps keep their results.
+ * @author ruanoj@github
+ */
+public class QueryPlan {
+
+    final public static int POOL_THREADS = 32;
+
+    private final static AtomicInteger threadCount = new AtomicInteger();
+    private final static ThreadPoolExecutor pool = new ThreadPoolExecutor(0, POOL_THREADS,
+            60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "plan-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final String name;
+    private final List<Step> steps = new ArrayList<Step>();
+
+    // Execution state, under the plan monitor
+    private int running = 0;
+    private int done = 0;
+    private boolean failed = false;
+    private final List<Step> inline = new ArrayList<Step>(); // Left to the caller
+
+    /**
+     * One node of the plan. run() is called at most once, from a pool
+     * thread or the caller of execute(), after every step it depends on has succeeded.
+     */
+    public abstract static class Step {
+        private final String name;
+        private final Step[] after;
+        private final List<Step> dependents = new ArrayList<Step>(2);
+        private int waiting;
+
+        /**
+         * @param after Steps this one depends on, added to the plan before
+         */
+        public Step(String name, Step... after) {
+            this.name = name;
+            this.after = after;
+            this.waiting = after.length;
+        }
+
+        /**
+         * @return false if the step failed, and the plan with it
+         */
+        protected abstract boolean run();
+
+        public String getName() {
+            return name;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Walks a table column on the current address of a query.
+     */
+    public static class WalkStep extends Step {
+        private final SNMPQuery query;
+        private final OID column;
+        private BulkWalker.Walk walk = null;
+
+        public WalkStep(String name, SNMPQuery query, OID column, Step... after) {
+            super(name, after);
+            this.query = query;
+            this.column = column;
+        }
+
+        protected boolean run() {
+            walk = query.walk(column);
+            return walk != null;
+        }
+
+        /**
+         * @return The walk, null until the step has succeeded
+         */
+        public BulkWalker.Walk getWalk() {
+            return walk;
+        }
+    }
+
+    public QueryPlan(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Adds a step; the steps it depends on must have been added already.
+     *
+     * @return The step
+     */
+    public <S extends Step> S add(S added) {
+        Step step = added;
+        for (int i = 0; i < step.after.length; i++) {
+            if (!steps.contains(step.after[i])) {
+                throw new IllegalArgumentException(name + ": " + step + " depends on "
+                                                   + step.after[i] + ", not in the plan");
+            }
+            step.after[i].dependents.add(step);
+        }
+        steps.add(step);
+        return added;
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    /**
+     * Runs every step, and waits until they have all succeeded or the plan
+     * has failed and no step is running any more.
+     *
+     * @return true if every step succeeded
+     */
+    public boolean execute() {
+        synchronized (this) {
+            for (int i = 0; i < steps.size(); i++) {
+                Step step = steps.get(i);
+                if (step.waiting == 0) {
+                    start(step);
+                }
+            }
+        }
+        boolean interrupted = false;
+        while (true) {
+            Step next = null;
+            synchronized (this) {
+                while (running > 0 && inline.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (inline.isEmpty()) {
+                    break;
+                }
+                next = inline.remove(0);
+                if (failed) {
+                    // Not started after all
+                    running--;
+                    continue;
+                }
+            }
+            run(next);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            return !failed && done == steps.size();
+        }
+    }
+
+    /*
+     * Hands a step to an idle pool thread, or to the caller if there is
+     * none. Called under the plan monitor.
+     */
+    private void start(final Step step) {
+        running++;
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                    QueryPlan.this.run(step);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inline.add(step);
+            notifyAll();
+        }
+    }
+
+    private void run(Step step) {
+        boolean ok = false;
+        try {
+            ok = step.run();
+        } catch (RuntimeException e) {
+            System.err.println(name + ": step " + step + " failed: " + e);
+        }
+        finished(step, ok);
+    }
+
+    private synchronized void finished(Step step, boolean ok) {
+        running--;
+        if (!ok) {
+            failed = true;
+        } else {
+            done++;
+            for (int i = 0; i < step.dependents.size(); i++) {
+                Step next = step.dependents.get(i);
+                if (--next.waiting == 0 && !failed) {
+                    start(next);
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    public String toString() {
+        return "QueryPlan[" + name + ": " + steps + "]";
+    }
+}
@@ -0,0 +1,235 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import org.snmp4j.PDU;
+import org.snmp4j.Target;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.IpAddress;
+
+/**
+ * Singleton throttling the SNMP requests of SNMPEngine, so a highly
+ * parallel crawl neither overloads the control plane of any router nor
+ * saturates the management network. Nothing is throttled until it is
+ * configured.
+ *
+ * Globally, token buckets limit PDUs and bytes per second over every
+ * request sent. Requests are charged their encoded size plus
+ * HEADER_BYTES, and responses are charged once they come back.
+ *
+ * Per device, a limit of requests in flight and a token bucket of PDUs
+ * per second, set for each DevicePersonality vendor. Devices whose
+ * personality is not known yet, or with no limits of their own, take
+ * those of Vendor.UNKNOWN.
+ *
+ * Time spent waiting is counted in DiscoveryMetrics.
+ * @author ruanoj@github
+ */
+public class RateLimiter {
+
+    public final static int HEADER_BYTES = 48;     // IP, UDP and SNMP message
+
+    private static RateLimiter theLimiter = null;
+    private final static Object lock = new Object();
+
+    private volatile TokenBucket globalPdus = null;
+    private volatile TokenBucket globalBytes = null;
+    private final Hashtable<DevicePersonality.Vendor, Limits> vendorLimits =
+        new Hashtable<DevicePersonality.Vendor, Limits>();
+    private final ConcurrentHashMap<String, Device> devices =
+        new ConcurrentHashMap<String, Device>();
+    private volatile boolean enabled = false;
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getMetrics();
+
+    /**
+     * Limits of one vendor; 0 means unlimited
+     */
+    public static class Limits {
+        private final int inFlight;
+        private final double pduRate;
+
+        public Limits(int inFlight, double pduRate) {
+            if (inFlight < 0 || pduRate < 0.0) {
+                throw new IllegalArgumentException("Invalid limits " + inFlight + ", " + pduRate);
+            }
+            this.inFlight = inFlight;
+            this.pduRate = pduRate;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public double getPduRate() {
+            return pduRate;
+        }
+    }
+
+    /*
+     * Throttling state of one device, for the vendor it was set up for
+     */
+    private static class Device {
+        final DevicePersonality.Vendor vendor;
+        final Semaphore slots;      // Null if unlimited
+        final TokenBucket pdus;     // Null if unlimited
+
+        Device(DevicePersonality.Vendor vendor, Limits limits) {
+            this.vendor = vendor;
+            this.slots = limits == null || limits.inFlight == 0 ? null : new Semaphore(limits.inFlight);
+            this.pdus = limits == null || limits.pduRate == 0.0 ? null
+                : new TokenBucket(limits.pduRate, Math.max(1.0, limits.pduRate));
+        }
+    }
+
+    public static RateLimiter getLimiter() {
+        synchronized (lock) {
+            if (theLimiter == null) {
+                theLimiter = new RateLimiter();
+            }
+        }
+        return theLimiter;
+    }
+
+    private RateLimiter() {
+    }
+
+    /**
+     * Sets the global limits, each allowing a burst of one second's worth,
+     * and of a full-sized PDU at least.
+     *
+     * @param pduRate PDUs per second, 0 for no limit
+     * @param byteRate Bytes per second, 0 for no limit
+     */
+    public synchronized void setGlobal(double pduRate, double byteRate) {
+        if (pduRate < 0.0 || byteRate < 0.0) {
+            throw new IllegalArgumentException("Invalid rates " + pduRate + ", " + byteRate);
+        }
+        globalPdus = pduRate == 0.0 ? null : new TokenBucket(pduRate, Math.max(1.0, pduRate));
+        globalBytes = byteRate == 0.0 ? null : new TokenBucket(byteRate, Math.max(1500.0, byteRate));
+        update();
+    }
+
+    /**
+     * Sets the per device limits of a vendor; those of Vendor.UNKNOWN
+     * apply to devices of any vendor with no limits of its own.
+     */
+    public synchronized void setDeviceLimits(DevicePersonality.Vendor vendor, Limits limits) {
+        vendorLimits.put(vendor, limits);
+        devices.clear();
+        update();
+    }
+
+    /**
+     * Parses per device limits as "[vendor:]inflight:pdus", e.g. "4:20"
+     * for every vendor or "cisco:2:10", and sets them.
+     *
+     * @throws IllegalArgumentException if they cannot be parsed
+     */
+    public void setDeviceLimits(String spec) {
+        String[] parts = spec.split(":");
+        DevicePersonality.Vendor vendor = DevicePersonality.Vendor.UNKNOWN;
+        int n = 0;
+        if (parts.length == 3) {
+            vendor = DevicePersonality.Vendor.valueOf(parts[n++].toUpperCase());
+        } else if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid device limits " + spec);
+        }
+        setDeviceLimits(vendor, new Limits(Integer.parseInt(parts[n]),
+                                           Double.parseDouble(parts[n + 1])));
+    }
+
+    private void update() {
+        enabled = globalPdus != null || globalBytes != null || !vendorLimits.isEmpty();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Waits until a request may be sent to the target. Every call must be
+     * followed by one to after(), with what it returns.
+     *
+     * @return The permit to give back, null if none
+     */
+    public Object before(Target target, PDU request) {
+        if (!enabled) {
+            return null;
+        }
+        Device d = null;
+        long deviceNanos = 0L;
+        if (!vendorLimits.isEmpty()) {
+            d = device(target.getAddress());
+            long start = System.nanoTime();
+            if (d.slots != null) {
+                d.slots.acquireUninterruptibly();
+            }
+            if (d.pdus != null) {
+                d.pdus.acquire(1.0);
+            }
+            deviceNanos = System.nanoTime() - start;
+        }
+        long globalNanos = 0L;
+        TokenBucket bucket = globalPdus;
+        if (bucket != null) {
+            globalNanos += bucket.acquire(1.0);
+        }
+        bucket = globalBytes;
+        if (bucket != null) {
+            globalNanos += bucket.acquire(request.getBERLength() + HEADER_BYTES);
+        }
+        if (globalNanos > 0L || deviceNanos > 0L) {
+            metrics.throttled(globalNanos, deviceNanos);
+        }
+        return d;
+    }
+
+    /**
+     * A request let through by before() has been answered or has timed
+     * out.
+     *
+     * @param permit What before() returned
+     * @param response Null on timeout
+     */
+    public void after(Object permit, PDU response) {
+        if (permit != null && ((Device) permit).slots != null) {
+            ((Device) permit).slots.release();
+        }
+        TokenBucket bucket = globalBytes;
+        if (bucket != null && response != null) {
+            bucket.charge(response.getBERLength() + HEADER_BYTES);
+        }
+    }
+
+    /*
+     * Devices of unknown vendor are set up again once their personality
+     * is known
+     */
+    private Device device(Address address) {
+        String key = address instanceof IpAddress
+            ? ((IpAddress) address).getInetAddress().getHostAddress()
+            : address.toString();
+        Device d = devices.get(key);
+        if (d != null && d.vendor != DevicePersonality.Vendor.UNKNOWN) {
+            return d;
+        }
+        DevicePersonality p = PersonalityCache.getCache().get(key);
+        DevicePersonality.Vendor vendor = p == null ? DevicePersonality.Vendor.UNKNOWN : p.getVendor();
+        if (d != null && d.vendor == vendor) {
+            return d;
+        }
+        Limits limits = vendorLimits.get(vendor);
+        if (limits == null) {
+            limits = vendorLimits.get(DevicePersonality.Vendor.UNKNOWN);
+        }
+        Device created = new Device(vendor, limits);
+        if (d == null) {
+            d = devices.putIfAbsent(key, created);
+            return d == null ? created : d;
+        }
+        devices.replace(key, d, created);
+        Device current = devices.get(key);
+        return current != null ? current : created;
+    }
+}
@@ -0,0 +1,79 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import org.snmp4j.PDU;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+/**
+ * UDP transport that writes every request going out, and the response
+ * coming back for it, to an SNMPRecording.
+ *
+ * Retries keep the request ID, so latency is measured from the last
+ * time a request was sent. Requests still unanswered when the transport
+ * is closed are recorded without a response.
+ * @author ruanoj@github
+ */
+public class RecordingTransportMapping extends DefaultUdpTransportMapping {
+
+    private final SNMPRecording recording;
+    private final Hashtable<Integer, Sent> pending = new Hashtable<Integer, Sent>();
+
+    private static class Sent {
+        final String address;
+        final int version;
+        final long sent;
+        final PDU request;
+
+        Sent(String address, int version, long sent, PDU request) {
+            this.address = address;
+            this.version = version;
+            this.sent = sent;
+            this.request = request;
+        }
+    }
+
+    public RecordingTransportMapping(SNMPRecording recording) throws IOException {
+        super();
+        this.recording = recording;
+    }
+
+    public void sendMessage(UdpAddress address, byte[] message,
+            TransportStateReference tmStateReference) throws IOException {
+        SNMPRecording.Message m = SNMPRecording.decode(ByteBuffer.wrap(message));
+        if (m != null) {
+            String target = address.getInetAddress().getHostAddress();
+            pending.put(m.pdu.getRequestID().getValue(),
+                        new Sent(target, m.version, recording.elapsed(), m.pdu));
+        }
+        super.sendMessage(address, message, tmStateReference);
+    }
+
+    protected void fireProcessMessage(Address address, ByteBuffer buf,
+            TransportStateReference tmStateReference) {
+        SNMPRecording.Message m = SNMPRecording.decode(buf.duplicate());
+        if (m != null && m.pdu.getType() == PDU.RESPONSE) {
+            Sent s = pending.remove(m.pdu.getRequestID().getValue());
+            if (s != null) {
+                recording.add(s.address, s.version, s.sent, recording.elapsed() - s.sent,
+                        s.request, m.pdu);
+            }
+        }
+        super.fireProcessMessage(address, buf, tmStateReference);
+    }
+
+    public void close() throws IOException {
+        super.close();
+        Enumeration<Sent> en = pending.elements();
+        while (en.hasMoreElements()) {
+            Sent s = en.nextElement();
+            recording.add(s.address, s.version, s.sent, SNMPRecording.NO_RESPONSE, s.request, null);
+        }
+        pending.clear();
+    }
+}
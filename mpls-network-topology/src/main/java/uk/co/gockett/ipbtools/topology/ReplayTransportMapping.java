@@ -0,0 +1,90 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.snmp4j.PDU;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.UdpTransportMapping;
+
+/**
+ * Transport that sends nothing: requests are answered from an
+ * SNMPRecording, after the latency recorded for them times a scale
+ * factor (1 as recorded, 0 at once).
+ *
+ * Requests the recording has no response for are ignored, and time out
+ * as they did, or would have, on the network.
+ * @author ruanoj@github
+ */
+public class ReplayTransportMapping extends UdpTransportMapping {
+
+    private final SNMPRecording recording;
+    private final double timeScale;
+    private ScheduledExecutorService timer = null;
+
+    public ReplayTransportMapping(SNMPRecording recording, double timeScale) {
+        super(new UdpAddress("0.0.0.0/0"));
+        if (timeScale < 0.0) {
+            throw new IllegalArgumentException("Time scale must not be negative");
+        }
+        this.recording = recording;
+        this.timeScale = timeScale;
+    }
+
+    public synchronized void listen() throws IOException {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ReplayTransportMapping");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public synchronized void close() throws IOException {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    public synchronized boolean isListening() {
+        return timer != null;
+    }
+
+    public void sendMessage(final UdpAddress address, byte[] message,
+            TransportStateReference tmStateReference) throws IOException {
+        SNMPRecording.Message m = SNMPRecording.decode(ByteBuffer.wrap(message));
+        if (m == null) {
+            return;
+        }
+        String target = address.getInetAddress().getHostAddress();
+        SNMPRecording.Exchange e = recording.replay(target, m.pdu);
+        if (e == null) {
+            return;
+        }
+        PDU response = (PDU) e.getResponse().clone();
+        response.setRequestID(m.pdu.getRequestID());
+        final byte[] bytes = SNMPRecording.encode(m.version, m.community, response);
+        final TransportStateReference reference = new TransportStateReference(this, address,
+                null, SecurityLevel.undefined, SecurityLevel.undefined, false, null);
+        synchronized (this) {
+            if (timer == null) {
+                throw new IOException("Transport not listening");
+            }
+            timer.schedule(new Runnable() {
+                public void run() {
+                    fireProcessMessage(address, ByteBuffer.wrap(bytes), reference);
+                }
+            }, (long) (e.getLatency() * timeScale), TimeUnit.MICROSECONDS);
+        }
+    }
+}
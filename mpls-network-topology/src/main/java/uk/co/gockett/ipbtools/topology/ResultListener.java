@@ -0,0 +1,18 @@
+package uk.co.gockett.ipbtools.topology;
+
+/**
+ * Interface meant to be told about each router as soon as its discovery
+ * is over
+ * @author ruanoj@github
+ */
+public interface ResultListener {
+
+    /**
+     * Called from the worker that queried the router, once its hostname
+     * and adjacencies are stored. Workers call it concurrently.
+     *
+     * @param answered false if the router could not be queried
+     */
+    void routerCompleted(Router router, boolean answered);
+
+}
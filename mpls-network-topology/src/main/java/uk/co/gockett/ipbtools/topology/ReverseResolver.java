@@ -0,0 +1,221 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.net.InetAddress;
+import java.util.Hashtable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Singleton looking up the hostnames of routers by reverse DNS, for those
+ * whose sysName is not known.
+ *
+ * InetAddress.getCanonicalHostName() blocks, and the JDK does not cache
+ * reverse lookups: one at a time, a slow resolver stalls the output for
+ * minutes. Lookups are prefetched as soon as RouterStorage accepts a node,
+ * a few at a time on a pool of daemon threads, so by the time a hostname
+ * is asked for it is usually known. Names found are cached for an hour,
+ * and addresses with no name for five minutes.
+ * @author ruanoj@github
+ */
+public class ReverseResolver {
+
+    public final static int DEFAULT_THREADS = 8;
+    public final static long DEFAULT_TTL = 3600000L;            // 1 hour
+    public final static long DEFAULT_NEGATIVE_TTL = 300000L;    // 5 minutes
+    public final static long DEFAULT_WAIT = 10000L;             // For a lookup in flight
+    private final static int INITIAL_CAPACITY = 100;
+
+    private static ReverseResolver theResolver = null;
+    private final static Object lock = new Object();
+
+    // [ address ] = hostname, or null if the address has none
+    private final Hashtable<String, Entry> cache = new Hashtable<String, Entry>(INITIAL_CAPACITY);
+    private final Hashtable<String, Future<String>> inFlight = new Hashtable<String, Future<String>>();
+    private ExecutorService executor = null;
+    private int threads = DEFAULT_THREADS;
+    private long ttl = DEFAULT_TTL;
+    private long negativeTtl = DEFAULT_NEGATIVE_TTL;
+    private long wait = DEFAULT_WAIT;
+    private int threadCount = 0;
+
+    private static class Entry {
+        final String hostname;
+        final long expires;
+
+        Entry(String hostname, long expires) {
+            this.hostname = hostname;
+            this.expires = expires;
+        }
+    }
+
+    public static ReverseResolver getResolver() {
+        synchronized (lock) {
+            if (theResolver == null) {
+                theResolver = new ReverseResolver();
+            }
+        }
+        return theResolver;
+    }
+
+    private ReverseResolver() {
+    }
+
+    /**
+     * @param threads Lookups in flight at the same time. 0 disables
+     * prefetching: hostnames are looked up when asked for, one at a time.
+     */
+    public synchronized void setThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Invalid resolver threads " + threads);
+        }
+        this.threads = threads;
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * @param ttl Time, in milliseconds, names found are valid for
+     * @param negativeTtl Time, in milliseconds, addresses with no name are
+     * not looked up again
+     */
+    public synchronized void setTTL(long ttl, long negativeTtl) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * @param wait Time, in milliseconds, getHostname() waits for a lookup
+     * in flight before giving up on it
+     */
+    public synchronized void setWait(long wait) {
+        this.wait = wait;
+    }
+
+    /**
+     * Starts looking up the hostname of an address, if it is not known
+     * nor being looked up already. Does not block.
+     */
+    public void prefetch(InetAddress address) {
+        if (threads > 0) {
+            submit(address);
+        }
+    }
+
+    /**
+     * @return The hostname of the address, as getCanonicalHostName()
+     * would, or the address itself if it has none or the lookup takes too
+     * long
+     */
+    public String getHostname(InetAddress address) {
+        String key = address.getHostAddress();
+        while (true) {
+            Entry e = cached(key);
+            if (e != null) {
+                return e.hostname != null ? e.hostname : key;
+            }
+            if (threads == 0) {
+                return lookup(address);
+            }
+            Future<String> f = submit(address);
+            if (f == null) {
+                continue;   // Cached meanwhile
+            }
+            try {
+                return f.get(wait, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                // Still in flight, it will be cached for the next time
+                System.err.println("Warning: reverse lookup of " + key + " timed out");
+                return key;
+            } catch (ExecutionException ex) {
+                return key;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return key;
+            }
+        }
+    }
+
+    /**
+     * @return The hostname of the address if it has been looked up and is
+     * still valid, the address itself if it has no name, null otherwise
+     */
+    public String getCached(String address) {
+        Entry e = cached(address);
+        if (e == null) {
+            return null;
+        }
+        return e.hostname != null ? e.hostname : address;
+    }
+
+    private Entry cached(String key) {
+        Entry e = cache.get(key);
+        if (e != null && System.currentTimeMillis() >= e.expires) {
+            cache.remove(key);
+            return null;
+        }
+        return e;
+    }
+
+    /*
+     * Holding the lock until the future is stored, lookup() cannot remove
+     * it before it is there
+     */
+    private synchronized Future<String> submit(final InetAddress address) {
+        String key = address.getHostAddress();
+        Future<String> f = inFlight.get(key);
+        if (f == null && cached(key) == null) {
+            f = executor().submit(new Callable<String>() {
+                public String call() {
+                    return lookup(address);
+                }
+            });
+            inFlight.put(key, f);
+        }
+        return f;
+    }
+
+    private String lookup(InetAddress address) {
+        String key = address.getHostAddress();
+        String name = address.getCanonicalHostName();
+        boolean found = !name.equals(key);
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            cache.put(key, new Entry(found ? name : null, now + (found ? ttl : negativeTtl)));
+            inFlight.remove(key);
+        }
+        return name;
+    }
+
+    private ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "resolver-" + (++threadCount));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * @return Number of addresses looked up, with a name or not, and still
+     * cached
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+    }
+}
@@ -5,27 +5,57 @@ import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Holds relevant information for a given router (the definition 'router'
  * may become 'network device' in the future)
+ *
+ * Once accepted by RouterStorage, a Router is bound to a node of the
+ * TopologyGraph, and hostname and adjacencies are kept there instead.
  * @author ruanoj@github
  */
 public class Router {
-    final private int HASHTABLE_DEFAULT_INITIAL_CAPACITY = 50;
+    final private int HASHTABLE_DEFAULT_INITIAL_CAPACITY = 8;
     final private String DEFAULT_COMMUNITY = "public";
     private InetAddress address;
     private String community;   // SNMP community
-    private String hostname;    // Host name
-    private Hashtable<String, Adjacency> adjacencies;   // Routers to which this one is adjacent to
+    private String hostname;    // Host name, until bound
+    private Hashtable<String, Adjacency> adjacencies = null;   // Until bound
                                 // key should be interface
                                 // value the adjacent Router instance
+    private TopologyGraph graph = null;
+    private int id = TopologyGraph.NO_NODE;
 
     public Router( InetAddress address ) {
         this.address = address;
         this.hostname = null;
         this.community = DEFAULT_COMMUNITY;
-        this.adjacencies = new Hashtable<String, Adjacency>(HASHTABLE_DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * Moves hostname and adjacencies to a node of the graph; from now on
+     * they are read from and written to it.
+     */
+    synchronized void bind(TopologyGraph graph, int id) {
+        this.graph = graph;
+        this.id = id;
+        if (hostname != null) {
+            graph.setHostname(id, hostname);
+            hostname = null;
+        }
+        if (adjacencies != null) {
+            graph.setAdjacencies(id, adjacencies.values());
+            adjacencies = null;
+        }
+    }
+
+    /**
+     * @return Node id in the graph, TopologyGraph.NO_NODE if not bound
+     */
+    public int getNodeId() {
+        return id;
     }
 
     public InetAddress getInetAddress() {
@@ -36,17 +66,31 @@ public class Router {
         return address.getHostAddress();
     }
 
-    public void setHostname( String hostname ) {
+    public synchronized void setHostname( String hostname ) {
         if (hostname!=null) {
-            this.hostname = hostname;
+            if (graph != null) {
+                graph.setHostname(id, hostname);
+            } else {
+                this.hostname = hostname;
+            }
         }
     }
 
-    public String getHostname() {
-        if (hostname == null) {
-            hostname = address.getCanonicalHostName();
+    public synchronized String getHostname() {
+        String name = graph != null ? graph.getHostname(id) : hostname;
+        if (name == null) {
+            // Prefetched when the node was accepted, usually
+            name = ReverseResolver.getResolver().getHostname(address);
+            setHostname(name);
         }
-        return hostname;
+        return name;
+    }
+
+    /**
+     * @return The hostname if already known, without looking it up
+     */
+    synchronized String getKnownHostname() {
+        return graph != null ? graph.getHostname(id) : hostname;
     }
 
     public void setCommunity( String community ) {
@@ -60,24 +104,66 @@ public class Router {
     /*
      * TODO: Set remoteInterface to both physical and snmp interfaces,
      *  separated by a colon, e.g. xe-5/0/0:901
+     *
+     * Several adjacencies should rather go through addAllAdjacencies(),
+     * which stores them at once.
      */
-    public void addAdjacency(String remoteInterface, Adjacency neighbor) {
-        if (adjacencies.containsKey(remoteInterface)) {
+    public synchronized void addAdjacency(String remoteInterface, Adjacency neighbor) {
+        boolean added;
+        if (graph != null) {
+            added = graph.addAdjacency(id, neighbor);
+        } else {
+            added = adjacencyTable().put(remoteInterface, neighbor) == null;
+        }
+        if (!added) {
             System.err.println("Warning: Adjacency \"" + remoteInterface +"\" in router "+ getInetAddress() + " already exists.");
         }
-        adjacencies.put(remoteInterface, neighbor);
     }
 
-    public void addAllAdjacencies(Map<String, Adjacency> t) {
-        adjacencies.putAll(t);
+    public synchronized void addAllAdjacencies(Map<String, Adjacency> t) {
+        Hashtable<String, Adjacency> current = adjacencyTable();
+        current.putAll(t);
+        store(current);
     }
 
-    public Collection<Adjacency> getAdjacencies() {
-        return adjacencies.values();
+    public synchronized Collection<Adjacency> getAdjacencies() {
+        if (graph != null) {
+            return graph.getAdjacencies(id);
+        }
+        return adjacencyTable().values();
     }
+
+    /*
+     * Adjacencies keyed by remote address. Unbound routers keep the table,
+     * bound ones get a copy of their graph row to be stored back.
+     */
+    private Hashtable<String, Adjacency> adjacencyTable() {
+        if (graph == null) {
+            if (adjacencies == null) {
+                adjacencies = new Hashtable<String, Adjacency>(HASHTABLE_DEFAULT_INITIAL_CAPACITY);
+            }
+            return adjacencies;
+        }
+        List<Adjacency> row = graph.getAdjacencies(id);
+        Hashtable<String, Adjacency> copy = new Hashtable<String, Adjacency>(row.size() * 2 + 1);
+        Iterator<Adjacency> it = row.iterator();
+        while (it.hasNext()) {
+            Adjacency adj = it.next();
+            copy.put(adj.getAdjacentAddress(), adj);
+        }
+        return copy;
+    }
+
+    private void store(Hashtable<String, Adjacency> table) {
+        if (graph != null) {
+            graph.setAdjacencies(id, table.values());
+        }
+    }
+
     // XXX Do we need something more elaborate here?
-    public String toString() {
+    public synchronized String toString() {
         StringBuffer value = new StringBuffer("Router["+address.toString()+", community:"+community+", \n adjacencies[\n");
+        Hashtable<String, Adjacency> adjacencies = adjacencyTable();
         Enumeration<String> en = adjacencies.keys();
         while(en.hasMoreElements()) {
             String key = (String)en.nextElement();
@@ -1,14 +1,21 @@
 package uk.co.gockett.ipbtools.topology;
 
-import java.util.Collections;
-import java.util.Hashtable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * Singleton that deals directly with adjacency data.
  * Singleton
+ *
+ * It also acts as the frontier of the crawl: workers block on
+ * takePendingAdj() until a node is queued, and report back through
+ * completeAdj() so the end of the discovery (nothing pending, nothing
+ * in flight) is detected exactly.
+ *
+ * Discovered nodes get a dense id in a TopologyGraph, where their data
+ * is kept; Router objects handed out are bound to it.
  * @author ruanoj@github
  */
 public class RouterStorage {
@@ -16,18 +23,27 @@ public class RouterStorage {
     private static RouterStorage theStorage = null;
     private final static Object lock = new Object();
 
-    /* discovered shows all the nodes already seen, either as a primary
-     * argument, or by being an adjacency of another node. Index is its
-     * IP address on a String
+    /* graph holds all the nodes already seen, either as a primary
+     * argument, or by being an adjacency of another node, indexed by
+     * their IPv4 address as an int
      */
-    private static Hashtable<String, Object> discovered;
+    private static TopologyGraph graph;
     /* pending contains the nodes yet to be queried
      */
-    private static List<Object> pending;
-    /* data contains the data itself. This container could be merged
-     * with 'discovered'
+    private static ArrayDeque<Object> pending;
+    /* data contains the objects given for each node, by node id
      */
     private static List<Object> data;
+    /* inFlight counts the nodes handed out to workers and not yet
+     * completed. Guarded by this object's monitor, as is 'shutdown'.
+     */
+    private static int inFlight = 0;
+    private static boolean shutdown = false;
+    private static FrontierListener frontierListener = null;
+    /* outOfScope holds the addresses out of ScopePolicy prefixes, so they
+     * are only looked up once
+     */
+    private static IntIntMap outOfScope;
 
 
     public static RouterStorage getAdjStorage() {
@@ -39,45 +55,254 @@ public class RouterStorage {
         return theStorage;
     }
 
+    /**
+     * Retrieves a pending node without waiting. A node returned by this
+     * method is considered in flight until completeAdj() is called for it.
+     * @return a pending node, or null if there is none
+     */
     public synchronized Object getPendingAdj() {
-        if (pending.isEmpty() == true) {
+        if (pending.isEmpty() == true || shutdown) {
+            return null;
+        }
+        inFlight++;
+        return pending.poll();
+    }
+
+    /**
+     * Waits until a node is pending and retrieves it. As with getPendingAdj()
+     * the node is in flight until completeAdj() is called for it.
+     * @return a pending node, or null when the discovery is over (no node
+     * pending nor in flight) or has been shut down
+     */
+    public synchronized Object takePendingAdj() throws InterruptedException {
+        while (pending.isEmpty()) {
+            if (shutdown || inFlight == 0) {
+                return null;
+            }
+            wait();
+        }
+        if (shutdown) {
             return null;
         }
-        return pending.remove(0);
+        inFlight++;
+        return pending.poll();
+    }
+
+    /**
+     * Informs that a node handed out by getPendingAdj()/takePendingAdj()
+     * has been processed, and that any adjacency found on it has already
+     * been passed to newAdjacency().
+     */
+    public synchronized void completeAdj(Object obj) {
+        inFlight--;
+        if (inFlight == 0 && pending.isEmpty()) {
+            notifyAll();
+        }
     }
 
     /* Inform of a new adjacency
      * A new adjacency has been discovered. This will trigger its inclusion
      * on the list of pending nodes to be queried, and also as new data.
-     * XXX: Will this work? equals vs. == for the String object
+     * Only IPv4 addresses are accepted, and only within ScopePolicy.
+     * Routers whose hostname is known to be excluded become nodes, with
+     * their hostname, so output leaves them out as it always did, but are
+     * never queued to be queried. Both are counted in DiscoveryMetrics.
+     * The reverse DNS lookup of queued routers is started in the
+     * background, to be ready if their sysName is not.
+     * New nodes are written to the CrawlJournal, if open, once the lock
+     * is released, so its checkpoints do not hold up other workers.
+     * @return true if the node is new
      */
-    public synchronized boolean newAdjacency(String str, Object obj) {
-        if( discovered.containsKey(str) == true) {
+    public boolean newAdjacency(String str, Object obj) {
+        if (!accept(str, obj)) {
             return false;
         }
-        discovered.put(str, obj);
+        CrawlJournal journal = CrawlJournal.getJournal();
+        if (journal != null) {
+            journal.discovered(str);
+        }
+        return true;
+    }
+
+    private synchronized boolean accept(String str, Object obj) {
+        int address;
+        try {
+            address = IPUtils.ipToInt(str);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Warning: " + str + " is not an IPv4 address, ignored");
+            return false;
+        }
+        if (graph.nodeOf(address) != TopologyGraph.NO_NODE || outOfScope.containsKey(address)) {
+            return false;
+        }
+        ScopePolicy policy = ScopePolicy.getPolicy();
+        if (!policy.admitsAddress(address)) {
+            outOfScope.put(address, 1);
+            DiscoveryMetrics.getMetrics().outOfScope();
+            return false;
+        }
+        int id = graph.addNode(address);
+        if (obj instanceof Router) {
+            ((Router) obj).bind(graph, id);
+        }
+        data.add(obj);
+        String hostname = policy.getKnownHostname(str);
+        if (!policy.admitsHostname(hostname)) {
+            graph.setHostname(id, hostname);
+            DiscoveryMetrics.getMetrics().excluded(false);
+            return true;
+        }
         pending.add(obj);
+        notifyAll();
+        if (frontierListener != null) {
+            frontierListener.nodeQueued(obj);
+        }
+        if (obj instanceof Router) {
+            // In case sysName does not answer
+            ReverseResolver.getResolver().prefetch(((Router) obj).getInetAddress());
+        }
+        return true;
+    }
+
+    /**
+     * Adds a node finished by an earlier crawl, kept in its CrawlJournal.
+     * It becomes part of the data, but is not queued to be queried.
+     * @return true if the node is new
+     */
+    public synchronized boolean restoreNode(String str, Object obj) {
+        int address;
+        try {
+            address = IPUtils.ipToInt(str);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Warning: " + str + " is not an IPv4 address, ignored");
+            return false;
+        }
+        if (graph.nodeOf(address) != TopologyGraph.NO_NODE) {
+            return false;
+        }
+        int id = graph.addNode(address);
+        if (obj instanceof Router) {
+            ((Router) obj).bind(graph, id);
+        }
         data.add(obj);
         return true;
     }
 
     /**
-     * Iterator to access data
+     * Sets the object told about every node accepted from now on. Nodes
+     * already pending are reported straight away.
+     */
+    public synchronized void setFrontierListener(FrontierListener listener) {
+        frontierListener = listener;
+        if (listener != null) {
+            Iterator<Object> it = pending.iterator();
+            while (it.hasNext()) {
+                listener.nodeQueued(it.next());
+            }
+        }
+    }
+
+    /**
+     * @return true if no node is pending nor being processed, or if the
+     * discovery has been shut down
+     */
+    public synchronized boolean isFinished() {
+        return shutdown || (inFlight == 0 && pending.isEmpty());
+    }
+
+    /**
+     * Waits for the discovery to finish, up to timeout milliseconds
+     * (0 waits forever).
+     * @return true if the discovery is finished
+     */
+    public synchronized boolean awaitFinished(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!isFinished()) {
+            if (timeout == 0) {
+                wait();
+                continue;
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Stops handing out pending nodes and wakes up any waiting worker.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /**
+     * @return Number of addresses out of ScopePolicy prefixes seen
+     */
+    public synchronized int getOutOfScopeCount() {
+        return outOfScope.size();
+    }
+
+    /**
+     * @return true if the address was seen and is out of ScopePolicy prefixes
+     */
+    public synchronized boolean isOutOfScope(int address) {
+        return outOfScope.containsKey(address);
+    }
+
+    /**
+     * Forgets every node, so a new discovery can start from scratch.
+     * Workers of the previous discovery must have left already.
+     */
+    public synchronized void reset() {
+        graph = new TopologyGraph();
+        pending = new ArrayDeque<Object>();
+        data = new ArrayList<Object>(DISCOVERED_INITIAL_CAPACITY);
+        inFlight = 0;
+        shutdown = false;
+        frontierListener = null;
+        outOfScope = new IntIntMap();
+    }
+
+    /**
+     * Iterator to access data, in node id order. It works on a copy, so
+     * discovery may go on while it is used.
      * XXX Do we really mind whether this gives write access to stored objects?
      * @return
      */
-    public Iterator<Object> getData() {
-        return data.iterator();
+    public synchronized Iterator<Object> getData() {
+        return new ArrayList<Object>(data).iterator();
     }
+
+    /**
+     * @return The graph of the current discovery. reset() starts a new one,
+     * so it stays valid for whoever holds it.
+     */
+    public synchronized TopologyGraph getGraph() {
+        return graph;
+    }
+
     private RouterStorage() {
-        // discovered nodes will be looked up to find out whether
-        // we already know about nodes as they appear in the
+        // discovered nodes will be looked up in the graph to find out
+        // whether we already know about nodes as they appear in the
         // adjacency list of traversed ones.
-        discovered = new Hashtable<String, Object>(DISCOVERED_INITIAL_CAPACITY);
+        graph = new TopologyGraph();
         // pending nodes, and data about themselves are just
         // containers that will not be looked up, just first-element
         // retrieval (pending), and adding new nodes (data).
-        pending = Collections.synchronizedList(new LinkedList<Object>());
-        data = Collections.synchronizedList(new LinkedList<Object>());
+        pending = new ArrayDeque<Object>();
+        data = new ArrayList<Object>(DISCOVERED_INITIAL_CAPACITY);
+        outOfScope = new IntIntMap();
     }
 }
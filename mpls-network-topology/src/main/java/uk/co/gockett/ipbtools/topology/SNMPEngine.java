@@ -0,0 +1,216 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import org.snmp4j.MessageDispatcher;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.mp.MPv1;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+/**
+ * Singleton SNMP session shared by every SNMPQuery instance.
+ *
+ * Instead of one UDP socket per querying object, all requests go out
+ * through a small set of transports, each target always through the same
+ * one. A global window bounds the number of requests in flight; callers
+ * block until a slot is available.
+ *
+ * The session can record every exchange to a file instead, or answer
+ * from such a recording without touching the network (see
+ * SNMPRecording).
+ *
+ * Every request is timed into DiscoveryMetrics and DeviceHealth, and its
+ * retries back off exponentially. RateLimiter may hold requests back
+ * before they take a window slot.
+ * @author ruanoj@github
+ */
+public class SNMPEngine {
+
+    public final static int DEFAULT_TRANSPORTS = 1;
+    public final static int DEFAULT_WINDOW = 256;
+
+    private static SNMPEngine theEngine = null;
+    private static int transportCount = DEFAULT_TRANSPORTS;
+    private static int windowSize = DEFAULT_WINDOW;
+    private static File recordFile = null;
+    private static File replayFile = null;
+    private static double replayScale = 1.0;
+    private final static Object lock = new Object();
+
+    private final Snmp snmp;
+    private final TransportMapping<?>[] transports;
+    private final Semaphore window;
+    private final SNMPRecording recording;
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getMetrics();
+    private final DeviceHealth health = DeviceHealth.getHealth();
+    private final RateLimiter limiter = RateLimiter.getLimiter();
+
+    /**
+     * Sets up the engine parameters. It has only effect before the engine
+     * is first used.
+     *
+     * @param transports Number of UDP sockets to spread targets over
+     * @param window Maximum number of requests in flight
+     */
+    public static void configure(int transports, int window) {
+        if (transports < 1 || window < 1) {
+            throw new IllegalArgumentException("Transports and window must be positive");
+        }
+        synchronized (lock) {
+            transportCount = transports;
+            windowSize = window;
+        }
+    }
+
+    /**
+     * Records every exchange to the given file. It has only effect before
+     * the engine is first used.
+     */
+    public static void record(File file) {
+        synchronized (lock) {
+            recordFile = file;
+            replayFile = null;
+        }
+    }
+
+    /**
+     * Answers from the given recording instead of sending anything. It has
+     * only effect before the engine is first used.
+     *
+     * @param timeScale Recorded latencies are multiplied by it: 1 to keep
+     * them, 0 to answer at once
+     */
+    public static void replay(File file, double timeScale) {
+        if (timeScale < 0.0) {
+            throw new IllegalArgumentException("Time scale must not be negative");
+        }
+        synchronized (lock) {
+            replayFile = file;
+            replayScale = timeScale;
+            recordFile = null;
+        }
+    }
+
+    public static SNMPEngine getEngine() throws IOException {
+        synchronized (lock) {
+            if (theEngine == null) {
+                theEngine = new SNMPEngine(transportCount, windowSize,
+                                           recordFile, replayFile, replayScale);
+            }
+        }
+        return theEngine;
+    }
+
+    /**
+     * Closes the shared session, if it was ever opened.
+     */
+    public static void shutdown() {
+        synchronized (lock) {
+            if (theEngine != null) {
+                try {
+                    theEngine.snmp.close();
+                } catch (IOException e) { } // Ignore
+                SNMPRecording recording = theEngine.recording;
+                if (recording != null && recordFile != null) {
+                    recording.close();
+                    System.err.println("Recorded " + recording.size() + " SNMP exchanges to " + recordFile);
+                } else if (recording != null) {
+                    System.err.println("Replayed " + recording.getAnswered() + " SNMP requests, "
+                                       + recording.getMissed() + " not in the recording");
+                }
+                theEngine = null;
+            }
+        }
+    }
+
+    private SNMPEngine(int transportCount, int windowSize, File recordFile,
+            File replayFile, double replayScale) throws IOException {
+        // Snmp() alone comes without message processing models, and does
+        // not get the responses from the dispatcher
+        MessageDispatcher dispatcher = new MessageDispatcherImpl();
+        dispatcher.addMessageProcessingModel(new MPv1());
+        dispatcher.addMessageProcessingModel(new MPv2c());
+        snmp = new Snmp(dispatcher);
+        snmp.setTimeoutModel(DeviceHealth.BACKOFF);
+        if (replayFile != null) {
+            recording = SNMPRecording.load(replayFile);
+        } else if (recordFile != null) {
+            recording = SNMPRecording.create(recordFile);
+        } else {
+            recording = null;
+        }
+        transports = new TransportMapping<?>[transportCount];
+        for (int i = 0; i < transportCount; i++) {
+            if (replayFile != null) {
+                transports[i] = new ReplayTransportMapping(recording, replayScale);
+            } else if (recordFile != null) {
+                transports[i] = new RecordingTransportMapping(recording);
+            } else {
+                transports[i] = new DefaultUdpTransportMapping();
+            }
+            snmp.addTransportMapping(transports[i]);
+        }
+        snmp.listen();
+        window = new Semaphore(windowSize);
+    }
+
+    /**
+     * @return The recording being made or replayed, null if none
+     */
+    public SNMPRecording getRecording() {
+        return recording;
+    }
+
+    public Snmp getSnmp() {
+        return snmp;
+    }
+
+    /**
+     * @return Number of requests currently in flight
+     */
+    public int getInFlight() {
+        return windowSize - window.availablePermits();
+    }
+
+    public int getWindow() {
+        return windowSize;
+    }
+
+    /*
+     * A target is always sent through the same transport, so responses
+     * come back on the socket they are expected on.
+     */
+    private TransportMapping<?> transportFor(Target target) {
+        int h = target.getAddress().hashCode() & 0x7FFFFFFF;
+        return transports[h % transports.length];
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     *
+     * @return The response event; its response PDU is null on timeout
+     */
+    public ResponseEvent send(PDU pdu, Target target) throws IOException {
+        Object permit = limiter.before(target, pdu);
+        window.acquireUninterruptibly();
+        long start = System.nanoTime();
+        ResponseEvent re = null;
+        try {
+            re = snmp.send(pdu, target, transportFor(target));
+            return re;
+        } finally {
+            window.release();
+            PDU response = re == null ? null : re.getResponse();
+            limiter.after(permit, response);
+            metrics.exchange(target, pdu, response, start);
+            health.exchange(target, response, start);
+        }
+    }
+}
@@ -6,31 +6,32 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import org.snmp4j.CommunityTarget;
 import org.snmp4j.PDU;
-import org.snmp4j.Snmp;
+import org.snmp4j.Target;
 import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.mp.SnmpConstants;
 import org.snmp4j.smi.OID;
 import org.snmp4j.smi.OctetString;
 import org.snmp4j.smi.UdpAddress;
 import org.snmp4j.smi.VariableBinding;
-import org.snmp4j.transport.DefaultUdpTransportMapping;
-import org.snmp4j.util.RetrievalEvent;
-import org.snmp4j.util.TableUtils;
-import org.snmp4j.util.TableEvent;
-import org.snmp4j.util.DefaultPDUFactory;
 
 
 /**
  * It encapsulates SNMP-related queries and data, both to Juniper and Cisco
- * routers.
+ * routers. What is vendor specific is left to the VendorDriver of each
+ * device, found from its personality; standard MIBs to AdjacencySources.
  *
  * TODO: Get snmp default SNMP community from properties
  * TODO: getAdjacencies accepts a Router parameter, so adjacencies are
  *  filled in from this class.
+ *
+ * All instances share the UDP transports and in-flight window of
+ * SNMPEngine.
+ *
+ * Timeouts and retries of each request come from DeviceHealth. Once a
+ * device has proven unreachable, every step fails without querying it.
  * 
  * @author ruanoj@github
  */
@@ -38,69 +39,48 @@ public class SNMPQuery {
 
     final public static String DEFAULT_COMMUNITY = "public";
     final public static int DEFAULT_UDP_PORT = 161;
-    final public static int DEFAULT_TIMEOUT = 5000;
+    final public static int DEFAULT_TIMEOUT = 5000;     // Until DeviceHealth knows better
 
     // SNMPv2-MIB::sysName.0
     final private static String SYS_NAME = "1.3.6.1.2.1.1.5.0";
     // SNMPv2-MIB::sysDescr.0
     final private static String SYS_DESCR = "1.3.6.1.2.1.1.1.0";
-    // JUNIPER-MPLS-LDP-MIB::jnxMplsLdpHelloAdjType = 1(link), 2(targeted)
-    final private static String JNX_LDP_ADJ = "1.3.6.1.4.1.2636.3.36.1.3.5.1.1.3";
-    final private static String JNX_DESCR = "Juniper";
-    // MPLS-LDP-MIB::mplsLdpHelloAdjacencyType = 1(link), 2(targeted)
-    final private static String IOS_LDP_ADJ = "1.3.6.1.4.1.9.10.65.1.3.2.1.1.3";
-    final private static String IOS_DESCR = "Cisco";
-    // RFC1213-MIB::ipRouteifIndex. - Prefix to retrieve ifIndex out of adjacencies - only cisco
-    final private static String prefixOIDRfc1213IpRouteIndex = "1.3.6.1.2.1.4.21.1.2.";
-    final private static int indexOIDRfc1213IpRouteIndex = 10;  // index where IP address will be
-    // other cisco-only stuff - new approach
-    final private static String OIDMplsLdpSesState = "1.3.6.1.4.1.9.10.65.1.3.4.1.1";
-    final private static int indexLinkOIDMplsLdpSesState = 6; //20;  // link address - 32-bit integer
-    final private static int indexLoopbackOIDMplsLdpSesState = 7; //21;  // loopback address - 4 integers
-    //
-    final private static String OIDMplsLdpEntityTargetedPeer = "1.3.6.1.4.1.9.10.65.1.2.2.1.17";
-    final private static int indexOIDMplsLdpEntityTargetedPeer = 6; //20; // link address - 32-bit integer
-    //
-    final private static String OIDMplsLdpEntityConfGenIfIndxOrZero = "1.3.6.1.4.1.9.10.65.1.2.3.1.1.3";
-    final private static int indexOIDMplsLdpEntityConfGenIfIndxOrZero = 6; // link address - 32-bit integer
-    //
-    final private static String prefixOIDRfc1213IpRouteNextHop = "1.3.6.1.2.1.4.21.1.7.";
-    final private static int indexOIDRfc1213IpRouteNextHop = 10;
-    //
-    final private static String prefixOIDRfc1213IpRouteIfIndex = "1.3.6.1.2.1.4.21.1.2.";
-    //
-    final private static String prefixOIDRfc1213IpRouteMetric1 = "1.3.6.1.2.1.4.21.1.3.";
-    //
-    // other cisco-only stuff - end of new approach
+    // SNMPv2-MIB::sysObjectID.0
+    final private static String SYS_OBJECT_ID = "1.3.6.1.2.1.1.2.0";
+    // SNMPv2-MIB::sysUpTime.0
+    final private static String SYS_UPTIME = "1.3.6.1.2.1.1.3.0";
+    // IF-MIB::ifTableLastChange.0
+    final private static String IF_TABLE_LAST_CHANGE = "1.3.6.1.2.1.31.1.5.0";
+    // Varbinds of the personality probe before ifTableLastChange
+    final private static int PROBE_SIZE = 4;
     // IF-MIB::ifDescr.
     final private static String prefixOIDIfDescr = "1.3.6.1.2.1.2.2.1.2.";
-    final private static int indexOIDIfDescr = 10;  // index where ifIndex will be
-    // IF-MIB::ifHighSpeed
+        // IF-MIB::ifHighSpeed
     final private static String prefixOIDIfHighSpeed ="1.3.6.1.2.1.31.1.1.1.15.";
 
+    // Interface columns, indexed by ifIndex
+    final private static OID ifDescrOID = new OID(prefixOIDIfDescr);
+    final private static OID ifHighSpeedOID = new OID(prefixOIDIfHighSpeed);
 
-    // Variables for LDP Hello Adjacency OIDs
-    final private static OID jnxMplsLdpHelloAdjTypeOID = new OID(JNX_LDP_ADJ);
-    final private static OID mplsLdpHelloAdjacencyTypeOID = new OID(IOS_LDP_ADJ);
-
-    // Variables for snmp4j.util.TableUtils.getTable()
-    final private OID [] argOID = new OID[1];
-    final private static OID OIDLowerBound = new OID("0");
-    final private static OID OIDUpperBound = new OID("256");
+    private static int defaultVersion = SnmpConstants.version2c;
+    private static int defaultPort = DEFAULT_UDP_PORT;
 
     @SuppressWarnings("unused")
 	private InetAddress address = null;
     private String s_address = null;
     private CommunityTarget target = new CommunityTarget();
     private String s_community;
-    private Snmp snmp = null;               // SNMP session object
-    private TableUtils table = null;        // TableUtils instance
+    private SNMPEngine engine = null;       // Shared SNMP session
+    private BulkWalker walker = null;       // Column walks
+    private final DeviceHealth health = DeviceHealth.getHealth();
 
-    private boolean isCisco = false;        // Cisco hardware
-    private boolean unknownArch = true;     // Unknown architecture
+    private DevicePersonality personality = null;
+    private VendorDriver driver = null;     // Null if unknown architecture
+    private int ldpSessions = -1;           // Found by last getAdjacencies()
 
     public SNMPQuery(String community) {
         target.setTimeout(DEFAULT_TIMEOUT);
+        target.setVersion(defaultVersion);
         target.setCommunity(new OctetString(community));
         s_community = community;
     }
@@ -109,6 +89,26 @@ public class SNMPQuery {
         this(DEFAULT_COMMUNITY);
     }
 
+    /**
+     * Sets the SNMP version for instances created from now on
+     * (SnmpConstants.version2c by default). Table walks use GETBULK on
+     * SNMPv2c, GETNEXT on SNMPv1.
+     */
+    public static void setDefaultVersion(int version) {
+        defaultVersion = version;
+    }
+
+    /**
+     * Sets the UDP port agents are queried on from now on (161 by
+     * default), e.g. to crawl a simulated network.
+     */
+    public static void setDefaultPort(int port) {
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("Invalid UDP port " + port);
+        }
+        defaultPort = port;
+    }
+
     public void setCommunity(String community) {
         if (s_community !=null && ! s_community.equals(community)) {
             s_community = community;
@@ -146,30 +146,39 @@ public class SNMPQuery {
      * Sets address for snmp query. To check the device is reachable
      * and community is correct, it queries sysDescr to find out about
      * device's manufacturer.
+     * Devices already probed in this run are taken from PersonalityCache.
+     * Devices unreachable in this run are not probed again.
      *
-     * @return boolean with the success/failure of operation
+     * @return boolean with the success/failure of operation, false if the
+     * device is unreachable
      *
      */
     public boolean setAddress(InetAddress inet) {
         try {
-            target.setAddress(new UdpAddress(inet, DEFAULT_UDP_PORT));
+            target.setAddress(new UdpAddress(inet, defaultPort));
             address = inet;
             s_address = inet.getHostAddress();
-            if (snmp == null) {
-                snmp = new Snmp(new DefaultUdpTransportMapping());
-                snmp.listen();
+            if (engine == null) {
+                engine = SNMPEngine.getEngine();
+                walker = new BulkWalker(engine);
             }
-            if (table == null) {
-                table = new TableUtils(snmp, new DefaultPDUFactory());
+
+            if (unreachable()) {
+                System.err.println("setAddress: " + s_address + " unreachable, skipped");
+                personality = null;
+                driver = null;
+                return false;
             }
 
             // Gets hostname, finds architecture (whether Cisco or Juniper)
-            getPersonality();
+            if (!getPersonality() && unreachable()) {
+                return false;
+            }
 
         } catch (IOException e) {
             System.err.println("setAddress: IOException while creating Snmp object");
             e.printStackTrace();
-            snmp = null;
+            engine = null;
             return false;
         }
         return true;
@@ -181,7 +190,7 @@ public class SNMPQuery {
 
     public String getString(String oid) {
         ResponseEvent re = get( oid );
-        PDU pdu = re.getResponse();
+        PDU pdu = re == null ? null : re.getResponse();
         if (pdu == null) {
             return null;
         }
@@ -192,7 +201,7 @@ public class SNMPQuery {
 
     public int getInt(String oid) {
         ResponseEvent re = get( oid );
-        PDU pdu = re.getResponse();
+        PDU pdu = re == null ? null : re.getResponse();
         if (pdu == null) {
             return -1;
         }
@@ -202,18 +211,52 @@ public class SNMPQuery {
 
     private ResponseEvent get(String oid) {
         ResponseEvent re = null;
+        Target requestTarget = requestTarget();
+        if (requestTarget == null) {
+            return null;
+        }
         VariableBinding vb = new VariableBinding(new OID(oid));
         PDU pdu = new PDU();
         pdu.add(vb);
         try {
-            re = snmp.get(pdu, target);
+            re = engine.send(pdu, requestTarget);
         } catch(IOException e) { } // Ignore
         return re;
     }
 
+    /*
+     * A copy of the target, with the timeouts of the latest estimate.
+     * snmp4j reads the target of a request until it is over, and steps of
+     * a QueryPlan send at the same time, so every request takes its own.
+     */
+    private Target currentTarget() {
+        Target copy = target.duplicate();
+        copy.setTimeout(health.getTimeout(s_address));
+        copy.setRetries(health.getRetries());
+        return copy;
+    }
+
+    /*
+     * @return A target for a request (see currentTarget()), null if the
+     * circuit breaker of the current address is open
+     */
+    private Target requestTarget() {
+        return unreachable() ? null : currentTarget();
+    }
+
+    /*
+     * @return true if the device has proven unreachable
+     */
+    boolean unreachable() {
+        return health.isOpen(s_address);
+    }
+
     public String getHostname() {
+        if (personality != null && personality.getSysName() != null) {
+            return personality.getSysName();
+        }
         ResponseEvent re = get( SYS_NAME );
-        PDU pdu = re.getResponse();
+        PDU pdu = re == null ? null : re.getResponse();
         if (pdu == null) {
             // Query timed out
             System.err.println("getHostname: Snmp query timed out.");
@@ -223,384 +266,303 @@ public class SNMPQuery {
         return hostname;
     }
 
-    /* Retrieves basic info from device
+    /**
+     * @return The personality of the current address, null if the device
+     * did not answer
+     */
+    public DevicePersonality getDevicePersonality() {
+        return personality;
+    }
+
+    /* Retrieves basic info from device, from the personality cache if
+     * it was already probed in this run
      *
      * @return True, if target was contacted. False, if any error happened
      */
     private boolean getPersonality() {
-        ResponseEvent re = get( SYS_DESCR );
-        PDU pdu = re.getResponse();
-        if (pdu == null) {
-            // Query timed out
-            System.err.println("findArchitecture: Snmp query timed out.");
-            return false;
+        PersonalityCache cache = PersonalityCache.getCache();
+        personality = cache.get(s_address);
+        if (personality == null) {
+            personality = probe();
+            if (personality == null) {
+                // Query timed out
+                System.err.println("findArchitecture: Snmp query timed out.");
+                driver = null;
+                return false;
+            }
+            cache.put(personality);
         }
 
-        // Reset value
-        unknownArch = false;
-
-        String sysdescr = pdu.get(0).getVariable().toString();
-        if (sysdescr.startsWith(IOS_DESCR)) {
-            //oid_adjacency = new OID(IOS_LDP_ADJ);
-            isCisco = true;
-        } else if (sysdescr.startsWith(JNX_DESCR)) {
-            //oid_adjacency = new OID(JNX_LDP_ADJ);
-            isCisco = false;
-        } else {
+        driver = VendorDrivers.forPersonality(personality);
+        if (driver == null) {
             System.err.println("findArchitecture: Unknown hardware.");
-            unknownArch = true;
             return false;
         }
         return true;
     }
 
-    /**
-     * Version Cisco to obtain adjacencies.
-     * First piece of code is similar (except for OID). The SNMP interface
-     * information has to be retrieved from a second query.
-     *
-     * The list of adjacent nodes is obtained by querying the SNMP variable
-     * jnxMplsLdpHelloAdjType (Juniper) or mplsLdpHelloAdjacencyType (Cisco).
-     * This query returns the LDP Hello adjacencies, and the function takes
-     * the ones that have been seen via 'Link' (value 1).
+    /*
+     * Gets sysDescr, sysObjectID, sysUpTime, sysName and ifTableLastChange
+     * in a single PDU. SNMPv1 agents without IF-MIB answer noSuchName for
+     * the whole PDU; they are asked again without ifTableLastChange, which
+     * is then taken as missing (-1).
      *
-     * On Cisco devices we need to perform an additional query
-     * (IP-MIB::ipRouterifIndex.IP.IP.IP.IP) to obtain the SNMP ifIndex.
+     * @return The personality, null on timeout or error
      */
-    private Hashtable<String, Adjacency> getAdjacenciesCisco() {
-
-        System.err.println("Retrieving adjacencies for node "+target.getAddress());
-        // 0 - Retrieve hash of link->loopback association of all operational LDP sessions
-        System.err.println("STEP0:");
-        argOID[0] = new OID(OIDMplsLdpSesState);
-        List<?> lst = table.getTable(target, argOID, OIDLowerBound, OIDUpperBound);
-        if (((RetrievalEvent)lst.get(0)).getStatus() != RetrievalEvent.STATUS_OK) {
-            // Timeout
-            System.err.println("getTable: SNMP query timed out.");
+    private DevicePersonality probe() {
+        long start = System.nanoTime();
+        PDU response = probe(true);
+        if (response != null && response.getErrorStatus() == PDU.noSuchName) {
+            response = probe(false);
+        }
+        DiscoveryMetrics.getMetrics().getPersonalityLatency().recordSince(start);
+        if (response == null) {
             return null;
         }
-
-        // [ Long linkAddress ] = String ldpPeer
-        Hashtable<Long, String> linkToLoopback = new Hashtable<Long, String>(10);
-
-        // Here are the results. We are only interested in the
-        // LDP sessions that are operational(5)
-        ListIterator<?> it = lst.listIterator();
-        while(it.hasNext()) {
-            TableEvent ev = (TableEvent)it.next();
-
-            // cisco: node queried -> AA.BB.CC.DD (loopback address)
-            // org.snmp4j.util.TableEvent[
-            //       localLoopback       remotelinkip  remoteLoopback
-            //                           INTERFACE-IP
-            // index=(AA.BB.CC.DD).0.0.(1424602962).(EE.FF.GG.HH).0.0.1,
-            // vbs=[1.3.6.1.4.1.9.10.65.1.3.2.1.1.3.AA.BB.CC.DD.0.0.1424602962.EE.FF.GG.HH.0.0.1 = 1],
-            // status=0,exception=null,report=null]
-
-            // This is the value for the OID
-            int sesState = ev.getColumns()[0].getVariable().toInt();
-            if (sesState == 5) { // operational
-                OID oidIndex = ev.getIndex();
-                int [] oid_index = oidIndex.getValue();
-                // Operational LDP session - link address
-                Long linkAddress = new Long(oidIndex.getUnsigned(indexLinkOIDMplsLdpSesState)); // JDK1.4
-                // Operational LDP session - loopback, or LDP ident
-                String ldpPeer = IPUtils.intArrayToIp(oid_index, indexLoopbackOIDMplsLdpSesState);
-                System.err.println("Operational LDP session: " + ldpPeer
-                        + ", (link/"+linkAddress+"/"+IPUtils.longToIp(linkAddress)+")");
-
-                linkToLoopback.put(linkAddress, ldpPeer);
-            }
+        if (response.getErrorStatus() != PDU.noError || response.size() < PROBE_SIZE) {
+            System.err.println("probe " + s_address + ": " + response.getErrorStatusText());
+            return null;
         }
+        long lastChange = -1L;
+        if (response.size() > PROBE_SIZE && !response.get(PROBE_SIZE).isException()) {
+            lastChange = response.get(PROBE_SIZE).getVariable().toLong();
+        }
+        return new DevicePersonality(s_address,
+                stringValue(response.get(0)),
+                stringValue(response.get(1)),
+                response.get(2).isException() ? 0L : response.get(2).getVariable().toLong(),
+                stringValue(response.get(3)),
+                lastChange);
+    }
 
-        // 1 - Obtain non-targeted LDP peers (link only)
-        System.err.println("STEP1:");
-        argOID[0] = new OID(OIDMplsLdpEntityTargetedPeer);
-        lst = table.getTable(target, argOID, OIDLowerBound, OIDUpperBound);
-        if (((RetrievalEvent)lst.get(0)).getStatus() != RetrievalEvent.STATUS_OK) {
-            System.err.println("getTable: SNMP query timed out.");
+    /*
+     * @return The response to the probe, null on timeout
+     */
+    private PDU probe(boolean lastChange) {
+        Target requestTarget = requestTarget();
+        if (requestTarget == null) {
             return null;
         }
+        PDU pdu = new PDU();
+        pdu.add(new VariableBinding(new OID(SYS_DESCR)));
+        pdu.add(new VariableBinding(new OID(SYS_OBJECT_ID)));
+        pdu.add(new VariableBinding(new OID(SYS_UPTIME)));
+        pdu.add(new VariableBinding(new OID(SYS_NAME)));
+        if (lastChange) {
+            pdu.add(new VariableBinding(new OID(IF_TABLE_LAST_CHANGE)));
+        }
+        ResponseEvent re = null;
+        try {
+            re = engine.send(pdu, requestTarget);
+        } catch(IOException e) { } // Ignore
+        return re == null ? null : re.getResponse();
+    }
 
-        // [ Long linkAddress ] = Integer ifNumber
-        Hashtable<Long, Integer> notTargeted = new Hashtable<Long, Integer>(10);
-
-        it = lst.listIterator();
-        while( it.hasNext()) {
-            TableEvent ev = (TableEvent)it.next();
-            // This is the value for the OID
-            int targetedPeer = ev.getColumns()[0].getVariable().toInt();
-            if (targetedPeer == 2) { // not targeted
-
-                //System.err.println(ev);
-                OID oidIndex = ev.getIndex();
-                // Operational LDP session - link address
-                Long linkAddress = new Long(oidIndex.getUnsigned(indexOIDMplsLdpEntityTargetedPeer)); // JDK1.4
-                // Operational LDP session - loopback, or LDP ident
-                System.err.println("Non-targeted LDP session: x.x.x.x" +
-                        ", (link/"+linkAddress+"/"+IPUtils.longToIp(linkAddress)+")");
-
-                notTargeted.put(linkAddress, new Integer(0)); // JDK1.4
-            }
+    private static String stringValue(VariableBinding vb) {
+        if (vb.isException()) {
+            return null;
         }
+        return vb.getVariable().toString();
+    }
 
-        // 2 - Get ifNumber for results of previous step
-        System.err.println("STEP2:");
-        argOID[0] = new OID(OIDMplsLdpEntityConfGenIfIndxOrZero);
-        lst = table.getTable(target, argOID, OIDLowerBound, OIDUpperBound);
-        if (((RetrievalEvent)lst.get(0)).getStatus() != RetrievalEvent.STATUS_OK) {
-            // Timeout
-            System.err.println("getTable: SNMP query timed out.");
+    /*
+     * Walks a column on the current address, reporting the round-trips
+     * it took. Steps of a QueryPlan may walk at the same time.
+     *
+     * @return The walk, or null if the device did not answer
+     */
+    BulkWalker.Walk walk(OID column) {
+        Target requestTarget = requestTarget();
+        if (requestTarget == null) {
             return null;
         }
-        it = lst.listIterator();
-        while( it.hasNext()) {
-            TableEvent ev = (TableEvent)it.next();
-            // This is the value for the OID
-            int ifIndex = ev.getColumns()[0].getVariable().toInt();
-            if (ifIndex != 0) { // not targeted
-                OID oidIndex = ev.getIndex();
-                // Operational LDP session - link address
-                Long linkAddress = new Long(oidIndex.getUnsigned(indexOIDMplsLdpEntityConfGenIfIndxOrZero)); // JDK1.4
-                if (notTargeted.containsKey(linkAddress)) {
-                    notTargeted.put(linkAddress, new Integer(ifIndex));
-                    System.err.println("(link/"+linkAddress+"/"+IPUtils.longToIp(linkAddress)+") = ifIndex "+ifIndex);
-                }
-            }
+        long start = System.nanoTime();
+        BulkWalker.Walk walk = walker.walk(requestTarget, column);
+        DiscoveryMetrics.getMetrics().getWalkLatency().recordSince(start);
+        System.err.println("walk " + s_address + ": " + walk);
+        if (!walk.isOk()) {
+            System.err.println("walk: SNMP query timed out.");
+            return null;
         }
+        return walk;
+    }
 
+    /**
+     * Retrieves a list of LDP Hello adjacencies, as well as the local
+     * interface on which the router 'sees' them.
+     *
+     * With AdjacencySources enabled, the device is probed once for the
+     * MIBs they need (see MibCapabilities), and they are tried cheapest
+     * first, the VendorDriver last, until one finds complete adjacencies.
+     * Those of another source than the driver are only taken if there are
+     * as many as LDP sessions the driver counts.
+     * 
+     * @return A Map interface to found adjacencies (key=String with IP
+     * address, value=Adjacency object), null if error
+     *
+     * TODO: add checks for non-initialized input data
+     */
+    public Hashtable<String, Adjacency> getAdjacencies() {
 
-        // 3 - For operational LDP sessions that are targeted, iterate and find out
-        //     the ones with the lowest metric, cause those are direct adjacencies
-        System.err.println("STEP3:");
-        PDU routePdu = new PDU();
+        ldpSessions = -1;
 
-        Enumeration<Long> en = linkToLoopback.keys(); // Iterating thru link addresses
-        while(en.hasMoreElements()) {
-            Long key = (Long)en.nextElement();
-            if (! notTargeted.containsKey(key)) {
-                // This targeted may be a valid hello adjacency
-                String stLoop = (String)linkToLoopback.get(key);    // LDP peer
-                System.err.println("Targeted LDP session "+stLoop+" may be adjacent.");
-                routePdu.add(new VariableBinding(new OID(prefixOIDRfc1213IpRouteNextHop + stLoop)));
-            }
+        if (personality == null || driver == null) {
+            System.err.println("SNMPQuery:getAdjacencies: Unknown architecture.");
+            return null;
         }
 
-        // XXX make query and, grouping by next hop, get the adjacency with the
-        //     lowest metric. Query ipRouteIndex to find on the next hop to get
-        //     ifIndex
-        //
-        // Only if next hop is not in nonTargeted list, means that is a
-        // previously unknown adjacency
+        List<AdjacencySource> candidates = AdjacencySources.candidates(driver);
+        MibCapabilities caps = null;
+        List<AdjacencySource> ranked = candidates;
+        if (candidates.size() > 1) {
+            caps = getCapabilities(candidates);
+            if (caps != null) {
+                ranked = AdjacencySources.rank(candidates, caps, driver);
+            } else if (unreachable()) {
+                return null;
+            } else {
+                // Probe not answered, as the driver always did
+                ranked = new ArrayList<AdjacencySource>(1);
+                ranked.add(driver);
+            }
+        }
 
-        if (routePdu.size() != 0)
-        try {
-            System.err.println("Retrieving ipRouteNextHop ");
+        for (int i = 0; i < ranked.size(); i++) {
+            AdjacencySource source = ranked.get(i);
+            Hashtable<String, Adjacency> result = new Hashtable<String, Adjacency>(10);
+            ldpSessions = -1;
+            if (source.planAdjacencies(this, result).execute()
+                    && (source == driver || checkSessions(source, result))) {
+                DiscoveryMetrics.getMetrics().adjacencySource(source.getName(), i > 0);
 
-            ResponseEvent routeRev = snmp.get(routePdu, target);
-            PDU routeResPdu = routeRev.getResponse();
+                // Retrieve interface names (ifDescr)
+                getInterfaces(result);
 
-            if (routeResPdu == null) {
-                System.err.println("getAdjacenciesCisco: snmp timeout");
-                return null;
+                return result;
             }
-
-            // nexthop means the same as link address
-            Hashtable<Long, Integer> candidateMetric = new Hashtable<Long, Integer>(10);      // [Long nexthop] = Integer metric1
-            Hashtable<Long, String> candidateLoopback = new Hashtable<Long, String>(10);    // [Long nexthop] = String loopback
-
-            VariableBinding[] vbs = routeResPdu.toArray();
-            System.err.println("Size of VariableBinding: " + vbs.length);
-            // Iterating results
-            for(int i=0; i<vbs.length; i++) {
-                VariableBinding oneVb = routeResPdu.get(i);
-                // (st|l)Link contains the next hop for this reply
-                String stNexthop = oneVb.getVariable().toString();
-                Long lNexthop = new Long(IPUtils.ipToLong(stNexthop));
-                System.err.println(i+": link/"+lNexthop+"/"+stNexthop);
-
-                if (! notTargeted.containsKey(lNexthop)) {
-                    // This link is not known = candidate to new adjacency
-                    OID oid = oneVb.getOid();
-                    // obtain LDP peer ID (loopback)
-                    String ldpPeer = IPUtils.intArrayToIp(oid.getValue(), indexOIDRfc1213IpRouteNextHop);
-
-                    // Query Metric1
-                    int metric1 = 49152;
-                    ResponseEvent re = get(prefixOIDRfc1213IpRouteMetric1 + ldpPeer);
-                    if (re != null) {
-                        PDU pd = re.getResponse();
-                        metric1 = pd.get(0).getVariable().toInt();
-                    } else {
-                        System.err.println("WARNING: RFC1213:Metric1 returned null");
-                    }
-                    
-                    if (!candidateMetric.containsKey(lNexthop) // If it does not exist yet
-                            ||
-                        metric1 < ((Integer)candidateMetric.get(lNexthop)).intValue()) {   // or if its metric is lower
-
-                        System.err.println("Targeted adjacency "+ ldpPeer +
-                                "(link/"+lNexthop+"/"+IPUtils.longToIp(lNexthop)+") candidate to LDP peer, metric("+metric1+")");
-
-                        candidateMetric.put(lNexthop, new Integer(metric1));
-                        candidateLoopback.put(lNexthop, ldpPeer);
-                    }
-                }
+            if (unreachable()) {
+                break;
             }
-
-            /**
-             * At this point we have candidateLoopback containing reportedly
-             * targeted LDP peers (on interfaces with no other LDP peers),
-             * that happen to have the shortest metric, so we can conclude 
-             * they belong to adjacent devices.
-             */
-
-            // This adjacency is reported as targeted, so getting ifNumber via
-            // MplsLdpEntityConfGenIfIndexOrZero will return 0 no matter what.
-
-            en = candidateLoopback.keys(); // Iterating thru link addresses
-            while(en.hasMoreElements()) {
-                Long key = (Long)en.nextElement();
-                String ldpPeer = (String)candidateLoopback.get(key);
-
-                int ifIndex = 0;
-                ResponseEvent re = get(prefixOIDRfc1213IpRouteIfIndex + ldpPeer);
-                if (re != null) {
-                    PDU pd = re.getResponse();
-                    ifIndex = pd.get(0).getVariable().toInt();
-                } else {
-                    System.err.println("WARNING: RFC1213:ipRouteIfIndex returned null");
-                }
-
-                // and add to hashes
-                linkToLoopback.put(key, ldpPeer); // XXX Is this needed?
-                notTargeted.put(key, new Integer(ifIndex));
-                System.err.println("Promoted:"+ldpPeer);
+            if (caps != null) {
+                caps.setIncomplete(source);
             }
-
-        } catch(IOException ex) {
-            // If we don't have this data, the query for this node fails
-            System.err.println("getAdjacenciesCisco: Error while getting ipRouteNextHop");
         }
+        ldpSessions = -1;
+        return null;
+    }
 
+    /*
+     * Checks the adjacencies another source found against the LDP
+     * sessions of the driver, which become the change indicator
+     *
+     * @return true if there are as many of each
+     */
+    private boolean checkSessions(AdjacencySource source, Hashtable<String, Adjacency> result) {
+        int sessions = driver.countLdpSessions(this);
+        if (sessions != result.size()) {
+            System.err.println("getAdjacencies: " + s_address + ": " + result.size() + " adjacencies from "
+                               + source.getName() + ", " + sessions + " LDP sessions");
+            return false;
+        }
+        ldpSessions = sessions;
+        return true;
+    }
 
-        // 4 - Translate link to loopback, for results
-        System.err.println("STEP4: Results");
-        Hashtable<String, Adjacency> adjacencyHash = new Hashtable<String, Adjacency>(10);
-        
-        en = linkToLoopback.keys();
-        while(en.hasMoreElements()) {
-            Long link = (Long)en.nextElement();
-            String adjAddress = (String)linkToLoopback.get(link);
-            Adjacency remote = new Adjacency(adjAddress);
-            if (notTargeted.containsKey(link)) {
-                int ifIndex = ((Integer)notTargeted.get(link)).intValue();
-                remote.setSNMPInterface(ifIndex);
-
-                // We have ifIndex, so let's add it as valid adjacency.
-                // XXX might not be a valid assumption
-                System.err.println("Adjacency: "+adjAddress+", remote:"+remote);
-                adjacencyHash.put(adjAddress, remote);  // Adding adjacency
+    /*
+     * Capabilities of the current address, probed for the columns of the
+     * candidates unless known under its current personality
+     *
+     * @return The capabilities, null if the device did not answer
+     */
+    private MibCapabilities getCapabilities(List<AdjacencySource> candidates) {
+        MibCapabilities caps = AdjacencySources.getCapabilities(personality);
+        if (caps == null) {
+            caps = probeCapabilities(AdjacencySources.columns(candidates));
+            if (caps != null) {
+                System.err.println(caps);
+                AdjacencySources.putCapabilities(caps);
             }
         }
-        return adjacencyHash;
+        return caps;
     }
 
-    /**
-     * Version Juniper to obtain adjacencies
-     *
-     * First piece of code is similar (except for OID). The SNMP interface
-     * information has to be retrieved from a second query.
-     *
-     * The list of adjacent nodes is obtained by querying the SNMP variable
-     * jnxMplsLdpHelloAdjType (Juniper) or mplsLdpHelloAdjacencyType (Cisco).
-     * This query returns the LDP Hello adjacencies, and the function takes
-     * the ones that have been seen via 'Link' (value 1).
+    /*
+     * The first rows of every column in a single GETBULK, GETNEXT on
+     * SNMPv1, with max-repetitions halved on tooBig.
      *
-     * On the Juniper response OID, it is encoded the SNMP ifIndex of the
-     * interface where the adjacency has been established.
+     * @return The capabilities, null on timeout or error
      */
-    private Hashtable<String, Adjacency> getAdjacenciesJuniper() {
-        final int JNX_ADJ_IP_INDEX = 7;     // First IP address octect for field on TableEvent
-        final int JNX_SNMP_IF_INDEX = 13;   // SNMP ifNumber index for field on TableEvent
-        // LinkedList of "Adjacent" objects
-        Hashtable<String, Adjacency> adjacencyHash = null;
-
-        System.err.println("Retrieving adjacencies for node "+target.getAddress());
-
-        // Retrieve LDP adjacency list
-        argOID[0] = jnxMplsLdpHelloAdjTypeOID;
-        List<?> en = table.getTable(target, argOID, OIDLowerBound, OIDUpperBound);
-        if (((RetrievalEvent)en.get(0)).getStatus() != RetrievalEvent.STATUS_OK) {
-            // Timeout
-            System.err.println("getTable: SNMP query timed out.");
+    private MibCapabilities probeCapabilities(OID[] columns) {
+        boolean bulk = target.getVersion() != SnmpConstants.version1;
+        int reps = MibCapabilities.PROBE_REPETITIONS;
+        long start = System.nanoTime();
+        PDU response = null;
+        Target requestTarget;
+        while ((requestTarget = requestTarget()) != null) {
+            PDU pdu = new PDU();
+            for (int i = 0; i < columns.length; i++) {
+                pdu.add(new VariableBinding(columns[i]));
+            }
+            if (bulk) {
+                pdu.setType(PDU.GETBULK);
+                pdu.setNonRepeaters(0);
+                pdu.setMaxRepetitions(reps);
+            } else {
+                pdu.setType(PDU.GETNEXT);
+            }
+            ResponseEvent re = null;
+            try {
+                re = engine.send(pdu, requestTarget);
+            } catch(IOException e) { } // Ignore
+            response = re == null ? null : re.getResponse();
+            if (response == null || response.getErrorStatus() != PDU.tooBig || !bulk || reps == 1) {
+                break;
+            }
+            reps = reps / 2;
+        }
+        DiscoveryMetrics.getMetrics().getCapabilitiesLatency().recordSince(start);
+        if (response == null || response.getErrorStatus() != PDU.noError) {
+            System.err.println("probeCapabilities: " + s_address
+                               + (response == null ? " timed out" : ": " + response.getErrorStatusText()));
             return null;
         }
-
-        // Here are the results. We are only interested in the
-        // adjacencies found on links(1), not targeted(2)
-        ListIterator<?> it = en.listIterator();
-        int [] oid_index = null;
-        int adjType;
-        String adjAddress;
-        adjacencyHash = new Hashtable<String, Adjacency>(); // XXX initialCapacity
-        while( it.hasNext()) {
-            TableEvent ev = (TableEvent)it.next();
-            // juniper: node queried -> AA.BB.CC.DD
-            // org.snmp4j.util.TableEvent[
-            //       THIS NODE IP          ADJACENCY IP        SNMP IF
-            // index=(AA.BB.CC.DD).0.0.1.(EE.FF.GG.HH).0.0.(16),
-            // vbs=[1.3.6.1.4.1.2636.3.36.1.3.5.1.1.3.AA.BB.CC.DD.0.0.1.EE.FF.GG.HH.0.0.16 = 2],
-            // status=0,exception=null,report=null]
-            // index, integers from 7 to 10 are the peer
-            // value of vbs shows adjacency type
-            oid_index = ev.getIndex().getValue();
-            // This is the value for the OID
-            adjType = ev.getColumns()[0].getVariable().toInt();
-            
-            if (adjType == 1) { // link-type adjacency
-                // Build string literal with adjacency IP address
-                adjAddress = IPUtils.intArrayToIp(oid_index, JNX_ADJ_IP_INDEX);
-
-                Adjacency remote = new Adjacency(adjAddress);
-                // Set SNMP local interface number (ifNumber)
-                remote.setSNMPInterface(oid_index[JNX_SNMP_IF_INDEX]);
-                adjacencyHash.put(adjAddress, remote);
-
-                System.err.println("Adjacency: "+adjAddress+", remote:"+remote);
-            }
-        }        
-        return adjacencyHash;
+        return new MibCapabilities(personality, columns, response);
     }
-    
+
     /**
-     * Retrieves a list of LDP Hello adjacencies, as well as the local
-     * interface on which the router 'sees' them.
-     * 
-     * @return A Map interface to found adjacencies (key=String with IP
-     * address, value=Adjacency object), null if error
-     *
-     * TODO: add checks for non-initialized input data
+     * @return The change indicator seen by the last getAdjacencies(), the
+     * LDP session count; -1 if it failed
      */
-    public Hashtable<String, Adjacency> getAdjacencies() {
-
-        Hashtable<String, Adjacency> result = null;
+    public int getLdpSessions() {
+        return ldpSessions;
+    }
 
-        if (unknownArch) {
-            System.err.println("SNMPQuery:getAdjacencies: Unknown architecture.");
-            return null;
-        }
+    /**
+     * Called by the plan of getAdjacencies() with the LDP session count.
+     */
+    void setLdpSessions(int sessions) {
+        ldpSessions = sessions;
+    }
 
-        if (isCisco) {
-            result = getAdjacenciesCisco();
-        } else {
-            result = getAdjacenciesJuniper();
+    /**
+     * Cheap change indicator: counts the LDP sessions of the current
+     * address with a single column walk, as getAdjacencies() does.
+     *
+     * @return The count, -1 on error
+     */
+    public int getLdpSessionCount() {
+        if (driver == null) {
+            return -1;
         }
-     
-        // Retrieve interface names (ifDescr)
-        getInterfaces(result);
+        return driver.countLdpSessions(this);
+    }
 
-        return result;
+    /**
+     * @return The driver of the current address, null if its architecture
+     * is unknown
+     */
+    public VendorDriver getDriver() {
+        return driver;
     }
 
     /**
@@ -615,91 +577,56 @@ public class SNMPQuery {
          * The idea is generate a query for the descriptions and speed of
          * the interfaces, and then assign them to the appropriate adjacency.
          *
-         * The Hashtable object we receive is indexed by the IP address, so
-         * we may want to have a temporary hashtable indexed by ifNumber.
+         * Several LDP neighbours may be reported over the same interface,
+         * so each ifIndex is queried once.
          */
+        GetCoalescer batch = newCoalescer();
+        // [ int ifIndex ] = slot; requests[2*slot] ifDescr, [2*slot+1] ifHighSpeed
+        IntIntMap ifSlots = new IntIntMap(adjs.size());
+        List<GetCoalescer.Request> requests = new ArrayList<GetCoalescer.Request>(adjs.size() * 2);
 
-        class IndexHash {
-            /**
-             * This hash should have whatever we need as key, and a Set
-             * of Objects for values.
-             */
-            Hashtable<String, ArrayList<Object>> indexHash;
-            IndexHash(int initialSize) {
-                indexHash = new Hashtable<String, ArrayList<Object>>(initialSize);
-            }
-            void put(String key, Object value) {
-                ArrayList<Object> lst;
-                if (indexHash.containsKey(key)) {
-                    lst = (ArrayList<Object>)indexHash.get(key);
-                    lst.add(value);
-                } else {
-                    lst = new ArrayList<Object>();
-                    lst.add(value);
-                    indexHash.put(key, lst);
-                }
-            }
-
-            Iterator<?> get(Object key) {
-                ArrayList<?> lst = (ArrayList<?>)indexHash.get(key);
-                return lst.iterator();
+        Enumeration<Adjacency> en = adjs.elements();
+        while(en.hasMoreElements()) {
+            Adjacency one = en.nextElement();
+            int ifIndex = one.getSNMPInterface();
+            if (!ifSlots.containsKey(ifIndex)) {
+                ifSlots.put(ifIndex, requests.size() / 2);
+                requests.add(batch.add(OIDCodec.appendIndex(ifDescrOID, ifIndex)));
+                requests.add(batch.add(OIDCodec.appendIndex(ifHighSpeedOID, ifIndex)));
             }
         }
 
-        PDU pdu = new PDU();
-        Adjacency one;
-        IndexHash ifIndexHash = new IndexHash(adjs.size());
-
-        Enumeration<Adjacency> en = adjs.elements();
-        while(en.hasMoreElements()) {
-            one = (Adjacency)en.nextElement();
-            // Add OIDs
-            pdu.add(new VariableBinding(new OID(prefixOIDIfDescr + one.getSNMPInterface())));
-            pdu.add(new VariableBinding(new OID(prefixOIDIfHighSpeed + one.getSNMPInterface())));
-            // TODO - Need to convert this hash into a class, and hide
-            // its details from here. Consider the case of several
-            // reported LDP neighbours over the same interface
-            ifIndexHash.put(String.valueOf(one.getSNMPInterface()), one);
+        if (unreachable()) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean ok = batch.flush();
+        DiscoveryMetrics.getMetrics().getInterfacesLatency().recordSince(start);
+        if (!ok) {
+            System.err.println("getInterfaceNames: snmp timeout");
+            return false;
         }
 
-        try {
-            ResponseEvent rev = snmp.get(pdu, target);
-            PDU respdu = rev.getResponse();
-            if (respdu == null) {
-                System.err.println("getInterfaceNames: snmp timeout");
-                return false;
-            }
-            VariableBinding[] vbs = respdu.toArray();
-            for(int i=0; i<vbs.length; i+=2) {
-                // Find from the OID what IP this value is for
-                OID oid = respdu.get(i).getOid();
-                // Get IP Address
-                String ifIndex = String.valueOf(oid.getValue()[indexOIDIfDescr]);
-                // Get interface name ...
-                String ifDescr = respdu.get(i).getVariable().toString();
-                //System.out.println("ifIndex:"+ifIndex+", ifDescr:"+ifDescr);
-                // ... its speed (units is Mb/s) ...
-                // XXX What happens if a device has no ifHighSpeed? results
-                // here will slip and this code will break
-                long ifHighSpeed = respdu.get(i+1).getVariable().toLong();
-                /*System.out.println("ifIndex:"+ifIndex+", ifDescr:"+ifDescr+", ifHighSpeed:"+ifHighSpeed);*/
-
-                // ... retrieve adjacency or adjacencies...
-                Iterator<?> it = ifIndexHash.get(ifIndex);
-                while(it.hasNext()) {
-                    Adjacency remote = (Adjacency)it.next();
-//                    Adjacency remote = (Adjacency)ifIndexHash.get(ifIndex);
-                    // ... and lst correct value
-                    remote.setRouterInterface(ifDescr, ifHighSpeed);
-                }
+        en = adjs.elements();
+        while(en.hasMoreElements()) {
+            Adjacency remote = en.nextElement();
+            int slot = ifSlots.get(remote.getSNMPInterface(), 0);
+            GetCoalescer.Request descr = requests.get(2 * slot);
+            if (!descr.isAnswered()) {
+                continue;
             }
-        } catch(IOException ex) {
-            System.err.println("getInterfaceNames: IOException");
-            return false;
+            // Interface name and its speed (units is Mb/s); devices with
+            // no ifHighSpeed get 0
+            remote.setRouterInterface(descr.getVariable().toString(),
+                    requests.get(2 * slot + 1).toLong(0L));
         }
         return true;
     }
 
+    GetCoalescer newCoalescer() {
+        return new GetCoalescer(engine, currentTarget());
+    }
+
     public String toString() {
         return "SnmpQuery ("+ s_address + ", " + s_community + ")";
     }
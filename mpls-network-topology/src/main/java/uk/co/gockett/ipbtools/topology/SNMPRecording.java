@@ -0,0 +1,429 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.snmp4j.PDU;
+import org.snmp4j.asn1.BER;
+import org.snmp4j.asn1.BERInputStream;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * SNMP exchanges captured during a crawl: the request and response PDUs
+ * for every target, and how long each response took, so the crawl can be
+ * replayed later without the network (see ReplayTransportMapping).
+ *
+ * Files are gzipped: a header, one record per exchange as it completes,
+ * and an end mark. A recording cut short by a crawl killed half way still
+ * reads up to its last complete record. Communities are not kept.
+ *
+ * Targets are told apart by address only, so a recording can be replayed
+ * whatever port the agents listened on. When replaying, a request gets
+ * the responses recorded for the same target, type and varbinds, in the
+ * order they were recorded; the last one is repeated once they run out.
+ * Max-repetitions is not compared, as it adapts to timing. GET and
+ * GETNEXT requests not seen as such, because they were coalesced
+ * differently, are answered varbind by varbind.
+ * @author ruanoj@github
+ */
+public class SNMPRecording {
+
+    public final static long NO_RESPONSE = -1L;
+
+    private final static int MAGIC = 0x49505352;    // "IPSR"
+    private final static int VERSION = 1;
+
+    private final File file;
+    private final long start = System.nanoTime();
+    private DataOutputStream out = null;
+    private final List<Exchange> exchanges = new ArrayList<Exchange>();
+    private int count = 0;
+
+    // Replay indexes
+    private final Hashtable<String, Replies> replies = new Hashtable<String, Replies>();
+    private final Hashtable<String, Exchange> varbinds = new Hashtable<String, Exchange>();
+    private int answered = 0;
+    private int missed = 0;
+
+    /**
+     * One request, and its response if there was any.
+     */
+    public static class Exchange {
+        private final String address;
+        private final int version;
+        private final long sent;            // us since the recording started
+        private final long latency;         // us, NO_RESPONSE if none came
+        private final PDU request;
+        private final PDU response;
+
+        Exchange(String address, int version, long sent, long latency,
+                PDU request, PDU response) {
+            this.address = address;
+            this.version = version;
+            this.sent = sent;
+            this.latency = latency;
+            this.request = request;
+            this.response = response;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getLatency() {
+            return latency;
+        }
+
+        public PDU getRequest() {
+            return request;
+        }
+
+        /**
+         * @return The response PDU, null if the request was not answered
+         */
+        public PDU getResponse() {
+            return response;
+        }
+    }
+
+    /*
+     * Responses recorded for the same request, and the next one to give
+     */
+    private static class Replies {
+        final List<Exchange> list = new ArrayList<Exchange>(1);
+        int next = 0;
+    }
+
+    /**
+     * An SNMP message taken apart.
+     */
+    static class Message {
+        final int version;
+        final OctetString community;
+        final PDU pdu;
+
+        Message(int version, OctetString community, PDU pdu) {
+            this.version = version;
+            this.community = community;
+            this.pdu = pdu;
+        }
+    }
+
+    private SNMPRecording(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Starts a new recording, replacing the file if it exists.
+     */
+    public static SNMPRecording create(File file) throws IOException {
+        SNMPRecording recording = new SNMPRecording(file);
+        recording.out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file))));
+        recording.out.writeInt(MAGIC);
+        recording.out.writeInt(VERSION);
+        return recording;
+    }
+
+    /**
+     * Reads a recording for replay.
+     */
+    public static SNMPRecording load(File file) throws IOException {
+        SNMPRecording recording = new SNMPRecording(file);
+        recording.read();
+        return recording;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Microseconds since the recording started
+     */
+    long elapsed() {
+        return (System.nanoTime() - start) / 1000L;
+    }
+
+    /**
+     * Records an exchange.
+     *
+     * @param response Null if the request was never answered
+     */
+    public synchronized void add(String address, int version, long sent, long latency,
+            PDU request, PDU response) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeBoolean(true);
+            out.writeUTF(address);
+            out.writeByte(version);
+            out.writeLong(sent);
+            out.writeLong(response == null ? NO_RESPONSE : latency);
+            writePDU(out, request);
+            writePDU(out, response);
+            count++;
+        } catch (IOException e) {
+            System.err.println("SNMPRecording: " + file + ": " + e.getMessage() + ", recording stopped");
+            close();
+        }
+    }
+
+    /**
+     * Ends the recording, if this is one being made.
+     */
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeBoolean(false);
+            out.close();
+        } catch (IOException e) {
+            System.err.println("SNMPRecording: " + file + ": " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * @return Exchanges recorded or loaded so far
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return The exchanges loaded, in the order the requests were sent
+     */
+    public synchronized List<Exchange> getExchanges() {
+        return new ArrayList<Exchange>(exchanges);
+    }
+
+    /**
+     * @return Requests answered by replay()
+     */
+    public synchronized int getAnswered() {
+        return answered;
+    }
+
+    /**
+     * @return Requests replay() found no response for
+     */
+    public synchronized int getMissed() {
+        return missed;
+    }
+
+    /**
+     * Finds what the target answered to a request like the given one.
+     *
+     * @return An exchange holding the response, with the request ID of the
+     * recorded request, and its latency; null if the request was not
+     * answered, or never seen
+     */
+    public synchronized Exchange replay(String address, PDU request) {
+        Exchange e = null;
+        Replies r = replies.get(key(address, request));
+        if (r != null) {
+            e = r.list.get(r.next);
+            if (r.next < r.list.size() - 1) {
+                r.next++;
+            }
+        } else if (request.getType() == PDU.GET || request.getType() == PDU.GETNEXT) {
+            e = assemble(address, request);
+        }
+        if (e == null || e.response == null) {
+            missed++;
+            return null;
+        }
+        answered++;
+        return e;
+    }
+
+    /*
+     * Builds a response out of the varbinds answered to other requests
+     */
+    private Exchange assemble(String address, PDU request) {
+        PDU response = new PDU();
+        response.setType(PDU.RESPONSE);
+        long latency = 0L;
+        for (int i = 0; i < request.size(); i++) {
+            OID oid = request.get(i).getOid();
+            Exchange e = varbinds.get(varbindKey(address, request.getType(), oid));
+            if (e == null) {
+                return null;
+            }
+            response.add(answerTo(e, oid));
+            latency = Math.max(latency, e.latency);
+        }
+        return new Exchange(address, 0, 0L, latency, request, response);
+    }
+
+    /*
+     * The varbind of the response answering oid. GETNEXT responses are in
+     * the same order as the request.
+     */
+    private static VariableBinding answerTo(Exchange e, OID oid) {
+        for (int i = 0; i < e.request.size(); i++) {
+            if (e.request.get(i).getOid().equals(oid)) {
+                return e.response.get(i);
+            }
+        }
+        return null;    // Not reached, indexed from the same request
+    }
+
+    private void index(Exchange e) {
+        String key = key(e.address, e.request);
+        Replies r = replies.get(key);
+        if (r == null) {
+            r = new Replies();
+            replies.put(key, r);
+        }
+        r.list.add(e);
+
+        int type = e.request.getType();
+        if ((type == PDU.GET || type == PDU.GETNEXT) && e.response != null
+                && e.response.getErrorStatus() == PDU.noError
+                && e.response.size() == e.request.size()) {
+            for (int i = 0; i < e.request.size(); i++) {
+                varbinds.put(varbindKey(e.address, type, e.request.get(i).getOid()), e);
+            }
+        }
+    }
+
+    private static String key(String address, PDU request) {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(address).append(' ').append(request.getType());
+        if (request.getType() == PDU.GETBULK) {
+            sb.append(' ').append(request.getNonRepeaters());
+        }
+        for (int i = 0; i < request.size(); i++) {
+            sb.append(' ').append(request.get(i).getOid());
+        }
+        return sb.toString();
+    }
+
+    private static String varbindKey(String address, int type, OID oid) {
+        return address + ' ' + type + ' ' + oid;
+    }
+
+    private void read() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not an SNMP recording");
+            }
+            while (in.readBoolean()) {
+                String address = in.readUTF();
+                int version = in.readByte();
+                long sent = in.readLong();
+                long latency = in.readLong();
+                PDU request = readPDU(in);
+                PDU response = readPDU(in);
+                exchanges.add(new Exchange(address, version, sent, latency, request, response));
+            }
+        } catch (EOFException e) {
+            System.err.println("SNMPRecording: " + file + " is truncated, " + exchanges.size() + " exchanges read");
+        } finally {
+            in.close();
+        }
+
+        count = exchanges.size();
+
+        // Unanswered requests are only known at the end
+        Collections.sort(exchanges, new Comparator<Exchange>() {
+            public int compare(Exchange a, Exchange b) {
+                return a.sent < b.sent ? -1 : (a.sent == b.sent ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < exchanges.size(); i++) {
+            index(exchanges.get(i));
+        }
+    }
+
+    private static void writePDU(DataOutputStream out, PDU pdu) throws IOException {
+        if (pdu == null) {
+            out.writeInt(-1);
+            return;
+        }
+        ByteArrayOutputStream ber = new ByteArrayOutputStream(pdu.getBERLength());
+        pdu.encodeBER(ber);
+        out.writeInt(ber.size());
+        ber.writeTo(out);
+    }
+
+    private static PDU readPDU(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] ber = new byte[length];
+        in.readFully(ber);
+        PDU pdu = new PDU();
+        pdu.decodeBER(new BERInputStream(ByteBuffer.wrap(ber)));
+        return pdu;
+    }
+
+    /**
+     * Takes an SNMPv1/v2c message apart.
+     *
+     * @return The message, null if it is not one
+     */
+    static Message decode(ByteBuffer message) {
+        try {
+            BERInputStream in = new BERInputStream(message);
+            BER.MutableByte type = new BER.MutableByte();
+            BER.decodeHeader(in, type);
+            Integer32 version = new Integer32();
+            version.decodeBER(in);
+            OctetString community = new OctetString();
+            community.decodeBER(in);
+            PDU pdu = new PDU();
+            pdu.decodeBER(in);
+            return new Message(version.getValue(), community, pdu);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Puts an SNMPv1/v2c message together.
+     */
+    static byte[] encode(int version, OctetString community, PDU pdu) throws IOException {
+        Integer32 v = new Integer32(version);
+        int length = v.getBERLength() + community.getBERLength() + pdu.getBERLength();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 8);
+        BER.encodeHeader(out, BER.SEQUENCE, length);
+        v.encodeBER(out);
+        community.encodeBER(out);
+        pdu.encodeBER(out);
+        return out.toByteArray();
+    }
+}
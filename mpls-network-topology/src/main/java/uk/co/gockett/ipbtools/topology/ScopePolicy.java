@@ -0,0 +1,122 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Singleton deciding which routers are part of the crawl, before any SNMP
+ * query is sent to them (see RouterStorage.newAdjacency()).
+ *
+ * Addresses are checked against include and exclude prefixes, kept in a
+ * PrefixTrie: the longest prefix holding the address decides, so a /16
+ * can be included inside an excluded /8. An address under no prefix is in
+ * scope only if no include prefix was given.
+ *
+ * Hostnames are checked against precompiled patterns; shadow routers
+ * ("^.+-shadow-.+$") are always excluded. A hostname is only known before
+ * the query if an earlier probe or the DiscoveryCache has it; otherwise it
+ * is checked once sysName comes back, as it used to, and the router is
+ * then cached with no adjacency so the next crawl knows it.
+ *
+ * Configure it before the crawl starts; evaluating it takes no lock.
+ * @author ruanoj@github
+ */
+public class ScopePolicy {
+
+    public final static String SHADOW = "^.+-shadow-.+$";
+
+    private final static int INCLUDE = 1;
+    private final static int EXCLUDE = 0;
+
+    private static ScopePolicy thePolicy = null;
+    private final static Object lock = new Object();
+
+    private final PrefixTrie prefixes = new PrefixTrie();
+    private boolean includes = false;
+    private final List<Pattern> hostnames = new ArrayList<Pattern>();
+    private Pattern[] patterns;
+
+    public static ScopePolicy getPolicy() {
+        synchronized (lock) {
+            if (thePolicy == null) {
+                thePolicy = new ScopePolicy();
+            }
+        }
+        return thePolicy;
+    }
+
+    private ScopePolicy() {
+        excludeHostname(SHADOW);
+    }
+
+    /**
+     * Adds a prefix to crawl, "a.b.c.d/length" or a single address. Once
+     * there is any, routers out of every one of them are not crawled.
+     *
+     * @throws IllegalArgumentException if it is not a prefix
+     */
+    public void include(String prefix) {
+        prefixes.put(prefix, INCLUDE);
+        includes = true;
+    }
+
+    /**
+     * Adds a prefix not to crawl.
+     *
+     * @throws IllegalArgumentException if it is not a prefix
+     */
+    public void exclude(String prefix) {
+        prefixes.put(prefix, EXCLUDE);
+    }
+
+    /**
+     * Adds a regular expression matching whole hostnames not to crawl.
+     *
+     * @throws java.util.regex.PatternSyntaxException if it does not compile
+     */
+    public void excludeHostname(String regex) {
+        hostnames.add(Pattern.compile(regex));
+        patterns = hostnames.toArray(new Pattern[hostnames.size()]);
+    }
+
+    public boolean admitsAddress(int address) {
+        int found = prefixes.match(address);
+        return found == PrefixTrie.NONE ? !includes : found == INCLUDE;
+    }
+
+    /**
+     * @return false if the hostname matches an excluded pattern
+     */
+    public boolean admitsHostname(String hostname) {
+        if (hostname == null) {
+            return true;
+        }
+        Pattern[] ps = patterns;
+        for (int i = 0; i < ps.length; i++) {
+            if (ps[i].matcher(hostname).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return sysName from a personality probed earlier or a recent
+     * DiscoveryCache entry, null if none has it
+     */
+    public String getKnownHostname(String hostAddress) {
+        DevicePersonality p = PersonalityCache.getCache().get(hostAddress);
+        if (p != null && p.getSysName() != null) {
+            return p.getSysName();
+        }
+        DiscoveryCache cache = DiscoveryCache.getCache();
+        if (cache != null) {
+            DiscoveryCache.Entry e = cache.get(hostAddress);
+            if (e != null && cache.isRecent(e)) {
+                return e.getSysName();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,65 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Interns strings such as interface names and hostnames, which repeat a
+ * lot across a backbone (xe-0/0/0, TenGigE0/0/0/0...), and gives each one
+ * a dense id.
+ *
+ * Not synchronized.
+ * @author ruanoj@github
+ */
+public class StringTable {
+
+    public final static int NONE = -1;      // id of the null string
+
+    private final HashMap<String, Integer> ids;
+    private final List<String> strings;
+
+    public StringTable(int initialCapacity) {
+        ids = new HashMap<String, Integer>(initialCapacity * 2);
+        strings = new ArrayList<String>(initialCapacity);
+    }
+
+    public StringTable() {
+        this(64);
+    }
+
+    /**
+     * @return The id of the string, NONE for null
+     */
+    public int intern(String s) {
+        if (s == null) {
+            return NONE;
+        }
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = Integer.valueOf(strings.size());
+            strings.add(s);
+            ids.put(s, id);
+        }
+        return id.intValue();
+    }
+
+    /**
+     * @return The id of the string, NONE if it was never interned
+     */
+    public int lookup(String s) {
+        Integer id = s == null ? null : ids.get(s);
+        return id == null ? NONE : id.intValue();
+    }
+
+    /**
+     * @return The string for the id, null for NONE
+     */
+    public String get(int id) {
+        return id == NONE ? null : strings.get(id);
+    }
+
+    public int size() {
+        return strings.size();
+    }
+}
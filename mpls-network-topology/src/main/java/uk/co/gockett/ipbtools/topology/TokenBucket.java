@@ -0,0 +1,85 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket: tokens come in at a steady rate, up to a burst, and are
+ * taken out for every PDU or byte sent.
+ *
+ * Takers reserve their tokens before waiting for them, so the bucket can
+ * go into debt: whoever comes next waits for the debt to be paid back as
+ * well. That also lets costs only known afterwards, such as the size of a
+ * response, be charged once known.
+ * @author ruanoj@github
+ */
+public class TokenBucket {
+
+    private final double perNano;       // Tokens per nanosecond
+    private final double burst;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    /**
+     * @param perSecond Tokens coming in every second
+     * @param burst Tokens the bucket holds at most; it starts full
+     */
+    public TokenBucket(double perSecond, double burst) {
+        if (perSecond <= 0.0 || burst <= 0.0) {
+            throw new IllegalArgumentException("Invalid rate " + perSecond + " or burst " + burst);
+        }
+        this.perNano = perSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * Takes tokens, waiting for them as long as needed. Not interruptible.
+     *
+     * @return Nanoseconds waited
+     */
+    public long acquire(double n) {
+        long wait = reserve(n);
+        if (wait > 0L) {
+            long deadline = System.nanoTime() + wait;
+            long left = wait;
+            while (left > 0L) {
+                LockSupport.parkNanos(left);
+                left = deadline - System.nanoTime();
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * Takes tokens without waiting for them.
+     *
+     * @return Nanoseconds the caller should wait before using them
+     */
+    public synchronized long reserve(double n) {
+        refill();
+        tokens -= n;
+        return tokens >= 0.0 ? 0L : (long) Math.ceil(-tokens / perNano);
+    }
+
+    /**
+     * Takes tokens already used, to be paid back by the next takers.
+     */
+    public synchronized void charge(double n) {
+        refill();
+        tokens -= n;
+    }
+
+    /**
+     * @return Tokens available now, negative while in debt
+     */
+    public synchronized double getTokens() {
+        refill();
+        return tokens;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - last) * perNano);
+        last = now;
+    }
+}
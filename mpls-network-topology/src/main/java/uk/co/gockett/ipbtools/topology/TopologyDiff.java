@@ -0,0 +1,280 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Differences between two topologies, for instance last night's snapshot
+ * and the graph of the discovery just finished: routers added or removed,
+ * adjacencies added or removed, interfaces renamed and speed changes.
+ *
+ * Both sides are read through TopologyView, and joined by address: every
+ * router of one side is looked up in the other (a hash lookup on a
+ * TopologyGraph, a search of the address index on a snapshot), and the
+ * rows of a router found on both are matched by peer address. Small rows
+ * are matched pairwise, longer ones through an IntIntMap, so the whole
+ * diff stays linear in the number of adjacencies.
+ *
+ * Changes are given in router address order, each router's together, as
+ * one-line records made for alerting (see Change.toString()).
+ * @author ruanoj@github
+ */
+public class TopologyDiff {
+
+    private final static int SMALL_ROW = 16;
+
+    private final TopologyView before;
+    private final TopologyView after;
+    private final List<Change> changes = new ArrayList<Change>();
+    private int[] matched = new int[SMALL_ROW];    // [ adjacency in row ] = stamp
+    private int stamp = 0;
+
+    /**
+     * A single difference. Addresses are IPv4 ints, speeds in Mb/s.
+     */
+    public static class Change {
+
+        public enum Type {
+            ROUTER_ADDED, ROUTER_REMOVED, ADJACENCY_ADDED, ADJACENCY_REMOVED,
+            INTERFACE_RENAMED, SPEED_CHANGED
+        }
+
+        private final Type type;
+        private final int address;
+        private final String hostname;
+        private final int peer;
+        private final int ifIndex;
+        private final String oldInterface;
+        private final String ifName;
+        private final long oldSpeed;
+        private final long speed;
+
+        Change(Type type, int address, String hostname, int peer, int ifIndex,
+                String oldInterface, String ifName, long oldSpeed, long speed) {
+            this.type = type;
+            this.address = address;
+            this.hostname = hostname;
+            this.peer = peer;
+            this.ifIndex = ifIndex;
+            this.oldInterface = oldInterface;
+            this.ifName = ifName;
+            this.oldSpeed = oldSpeed;
+            this.speed = speed;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        public String getHostname() {
+            return hostname;
+        }
+
+        /**
+         * @return The peer of the adjacency; 0 for router changes
+         */
+        public int getPeer() {
+            return peer;
+        }
+
+        public int getIfIndex() {
+            return ifIndex;
+        }
+
+        /**
+         * @return The interface name before a rename, the interface name
+         * otherwise
+         */
+        public String getOldInterface() {
+            return oldInterface;
+        }
+
+        public String getInterface() {
+            return ifName;
+        }
+
+        /**
+         * @return The speed before a speed change, the speed otherwise
+         */
+        public long getOldSpeed() {
+            return oldSpeed;
+        }
+
+        public long getSpeed() {
+            return speed;
+        }
+
+        /**
+         * @return The change in the colon-separated style of the daemon
+         * mode, speeds in kb/s as the topology dump:
+         * +ROUTER/-ROUTER addr:hostname, +ADJ/-ADJ addr:peer:if:speed,
+         * ~IF addr:peer:old:new, ~SPEED addr:peer:if:old:new
+         */
+        public String toString() {
+            StringBuilder sb = new StringBuilder(64);
+            switch (type) {
+            case ROUTER_ADDED:
+            case ROUTER_REMOVED:
+                sb.append(type == Type.ROUTER_ADDED ? "+ROUTER " : "-ROUTER ");
+                IPUtils.appendIp(sb, address).append(':').append(hostname);
+                break;
+            case ADJACENCY_ADDED:
+            case ADJACENCY_REMOVED:
+                sb.append(type == Type.ADJACENCY_ADDED ? "+ADJ " : "-ADJ ");
+                IPUtils.appendIp(sb, address).append(':');
+                IPUtils.appendIp(sb, peer).append(':').append(ifName).append(':').append(1000 * speed);
+                break;
+            case INTERFACE_RENAMED:
+                sb.append("~IF ");
+                IPUtils.appendIp(sb, address).append(':');
+                IPUtils.appendIp(sb, peer).append(':').append(oldInterface).append(':').append(ifName);
+                break;
+            case SPEED_CHANGED:
+                sb.append("~SPEED ");
+                IPUtils.appendIp(sb, address).append(':');
+                IPUtils.appendIp(sb, peer).append(':').append(ifName).append(':')
+                  .append(1000 * oldSpeed).append(':').append(1000 * speed);
+                break;
+            }
+            return sb.toString();
+        }
+    }
+
+    private TopologyDiff(TopologyView before, TopologyView after) {
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return What changed from before to after
+     */
+    public static List<Change> diff(TopologyView before, TopologyView after) {
+        TopologyDiff d = new TopologyDiff(before, after);
+        d.run();
+        return d.changes;
+    }
+
+    private void run() {
+        int n = after.size();
+        for (int id = 0; id < n; id++) {
+            int address = after.getAddress(id);
+            int was = before.nodeOf(address);
+            String hostname = after.getHostname(id);
+            if (was == TopologyGraph.NO_NODE) {
+                changes.add(new Change(Change.Type.ROUTER_ADDED, address, hostname,
+                        0, 0, null, null, 0L, 0L));
+                int end = after.getAdjacencyStart(id) + after.getAdjacencyCount(id);
+                for (int a = after.getAdjacencyStart(id); a < end; a++) {
+                    adjacency(Change.Type.ADJACENCY_ADDED, address, hostname, after, a);
+                }
+            } else {
+                diffRow(address, hostname, was, id);
+            }
+        }
+
+        n = before.size();
+        for (int id = 0; id < n; id++) {
+            int address = before.getAddress(id);
+            if (after.nodeOf(address) == TopologyGraph.NO_NODE) {
+                String hostname = before.getHostname(id);
+                int end = before.getAdjacencyStart(id) + before.getAdjacencyCount(id);
+                for (int a = before.getAdjacencyStart(id); a < end; a++) {
+                    adjacency(Change.Type.ADJACENCY_REMOVED, address, hostname, before, a);
+                }
+                changes.add(new Change(Change.Type.ROUTER_REMOVED, address, hostname,
+                        0, 0, null, null, 0L, 0L));
+            }
+        }
+
+        // Stable, so each router's changes keep their order
+        Collections.sort(changes, new Comparator<Change>() {
+            public int compare(Change x, Change y) {
+                int a = x.address ^ Integer.MIN_VALUE;
+                int b = y.address ^ Integer.MIN_VALUE;
+                return a < b ? -1 : (a == b ? 0 : 1);
+            }
+        });
+    }
+
+    /*
+     * Matches the rows of a router found on both sides by peer address
+     */
+    private void diffRow(int address, String hostname, int was, int id) {
+        int oldStart = before.getAdjacencyStart(was);
+        int oldCount = before.getAdjacencyCount(was);
+        int start = after.getAdjacencyStart(id);
+        int end = start + after.getAdjacencyCount(id);
+        if (matched.length < oldCount) {
+            matched = new int[Math.max(oldCount, matched.length << 1)];
+        }
+        stamp++;
+        IntIntMap index = null;
+        if (oldCount > SMALL_ROW) {
+            index = new IntIntMap(oldCount);
+            for (int i = oldCount - 1; i >= 0; i--) {
+                index.put(before.getPeerAddress(oldStart + i), i);
+            }
+        }
+
+        for (int a = start; a < end; a++) {
+            int peer = after.getPeerAddress(a);
+            int i = -1;
+            if (index != null) {
+                i = index.get(peer, -1);
+                if (i >= 0 && matched[i] == stamp) {
+                    i = find(peer, oldStart, oldCount);    // Parallel links
+                }
+            } else {
+                i = find(peer, oldStart, oldCount);
+            }
+            if (i < 0) {
+                adjacency(Change.Type.ADJACENCY_ADDED, address, hostname, after, a);
+                continue;
+            }
+            matched[i] = stamp;
+            int b = oldStart + i;
+            String oldName = before.getInterface(b);
+            String name = after.getInterface(a);
+            if (oldName == null ? name != null : !oldName.equals(name)) {
+                changes.add(new Change(Change.Type.INTERFACE_RENAMED, address, hostname,
+                        peer, after.getIfIndex(a), oldName, name, before.getSpeed(b), after.getSpeed(a)));
+            }
+            if (before.getSpeed(b) != after.getSpeed(a)) {
+                changes.add(new Change(Change.Type.SPEED_CHANGED, address, hostname,
+                        peer, after.getIfIndex(a), oldName, name, before.getSpeed(b), after.getSpeed(a)));
+            }
+        }
+
+        for (int i = 0; i < oldCount; i++) {
+            if (matched[i] != stamp) {
+                adjacency(Change.Type.ADJACENCY_REMOVED, address, hostname, before, oldStart + i);
+            }
+        }
+    }
+
+    /**
+     * @return The first entry of the before row, not matched yet, to the
+     * peer; -1 if there is none
+     */
+    private int find(int peer, int oldStart, int oldCount) {
+        for (int i = 0; i < oldCount; i++) {
+            if (matched[i] != stamp && before.getPeerAddress(oldStart + i) == peer) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void adjacency(Change.Type type, int address, String hostname, TopologyView view, int a) {
+        String name = view.getInterface(a);
+        long speed = view.getSpeed(a);
+        changes.add(new Change(type, address, hostname, view.getPeerAddress(a), view.getIfIndex(a),
+                name, name, speed, speed));
+    }
+}
@@ -0,0 +1,301 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Compact storage of the discovered topology.
+ *
+ * Routers are identified by a dense node id, given in discovery order, and
+ * their IPv4 address is kept as an int. Adjacencies are stored CSR-style:
+ * one row of consecutive entries per router, with a column per field
+ * (peer address, ifIndex, interface name id and speed). Interface names and
+ * hostnames are interned in a StringTable.
+ *
+ * Rows are appended as routers complete, so during a crawl they are in
+ * completion order; compact() puts them back in node order and drops the
+ * space of any replaced row. A replaced row is rewritten in place when it
+ * fits there or is the last one.
+ *
+ * Router and Adjacency objects remain available as views (see
+ * RouterStorage.getData() and getAdjacencies()), but bulk readers should
+ * use the accessors below, which do not allocate.
+ * @author ruanoj@github
+ */
+public class TopologyGraph implements TopologyView {
+
+    public final static int NO_NODE = -1;
+    private final static int INITIAL_NODES = 64;
+    private final static int INITIAL_ADJACENCIES = 256;
+
+    private final IntIntMap nodeIds = new IntIntMap(INITIAL_NODES);
+    private final StringTable strings = new StringTable();
+
+    // Node columns
+    private int nodes = 0;
+    private int[] nodeAddress = new int[INITIAL_NODES];
+    private int[] nodeHostname = new int[INITIAL_NODES];
+    private int[] rowStart = new int[INITIAL_NODES];
+    private int[] rowLength = new int[INITIAL_NODES];
+
+    // Adjacency columns
+    private int adjacencies = 0;
+    private int[] adjPeer = new int[INITIAL_ADJACENCIES];
+    private int[] adjIfIndex = new int[INITIAL_ADJACENCIES];
+    private int[] adjIfName = new int[INITIAL_ADJACENCIES];
+    private long[] adjSpeed = new long[INITIAL_ADJACENCIES];
+    private int liveAdjacencies = 0;    // Not counting replaced rows
+
+    /**
+     * Adds a node, unless there is already one for the address.
+     *
+     * @return The node id
+     */
+    public synchronized int addNode(int address) {
+        int id = nodeIds.get(address, NO_NODE);
+        if (id != NO_NODE) {
+            return id;
+        }
+        if (nodes == nodeAddress.length) {
+            int capacity = nodes << 1;
+            nodeAddress = Arrays.copyOf(nodeAddress, capacity);
+            nodeHostname = Arrays.copyOf(nodeHostname, capacity);
+            rowStart = Arrays.copyOf(rowStart, capacity);
+            rowLength = Arrays.copyOf(rowLength, capacity);
+        }
+        id = nodes++;
+        nodeAddress[id] = address;
+        nodeHostname[id] = StringTable.NONE;
+        rowStart[id] = 0;
+        rowLength[id] = 0;
+        nodeIds.put(address, id);
+        return id;
+    }
+
+    /**
+     * @return The node id for the address, NO_NODE if it is not known
+     */
+    public synchronized int nodeOf(int address) {
+        return nodeIds.get(address, NO_NODE);
+    }
+
+    public synchronized int size() {
+        return nodes;
+    }
+
+    public synchronized int getAddress(int id) {
+        return nodeAddress[id];
+    }
+
+    public synchronized String getHostname(int id) {
+        return strings.get(nodeHostname[id]);
+    }
+
+    /**
+     * @return The id of the hostname in getStrings(), StringTable.NONE if
+     * it is not known
+     */
+    public synchronized int getHostnameId(int id) {
+        return nodeHostname[id];
+    }
+
+    public synchronized void setHostname(int id, String hostname) {
+        nodeHostname[id] = strings.intern(hostname);
+    }
+
+    /**
+     * Sets the adjacencies of a node, replacing any it had. The row is
+     * rewritten in place if it fits there or is the last one; otherwise
+     * it is appended, and the old one is left for compact().
+     *
+     * @throws IllegalArgumentException if a peer is not an IPv4 address,
+     * in which case the node keeps the adjacencies it had
+     */
+    public synchronized void setAdjacencies(int id, Collection<Adjacency> adjs) {
+        int n = adjs.size();
+        int[] peers = new int[n];
+        int i = 0;
+        Iterator<Adjacency> it = adjs.iterator();
+        while (it.hasNext()) {
+            peers[i++] = IPUtils.ipToInt(it.next().getAdjacentAddress());
+        }
+        int start = rowFor(id, n);
+        i = 0;
+        it = adjs.iterator();
+        while (it.hasNext()) {
+            set(start + i, peers[i], it.next());
+            i++;
+        }
+        liveAdjacencies += n - rowLength[id];
+        rowStart[id] = start;
+        rowLength[id] = n;
+    }
+
+    /**
+     * Adds an adjacency to a node, replacing the one it had to the same
+     * peer, if any. A row that is not the last one is moved to the end
+     * first, so adding several in a row only moves it once.
+     *
+     * @return false if an adjacency to the peer was replaced
+     * @throws IllegalArgumentException if the peer is not an IPv4 address
+     */
+    public synchronized boolean addAdjacency(int id, Adjacency adj) {
+        int peer = IPUtils.ipToInt(adj.getAdjacentAddress());
+        int start = rowStart[id];
+        int n = rowLength[id];
+        for (int a = start; a < start + n; a++) {
+            if (adjPeer[a] == peer) {
+                set(a, peer, adj);
+                return false;
+            }
+        }
+        int moved = rowFor(id, n + 1);
+        if (moved != start) {
+            System.arraycopy(adjPeer, start, adjPeer, moved, n);
+            System.arraycopy(adjIfIndex, start, adjIfIndex, moved, n);
+            System.arraycopy(adjIfName, start, adjIfName, moved, n);
+            System.arraycopy(adjSpeed, start, adjSpeed, moved, n);
+        }
+        set(moved + n, peer, adj);
+        liveAdjacencies++;
+        rowStart[id] = moved;
+        rowLength[id] = n + 1;
+        return true;
+    }
+
+    /*
+     * @return Where a row of n adjacencies for the node goes: where it is
+     * if it fits or is the last row, at the end otherwise
+     */
+    private int rowFor(int id, int n) {
+        int start = rowStart[id];
+        int length = rowLength[id];
+        if (length > 0 && start + length == adjacencies) {
+            ensureAdjacencyCapacity(start + n);
+            adjacencies = start + n;
+            return start;
+        }
+        if (n <= length) {
+            return start;
+        }
+        ensureAdjacencyCapacity(adjacencies + n);
+        start = adjacencies;
+        adjacencies += n;
+        return start;
+    }
+
+    private void set(int a, int peer, Adjacency adj) {
+        adjPeer[a] = peer;
+        adjIfIndex[a] = adj.getSNMPInterface();
+        adjIfName[a] = strings.intern(adj.getRouterInterface());
+        adjSpeed[a] = adj.getSpeed();
+    }
+
+    /**
+     * @return First adjacency of the node row
+     */
+    public synchronized int getAdjacencyStart(int id) {
+        return rowStart[id];
+    }
+
+    /**
+     * @return Number of adjacencies of the node
+     */
+    public synchronized int getAdjacencyCount(int id) {
+        return rowLength[id];
+    }
+
+    /**
+     * @return Number of adjacencies of all nodes
+     */
+    public synchronized int getAdjacencyTotal() {
+        return liveAdjacencies;
+    }
+
+    public synchronized int getPeerAddress(int adjacency) {
+        return adjPeer[adjacency];
+    }
+
+    public synchronized int getIfIndex(int adjacency) {
+        return adjIfIndex[adjacency];
+    }
+
+    public synchronized int getInterfaceId(int adjacency) {
+        return adjIfName[adjacency];
+    }
+
+    public synchronized String getInterface(int adjacency) {
+        return strings.get(adjIfName[adjacency]);
+    }
+
+    public synchronized long getSpeed(int adjacency) {
+        return adjSpeed[adjacency];
+    }
+
+    /**
+     * @return The interned strings; ids from getInterfaceId() index it
+     */
+    public StringTable getStrings() {
+        return strings;
+    }
+
+    /**
+     * Builds Adjacency objects for a node row.
+     */
+    public synchronized List<Adjacency> getAdjacencies(int id) {
+        List<Adjacency> result = new ArrayList<Adjacency>(rowLength[id]);
+        int end = rowStart[id] + rowLength[id];
+        for (int a = rowStart[id]; a < end; a++) {
+            Adjacency adj = new Adjacency(IPUtils.intToIp(adjPeer[a]));
+            adj.setSNMPInterface(adjIfIndex[a]);
+            adj.setRouterInterface(strings.get(adjIfName[a]), adjSpeed[a]);
+            result.add(adj);
+        }
+        return result;
+    }
+
+    /**
+     * Rewrites the adjacency columns with rows in node order, and trims
+     * every column to its size.
+     */
+    public synchronized void compact() {
+        int total = liveAdjacencies;
+        int[] peer = new int[total];
+        int[] ifIndex = new int[total];
+        int[] ifName = new int[total];
+        long[] speed = new long[total];
+        int a = 0;
+        for (int id = 0; id < nodes; id++) {
+            int n = rowLength[id];
+            System.arraycopy(adjPeer, rowStart[id], peer, a, n);
+            System.arraycopy(adjIfIndex, rowStart[id], ifIndex, a, n);
+            System.arraycopy(adjIfName, rowStart[id], ifName, a, n);
+            System.arraycopy(adjSpeed, rowStart[id], speed, a, n);
+            rowStart[id] = a;
+            a += n;
+        }
+        adjPeer = peer;
+        adjIfIndex = ifIndex;
+        adjIfName = ifName;
+        adjSpeed = speed;
+        adjacencies = total;
+        nodeAddress = Arrays.copyOf(nodeAddress, Math.max(nodes, 1));
+        nodeHostname = Arrays.copyOf(nodeHostname, Math.max(nodes, 1));
+        rowStart = Arrays.copyOf(rowStart, Math.max(nodes, 1));
+        rowLength = Arrays.copyOf(rowLength, Math.max(nodes, 1));
+    }
+
+    private void ensureAdjacencyCapacity(int needed) {
+        if (needed <= adjPeer.length) {
+            return;
+        }
+        int capacity = Math.max(adjPeer.length << 1, needed);
+        adjPeer = Arrays.copyOf(adjPeer, capacity);
+        adjIfIndex = Arrays.copyOf(adjIfIndex, capacity);
+        adjIfName = Arrays.copyOf(adjIfName, capacity);
+        adjSpeed = Arrays.copyOf(adjSpeed, capacity);
+    }
+}
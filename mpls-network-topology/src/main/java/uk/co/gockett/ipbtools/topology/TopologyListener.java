@@ -0,0 +1,26 @@
+package uk.co.gockett.ipbtools.topology;
+
+/**
+ * Extension of DiscoveryListener meant to receive topology changes found
+ * between two discovery rounds, on top of the status of each round
+ * @author ruanoj@github
+ */
+public interface TopologyListener extends DiscoveryListener {
+
+    void roundStarted(int round);
+
+    void routerAppeared(Router router);
+
+    void routerDisappeared(Router router);
+
+    void adjacencyAdded(Router router, Adjacency adjacency);
+
+    void adjacencyRemoved(Router router, Adjacency adjacency);
+
+    void linkSpeedChanged(Router router, Adjacency before, Adjacency after);
+
+    void interfaceRenamed(Router router, Adjacency before, Adjacency after);
+
+    void roundFinished(int round);
+
+}
@@ -0,0 +1,278 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Long-running discovery: crawls the backbone every interval, keeps the
+ * routers found in the last round, and tells registered listeners only
+ * what changed since then (routers appearing or disappearing, adjacencies
+ * added or removed, interface renames and link speed changes), as found by
+ * TopologyDiff.
+ *
+ * Every round starts from the seed nodes with an empty RouterStorage.
+ * Device personalities are probed again each round, so an open
+ * DiscoveryCache sees current change indicators, and routers unreachable
+ * in the last round are given another chance (see DeviceHealth).
+ *
+ * A router that cannot be queried in a round keeps the adjacencies it had
+ * in the last one, and its neighbours then are queued as if it had found
+ * them, so a transient SNMP failure is not published as a topology change.
+ * Only after MISSED_ROUNDS rounds in a row is it taken as really gone.
+ * @author ruanoj@github
+ */
+public class TopologyMonitor implements DiscoveryListener, ResultListener, Runnable {
+
+    public final static int MISSED_ROUNDS = 3;      // Rounds a router is kept without answering
+
+    private final List<InetAddress> seeds;
+    private final int workers;
+    private final boolean threadPerRouter;
+    private final long interval;
+    private final List<TopologyListener> listeners = new ArrayList<TopologyListener>();
+
+    // Graph and routers, by node id, as found in the last round
+    private TopologyGraph previous = null;
+    private List<Object> previousRouters = null;
+    private int round = 0;
+    // [ int address ] = int rounds in a row it did not answer, last round and this one
+    private IntIntMap missed = new IntIntMap();
+    private IntIntMap missing = new IntIntMap();
+    private volatile boolean running = true;
+
+    /**
+     * @param interval Time, in milliseconds, between the start of two rounds
+     */
+    public TopologyMonitor(List<InetAddress> seeds, int workers,
+            boolean threadPerRouter, long interval) {
+        this.seeds = seeds;
+        this.workers = workers;
+        this.threadPerRouter = threadPerRouter;
+        this.interval = interval;
+    }
+
+    public synchronized void addListener(TopologyListener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void removeListener(TopologyListener listener) {
+        listeners.remove(listener);
+    }
+
+    private synchronized TopologyListener[] getListeners() {
+        return listeners.toArray(new TopologyListener[listeners.size()]);
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    /**
+     * Makes run() return once the current round is over.
+     */
+    public void stop() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    public void run() {
+        while (running) {
+            long start = System.currentTimeMillis();
+            try {
+                runRound();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long wait = start + interval - System.currentTimeMillis();
+            synchronized (this) {
+                try {
+                    if (running && wait > 0) {
+                        wait(wait);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Crawls once and publishes the differences with the previous round.
+     * The first round publishes every router and adjacency found.
+     */
+    public void runRound() throws InterruptedException {
+        round++;
+        TopologyListener[] ls = getListeners();
+        for (int i = 0; i < ls.length; i++) {
+            ls[i].roundStarted(round);
+        }
+
+        RouterStorage storage = RouterStorage.getAdjStorage();
+        storage.reset();
+        PersonalityCache.getCache().clear();
+        DeviceHealth.getHealth().reset();
+        Iterator<InetAddress> it = seeds.iterator();
+        while (it.hasNext()) {
+            InetAddress add = it.next();
+            storage.newAdjacency(add.getHostAddress(), new Router(add));
+        }
+
+        CrawlScheduler scheduler = new CrawlScheduler(workers, threadPerRouter, this);
+        scheduler.setResultListener(this);
+        scheduler.start();
+        scheduler.awaitTermination();
+
+        TopologyGraph current = storage.getGraph();
+        List<Object> routers = new ArrayList<Object>(current.size());
+        Iterator<Object> data = storage.getData();
+        while (data.hasNext()) {
+            routers.add(data.next());
+        }
+        publishChanges(previous == null ? new TopologyGraph() : previous, previousRouters,
+                current, routers, ls);
+        synchronized (this) {
+            previous = current;
+            previousRouters = routers;
+            missed = missing;
+            missing = new IntIntMap();
+        }
+
+        DiscoveryCache cache = DiscoveryCache.getCache();
+        if (cache != null) {
+            try {
+                cache.save();
+            } catch (IOException e) {
+                System.err.println("TopologyMonitor: could not save cache: " + e.getMessage());
+            }
+        }
+        for (int i = 0; i < ls.length; i++) {
+            ls[i].roundFinished(round);
+        }
+    }
+
+    /**
+     * Gives a router that did not answer the adjacencies it had in the last
+     * round, unless it has not answered for MISSED_ROUNDS, and queues the
+     * neighbours they lead to.
+     */
+    public void routerCompleted(Router router, boolean answered) {
+        if (answered) {
+            return;
+        }
+        int address = IPUtils.ipToInt(router.getHostAddress());
+        List<Adjacency> adjs;
+        synchronized (this) {
+            int was = previous == null ? TopologyGraph.NO_NODE : previous.nodeOf(address);
+            int rounds = missed.get(address, 0) + 1;
+            if (was == TopologyGraph.NO_NODE || rounds >= MISSED_ROUNDS) {
+                return;
+            }
+            missing.put(address, rounds);
+            adjs = previous.getAdjacencies(was);
+            router.setHostname(previous.getHostname(was));
+        }
+        RouterStorage storage = RouterStorage.getAdjStorage();
+        TopologyGraph current = storage.getGraph();
+        current.setAdjacencies(current.nodeOf(address), adjs);
+        System.err.println("TopologyMonitor: " + router.getHostAddress()
+                           + " did not answer, kept with " + adjs.size() + " adjacencies");
+        for (int i = 0; i < adjs.size(); i++) {
+            String peer = adjs.get(i).getAdjacentAddress();
+            try {
+                storage.newAdjacency(peer, new Router(InetAddress.getByName(peer)));
+            } catch (UnknownHostException e) { } // Literal address
+        }
+    }
+
+    private void publishChanges(TopologyGraph before, List<Object> beforeRouters,
+            TopologyGraph after, List<Object> afterRouters, TopologyListener[] ls) {
+        List<TopologyDiff.Change> changes = TopologyDiff.diff(before, after);
+        for (int c = 0; c < changes.size(); c++) {
+            TopologyDiff.Change change = changes.get(c);
+            int address = change.getAddress();
+            for (int i = 0; i < ls.length; i++) {
+                switch (change.getType()) {
+                case ROUTER_ADDED:
+                    ls[i].routerAppeared(router(after, afterRouters, address));
+                    break;
+                case ROUTER_REMOVED:
+                    ls[i].routerDisappeared(router(before, beforeRouters, address));
+                    break;
+                case ADJACENCY_ADDED:
+                    ls[i].adjacencyAdded(router(after, afterRouters, address),
+                            adjacency(change, change.getInterface(), change.getSpeed()));
+                    break;
+                case ADJACENCY_REMOVED:
+                    ls[i].adjacencyRemoved(router(before, beforeRouters, address),
+                            adjacency(change, change.getInterface(), change.getSpeed()));
+                    break;
+                case INTERFACE_RENAMED:
+                    ls[i].interfaceRenamed(router(after, afterRouters, address),
+                            adjacency(change, change.getOldInterface(), change.getSpeed()),
+                            adjacency(change, change.getInterface(), change.getSpeed()));
+                    break;
+                case SPEED_CHANGED:
+                    ls[i].linkSpeedChanged(router(after, afterRouters, address),
+                            adjacency(change, change.getInterface(), change.getOldSpeed()),
+                            adjacency(change, change.getInterface(), change.getSpeed()));
+                    break;
+                }
+            }
+        }
+    }
+
+    private static Router router(TopologyGraph graph, List<Object> routers, int address) {
+        return (Router) routers.get(graph.nodeOf(address));
+    }
+
+    private static Adjacency adjacency(TopologyDiff.Change change, String ifName, long speed) {
+        Adjacency adj = new Adjacency(IPUtils.intToIp(change.getPeer()));
+        adj.setSNMPInterface(change.getIfIndex());
+        adj.setRouterInterface(ifName, speed);
+        return adj;
+    }
+
+    /*
+     * Crawl status is passed on to every listener.
+     */
+    public void join() {
+        TopologyListener[] ls = getListeners();
+        for (int i = 0; i < ls.length; i++) {
+            ls[i].join();
+        }
+    }
+
+    public void leave() {
+        TopologyListener[] ls = getListeners();
+        for (int i = 0; i < ls.length; i++) {
+            ls[i].leave();
+        }
+    }
+
+    public void working() {
+        TopologyListener[] ls = getListeners();
+        for (int i = 0; i < ls.length; i++) {
+            ls[i].working();
+        }
+    }
+
+    public void successResult() {
+        TopologyListener[] ls = getListeners();
+        for (int i = 0; i < ls.length; i++) {
+            ls[i].successResult();
+        }
+    }
+
+    public void errorResult() {
+        TopologyListener[] ls = getListeners();
+        for (int i = 0; i < ls.length; i++) {
+            ls[i].errorResult();
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary snapshot of a discovered topology, read through a memory-mapped
+ * file. Opening one only checks its header and size; routers, adjacencies
+ * and strings are read from the mapping when asked for, so no Router nor
+ * Adjacency object is built.
+ *
+ * Layout, big-endian, with fixed-width records:
+ *  - header (32 bytes): magic "IPTS", version, time written (ms), number
+ *    of nodes, adjacencies and strings, size of the string bytes
+ *  - nodes (16 bytes each, in node id order): address, hostname id, first
+ *    adjacency, adjacency count
+ *  - address index (4 bytes each): node ids sorted by unsigned address
+ *  - adjacencies (24 bytes each, in rows by node): peer address, peer
+ *    node id (NO_NODE if the peer is not a node), ifIndex, interface name
+ *    id, speed in Mb/s
+ *  - string offsets (4 bytes each, one more than strings): start of every
+ *    string in the string bytes
+ *  - string bytes, UTF-8
+ *
+ * Hostnames and interface names share the string table; StringTable.NONE
+ * stands for a null one.
+ *
+ * Safe to read from several threads.
+ * @author ruanoj@github
+ */
+public class TopologySnapshot implements TopologyView {
+
+    public final static int NO_NODE = TopologyGraph.NO_NODE;
+
+    private final static int MAGIC = 0x49505453;    // "IPTS"
+    private final static int VERSION = 1;
+    private final static int HEADER_SIZE = 32;
+    private final static int NODE_SIZE = 16;
+    private final static int INDEX_SIZE = 4;
+    private final static int ADJACENCY_SIZE = 24;
+    private final static int OFFSET_SIZE = 4;
+
+    private final ByteBuffer buf;
+    private final long stamp;
+    private final int nodes;
+    private final int adjacencies;
+    private final int strings;
+    private final int indexStart;
+    private final int adjacencyStart;
+    private final int offsetStart;
+    private final int stringStart;
+    private final String[] decoded;     // Strings read so far
+
+    private TopologySnapshot(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a topology snapshot");
+        }
+        int version = buf.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        stamp = buf.getLong(8);
+        nodes = buf.getInt(16);
+        adjacencies = buf.getInt(20);
+        strings = buf.getInt(24);
+        int stringBytes = buf.getInt(28);
+        if (nodes < 0 || adjacencies < 0 || strings < 0 || stringBytes < 0) {
+            throw new IOException("Corrupt snapshot header");
+        }
+        long size = size(nodes, adjacencies, strings, stringBytes);
+        if (size != buf.capacity()) {
+            throw new IOException("Snapshot is " + buf.capacity() + " bytes, "
+                    + size + " expected");
+        }
+        indexStart = HEADER_SIZE + nodes * NODE_SIZE;
+        adjacencyStart = indexStart + nodes * INDEX_SIZE;
+        offsetStart = adjacencyStart + adjacencies * ADJACENCY_SIZE;
+        stringStart = offsetStart + (strings + 1) * OFFSET_SIZE;
+        decoded = new String[strings];
+    }
+
+    /**
+     * Maps a snapshot file.
+     *
+     * @throws IOException if it cannot be read, or is not a snapshot
+     */
+    public static TopologySnapshot open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large: " + channel.size() + " bytes");
+            }
+            // The mapping outlives the channel
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new TopologySnapshot(map);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the graph to a snapshot file. The file is replaced only once
+     * the new contents are complete.
+     */
+    public static void write(TopologyGraph graph, File file) throws IOException {
+        ByteBuffer out;
+        synchronized (graph) {
+            out = encode(graph);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    private static ByteBuffer encode(TopologyGraph graph) throws IOException {
+        int nodes = graph.size();
+        int adjacencies = 0;
+        for (int id = 0; id < nodes; id++) {
+            adjacencies += graph.getAdjacencyCount(id);
+        }
+        StringTable table = graph.getStrings();
+        int strings = table.size();
+        byte[][] bytes = new byte[strings][];
+        long stringBytes = 0;
+        for (int i = 0; i < strings; i++) {
+            bytes[i] = table.get(i).getBytes(StandardCharsets.UTF_8);
+            stringBytes += bytes[i].length;
+        }
+        long size = size(nodes, adjacencies, strings, stringBytes);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Topology too large for a snapshot: " + size + " bytes");
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) size);
+        out.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis())
+           .putInt(nodes).putInt(adjacencies).putInt(strings).putInt((int) stringBytes);
+
+        // Nodes, their rows laid out one after the other
+        long[] sorted = new long[nodes];
+        int first = 0;
+        for (int id = 0; id < nodes; id++) {
+            int address = graph.getAddress(id);
+            int count = graph.getAdjacencyCount(id);
+            out.putInt(address).putInt(graph.getHostnameId(id)).putInt(first).putInt(count);
+            first += count;
+            // Flipping the sign bit sorts addresses as unsigned
+            sorted[id] = (long) (address ^ Integer.MIN_VALUE) << 32 | id;
+        }
+        Arrays.sort(sorted);
+        for (int i = 0; i < nodes; i++) {
+            out.putInt((int) sorted[i]);
+        }
+
+        for (int id = 0; id < nodes; id++) {
+            int end = graph.getAdjacencyStart(id) + graph.getAdjacencyCount(id);
+            for (int a = graph.getAdjacencyStart(id); a < end; a++) {
+                int peer = graph.getPeerAddress(a);
+                out.putInt(peer).putInt(graph.nodeOf(peer)).putInt(graph.getIfIndex(a))
+                   .putInt(graph.getInterfaceId(a)).putLong(graph.getSpeed(a));
+            }
+        }
+
+        int offset = 0;
+        for (int i = 0; i < strings; i++) {
+            out.putInt(offset);
+            offset += bytes[i].length;
+        }
+        out.putInt(offset);
+        for (int i = 0; i < strings; i++) {
+            out.put(bytes[i]);
+        }
+        out.flip();
+        return out;
+    }
+
+    private static long size(int nodes, int adjacencies, int strings, long stringBytes) {
+        return HEADER_SIZE + (long) nodes * (NODE_SIZE + INDEX_SIZE)
+            + (long) adjacencies * ADJACENCY_SIZE + (strings + 1L) * OFFSET_SIZE + stringBytes;
+    }
+
+    /**
+     * @return When the snapshot was written, as System.currentTimeMillis()
+     */
+    public long getStamp() {
+        return stamp;
+    }
+
+    public int size() {
+        return nodes;
+    }
+
+    public int getAdjacencyTotal() {
+        return adjacencies;
+    }
+
+    public int getAddress(int id) {
+        return buf.getInt(HEADER_SIZE + id * NODE_SIZE);
+    }
+
+    public int getHostnameId(int id) {
+        return buf.getInt(HEADER_SIZE + id * NODE_SIZE + 4);
+    }
+
+    public String getHostname(int id) {
+        return getString(getHostnameId(id));
+    }
+
+    /**
+     * @return First adjacency of the node row
+     */
+    public int getAdjacencyStart(int id) {
+        return buf.getInt(HEADER_SIZE + id * NODE_SIZE + 8);
+    }
+
+    /**
+     * @return Number of adjacencies of the node
+     */
+    public int getAdjacencyCount(int id) {
+        return buf.getInt(HEADER_SIZE + id * NODE_SIZE + 12);
+    }
+
+    /**
+     * Binary search of the address index.
+     *
+     * @return The node id for the address, NO_NODE if it is not known
+     */
+    public int nodeOf(int address) {
+        long key = address & 0xFFFFFFFFL;
+        int low = 0;
+        int high = nodes - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = buf.getInt(indexStart + mid * INDEX_SIZE);
+            long found = getAddress(id) & 0xFFFFFFFFL;
+            if (found < key) {
+                low = mid + 1;
+            } else if (found > key) {
+                high = mid - 1;
+            } else {
+                return id;
+            }
+        }
+        return NO_NODE;
+    }
+
+    public int getPeerAddress(int adjacency) {
+        return buf.getInt(adjacencyStart + adjacency * ADJACENCY_SIZE);
+    }
+
+    /**
+     * @return The node id of the peer, NO_NODE if it is not a node
+     */
+    public int getPeerNode(int adjacency) {
+        return buf.getInt(adjacencyStart + adjacency * ADJACENCY_SIZE + 4);
+    }
+
+    public int getIfIndex(int adjacency) {
+        return buf.getInt(adjacencyStart + adjacency * ADJACENCY_SIZE + 8);
+    }
+
+    public int getInterfaceId(int adjacency) {
+        return buf.getInt(adjacencyStart + adjacency * ADJACENCY_SIZE + 12);
+    }
+
+    public String getInterface(int adjacency) {
+        return getString(getInterfaceId(adjacency));
+    }
+
+    /**
+     * @return Speed in Mb/s
+     */
+    public long getSpeed(int adjacency) {
+        return buf.getLong(adjacencyStart + adjacency * ADJACENCY_SIZE + 16);
+    }
+
+    public int getStringCount() {
+        return strings;
+    }
+
+    /**
+     * @return The string for the id, null for StringTable.NONE
+     */
+    public String getString(int id) {
+        if (id == StringTable.NONE) {
+            return null;
+        }
+        String s = decoded[id];
+        if (s == null) {
+            int start = buf.getInt(offsetStart + id * OFFSET_SIZE);
+            int end = buf.getInt(offsetStart + (id + 1) * OFFSET_SIZE);
+            byte[] b = new byte[end - start];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = buf.get(stringStart + start + i);
+            }
+            s = new String(b, StandardCharsets.UTF_8);
+            decoded[id] = s;    // Races only decode it twice
+        }
+        return s;
+    }
+}
@@ -0,0 +1,41 @@
+package uk.co.gockett.ipbtools.topology;
+
+/**
+ * Read access to a topology laid out as TopologyGraph does: nodes with a
+ * dense id, each one with a row of consecutive adjacencies. Implemented
+ * by the graph of a discovery and by TopologySnapshot, so both can be
+ * read, or compared, the same way.
+ * @author ruanoj@github
+ */
+public interface TopologyView {
+
+    /**
+     * @return Number of nodes; ids go from 0 to size() - 1
+     */
+    int size();
+
+    /**
+     * @return The node id for the address, TopologyGraph.NO_NODE if it is
+     * not known
+     */
+    int nodeOf(int address);
+
+    int getAddress(int id);
+
+    String getHostname(int id);
+
+    int getAdjacencyStart(int id);
+
+    int getAdjacencyCount(int id);
+
+    int getPeerAddress(int adjacency);
+
+    int getIfIndex(int adjacency);
+
+    String getInterface(int adjacency);
+
+    /**
+     * @return Speed in Mb/s
+     */
+    long getSpeed(int adjacency);
+}
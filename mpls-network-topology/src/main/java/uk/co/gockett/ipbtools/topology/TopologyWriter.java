@@ -0,0 +1,299 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * Writes routers and their adjacencies as each router completes, so the
+ * topology can be consumed while the crawl goes on.
+ *
+ * Formats, one record per line:
+ *  - TEXT:   "# address (hostname)", then "address:peer:interface:speed"
+ *            per adjacency, as in the end-of-run dump
+ *  - CSV:    "router,address,hostname,,," and
+ *            "adjacency,address,,peer,interface,speed", after a header
+ *  - NDJSON: {"type":"router",...} and {"type":"adjacency",...}
+ *
+ * Shadow routers, and any other excluded by hostname in ScopePolicy, are
+ * filtered inline: they are not written, nor are adjacencies to them. As
+ * a peer is only known to be a shadow once it is queried, adjacencies to
+ * peers not done yet are held back until the peer completes; close()
+ * writes those whose peer never did.
+ *
+ * Output is built per router and written to the channel in one go.
+ * @author ruanoj@github
+ */
+public class TopologyWriter implements ResultListener {
+
+    public enum Format { TEXT, CSV, NDJSON }
+
+    private final static int DONE = 1;
+    private final static int SHADOW_DONE = 2;
+
+    private final WritableByteChannel out;
+    private final Format format;
+    private final StringBuilder sb = new StringBuilder(4096);
+    private final IntIntMap state = new IntIntMap(64);     // [ address ] = DONE | SHADOW_DONE
+    // [ peer address ] = adjacencies to it waiting for the peer to complete
+    private final Hashtable<Integer, List<Held>> held = new Hashtable<Integer, List<Held>>();
+    private int routers = 0;
+    private int adjacencies = 0;
+    private IOException error = null;
+
+    /*
+     * An adjacency waiting for its peer
+     */
+    private static class Held {
+        final int address;
+        final String ifName;
+        final long speed;
+
+        Held(int address, String ifName, long speed) {
+            this.address = address;
+            this.ifName = ifName;
+            this.speed = speed;
+        }
+    }
+
+    public TopologyWriter(WritableByteChannel out, Format format) {
+        this.out = out;
+        this.format = format;
+    }
+
+    /**
+     * @return The format for its name, case insensitive
+     * @throws IllegalArgumentException if there is none
+     */
+    public static Format parseFormat(String name) {
+        return Format.valueOf(name.toUpperCase());
+    }
+
+    /**
+     * Writes the CSV header. Other formats have none.
+     */
+    public synchronized void start() {
+        if (format == Format.CSV) {
+            sb.append("type,address,hostname,peer,interface,speed\n");
+            flush();
+        }
+    }
+
+    public void routerCompleted(Router router, boolean answered) {
+        // Routers that did not answer may take a DNS lookup
+        String hostname = router.getHostname();
+        write(router, IPUtils.ipToInt(router.getHostAddress()), hostname);
+    }
+
+    private synchronized void write(Router router, int address, String hostname) {
+        boolean shadow = !ScopePolicy.getPolicy().admitsHostname(hostname);
+        state.put(address, shadow ? SHADOW_DONE : DONE);
+
+        if (!shadow) {
+            routerRecord(address, hostname);
+            TopologyGraph graph = RouterStorage.getAdjStorage().getGraph();
+            int id = router.getNodeId();
+            int end = graph.getAdjacencyStart(id) + graph.getAdjacencyCount(id);
+            for (int a = graph.getAdjacencyStart(id); a < end; a++) {
+                int peer = graph.getPeerAddress(a);
+                int peerState = state.get(peer, 0);
+                if (peerState == 0) {
+                    peerState = pending(graph, peer);
+                }
+                if (peerState == DONE) {
+                    adjacencyRecord(address, peer, graph.getInterface(a), graph.getSpeed(a));
+                } else if (peerState == 0) {
+                    hold(peer, new Held(address, graph.getInterface(a), graph.getSpeed(a)));
+                }
+            }
+        }
+
+        // Adjacencies that were waiting for this router
+        List<Held> waiting = held.remove(Integer.valueOf(address));
+        if (waiting != null && !shadow) {
+            for (int i = 0; i < waiting.size(); i++) {
+                Held h = waiting.get(i);
+                adjacencyRecord(h.address, address, h.ifName, h.speed);
+            }
+        }
+        flush();
+    }
+
+    /*
+     * Peers that will never complete need not wait: those out of scope and
+     * those excluded by a hostname known before querying them
+     */
+    private static int pending(TopologyGraph graph, int peer) {
+        if (RouterStorage.getAdjStorage().isOutOfScope(peer)) {
+            return DONE;
+        }
+        int id = graph.nodeOf(peer);
+        String hostname = id == TopologyGraph.NO_NODE ? null : graph.getHostname(id);
+        if (hostname != null && !ScopePolicy.getPolicy().admitsHostname(hostname)) {
+            return SHADOW_DONE;
+        }
+        return 0;
+    }
+
+    private void hold(int peer, Held h) {
+        Integer key = Integer.valueOf(peer);
+        List<Held> list = held.get(key);
+        if (list == null) {
+            list = new ArrayList<Held>(2);
+            held.put(key, list);
+        }
+        list.add(h);
+    }
+
+    /**
+     * Writes the adjacencies still held, to peers that were never
+     * queried.
+     *
+     * @throws IOException The first error writing, if any
+     */
+    public synchronized void close() throws IOException {
+        Enumeration<Integer> en = held.keys();
+        while (en.hasMoreElements()) {
+            Integer peer = en.nextElement();
+            List<Held> waiting = held.get(peer);
+            for (int i = 0; i < waiting.size(); i++) {
+                Held h = waiting.get(i);
+                adjacencyRecord(h.address, peer.intValue(), h.ifName, h.speed);
+            }
+        }
+        held.clear();
+        flush();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public synchronized int getRouters() {
+        return routers;
+    }
+
+    public synchronized int getAdjacencies() {
+        return adjacencies;
+    }
+
+    /**
+     * @return Adjacencies waiting for their peer to complete
+     */
+    public synchronized int getHeld() {
+        int n = 0;
+        Enumeration<List<Held>> en = held.elements();
+        while (en.hasMoreElements()) {
+            n += en.nextElement().size();
+        }
+        return n;
+    }
+
+    private void routerRecord(int address, String hostname) {
+        routers++;
+        switch (format) {
+        case TEXT:
+            sb.append("# ");
+            IPUtils.appendIp(sb, address).append(" (").append(hostname).append(")\n");
+            break;
+        case CSV:
+            sb.append("router,");
+            IPUtils.appendIp(sb, address).append(',');
+            csv(hostname).append(",,,\n");
+            break;
+        case NDJSON:
+            sb.append("{\"type\":\"router\",\"address\":\"");
+            IPUtils.appendIp(sb, address).append("\",\"hostname\":");
+            json(hostname).append("}\n");
+            break;
+        }
+    }
+
+    /*
+     * Speeds are in Mb/s, written in kb/s as the end-of-run dump does
+     */
+    private void adjacencyRecord(int address, int peer, String ifName, long speed) {
+        adjacencies++;
+        switch (format) {
+        case TEXT:
+            IPUtils.appendIp(sb, address).append(':');
+            IPUtils.appendIp(sb, peer).append(':').append(ifName).append(':')
+              .append(1000 * speed).append('\n');
+            break;
+        case CSV:
+            sb.append("adjacency,");
+            IPUtils.appendIp(sb, address).append(",,");
+            IPUtils.appendIp(sb, peer).append(',');
+            csv(ifName).append(',').append(1000 * speed).append('\n');
+            break;
+        case NDJSON:
+            sb.append("{\"type\":\"adjacency\",\"address\":\"");
+            IPUtils.appendIp(sb, address).append("\",\"peer\":\"");
+            IPUtils.appendIp(sb, peer).append("\",\"interface\":");
+            json(ifName).append(",\"speed\":").append(1000 * speed).append("}\n");
+            break;
+        }
+    }
+
+    private StringBuilder csv(String s) {
+        if (s == null) {
+            return sb;
+        }
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+            return sb.append(s);
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        return sb.append('"');
+    }
+
+    private StringBuilder json(String s) {
+        if (s == null) {
+            return sb.append("null");
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+
+    /*
+     * Errors are kept for close() to report; the crawl goes on
+     */
+    private void flush() {
+        if (sb.length() == 0) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        sb.setLength(0);
+        if (error != null) {
+            return;
+        }
+        try {
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+        } catch (IOException e) {
+            System.err.println("TopologyWriter: " + e.getMessage());
+            error = e;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package uk.co.gockett.ipbtools.topology;
+
+/**
+ * Service provider interface for the SNMP specifics of a vendor: which
+ * MIBs reveal the LDP adjacencies of its devices, declared as a QueryPlan,
+ * and how their LDP sessions are counted.
+ *
+ * SNMPQuery asks VendorDrivers for the driver of every device once its
+ * personality is known, so supporting a new vendor takes a new driver and
+ * no change to SNMPQuery. The driver is the AdjacencySource of last
+ * resort for its devices, used when no standard MIB is cheaper or
+ * complete, and its LDP session count is what the adjacencies of other
+ * sources are checked against. Drivers are stateless and shared by every
+ * query.
+ * @author ruanoj@github
+ */
+public interface VendorDriver extends AdjacencySource {
+
+    /**
+     * @return true if the driver knows how to query the device
+     */
+    public boolean accepts(DevicePersonality personality);
+
+    /**
+     * Cheap change indicator: counts the LDP sessions of the current
+     * address of the query, as planAdjacencies() does, with a single walk.
+     * There are as many as adjacent routers the plan finds, which the plan
+     * reports to SNMPQuery.setLdpSessions().
+     *
+     * @return The count, -1 on error
+     */
+    public int countLdpSessions(SNMPQuery query);
+}
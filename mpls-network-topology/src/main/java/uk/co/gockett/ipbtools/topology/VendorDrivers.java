@@ -0,0 +1,52 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Registry of the VendorDriver of every supported vendor: the built-in
+ * Cisco and Juniper ones, any found by java.util.ServiceLoader in
+ * META-INF/services/uk.co.gockett.ipbtools.topology.VendorDriver, and any
+ * registered at run time. Drivers registered later are asked first, so
+ * they can take over from the built-in ones.
+ * @author ruanoj@github
+ */
+public class VendorDrivers {
+
+    private final static List<VendorDriver> drivers = new ArrayList<VendorDriver>();
+
+    static {
+        drivers.add(new JuniperDriver());
+        drivers.add(new CiscoDriver());
+        try {
+            Iterator<VendorDriver> it = ServiceLoader.load(VendorDriver.class).iterator();
+            while (it.hasNext()) {
+                drivers.add(0, it.next());
+            }
+        } catch (ServiceConfigurationError e) {
+            System.err.println("VendorDrivers: " + e.getMessage());
+        }
+    }
+
+    private VendorDrivers() {
+    }
+
+    public static synchronized void register(VendorDriver driver) {
+        drivers.add(0, driver);
+    }
+
+    /**
+     * @return The driver for the device, null if no driver accepts it
+     */
+    public static synchronized VendorDriver forPersonality(DevicePersonality personality) {
+        for (int i = 0; i < drivers.size(); i++) {
+            if (drivers.get(i).accepts(personality)) {
+                return drivers.get(i);
+            }
+        }
+        return null;
+    }
+}
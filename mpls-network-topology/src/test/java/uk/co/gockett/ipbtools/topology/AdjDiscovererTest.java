@@ -0,0 +1,185 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.snmp4j.PDU;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.VariableBinding;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for incremental discovery in AdjDiscoverer, against a
+ * ScriptedAgent playing a Juniper router.
+ */
+public class AdjDiscovererTest
+    extends TestCase
+{
+    private final static String ADDRESS = "127.0.0.1";
+    private final static OID SYS_DESCR = new OID( "1.3.6.1.2.1.1.1.0" );
+    private final static OID SYS_OBJECT_ID = new OID( "1.3.6.1.2.1.1.2.0" );
+    private final static OID SYS_UPTIME = new OID( "1.3.6.1.2.1.1.3.0" );
+    private final static OID SYS_NAME = new OID( "1.3.6.1.2.1.1.5.0" );
+    private final static OID IF_TABLE_LAST_CHANGE = new OID( "1.3.6.1.2.1.31.1.5.0" );
+    private final static OID JNX_LDP_ADJ = new OID( "1.3.6.1.4.1.2636.3.36.1.3.5.1.1.3" );
+    private final static OID JNX_LDP_ADJ_NEXT = new OID( "1.3.6.1.4.1.2636.3.36.1.3.5.1.1.4" );
+    private final static OID IF_DESCR_16 = new OID( "1.3.6.1.2.1.2.2.1.2.16" );
+    private final static OID IF_HIGH_SPEED_16 = new OID( "1.3.6.1.2.1.31.1.1.1.15.16" );
+    private final static String JUNIPER = "1.3.6.1.4.1.2636.1.1.1.2.25";
+
+    private ScriptedAgent agent;
+    private DiscoveryCache cache;
+
+    public AdjDiscovererTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AdjDiscovererTest.class );
+    }
+
+    private static PDU request( int type, OID... oids )
+    {
+        PDU pdu = new PDU();
+        pdu.setType( type );
+        for ( OID oid : oids )
+        {
+            pdu.add( new VariableBinding( oid ) );
+        }
+        return pdu;
+    }
+
+    private static PDU response( VariableBinding... vbs )
+    {
+        PDU pdu = new PDU();
+        pdu.setType( PDU.RESPONSE );
+        for ( VariableBinding vb : vbs )
+        {
+            pdu.add( vb );
+        }
+        return pdu;
+    }
+
+    /*
+     * Link hello adjacency from this router to 10.0.0.<peer> on ifIndex 16
+     */
+    private static VariableBinding adjacency( int peer )
+    {
+        OID row = new OID( JNX_LDP_ADJ ).append( "127.0.0.1.0.0.1.10.0.0." + peer + ".0.0.16" );
+        return new VariableBinding( row, new Integer32( 1 ) );
+    }
+
+    private static PDU probe( VariableBinding... lastChange )
+    {
+        PDU pdu = response( new VariableBinding( SYS_DESCR, new OctetString( "Juniper Networks" ) ),
+                            new VariableBinding( SYS_OBJECT_ID, new OID( JUNIPER ) ),
+                            new VariableBinding( SYS_UPTIME, new TimeTicks( 2000L ) ),
+                            new VariableBinding( SYS_NAME, new OctetString( "p-a" ) ) );
+        for ( VariableBinding vb : lastChange )
+        {
+            pdu.add( vb );
+        }
+        return pdu;
+    }
+
+    private static DevicePersonality personality( long sysUpTime, long ifTableLastChange )
+    {
+        return new DevicePersonality( ADDRESS, "Juniper Networks", JUNIPER,
+                                      sysUpTime, "p-a", ifTableLastChange );
+    }
+
+    protected void setUp() throws IOException
+    {
+        agent = new ScriptedAgent();
+        SNMPQuery.setDefaultPort( agent.getAddress().getPort() );
+        PersonalityCache.getCache().remove( ADDRESS );
+        AdjDiscoverer.setIncremental( true );
+        cache = DiscoveryCache.open( null );
+
+        agent.add( request( PDU.GET, IF_DESCR_16, IF_HIGH_SPEED_16 ),
+                   response( new VariableBinding( IF_DESCR_16, new OctetString( "ge-0/0/16" ) ),
+                             new VariableBinding( IF_HIGH_SPEED_16, new Integer32( 1000 ) ) ) );
+
+        // Cached with one session, on a different interface than the agent's
+        Hashtable<String, Adjacency> adjs = new Hashtable<String, Adjacency>();
+        Adjacency adj = new Adjacency( "10.0.0.2" );
+        adj.setSNMPInterface( 2 );
+        adj.setRouterInterface( "ge-0/0/2", 1000L );
+        adjs.put( "10.0.0.2", adj );
+        cache.put( personality( 1000L, 500L ), adjs, 1 );
+    }
+
+    protected void tearDown()
+    {
+        AdjDiscoverer.setIncremental( false );
+        PersonalityCache.getCache().remove( ADDRESS );
+        SNMPQuery.setDefaultPort( SNMPQuery.DEFAULT_UDP_PORT );
+        SNMPEngine.shutdown();
+        agent.close();
+    }
+
+    private Map<String, Adjacency> discover() throws IOException
+    {
+        agent.add( request( PDU.GET, SYS_DESCR, SYS_OBJECT_ID, SYS_UPTIME, SYS_NAME, IF_TABLE_LAST_CHANGE ),
+                   probe( new VariableBinding( IF_TABLE_LAST_CHANGE, new TimeTicks( 500L ) ) ) );
+        return new AdjDiscoverer().findAdjacencies( new Router( InetAddress.getByName( ADDRESS ) ) );
+    }
+
+    public void testUnchanged() throws IOException
+    {
+        // Up since, same ifTableLastChange and session count
+        agent.add( request( PDU.GETBULK, JNX_LDP_ADJ ),
+                   response( adjacency( 3 ), new VariableBinding( JNX_LDP_ADJ_NEXT, new Integer32( 0 ) ) ) );
+        Map<String, Adjacency> adjs = discover();
+
+        // Probe and session count only
+        assertEquals( 2, agent.getReceived() );
+        assertEquals( 1, adjs.size() );
+        assertEquals( "ge-0/0/2", adjs.get( "10.0.0.2" ).getRouterInterface() );
+        assertEquals( 1, cache.getHits() );
+    }
+
+    public void testSessionCountChanged() throws IOException
+    {
+        agent.add( request( PDU.GETBULK, JNX_LDP_ADJ ),
+                   response( adjacency( 3 ), adjacency( 4 ),
+                             new VariableBinding( JNX_LDP_ADJ_NEXT, new Integer32( 0 ) ) ) );
+        Map<String, Adjacency> adjs = discover();
+
+        // Probe, session count, LDP walk and interfaces
+        assertEquals( 4, agent.getReceived() );
+        assertEquals( 2, adjs.size() );
+        assertEquals( "ge-0/0/16", adjs.get( "10.0.0.3" ).getRouterInterface() );
+        assertEquals( 1, cache.getMisses() );
+        assertEquals( 2, cache.get( ADDRESS ).getLdpSessions() );
+    }
+
+    public void testProbeWithoutLastChange()
+    {
+        // SNMPv1 agent without IF-MIB
+        PDU probe = request( PDU.GET, SYS_DESCR, SYS_OBJECT_ID, SYS_UPTIME, SYS_NAME, IF_TABLE_LAST_CHANGE );
+        PDU noSuchName = (PDU) probe.clone();
+        noSuchName.setErrorStatus( PDU.noSuchName );
+        noSuchName.setErrorIndex( 5 );
+        agent.add( probe, noSuchName );
+        agent.add( request( PDU.GET, SYS_DESCR, SYS_OBJECT_ID, SYS_UPTIME, SYS_NAME ), probe() );
+        SNMPQuery query = new SNMPQuery();
+        assertTrue( query.setAddress( ADDRESS ) );
+
+        DevicePersonality p = query.getDevicePersonality();
+        assertEquals( 2, agent.getReceived() );
+        assertEquals( DevicePersonality.Vendor.JUNIPER, p.getVendor() );
+        assertEquals( "p-a", p.getSysName() );
+        assertEquals( -1L, p.getIfTableLastChange() );
+    }
+}
@@ -0,0 +1,301 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.snmp4j.PDU;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.Null;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.VariableBinding;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for AdjacencySources, MibCapabilities and the sources, and
+ * for SNMPQuery choosing a source against a ScriptedAgent playing a
+ * Cisco router.
+ */
+public class AdjacencySourcesTest
+    extends TestCase
+{
+    private final static String ADDRESS = "127.0.0.1";
+    private final static OID SYS_DESCR = new OID( "1.3.6.1.2.1.1.1.0" );
+    private final static OID SYS_OBJECT_ID = new OID( "1.3.6.1.2.1.1.2.0" );
+    private final static OID SYS_UPTIME = new OID( "1.3.6.1.2.1.1.3.0" );
+    private final static OID SYS_NAME = new OID( "1.3.6.1.2.1.1.5.0" );
+    private final static OID IF_TABLE_LAST_CHANGE = new OID( "1.3.6.1.2.1.31.1.5.0" );
+    private final static OID LLDP_CAP = new OID( "1.0.8802.1.1.2.1.4.1.1.12" );
+    private final static OID LLDP_ADDR = new OID( "1.0.8802.1.1.2.1.4.2.1.3" );
+    private final static OID LLDP_PORT_SUBTYPE = new OID( "1.0.8802.1.1.2.1.3.7.1.2" );
+    private final static OID LLDP_PORT_ID = new OID( "1.0.8802.1.1.2.1.3.7.1.3" );
+    private final static OID IF_NAME = new OID( "1.3.6.1.2.1.31.1.1.1.1" );
+    private final static OID IF_DESCR_16 = new OID( "1.3.6.1.2.1.2.2.1.2.16" );
+    private final static OID IF_HIGH_SPEED_16 = new OID( "1.3.6.1.2.1.31.1.1.1.15.16" );
+    private final static OID LDP_STATE = new OID( "1.3.6.1.4.1.9.10.65.1.3.4.1.1" );
+    private final static String CISCO = "1.3.6.1.4.1.9.1.1";
+
+    private ScriptedAgent agent;
+
+    public AdjacencySourcesTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AdjacencySourcesTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        agent = new ScriptedAgent();
+        SNMPQuery.setDefaultPort( agent.getAddress().getPort() );
+        PersonalityCache.getCache().remove( ADDRESS );
+        DeviceHealth.getHealth().setLimits( DeviceHealth.MIN_TIMEOUT, 0 );
+    }
+
+    protected void tearDown()
+    {
+        AdjacencySources.setEnabled( "ldp" );
+        PersonalityCache.getCache().remove( ADDRESS );
+        DeviceHealth.getHealth().setLimits( DeviceHealth.DEFAULT_MAX_TIMEOUT, DeviceHealth.DEFAULT_RETRIES );
+        DeviceHealth.getHealth().reset();
+        SNMPQuery.setDefaultPort( SNMPQuery.DEFAULT_UDP_PORT );
+        SNMPEngine.shutdown();
+        agent.close();
+    }
+
+    private static DevicePersonality cisco()
+    {
+        return new DevicePersonality( "10.0.0.1", "Cisco IOS XR", CISCO, 100L, "pe1", -1L );
+    }
+
+    private static PDU request( int type, OID... oids )
+    {
+        PDU pdu = new PDU();
+        pdu.setType( type );
+        for ( OID oid : oids )
+        {
+            pdu.add( new VariableBinding( oid ) );
+        }
+        return pdu;
+    }
+
+    private static PDU answer( VariableBinding... vbs )
+    {
+        PDU pdu = new PDU();
+        pdu.setType( PDU.RESPONSE );
+        for ( VariableBinding vb : vbs )
+        {
+            pdu.add( vb );
+        }
+        return pdu;
+    }
+
+    /*
+     * The rows of a walk, then the end of the MIB
+     */
+    private static PDU rows( VariableBinding... vbs )
+    {
+        PDU pdu = answer( vbs );
+        pdu.add( new VariableBinding( new OID( "1.3.6.1.6.3.1.1.4.1.0" ), Null.endOfMibView ) );
+        return pdu;
+    }
+
+    private static VariableBinding row( OID column, String index, Integer32 value )
+    {
+        return new VariableBinding( new OID( column ).append( index ), value );
+    }
+
+    private static VariableBinding row( OID column, String index, OctetString value )
+    {
+        return new VariableBinding( new OID( column ).append( index ), value );
+    }
+
+    /*
+     * GETBULK response with the given rows under each column, then the
+     * next column or endOfMibView
+     */
+    private static PDU response( OID[] columns, int[] rows, int repetitions )
+    {
+        PDU pdu = new PDU();
+        for ( int r = 0; r < repetitions; r++ ) {
+            for ( int c = 0; c < columns.length; c++ ) {
+                if ( r < rows[c] ) {
+                    pdu.add( new VariableBinding( OIDCodec.appendIndex( columns[c], r + 1 ), new Integer32( 1 ) ) );
+                } else {
+                    pdu.add( new VariableBinding( new OID( "1.3.6.1.6.3.1.1.4.1.0" ), Null.endOfMibView ) );
+                }
+            }
+        }
+        return pdu;
+    }
+
+    public void testCapabilities()
+    {
+        OID[] columns = { LLDP_CAP, LLDP_ADDR, LDP_STATE };
+        MibCapabilities caps = new MibCapabilities( cisco(), columns,
+            response( columns, new int[] { 3, 0, 10 }, 10 ) );
+
+        assertTrue( caps.responds( LLDP_CAP ) );
+        assertFalse( caps.responds( LLDP_ADDR ) );
+        assertTrue( caps.responds( LDP_STATE ) );
+    }
+
+    public void testDefault()
+    {
+        // The driver alone, with no probe
+        VendorDriver driver = new CiscoDriver();
+        List<AdjacencySource> candidates = AdjacencySources.candidates( driver );
+        assertEquals( 1, candidates.size() );
+        assertSame( driver, candidates.get( 0 ) );
+    }
+
+    public void testRank()
+    {
+        AdjacencySources.setEnabled( "lldp,isis,ospf" );
+        VendorDriver driver = new CiscoDriver();
+        List<AdjacencySource> candidates = AdjacencySources.candidates( driver );
+        OID[] columns = AdjacencySources.columns( candidates );
+
+        // Only LLDP and LDP answer: LLDP is cheaper
+        int[] rows = new int[columns.length];
+        for ( int c = 0; c < columns.length; c++ ) {
+            if ( columns[c].equals( LLDP_CAP ) || columns[c].equals( LLDP_ADDR )
+                    || columns[c].equals( LLDP_PORT_ID ) || columns[c].equals( LDP_STATE ) ) {
+                rows[c] = 4;
+            }
+        }
+        MibCapabilities caps = new MibCapabilities( cisco(), columns,
+            response( columns, rows, MibCapabilities.PROBE_REPETITIONS ) );
+        List<AdjacencySource> ranked = AdjacencySources.rank( candidates, caps, driver );
+        assertEquals( 2, ranked.size() );
+        assertEquals( "lldp", ranked.get( 0 ).getName() );
+        assertSame( driver, ranked.get( 1 ) );
+
+        // Once incomplete, only the driver is left
+        caps.setIncomplete( ranked.get( 0 ) );
+        ranked = AdjacencySources.rank( candidates, caps, driver );
+        assertEquals( 1, ranked.size() );
+        assertSame( driver, ranked.get( 0 ) );
+
+        // The driver stays even if its MIB does not answer
+        caps = new MibCapabilities( cisco(), columns,
+            response( columns, new int[columns.length], 1 ) );
+        ranked = AdjacencySources.rank( new ArrayList<AdjacencySource>( candidates ), caps, driver );
+        assertEquals( 1, ranked.size() );
+    }
+
+    public void testPortIfIndex()
+    {
+        Hashtable<String, Integer> ifNames = new Hashtable<String, Integer>();
+        ifNames.put( "ge-0/0/16", Integer.valueOf( 16 ) );
+
+        // local(7) numbers are ifIndexes, names are looked up in ifName
+        assertEquals( 517, LldpSource.portIfIndex( 7, "517", null ) );
+        assertEquals( 16, LldpSource.portIfIndex( 5, "ge-0/0/16", ifNames ) );
+        assertEquals( 16, LldpSource.portIfIndex( 7, "ge-0/0/16", ifNames ) );
+        assertEquals( 0, LldpSource.portIfIndex( 5, "ge-0/0/16", null ) );
+        assertEquals( 0, LldpSource.portIfIndex( 5, "ge-0/0/17", ifNames ) );
+
+        // macAddress(3)
+        assertEquals( 0, LldpSource.portIfIndex( 3, "16", ifNames ) );
+    }
+
+    /*
+     * Scripts a Cisco router with an LLDP router neighbour, 10.0.0.2, on
+     * local port 3, named ge-0/0/16 (ifIndex 16), and the given operational
+     * LDP sessions
+     */
+    private SNMPQuery lldpRouter( int sessions )
+    {
+        AdjacencySources.setEnabled( "lldp" );
+        PDU probe = request( PDU.GET, SYS_DESCR, SYS_OBJECT_ID, SYS_UPTIME, SYS_NAME, IF_TABLE_LAST_CHANGE );
+        agent.add( probe, answer( new VariableBinding( SYS_DESCR, new OctetString( "Cisco IOS XR" ) ),
+                                  new VariableBinding( SYS_OBJECT_ID, new OID( CISCO ) ),
+                                  new VariableBinding( SYS_UPTIME, new TimeTicks( 2000L ) ),
+                                  new VariableBinding( SYS_NAME, new OctetString( "pe1" ) ),
+                                  new VariableBinding( IF_TABLE_LAST_CHANGE, new TimeTicks( 500L ) ) ) );
+
+        OID[] columns = AdjacencySources.columns( AdjacencySources.candidates( new CiscoDriver() ) );
+        int[] counts = new int[columns.length];
+        for ( int c = 0; c < columns.length; c++ )
+        {
+            counts[c] = columns[c].startsWith( new OID( "1.0.8802" ) ) || columns[c].equals( LDP_STATE ) ? 1 : 0;
+        }
+        agent.add( request( PDU.GETBULK, columns ), response( columns, counts, 1 ) );
+
+        agent.add( request( PDU.GETBULK, LLDP_CAP ),
+                   rows( row( LLDP_CAP, "0.3.1", new OctetString( new byte[] { 0x08 } ) ) ) );
+        agent.add( request( PDU.GETBULK, LLDP_ADDR ),
+                   rows( row( LLDP_ADDR, "0.3.1.1.4.10.0.0.2", new Integer32( 2 ) ) ) );
+        agent.add( request( PDU.GETBULK, LLDP_PORT_SUBTYPE ),
+                   rows( row( LLDP_PORT_SUBTYPE, "3", new Integer32( 5 ) ) ) );
+        agent.add( request( PDU.GETBULK, LLDP_PORT_ID ),
+                   rows( row( LLDP_PORT_ID, "3", new OctetString( "ge-0/0/16" ) ) ) );
+        agent.add( request( PDU.GETBULK, IF_NAME ),
+                   rows( row( IF_NAME, "16", new OctetString( "ge-0/0/16" ) ),
+                         row( IF_NAME, "17", new OctetString( "ge-0/0/17" ) ) ) );
+
+        VariableBinding[] sessionRows = new VariableBinding[sessions];
+        for ( int i = 0; i < sessions; i++ )
+        {
+            // Entity LDP id, link address as an integer, peer LDP id
+            sessionRows[i] = row( LDP_STATE, "127.0.0.1.0.0." + ( 0x0a000100 + i ) + ".10.0.0." + ( i + 2 ) + ".0.0",
+                                  new Integer32( 5 ) );
+        }
+        agent.add( request( PDU.GETBULK, LDP_STATE ), rows( sessionRows ) );
+
+        agent.add( request( PDU.GET, IF_DESCR_16, IF_HIGH_SPEED_16 ),
+                   answer( new VariableBinding( IF_DESCR_16, new OctetString( "GigabitEthernet0/0/0/16" ) ),
+                           new VariableBinding( IF_HIGH_SPEED_16, new Integer32( 1000 ) ) ) );
+
+        SNMPQuery query = new SNMPQuery();
+        assertTrue( query.setAddress( ADDRESS ) );
+        return query;
+    }
+
+    public void testLldpAgreesWithLdp()
+    {
+        SNMPQuery query = lldpRouter( 1 );
+        Hashtable<String, Adjacency> adjs = query.getAdjacencies();
+
+        // LLDP port 3 is ifIndex 16
+        assertNotNull( adjs );
+        assertEquals( 1, adjs.size() );
+        Adjacency adj = adjs.get( "10.0.0.2" );
+        assertEquals( 16, adj.getSNMPInterface() );
+        assertEquals( "GigabitEthernet0/0/0/16", adj.getRouterInterface() );
+        assertEquals( 1, query.getLdpSessions() );
+    }
+
+    public void testLldpDisagreesWithLdp()
+    {
+        // A router reached over LDP alone: LLDP sees one neighbour of two
+        SNMPQuery query = lldpRouter( 2 );
+        AdjacencySource lldp = AdjacencySources.candidates( null ).get( 0 );
+        query.getAdjacencies();
+
+        // Left to the driver, which is not scripted further
+        MibCapabilities caps = AdjacencySources.getCapabilities( query.getDevicePersonality() );
+        assertTrue( caps.isIncomplete( lldp ) );
+    }
+
+    public void testSysIdToIp()
+    {
+        byte[] id = { 0x19, 0x21, 0x68, 0x00, 0x10, 0x01 };
+        assertEquals( "192.168.1.1", IPUtils.intToIp( IsisSource.sysIdToIp( id, 0 ) ) );
+
+        // Hex digits, octets over 255, wrong length
+        assertEquals( 0, IsisSource.sysIdToIp( new byte[] { 0x00, 0x0a, 0, 0, 0, 1 }, 0 ) );
+        assertEquals( 0, IsisSource.sysIdToIp( new byte[] { 0x30, 0x00, 0, 0, 0, 1 }, 0 ) );
+        assertEquals( 0, IsisSource.sysIdToIp( new byte[] { 0x19, 0x21 }, 0 ) );
+    }
+}
@@ -0,0 +1,137 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.IOException;
+
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Null;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.VariableBinding;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for BulkWalker max-repetitions, against a ScriptedAgent.
+ */
+public class BulkWalkerTest
+    extends TestCase
+{
+    private final static OID IF_DESCR = new OID( "1.3.6.1.2.1.2.2.1.2" );
+    private final static OID IF_TYPE_1 = new OID( "1.3.6.1.2.1.2.2.1.3.1" );
+
+    private ScriptedAgent agent;
+    private CommunityTarget target;
+    private String address;
+    private BulkWalker walker;
+
+    public BulkWalkerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BulkWalkerTest.class );
+    }
+
+    private static PDU request( int type, OID oid )
+    {
+        PDU pdu = new PDU();
+        pdu.setType( type );
+        pdu.add( new VariableBinding( oid ) );
+        return pdu;
+    }
+
+    private static PDU response( OID... oids )
+    {
+        PDU pdu = new PDU();
+        pdu.setType( PDU.RESPONSE );
+        for ( OID oid : oids )
+        {
+            pdu.add( new VariableBinding( oid, new OctetString( "ge-0/0/" + oid.last() ) ) );
+        }
+        return pdu;
+    }
+
+    private static OID row( int index )
+    {
+        return new OID( IF_DESCR ).append( index );
+    }
+
+    protected void setUp() throws IOException
+    {
+        agent = new ScriptedAgent();
+        target = agent.getTarget( SnmpConstants.version2c );
+        address = target.getAddress().toString();
+        walker = new BulkWalker( SNMPEngine.getEngine() );
+    }
+
+    protected void tearDown()
+    {
+        SNMPEngine.shutdown();
+        agent.close();
+    }
+
+    public void testFullResponse()
+    {
+        // Full response, then the end of the column
+        agent.add( request( PDU.GETBULK, IF_DESCR ), response( row( 1 ), row( 2 ) ) );
+        agent.add( request( PDU.GETBULK, row( 2 ) ), response( row( 3 ), IF_TYPE_1 ) );
+        BulkWalker.setMaxRepetitions( address, 2 );
+        BulkWalker.Walk walk = walker.walk( target, IF_DESCR );
+
+        assertTrue( walk.isOk() );
+        assertEquals( 3, walk.getRows().size() );
+        assertEquals( 2, walk.getRoundTrips() );
+        assertEquals( new OID( "3" ), walk.getIndex( walk.getRows().get( 2 ) ) );
+        assertEquals( 4, walk.getMaxRepetitions() );
+        assertEquals( 4, BulkWalker.getMaxRepetitions( address ) );
+    }
+
+    public void testTooBig()
+    {
+        // tooBig, then the whole column at once
+        PDU tooBig = response();
+        tooBig.setErrorStatus( PDU.tooBig );
+        agent.add( request( PDU.GETBULK, IF_DESCR ), tooBig );
+        agent.add( request( PDU.GETBULK, IF_DESCR ), response( row( 1 ), IF_TYPE_1 ) );
+        BulkWalker.setMaxRepetitions( address, 8 );
+        BulkWalker.Walk walk = walker.walk( target, IF_DESCR );
+
+        assertTrue( walk.isOk() );
+        assertEquals( 1, walk.getRows().size() );
+        assertEquals( 2, walk.getRoundTrips() );
+        assertEquals( 4, BulkWalker.getMaxRepetitions( address ) );
+    }
+
+    public void testTimeout()
+    {
+        BulkWalker.setMaxRepetitions( address, 8 );
+        BulkWalker.Walk walk = walker.walk( target, IF_DESCR );
+
+        assertFalse( walk.isOk() );
+        assertEquals( 1, walk.getRoundTrips() );
+        assertEquals( 4, BulkWalker.getMaxRepetitions( address ) );
+    }
+
+    public void testGetNext()
+    {
+        // SNMPv1: a row per round-trip, noSuchName at the end of the MIB
+        target = agent.getTarget( SnmpConstants.version1 );
+        agent.add( request( PDU.GETNEXT, IF_DESCR ), response( row( 1 ) ) );
+        PDU end = request( PDU.RESPONSE, row( 1 ) );
+        end.get( 0 ).setVariable( Null.instance );
+        end.setErrorStatus( PDU.noSuchName );
+        end.setErrorIndex( 1 );
+        agent.add( request( PDU.GETNEXT, row( 1 ) ), end );
+        BulkWalker.Walk walk = walker.walk( target, IF_DESCR );
+
+        assertTrue( walk.isOk() );
+        assertEquals( 1, walk.getRows().size() );
+        assertEquals( 2, walk.getRoundTrips() );
+    }
+}
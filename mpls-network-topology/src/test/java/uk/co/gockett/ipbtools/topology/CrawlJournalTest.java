@@ -0,0 +1,159 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Iterator;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for CrawlJournal.
+ */
+public class CrawlJournalTest
+    extends TestCase
+{
+    private File file;
+
+    public CrawlJournalTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CrawlJournalTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        file = File.createTempFile( "crawl", ".journal" );
+        RouterStorage.getAdjStorage().reset();
+    }
+
+    protected void tearDown()
+    {
+        file.delete();
+        new File( file.getPath() + ".ckpt" ).delete();
+        RouterStorage.getAdjStorage().reset();
+    }
+
+    /*
+     * A crawl of 10.0.0.1, answered with two peers, and 10.0.0.2, failed.
+     * 10.0.0.3 is left pending.
+     */
+    private static void crawl( CrawlJournal journal ) throws IOException
+    {
+        RouterStorage storage = RouterStorage.getAdjStorage();
+        Router a = new Router( InetAddress.getByName( "10.0.0.1" ) );
+        storage.newAdjacency( "10.0.0.1", a );
+        a.setHostname( "p-a" );
+        for ( int i = 2; i <= 3; i++ )
+        {
+            String peer = "10.0.0." + i;
+            Adjacency adj = new Adjacency( peer );
+            adj.setSNMPInterface( i );
+            adj.setRouterInterface( "ge-0/0/" + i, 1000L );
+            a.addAdjacency( peer, adj );
+            storage.newAdjacency( peer, new Router( InetAddress.getByName( peer ) ) );
+        }
+        journal.completed( a, true );
+        journal.completed( new Router( InetAddress.getByName( "10.0.0.2" ) ), false );
+    }
+
+    private static void assertResumed( CrawlJournal journal )
+    {
+        assertEquals( 3, journal.size() );
+        assertEquals( 2, journal.getFinished() );
+
+        RouterStorage storage = RouterStorage.getAdjStorage();
+        storage.reset();
+        assertEquals( 1, journal.resume( storage, null ) );
+        assertEquals( "10.0.0.3", ( (Router) storage.getPendingAdj() ).getHostAddress() );
+
+        Router a = (Router) storage.getData().next();
+        assertEquals( "p-a", a.getHostname() );
+        assertEquals( 2, a.getAdjacencies().size() );
+        Iterator<Adjacency> it = a.getAdjacencies().iterator();
+        while ( it.hasNext() )
+        {
+            Adjacency adj = it.next();
+            assertEquals( "ge-0/0/" + adj.getSNMPInterface(), adj.getRouterInterface() );
+            assertEquals( 1000L, adj.getSpeed() );
+        }
+    }
+
+    public void testResumeAfterCrash() throws IOException
+    {
+        crawl( CrawlJournal.open( file, false ) );
+
+        // Not closed, and torn by the crash
+        FileOutputStream out = new FileOutputStream( file, true );
+        out.write( new byte[] { 0, 0, 0, 40, 1, 2, 3 } );
+        out.close();
+
+        CrawlJournal journal = CrawlJournal.open( file, true );
+        try
+        {
+            assertEquals( 1, journal.getTorn() );
+            assertResumed( journal );
+        }
+        finally
+        {
+            journal.close();
+        }
+    }
+
+    public void testCompletedFirst() throws IOException
+    {
+        // Taken and queried by another worker before its discovery is logged
+        CrawlJournal journal = CrawlJournal.open( file, false );
+        journal.completed( new Router( InetAddress.getByName( "10.0.0.2" ) ), false );
+        journal.discovered( "10.0.0.2" );
+
+        journal = CrawlJournal.open( file, true );
+        try
+        {
+            assertEquals( 1, journal.size() );
+            assertEquals( 1, journal.getFinished() );
+        }
+        finally
+        {
+            journal.close();
+        }
+    }
+
+    public void testCheckpoints() throws IOException
+    {
+        CrawlJournal journal = CrawlJournal.open( file, false );
+        journal.setCheckpointInterval( 2 );
+        crawl( journal );
+
+        // Events split between the checkpoint and the log
+        journal = CrawlJournal.open( file, true );
+        try
+        {
+            assertEquals( 0, journal.getTorn() );
+            assertResumed( journal );
+        }
+        finally
+        {
+            journal.close();
+        }
+
+        // And once closed, all in the checkpoint
+        journal = CrawlJournal.open( file, true );
+        try
+        {
+            assertEquals( 16, file.length() );
+            assertResumed( journal );
+        }
+        finally
+        {
+            journal.close();
+        }
+    }
+}
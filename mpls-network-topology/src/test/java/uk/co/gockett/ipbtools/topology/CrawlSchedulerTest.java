@@ -0,0 +1,97 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.net.InetAddress;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for CrawlScheduler termination, in both modes. Seeds are in
+ * TEST-NET-1, so none of them answers.
+ */
+public class CrawlSchedulerTest
+    extends TestCase
+    implements DiscoveryListener
+{
+    private int successes;
+    private int errors;
+
+    public CrawlSchedulerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CrawlSchedulerTest.class );
+    }
+
+    protected void setUp()
+    {
+        RouterStorage.getAdjStorage().reset();
+    }
+
+    protected void tearDown()
+    {
+        RouterStorage.getAdjStorage().reset();
+    }
+
+    private void crawl( boolean threadPerRouter, String... seeds ) throws Exception
+    {
+        RouterStorage storage = RouterStorage.getAdjStorage();
+        storage.reset();
+        successes = errors = 0;
+        for ( String seed : seeds )
+        {
+            storage.newAdjacency( seed, new Router( InetAddress.getByName( seed ) ) );
+        }
+        CrawlScheduler scheduler = new CrawlScheduler( 2, threadPerRouter, this );
+        scheduler.start();
+        scheduler.awaitTermination();
+
+        assertTrue( storage.isFinished() );
+        assertEquals( 0, storage.getInFlightCount() );
+        assertEquals( 0, storage.getPendingCount() );
+    }
+
+    public void testEmptyFrontier() throws Exception
+    {
+        crawl( false );
+        assertEquals( 0, successes + errors );
+        crawl( true );
+        assertEquals( 0, successes + errors );
+    }
+
+    public void testFailingFrontier() throws Exception
+    {
+        crawl( false, "192.0.2.1", "192.0.2.2" );
+        assertEquals( 0, successes );
+        assertEquals( 2, errors );
+        crawl( true, "192.0.2.1", "192.0.2.2" );
+        assertEquals( 0, successes );
+        assertEquals( 2, errors );
+    }
+
+    public void join()
+    {
+    }
+
+    public void leave()
+    {
+    }
+
+    public void working()
+    {
+    }
+
+    public synchronized void successResult()
+    {
+        successes++;
+    }
+
+    public synchronized void errorResult()
+    {
+        errors++;
+    }
+}
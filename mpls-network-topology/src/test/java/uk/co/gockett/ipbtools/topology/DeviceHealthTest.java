@@ -0,0 +1,94 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.net.InetAddress;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.smi.UdpAddress;
+
+/**
+ * Unit test for DeviceHealth.
+ */
+public class DeviceHealthTest
+    extends TestCase
+{
+    public DeviceHealthTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DeviceHealthTest.class );
+    }
+
+    private static CommunityTarget target( String address ) throws Exception
+    {
+        CommunityTarget t = new CommunityTarget();
+        t.setAddress( new UdpAddress( InetAddress.getByName( address ), 161 ) );
+        t.setTimeout( 5000L );
+        return t;
+    }
+
+    private static long ago( long millis )
+    {
+        return System.nanoTime() - millis * 1000000L;
+    }
+
+    public void testTimeouts() throws Exception
+    {
+        DeviceHealth health = DeviceHealth.getHealth();
+        CommunityTarget t = target( "192.0.2.10" );
+        assertEquals( DeviceHealth.INITIAL_TIMEOUT, health.getTimeout( "192.0.2.10" ) );
+
+        // 2000 + 4 * 1000 ms, capped
+        health.exchange( t, new PDU(), ago( 2000L ) );
+        assertEquals( DeviceHealth.DEFAULT_MAX_TIMEOUT, health.getTimeout( "192.0.2.10" ) );
+
+        // Fast answers bring it down to the minimum
+        for ( int i = 0; i < 50; i++ )
+        {
+            health.exchange( t, new PDU(), ago( 1L ) );
+        }
+        assertEquals( DeviceHealth.MIN_TIMEOUT, health.getTimeout( "192.0.2.10" ) );
+    }
+
+    public void testBreaker() throws Exception
+    {
+        DeviceHealth health = DeviceHealth.getHealth();
+
+        // Never answered: open at the first timeout
+        CommunityTarget dead = target( "192.0.2.20" );
+        health.exchange( dead, null, ago( 3000L ) );
+        assertTrue( health.isOpen( "192.0.2.20" ) );
+
+        // Answered before: open after FAILURES in a row
+        CommunityTarget flaky = target( "192.0.2.21" );
+        health.exchange( flaky, new PDU(), ago( 10L ) );
+        for ( int i = 1; i < DeviceHealth.FAILURES; i++ )
+        {
+            health.exchange( flaky, null, ago( 3000L ) );
+        }
+        assertFalse( health.isOpen( "192.0.2.21" ) );
+        health.exchange( flaky, null, ago( 3000L ) );
+        assertTrue( health.isOpen( "192.0.2.21" ) );
+
+        health.reset();
+        assertFalse( health.isOpen( "192.0.2.20" ) );
+        assertFalse( health.isOpen( "192.0.2.21" ) );
+    }
+
+    public void testRetriesWithin()
+    {
+        // Attempts of 1000, 2000 and 4000 ms
+        assertEquals( 0, DeviceHealth.retriesWithin( 999L, 1000L, 2 ) );
+        assertEquals( 1, DeviceHealth.retriesWithin( 1000L, 1000L, 2 ) );
+        assertEquals( 1, DeviceHealth.retriesWithin( 2999L, 1000L, 2 ) );
+        assertEquals( 2, DeviceHealth.retriesWithin( 3000L, 1000L, 2 ) );
+        assertEquals( 2, DeviceHealth.retriesWithin( 60000L, 1000L, 2 ) );
+    }
+}
@@ -0,0 +1,145 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Hashtable;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for DiscoveryCache files.
+ */
+public class DiscoveryCacheTest
+    extends TestCase
+{
+    private final static String JUNIPER = "1.3.6.1.4.1.2636.1.1.1.2.25";
+
+    private File file;
+
+    public DiscoveryCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DiscoveryCacheTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        file = File.createTempFile( "discovery", ".cache" );
+        file.delete();
+    }
+
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    private static DevicePersonality personality( long sysUpTime, long ifTableLastChange )
+    {
+        return new DevicePersonality( "10.0.0.1", "Juniper Networks", JUNIPER,
+                                      sysUpTime, "p-a", ifTableLastChange );
+    }
+
+    private static Hashtable<String, Adjacency> adjacencies()
+    {
+        Hashtable<String, Adjacency> adjs = new Hashtable<String, Adjacency>();
+        Adjacency adj = new Adjacency( "10.0.0.2" );
+        adj.setSNMPInterface( 2 );
+        adj.setRouterInterface( "ge-0/0/2", 1000L );
+        adjs.put( "10.0.0.2", adj );
+        return adjs;
+    }
+
+    private static void assertAdjacency( DiscoveryCache.Entry e )
+    {
+        Adjacency adj = e.getAdjacencies().get( "10.0.0.2" );
+        assertEquals( 2, adj.getSNMPInterface() );
+        assertEquals( "ge-0/0/2", adj.getRouterInterface() );
+        assertEquals( 1000L, adj.getSpeed() );
+    }
+
+    public void testSaveAndLoad() throws IOException
+    {
+        DiscoveryCache cache = DiscoveryCache.open( file );
+        assertEquals( 0, cache.size() );
+        cache.put( personality( 1000L, 500L ), adjacencies(), 3 );
+        cache.save();
+
+        cache = DiscoveryCache.open( file );
+        assertEquals( 1, cache.size() );
+        DiscoveryCache.Entry e = cache.get( "10.0.0.1" );
+        assertEquals( "p-a", e.getSysName() );
+        assertEquals( 1000L, e.getSysUpTime() );
+        assertEquals( 500L, e.getIfTableLastChange() );
+        assertEquals( 3, e.getLdpSessions() );
+        assertAdjacency( e );
+
+        // Up since, interfaces untouched
+        assertSame( e, cache.lookup( personality( 2000L, 500L ) ) );
+        assertTrue( cache.isUnchanged( e, personality( 2000L, 500L ) ) );
+        assertFalse( cache.isUnchanged( e, personality( 2000L, 1500L ) ) );
+
+        // Restarted
+        assertNull( cache.lookup( personality( 10L, 500L ) ) );
+
+        // Too old
+        cache.setMaxAge( 0L );
+        assertNull( cache.lookup( personality( 2000L, 500L ) ) );
+        assertEquals( 1, cache.getHits() );
+        assertEquals( 2, cache.getMisses() );
+    }
+
+    public void testVersion1() throws IOException
+    {
+        // Written before change indicators were kept
+        DataOutputStream out = new DataOutputStream( new FileOutputStream( file ) );
+        out.writeInt( 0x49504443 );
+        out.writeInt( 1 );
+        out.writeInt( 1 );
+        out.writeUTF( "10.0.0.1" );
+        out.writeLong( System.currentTimeMillis() );
+        out.writeLong( 1000L );
+        out.writeBoolean( true );
+        out.writeUTF( "p-a" );
+        out.writeBoolean( false );
+        out.writeBoolean( true );
+        out.writeUTF( JUNIPER );
+        out.writeInt( 1 );
+        out.writeUTF( "10.0.0.2" );
+        out.writeInt( 2 );
+        out.writeBoolean( true );
+        out.writeUTF( "ge-0/0/2" );
+        out.writeLong( 1000L );
+        out.close();
+
+        DiscoveryCache cache = DiscoveryCache.open( file );
+        DiscoveryCache.Entry e = cache.get( "10.0.0.1" );
+        assertEquals( "p-a", e.getSysName() );
+        assertEquals( -1L, e.getIfTableLastChange() );
+        assertEquals( -1, e.getLdpSessions() );
+        assertAdjacency( e );
+        assertFalse( cache.isUnchanged( e, personality( 2000L, 500L ) ) );
+
+        // Saved as the current version
+        cache.save();
+        e = DiscoveryCache.open( file ).get( "10.0.0.1" );
+        assertEquals( 1000L, e.getSysUpTime() );
+        assertEquals( -1L, e.getIfTableLastChange() );
+        assertAdjacency( e );
+    }
+
+    public void testNotACache() throws IOException
+    {
+        FileOutputStream out = new FileOutputStream( file );
+        out.write( "not a cache".getBytes() );
+        out.close();
+        assertEquals( 0, DiscoveryCache.open( file ).size() );
+    }
+}
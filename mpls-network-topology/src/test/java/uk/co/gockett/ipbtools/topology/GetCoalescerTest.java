@@ -0,0 +1,159 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.IOException;
+
+import org.snmp4j.PDU;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.VariableBinding;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for GetCoalescer, against a ScriptedAgent.
+ */
+public class GetCoalescerTest
+    extends TestCase
+{
+    private final static OID SYS_DESCR = new OID( "1.3.6.1.2.1.1.1.0" );
+    private final static OID SYS_OBJECT_ID = new OID( "1.3.6.1.2.1.1.2.0" );
+    private final static OID SYS_UPTIME = new OID( "1.3.6.1.2.1.1.3.0" );
+    private final static OID SYS_NAME = new OID( "1.3.6.1.2.1.1.5.0" );
+
+    private ScriptedAgent agent;
+    private GetCoalescer coalescer;
+
+    public GetCoalescerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( GetCoalescerTest.class );
+    }
+
+    private static PDU get( OID... oids )
+    {
+        PDU pdu = new PDU();
+        pdu.setType( PDU.GET );
+        for ( OID oid : oids )
+        {
+            pdu.add( new VariableBinding( oid ) );
+        }
+        return pdu;
+    }
+
+    private static PDU response( VariableBinding... vbs )
+    {
+        PDU pdu = new PDU();
+        pdu.setType( PDU.RESPONSE );
+        for ( VariableBinding vb : vbs )
+        {
+            pdu.add( vb );
+        }
+        return pdu;
+    }
+
+    private static PDU error( PDU request, int status, int index )
+    {
+        PDU pdu = (PDU) request.clone();
+        pdu.setType( PDU.RESPONSE );
+        pdu.setErrorStatus( status );
+        pdu.setErrorIndex( index );
+        return pdu;
+    }
+
+    private static VariableBinding value( OID oid, int i )
+    {
+        return new VariableBinding( oid, new Integer32( i ) );
+    }
+
+    protected void setUp() throws IOException
+    {
+        agent = new ScriptedAgent();
+
+        // Four in a row are too big, two are not
+        PDU all = get( SYS_DESCR, SYS_OBJECT_ID, SYS_UPTIME, SYS_NAME );
+        agent.add( all, error( all, PDU.tooBig, 0 ) );
+        agent.add( get( SYS_DESCR, SYS_OBJECT_ID ),
+                   response( new VariableBinding( SYS_DESCR, new OctetString( "Juniper" ) ),
+                             value( SYS_OBJECT_ID, 2 ) ) );
+        agent.add( get( SYS_UPTIME, SYS_NAME ),
+                   response( value( SYS_UPTIME, 3 ), new VariableBinding( SYS_NAME, new OctetString( "p-1" ) ) ) );
+
+        // SNMPv1 agent without sysObjectID
+        PDU three = get( SYS_DESCR, SYS_OBJECT_ID, SYS_UPTIME );
+        agent.add( three, error( three, PDU.noSuchName, 2 ) );
+        agent.add( get( SYS_DESCR, SYS_UPTIME ),
+                   response( new VariableBinding( SYS_DESCR, new OctetString( "Cisco" ) ),
+                             value( SYS_UPTIME, 3 ) ) );
+
+        coalescer = new GetCoalescer( SNMPEngine.getEngine(), agent.getTarget( SnmpConstants.version2c ) );
+    }
+
+    protected void tearDown()
+    {
+        SNMPEngine.shutdown();
+        agent.close();
+    }
+
+    public void testTooBig()
+    {
+        GetCoalescer.Request descr = coalescer.add( SYS_DESCR );
+        GetCoalescer.Request oid = coalescer.add( SYS_OBJECT_ID );
+        GetCoalescer.Request upTime = coalescer.add( SYS_UPTIME );
+        GetCoalescer.Request name = coalescer.add( SYS_NAME );
+
+        assertTrue( coalescer.flush() );
+        assertEquals( 3, coalescer.getPDUCount() );
+        assertEquals( "Juniper", descr.getVariable().toString() );
+        assertEquals( 2, oid.toInt( -1 ) );
+        assertEquals( 3, upTime.toInt( -1 ) );
+        assertEquals( "p-1", name.getVariable().toString() );
+        assertEquals( 0, coalescer.size() );
+    }
+
+    public void testNoSuchName()
+    {
+        GetCoalescer.Request descr = coalescer.add( SYS_DESCR );
+        GetCoalescer.Request oid = coalescer.add( SYS_OBJECT_ID );
+        GetCoalescer.Request upTime = coalescer.add( SYS_UPTIME );
+
+        assertTrue( coalescer.flush() );
+        assertEquals( 2, coalescer.getPDUCount() );
+        assertEquals( "Cisco", descr.getVariable().toString() );
+        assertFalse( oid.isAnswered() );
+        assertEquals( -1, oid.toInt( -1 ) );
+        assertEquals( 3, upTime.toInt( -1 ) );
+    }
+
+    public void testLimits()
+    {
+        // Two PDUs of two, as in the tooBig split, but without the tooBig
+        coalescer.setLimits( 2, GetCoalescer.DEFAULT_MAX_BYTES );
+        GetCoalescer.Request descr = coalescer.add( SYS_DESCR );
+        coalescer.add( SYS_OBJECT_ID );
+        coalescer.add( SYS_UPTIME );
+        GetCoalescer.Request name = coalescer.add( SYS_NAME );
+
+        assertTrue( coalescer.flush() );
+        assertEquals( 2, coalescer.getPDUCount() );
+        assertEquals( 2, agent.getReceived() );
+        assertEquals( "Juniper", descr.getVariable().toString() );
+        assertEquals( "p-1", name.getVariable().toString() );
+    }
+
+    public void testTimeout()
+    {
+        GetCoalescer.Request name = coalescer.add( SYS_NAME );
+
+        assertFalse( coalescer.flush() );
+        assertNull( name.getVariable() );
+        assertFalse( name.isAnswered() );
+    }
+}
@@ -0,0 +1,60 @@
+package uk.co.gockett.ipbtools.topology;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for LatencyHistogram.
+ */
+public class LatencyHistogramTest
+    extends TestCase
+{
+    public LatencyHistogramTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LatencyHistogramTest.class );
+    }
+
+    public void testBuckets()
+    {
+        int last = -1;
+        for ( long v = 0; v < 100000; v++ )
+        {
+            int b = LatencyHistogram.bucket( v );
+            assertTrue( b >= last );
+            assertTrue( LatencyHistogram.lowerBound( b ) <= v );
+            assertTrue( LatencyHistogram.lowerBound( b + 1 ) > v );
+            last = b;
+        }
+        // Precision of 1/8 whatever the magnitude
+        long v = 3600L * 1000000L;
+        long lower = LatencyHistogram.lowerBound( LatencyHistogram.bucket( v ) );
+        assertTrue( v - lower <= v / 8 );
+        LatencyHistogram.bucket( Long.MAX_VALUE );
+    }
+
+    public void testPercentiles()
+    {
+        LatencyHistogram h = new LatencyHistogram( "test" );
+        assertEquals( 0L, h.getPercentileMicros( 0.5 ) );
+        for ( int i = 1; i <= 1000; i++ )
+        {
+            h.record( i * 1000L );
+        }
+        assertEquals( 1000L, h.getCount() );
+        assertEquals( 500.5, h.getMean(), 0.01 );
+        assertEquals( 1000.0, h.getMax(), 0.01 );
+        assertEquals( 500000.0, h.getPercentileMicros( 0.5 ), 500000.0 / 8 );
+        assertEquals( 990000.0, h.getPercentileMicros( 0.99 ), 990000.0 / 8 );
+        assertEquals( 1000000L, h.getPercentileMicros( 1.0 ) );
+
+        h.reset();
+        assertEquals( 0L, h.getCount() );
+        assertEquals( 0.0, h.getMax(), 0.0 );
+    }
+}
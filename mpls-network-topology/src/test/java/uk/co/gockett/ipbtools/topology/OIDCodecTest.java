@@ -0,0 +1,56 @@
+package uk.co.gockett.ipbtools.topology;
+
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.Null;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for OIDCodec.
+ */
+public class OIDCodecTest
+    extends TestCase
+{
+    public OIDCodecTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( OIDCodecTest.class );
+    }
+
+    public void testDecodeIndex()
+    {
+        // mplsLdpSesState.<local id>.0.0.<link>.<peer id>.0.0.1
+        OID column = new OID( "1.3.6.1.4.1.9.10.65.1.3.4.1.1" );
+        OID row = new OID( column + ".10.0.0.1.0.0.1424602962.10.0.0.2.0.0.1" );
+        int offset = column.size();
+        assertEquals( IPUtils.ipToInt( "10.0.0.1" ), OIDCodec.ipAt( row, offset ) );
+        assertEquals( 1424602962, OIDCodec.subAt( row, offset + 6 ) );
+        assertEquals( "10.0.0.2", IPUtils.intToIp( OIDCodec.ipAt( row, offset + 7 ) ) );
+    }
+
+    public void testEncode()
+    {
+        OID prefix = new OID( "1.3.6.1.2.1.4.21.1.7" );
+        assertEquals( new OID( "1.3.6.1.2.1.4.21.1.7.192.168.0.254" ),
+                      OIDCodec.appendIp( prefix, IPUtils.ipToInt( "192.168.0.254" ) ) );
+        assertEquals( new OID( "1.3.6.1.2.1.4.21.1.7.501" ),
+                      OIDCodec.appendIndex( prefix, 501 ) );
+    }
+
+    public void testIpValue()
+    {
+        assertEquals( IPUtils.ipToInt( "172.16.1.1" ),
+                      OIDCodec.ipValue( new IpAddress( "172.16.1.1" ), 0 ) );
+        assertEquals( IPUtils.ipToInt( "172.16.1.1" ),
+                      OIDCodec.ipValue( new OctetString( "172.16.1.1" ), 0 ) );
+        assertEquals( -1, OIDCodec.ipValue( new Null(), -1 ) );
+    }
+}
@@ -0,0 +1,80 @@
+package uk.co.gockett.ipbtools.topology;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for PersonalityCache and DevicePersonality.
+ */
+public class PersonalityCacheTest
+    extends TestCase
+{
+    private final static String IOS_OID = "1.3.6.1.4.1.9.1.1208";
+    private final static String JNX_OID = "1.3.6.1.4.1.2636.1.1.1.2.25";
+
+    public PersonalityCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PersonalityCacheTest.class );
+    }
+
+    protected void tearDown()
+    {
+        PersonalityCache cache = PersonalityCache.getCache();
+        cache.setTTL( PersonalityCache.DEFAULT_TTL );
+        cache.remove( "10.0.0.1" );
+        cache.remove( "10.0.0.2" );
+    }
+
+    private static DevicePersonality personality( String address )
+    {
+        return new DevicePersonality( address, "Juniper Networks", JNX_OID, 100L, "p-a", 50L );
+    }
+
+    public void testClassify()
+    {
+        // sysDescr first, sysObjectID only when it is not conclusive
+        assertEquals( DevicePersonality.Vendor.CISCO,
+                      DevicePersonality.classify( "Cisco IOS Software", JNX_OID ) );
+        assertEquals( DevicePersonality.Vendor.JUNIPER,
+                      DevicePersonality.classify( "Juniper Networks", IOS_OID ) );
+        assertEquals( DevicePersonality.Vendor.JUNIPER,
+                      DevicePersonality.classify( "Linux p-a", JNX_OID ) );
+        assertEquals( DevicePersonality.Vendor.CISCO,
+                      DevicePersonality.classify( null, IOS_OID ) );
+        assertEquals( DevicePersonality.Vendor.UNKNOWN,
+                      DevicePersonality.classify( "Linux p-a", "1.3.6.1.4.1.8072.3.2.10" ) );
+        assertEquals( DevicePersonality.Vendor.UNKNOWN,
+                      DevicePersonality.classify( null, null ) );
+    }
+
+    public void testExpiry() throws InterruptedException
+    {
+        PersonalityCache cache = PersonalityCache.getCache();
+        cache.setTTL( 50L );
+        DevicePersonality p = personality( "10.0.0.1" );
+        cache.put( p );
+        assertSame( p, cache.get( "10.0.0.1" ) );
+
+        Thread.sleep( 100L );
+        assertNull( cache.get( "10.0.0.1" ) );
+        assertNull( cache.get( "10.0.0.1" ) );
+    }
+
+    public void testDisabled()
+    {
+        PersonalityCache cache = PersonalityCache.getCache();
+        cache.put( personality( "10.0.0.1" ) );
+        cache.setTTL( 0L );
+
+        // Neither kept nor served
+        cache.put( personality( "10.0.0.2" ) );
+        assertNull( cache.get( "10.0.0.1" ) );
+        assertNull( cache.get( "10.0.0.2" ) );
+    }
+}
@@ -0,0 +1,77 @@
+package uk.co.gockett.ipbtools.topology;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for PrefixTrie.
+ */
+public class PrefixTrieTest
+    extends TestCase
+{
+    public PrefixTrieTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PrefixTrieTest.class );
+    }
+
+    public void testLongestMatch()
+    {
+        PrefixTrie trie = new PrefixTrie();
+        assertTrue( trie.isEmpty() );
+        assertEquals( PrefixTrie.NONE, trie.match( IPUtils.ipToInt( "10.1.2.3" ) ) );
+
+        trie.put( "10.0.0.0/8", 1 );
+        trie.put( "10.1.0.0/16", 0 );
+        trie.put( "10.1.2.3", 1 );
+        trie.put( "192.168.0.0/16", 2 );
+        assertEquals( 4, trie.size() );
+
+        assertEquals( 1, trie.match( IPUtils.ipToInt( "10.200.0.1" ) ) );
+        assertEquals( 0, trie.match( IPUtils.ipToInt( "10.1.2.4" ) ) );
+        assertEquals( 1, trie.match( IPUtils.ipToInt( "10.1.2.3" ) ) );
+        assertEquals( 2, trie.match( IPUtils.ipToInt( "192.168.255.255" ) ) );
+        assertEquals( PrefixTrie.NONE, trie.match( IPUtils.ipToInt( "11.0.0.1" ) ) );
+
+        // Host bits ignored, same prefix replaced
+        trie.put( "10.1.9.9/16", 3 );
+        assertEquals( 4, trie.size() );
+        assertEquals( 3, trie.match( IPUtils.ipToInt( "10.1.0.1" ) ) );
+
+        trie.put( "0.0.0.0/0", 9 );
+        assertEquals( 9, trie.match( IPUtils.ipToInt( "11.0.0.1" ) ) );
+    }
+
+    public void testGrowth()
+    {
+        PrefixTrie trie = new PrefixTrie();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            trie.put( 0x0A000000 | i << 8, 24, i );
+        }
+        assertEquals( 1000, trie.size() );
+        for ( int i = 0; i < 1000; i++ )
+        {
+            assertEquals( i, trie.match( 0x0A000001 | i << 8 ) );
+        }
+    }
+
+    public void testInvalid()
+    {
+        PrefixTrie trie = new PrefixTrie();
+        try
+        {
+            trie.put( "10.0.0.0/33", 1 );
+            fail();
+        }
+        catch ( IllegalArgumentException e )
+        {
+            assertTrue( trie.isEmpty() );
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for QueryPlan.
+ */
+public class QueryPlanTest
+    extends TestCase
+{
+    public QueryPlanTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( QueryPlanTest.class );
+    }
+
+    /*
+     * Records its name once run, after sleeping a while
+     */
+    private static class Recorder extends QueryPlan.Step
+    {
+        private final Vector<String> log;
+        private final long sleep;
+        private final boolean ok;
+
+        Recorder( Vector<String> log, String name, long sleep, boolean ok, QueryPlan.Step... after )
+        {
+            super( name, after );
+            this.log = log;
+            this.sleep = sleep;
+            this.ok = ok;
+        }
+
+        protected boolean run()
+        {
+            try {
+                Thread.sleep( sleep );
+            } catch ( InterruptedException e ) {
+                return false;
+            }
+            log.add( getName() + "@" + Thread.currentThread().getName() );
+            return ok;
+        }
+    }
+
+    public void testOrder()
+    {
+        Vector<String> log = new Vector<String>();
+        QueryPlan plan = new QueryPlan( "test" );
+        QueryPlan.Step slow = plan.add( new Recorder( log, "slow", 300, true ) );
+        QueryPlan.Step fast = plan.add( new Recorder( log, "fast", 10, true ) );
+        QueryPlan.Step next = plan.add( new Recorder( log, "next", 10, true, fast ) );
+        plan.add( new Recorder( log, "last", 10, true, slow, next ) );
+
+        // Independent steps overlap, so the plan takes as long as the slowest chain
+        long start = System.currentTimeMillis();
+        assertTrue( plan.execute() );
+        assertTrue( System.currentTimeMillis() - start < 600 );
+        assertEquals( 4, log.size() );
+        assertTrue( log.get( 0 ).startsWith( "fast@" ) );
+        assertTrue( log.get( 1 ).startsWith( "next@" ) );
+        assertTrue( log.get( 2 ).startsWith( "slow@" ) );
+        assertTrue( log.get( 3 ).startsWith( "last@" ) );
+    }
+
+    public void testFailure()
+    {
+        Vector<String> log = new Vector<String>();
+        QueryPlan plan = new QueryPlan( "test" );
+        QueryPlan.Step broken = plan.add( new Recorder( log, "broken", 10, false ) );
+        QueryPlan.Step other = plan.add( new Recorder( log, "other", 100, true ) );
+        plan.add( new Recorder( log, "skipped", 10, true, broken, other ) );
+
+        // Steps running are waited for, those depending on a failed one skipped
+        assertFalse( plan.execute() );
+        assertEquals( 2, log.size() );
+        for ( String entry : log )
+        {
+            assertFalse( entry.startsWith( "skipped@" ) );
+        }
+    }
+
+    public void testPoolBusy()
+    {
+        Vector<String> log = new Vector<String>();
+        QueryPlan plan = new QueryPlan( "test" );
+        int steps = QueryPlan.POOL_THREADS + 8;
+        for ( int i = 0; i < steps; i++ )
+        {
+            plan.add( new Recorder( log, "step" + i, 100, true ) );
+        }
+
+        // The pool does not grow past its bound; the caller runs the rest
+        assertTrue( plan.execute() );
+        assertEquals( steps, log.size() );
+        Set<String> threads = new HashSet<String>();
+        for ( String entry : log )
+        {
+            threads.add( entry.substring( entry.indexOf( '@' ) + 1 ) );
+        }
+        assertTrue( threads.contains( Thread.currentThread().getName() ) );
+        assertTrue( threads.size() <= QueryPlan.POOL_THREADS + 1 );
+    }
+
+    public void testManyCallers() throws InterruptedException
+    {
+        // More steps at once than pool threads, from several callers
+        final Vector<String> log = new Vector<String>();
+        final Vector<Boolean> results = new Vector<Boolean>();
+        Thread[] callers = new Thread[8];
+        for ( int c = 0; c < callers.length; c++ )
+        {
+            final QueryPlan plan = new QueryPlan( "caller" + c );
+            for ( int i = 0; i < 8; i++ )
+            {
+                plan.add( new Recorder( log, "step" + i, 100, true ) );
+            }
+            callers[c] = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    results.add( plan.execute() );
+                }
+            } );
+            callers[c].start();
+        }
+        for ( int c = 0; c < callers.length; c++ )
+        {
+            callers[c].join( 5000 );
+        }
+        assertEquals( callers.length, results.size() );
+        assertFalse( results.contains( Boolean.FALSE ) );
+        assertEquals( 64, log.size() );
+    }
+
+    public void testUnknownDependency()
+    {
+        Vector<String> log = new Vector<String>();
+        QueryPlan plan = new QueryPlan( "test" );
+        try {
+            plan.add( new Recorder( log, "orphan", 10, true, new Recorder( log, "missing", 10, true ) ) );
+            fail( "Dependency outside the plan accepted" );
+        } catch ( IllegalArgumentException e ) {
+            assertEquals( 0, plan.size() );
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.net.InetAddress;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for ReverseResolver.
+ */
+public class ReverseResolverTest
+    extends TestCase
+{
+    public ReverseResolverTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ReverseResolverTest.class );
+    }
+
+    public void testCached() throws Exception
+    {
+        ReverseResolver resolver = ReverseResolver.getResolver();
+        resolver.clear();
+        InetAddress loopback = InetAddress.getByName( "127.0.0.1" );
+        assertNull( resolver.getCached( "127.0.0.1" ) );
+
+        resolver.prefetch( loopback );
+        String name = resolver.getHostname( loopback );
+        assertEquals( InetAddress.getByName( "127.0.0.1" ).getCanonicalHostName(), name );
+        assertEquals( name, resolver.getCached( "127.0.0.1" ) );
+
+        resolver.clear();
+    }
+}
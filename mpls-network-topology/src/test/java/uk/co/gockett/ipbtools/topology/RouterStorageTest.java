@@ -0,0 +1,112 @@
+package uk.co.gockett.ipbtools.topology;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for RouterStorage termination detection.
+ */
+public class RouterStorageTest
+    extends TestCase
+{
+    private RouterStorage storage;
+
+    public RouterStorageTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RouterStorageTest.class );
+    }
+
+    protected void setUp()
+    {
+        storage = RouterStorage.getAdjStorage();
+        storage.reset();
+    }
+
+    protected void tearDown()
+    {
+        storage.reset();
+    }
+
+    /*
+     * Takes a node in another thread, which is left waiting if there is
+     * none yet
+     */
+    private Thread taker( final Object[] taken )
+    {
+        Thread t = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    taken[0] = storage.takePendingAdj();
+                }
+                catch ( InterruptedException e )
+                {
+                    taken[0] = e;
+                }
+            }
+        } );
+        t.start();
+        return t;
+    }
+
+    public void testEmptyFrontier() throws InterruptedException
+    {
+        assertTrue( storage.isFinished() );
+        assertNull( storage.getPendingAdj() );
+        assertNull( storage.takePendingAdj() );
+        assertTrue( storage.awaitFinished( 100L ) );
+    }
+
+    public void testInFlight() throws InterruptedException
+    {
+        storage.newAdjacency( "192.0.2.1", "a" );
+        assertEquals( "a", storage.takePendingAdj() );
+        assertFalse( storage.isFinished() );
+        assertFalse( storage.awaitFinished( 100L ) );
+
+        // Nothing pending, but "a" may still bring new nodes
+        Object[] taken = new Object[1];
+        Thread t = taker( taken );
+        t.join( 200L );
+        assertTrue( t.isAlive() );
+        storage.newAdjacency( "192.0.2.2", "b" );
+        t.join( 5000L );
+        assertEquals( "b", taken[0] );
+
+        // Already seen
+        assertFalse( storage.newAdjacency( "192.0.2.1", "a" ) );
+
+        // Over once the last node in flight completes without new ones
+        storage.completeAdj( "a" );
+        t = taker( taken );
+        t.join( 200L );
+        assertTrue( t.isAlive() );
+        storage.completeAdj( "b" );
+        t.join( 5000L );
+        assertFalse( t.isAlive() );
+        assertNull( taken[0] );
+        assertTrue( storage.awaitFinished( 100L ) );
+        assertEquals( 0, storage.getInFlightCount() );
+    }
+
+    public void testShutdown() throws InterruptedException
+    {
+        storage.newAdjacency( "192.0.2.1", "a" );
+        storage.newAdjacency( "192.0.2.2", "b" );
+        assertEquals( "a", storage.getPendingAdj() );
+
+        storage.shutdown();
+        assertTrue( storage.isFinished() );
+        assertNull( storage.getPendingAdj() );
+        assertNull( storage.takePendingAdj() );
+        assertEquals( 1, storage.getPendingCount() );
+    }
+}
@@ -0,0 +1,109 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.snmp4j.PDU;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.VariableBinding;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for SNMPRecording.
+ */
+public class SNMPRecordingTest
+    extends TestCase
+{
+    private final static OID SYS_NAME = new OID( "1.3.6.1.2.1.1.5.0" );
+    private final static OID SYS_UPTIME = new OID( "1.3.6.1.2.1.1.3.0" );
+
+    private File file;
+
+    public SNMPRecordingTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SNMPRecordingTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        file = File.createTempFile( "snmprec", ".gz" );
+    }
+
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    private static PDU get( OID... oids )
+    {
+        PDU pdu = new PDU();
+        pdu.setType( PDU.GET );
+        for ( OID oid : oids )
+        {
+            pdu.add( new VariableBinding( oid ) );
+        }
+        return pdu;
+    }
+
+    private static PDU response( VariableBinding... vbs )
+    {
+        PDU pdu = new PDU();
+        pdu.setType( PDU.RESPONSE );
+        for ( VariableBinding vb : vbs )
+        {
+            pdu.add( vb );
+        }
+        return pdu;
+    }
+
+    public void testReplay() throws IOException
+    {
+        SNMPRecording rec = SNMPRecording.create( file );
+        VariableBinding name = new VariableBinding( SYS_NAME, new OctetString( "p-0" ) );
+        rec.add( "10.0.0.1", SnmpConstants.version2c, 0L, 1500L,
+                 get( SYS_NAME, SYS_UPTIME ),
+                 response( name, new VariableBinding( SYS_UPTIME, new Integer32( 100 ) ) ) );
+        rec.add( "10.0.0.1", SnmpConstants.version2c, 2000L, 1800L,
+                 get( SYS_NAME, SYS_UPTIME ),
+                 response( name, new VariableBinding( SYS_UPTIME, new Integer32( 200 ) ) ) );
+        rec.add( "10.0.0.2", SnmpConstants.version2c, 3000L, SNMPRecording.NO_RESPONSE,
+                 get( SYS_NAME ), null );
+        rec.close();
+        assertEquals( 3, rec.size() );
+
+        SNMPRecording replay = SNMPRecording.load( file );
+        assertEquals( 3, replay.size() );
+
+        // Same request: recorded responses in turn, then the last one again
+        SNMPRecording.Exchange e = replay.replay( "10.0.0.1", get( SYS_NAME, SYS_UPTIME ) );
+        assertEquals( 1500L, e.getLatency() );
+        assertEquals( 100, e.getResponse().get( 1 ).getVariable().toInt() );
+        e = replay.replay( "10.0.0.1", get( SYS_NAME, SYS_UPTIME ) );
+        assertEquals( 200, e.getResponse().get( 1 ).getVariable().toInt() );
+        e = replay.replay( "10.0.0.1", get( SYS_NAME, SYS_UPTIME ) );
+        assertEquals( 200, e.getResponse().get( 1 ).getVariable().toInt() );
+
+        // Coalesced differently: answered varbind by varbind
+        e = replay.replay( "10.0.0.1", get( SYS_UPTIME ) );
+        assertEquals( 1, e.getResponse().size() );
+        assertEquals( SYS_UPTIME, e.getResponse().get( 0 ).getOid() );
+
+        // Unanswered, another target, never seen
+        assertNull( replay.replay( "10.0.0.2", get( SYS_NAME ) ) );
+        assertNull( replay.replay( "10.0.0.3", get( SYS_NAME ) ) );
+        assertNull( replay.replay( "10.0.0.1", get( new OID( "1.3.6.1.2.1.1.1.0" ) ) ) );
+        assertEquals( 4, replay.getAnswered() );
+        assertEquals( 3, replay.getMissed() );
+    }
+}
@@ -0,0 +1,145 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.MessageException;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+/**
+ * SNMP agent on the loopback interface answering from a script, for unit
+ * tests. A request gets the responses added for the same PDU type and
+ * OIDs in turn, and the last one again once they run out. Anything else
+ * is left unanswered, so it times out.
+ */
+public class ScriptedAgent
+    implements CommandResponder
+{
+    private final Snmp snmp;
+    private final UdpAddress address;
+    private final Hashtable<String, List<PDU>> script = new Hashtable<String, List<PDU>>();
+    private final Hashtable<String, Integer> next = new Hashtable<String, Integer>();
+    private int received = 0;
+
+    public ScriptedAgent() throws IOException
+    {
+        DefaultUdpTransportMapping transport =
+            new DefaultUdpTransportMapping( new UdpAddress( "127.0.0.1/0" ) );
+        snmp = new Snmp( transport );
+        snmp.addCommandResponder( this );
+        snmp.listen();
+        address = transport.getListenAddress();
+    }
+
+    public UdpAddress getAddress()
+    {
+        return address;
+    }
+
+    /**
+     * @return A target for the agent, with a short timeout and no retries
+     */
+    public CommunityTarget getTarget( int version )
+    {
+        CommunityTarget target = new CommunityTarget();
+        target.setAddress( address );
+        target.setCommunity( new OctetString( "public" ) );
+        target.setVersion( version );
+        target.setTimeout( 500L );
+        target.setRetries( 0 );
+        return target;
+    }
+
+    private static String key( PDU pdu )
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append( pdu.getType() );
+        for ( int i = 0; i < pdu.size(); i++ )
+        {
+            sb.append( ' ' ).append( pdu.get( i ).getOid() );
+        }
+        return sb.toString();
+    }
+
+    public synchronized void add( PDU request, PDU response )
+    {
+        List<PDU> responses = script.get( key( request ) );
+        if ( responses == null )
+        {
+            responses = new ArrayList<PDU>();
+            script.put( key( request ), responses );
+            next.put( key( request ), Integer.valueOf( 0 ) );
+        }
+        responses.add( response );
+    }
+
+    /**
+     * @return Number of requests received, answered or not
+     */
+    public synchronized int getReceived()
+    {
+        return received;
+    }
+
+    private synchronized PDU answer( PDU request )
+    {
+        received++;
+        List<PDU> responses = script.get( key( request ) );
+        if ( responses == null )
+        {
+            return null;
+        }
+        int i = next.get( key( request ) ).intValue();
+        if ( i < responses.size() - 1 )
+        {
+            next.put( key( request ), Integer.valueOf( i + 1 ) );
+        }
+        return responses.get( i );
+    }
+
+    public void processPdu( CommandResponderEvent event )
+    {
+        PDU request = event.getPDU();
+        PDU response = answer( request );
+        if ( response == null )
+        {
+            return;
+        }
+        response = (PDU) response.clone();
+        response.setType( PDU.RESPONSE );
+        response.setRequestID( request.getRequestID() );
+        try
+        {
+            event.getMessageDispatcher().returnResponsePdu( event.getMessageProcessingModel(),
+                event.getSecurityModel(), event.getSecurityName(), event.getSecurityLevel(),
+                response, event.getMaxSizeResponsePDU(), event.getStateReference(),
+                new StatusInformation() );
+        }
+        catch ( MessageException e )
+        {
+            System.err.println( "ScriptedAgent: " + e.getMessage() );
+        }
+        event.setProcessed( true );
+    }
+
+    public void close()
+    {
+        try
+        {
+            snmp.close();
+        }
+        catch ( IOException e )
+        {
+        } // Ignore
+    }
+}
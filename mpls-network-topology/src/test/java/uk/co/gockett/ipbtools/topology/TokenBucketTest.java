@@ -0,0 +1,52 @@
+package uk.co.gockett.ipbtools.topology;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for TokenBucket.
+ */
+public class TokenBucketTest
+    extends TestCase
+{
+    public TokenBucketTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TokenBucketTest.class );
+    }
+
+    public void testReserve()
+    {
+        // 10 tokens a second, up to 10
+        TokenBucket bucket = new TokenBucket( 10.0, 10.0 );
+        assertEquals( 0L, bucket.reserve( 10.0 ) );
+
+        // Half a second for the next 5, and another for the 5 after them
+        long wait = bucket.reserve( 5.0 );
+        assertTrue( wait > 400000000L && wait <= 500000000L );
+        wait = bucket.reserve( 5.0 );
+        assertTrue( wait > 900000000L && wait <= 1000000000L );
+
+        // Charged debt is waited for by the next taker
+        bucket.charge( 10.0 );
+        assertTrue( bucket.getTokens() < -19.0 );
+        wait = bucket.reserve( 1.0 );
+        assertTrue( wait > 2000000000L );
+    }
+
+    public void testAcquire()
+    {
+        TokenBucket bucket = new TokenBucket( 1000.0, 1.0 );
+        long start = System.nanoTime();
+        for ( int i = 0; i < 51; i++ )
+        {
+            bucket.acquire( 1.0 );
+        }
+        assertTrue( System.nanoTime() - start >= 45000000L );
+    }
+}
@@ -0,0 +1,83 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for TopologyDiff.
+ */
+public class TopologyDiffTest
+    extends TestCase
+{
+    public TopologyDiffTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TopologyDiffTest.class );
+    }
+
+    public void testChanges()
+    {
+        TopologyGraph before = new TopologyGraph();
+        node( before, "10.0.0.1", "p-a",
+              "10.0.0.2", "xe-0/0/0", 10000L,
+              "10.0.0.3", "xe-0/0/1", 10000L,
+              "10.0.0.4", "xe-0/0/2", 1000L );
+        node( before, "10.0.0.2", "p-b", "10.0.0.1", "Te0/1", 10000L );
+        node( before, "200.0.0.9", "p-gone", "10.0.0.1", "ge-1", 1000L );
+
+        TopologyGraph after = new TopologyGraph();
+        node( after, "10.0.0.2", "p-b", "10.0.0.1", "Te0/1", 10000L );
+        node( after, "10.0.0.5", "p-new", "10.0.0.1", "ge-0", 1000L );
+        node( after, "10.0.0.1", "p-a",
+              "10.0.0.4", "xe-0/0/2", 10000L,
+              "10.0.0.5", "xe-0/0/3", 1000L,
+              "10.0.0.2", "et-0/0/0", 10000L );
+
+        List<TopologyDiff.Change> changes = TopologyDiff.diff( before, after );
+        String[] expected = {
+            "~SPEED 10.0.0.1:10.0.0.4:xe-0/0/2:1000000:10000000",
+            "+ADJ 10.0.0.1:10.0.0.5:xe-0/0/3:1000000",
+            "~IF 10.0.0.1:10.0.0.2:xe-0/0/0:et-0/0/0",
+            "-ADJ 10.0.0.1:10.0.0.3:xe-0/0/1:10000000",
+            "+ROUTER 10.0.0.5:p-new",
+            "+ADJ 10.0.0.5:10.0.0.1:ge-0:1000000",
+            "-ADJ 200.0.0.9:10.0.0.1:ge-1:1000000",
+            "-ROUTER 200.0.0.9:p-gone",
+        };
+        assertEquals( expected.length, changes.size() );
+        for ( int i = 0; i < expected.length; i++ )
+        {
+            assertEquals( expected[i], changes.get( i ).toString() );
+        }
+        assertEquals( 1000L, changes.get( 0 ).getOldSpeed() );
+        assertEquals( "xe-0/0/0", changes.get( 2 ).getOldInterface() );
+
+        assertTrue( TopologyDiff.diff( after, after ).isEmpty() );
+    }
+
+    /*
+     * Adds a node with adjacencies given as peer, interface, speed
+     */
+    private static void node( TopologyGraph graph, String address, String hostname, Object... adjs )
+    {
+        int id = graph.addNode( IPUtils.ipToInt( address ) );
+        graph.setHostname( id, hostname );
+        List<Adjacency> row = new ArrayList<Adjacency>();
+        for ( int i = 0; i < adjs.length; i += 3 )
+        {
+            Adjacency adj = new Adjacency( (String) adjs[i] );
+            adj.setSNMPInterface( 500 + i );
+            adj.setRouterInterface( (String) adjs[i + 1], ((Long) adjs[i + 2]).longValue() );
+            row.add( adj );
+        }
+        graph.setAdjacencies( id, row );
+    }
+}
@@ -0,0 +1,134 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for TopologyGraph and its int helpers.
+ */
+public class TopologyGraphTest
+    extends TestCase
+{
+    public TopologyGraphTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TopologyGraphTest.class );
+    }
+
+    public void testIpToInt()
+    {
+        assertEquals( 0x0A000001, IPUtils.ipToInt( "10.0.0.1" ) );
+        assertEquals( 0xFFFFFFFF, IPUtils.ipToInt( "255.255.255.255" ) );
+        assertEquals( "192.168.1.254", IPUtils.intToIp( IPUtils.ipToInt( "192.168.1.254" ) ) );
+        assertFalse( IPUtils.isIPv4( "10.0.0" ) );
+        assertFalse( IPUtils.isIPv4( "10.0.0.256" ) );
+        assertFalse( IPUtils.isIPv4( "::1" ) );
+    }
+
+    public void testIntIntMap()
+    {
+        IntIntMap map = new IntIntMap( 2 );
+        for (int i = -50; i < 50; i++) {
+            map.put( i * 7919, i );
+        }
+        assertEquals( 100, map.size() );
+        assertEquals( 0, map.get( 0, -1 ) );
+        assertEquals( -50, map.get( -50 * 7919, 1 ) );
+        assertEquals( -1, map.get( 3, -1 ) );
+        assertFalse( map.containsKey( 3 ) );
+    }
+
+    public void testAdjacencyRows()
+    {
+        TopologyGraph graph = new TopologyGraph();
+        int a = graph.addNode( IPUtils.ipToInt( "10.0.0.1" ) );
+        int b = graph.addNode( IPUtils.ipToInt( "10.0.0.2" ) );
+        assertEquals( a, graph.addNode( IPUtils.ipToInt( "10.0.0.1" ) ) );
+        assertEquals( 2, graph.size() );
+
+        graph.setAdjacencies( b, adjacencies( "10.0.0.1", "ge-0/0/1", 3 ) );
+        graph.setAdjacencies( a, adjacencies( "10.0.0.2", "ge-0/0/0", 2 ) );
+        graph.setAdjacencies( a, adjacencies( "10.0.0.2", "ge-0/0/0", 1 ) );
+        assertEquals( 4, graph.getAdjacencyTotal() );
+
+        graph.compact();
+        assertEquals( 0, graph.getAdjacencyStart( a ) );
+        assertEquals( 1, graph.getAdjacencyCount( a ) );
+        assertEquals( 1, graph.getAdjacencyStart( b ) );
+        int first = graph.getAdjacencyStart( b );
+        assertEquals( b, graph.nodeOf( IPUtils.ipToInt( "10.0.0.2" ) ) );
+        assertEquals( a, graph.nodeOf( graph.getPeerAddress( first ) ) );
+        assertEquals( "ge-0/0/1", graph.getInterface( first ) );
+        assertEquals( graph.getInterfaceId( first ), graph.getInterfaceId( first + 2 ) );
+        assertEquals( 1000L, graph.getSpeed( first ) );
+        assertEquals( "10.0.0.2", graph.getAdjacencies( a ).get( 0 ).getAdjacentAddress() );
+    }
+
+    public void testInvalidPeer()
+    {
+        TopologyGraph graph = new TopologyGraph();
+        int a = graph.addNode( IPUtils.ipToInt( "10.0.0.1" ) );
+        graph.setAdjacencies( a, adjacencies( "10.0.0.2", "ge-0/0/0", 2 ) );
+
+        List<Adjacency> adjs = adjacencies( "10.0.0.3", "ge-0/0/1", 1 );
+        adjs.add( new Adjacency( "::1" ) );
+        try {
+            graph.setAdjacencies( a, adjs );
+            fail( "IPv6 peer accepted" );
+        } catch ( IllegalArgumentException e ) {
+            // Row untouched
+        }
+        assertEquals( 2, graph.getAdjacencyCount( a ) );
+        assertEquals( 2, graph.getAdjacencyTotal() );
+        assertEquals( "10.0.0.2", graph.getAdjacencies( a ).get( 1 ).getAdjacentAddress() );
+    }
+
+    public void testAddAdjacency()
+    {
+        TopologyGraph graph = new TopologyGraph();
+        int a = graph.addNode( IPUtils.ipToInt( "10.0.0.1" ) );
+        int b = graph.addNode( IPUtils.ipToInt( "10.0.0.2" ) );
+        graph.setAdjacencies( a, adjacencies( "10.0.0.2", "ge-0/0/0", 1 ) );
+        graph.setAdjacencies( b, adjacencies( "10.0.0.1", "ge-0/0/0", 1 ) );
+
+        // Moved to the end once, then grown in place
+        for (int i = 3; i < 10; i++) {
+            assertTrue( graph.addAdjacency( a, adjacencies( "10.0.0." + i, "ge-0/0/" + i, 1 ).get( 0 ) ) );
+        }
+        assertEquals( 2, graph.getAdjacencyStart( a ) );
+        assertEquals( 8, graph.getAdjacencyCount( a ) );
+        assertEquals( 9, graph.getAdjacencyTotal() );
+
+        // Same peer, replaced
+        Adjacency faster = new Adjacency( "10.0.0.9" );
+        faster.setRouterInterface( "ge-0/0/9", 10000L );
+        assertFalse( graph.addAdjacency( a, faster ) );
+        assertEquals( 8, graph.getAdjacencyCount( a ) );
+        assertEquals( 10000L, graph.getSpeed( graph.getAdjacencyStart( a ) + 7 ) );
+
+        graph.compact();
+        assertEquals( 0, graph.getAdjacencyStart( a ) );
+        assertEquals( 8, graph.getAdjacencyStart( b ) );
+        assertEquals( "10.0.0.3", graph.getAdjacencies( a ).get( 1 ).getAdjacentAddress() );
+    }
+
+    private static List<Adjacency> adjacencies( String peer, String ifName, int count )
+    {
+        List<Adjacency> result = new ArrayList<Adjacency>();
+        for (int i = 0; i < count; i++) {
+            Adjacency adj = new Adjacency( peer );
+            adj.setSNMPInterface( 100 + i );
+            adj.setRouterInterface( ifName, 1000L );
+            result.add( adj );
+        }
+        return result;
+    }
+}
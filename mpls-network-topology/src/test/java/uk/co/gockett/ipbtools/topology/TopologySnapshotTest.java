@@ -0,0 +1,95 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for TopologySnapshot.
+ */
+public class TopologySnapshotTest
+    extends TestCase
+{
+    public TopologySnapshotTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TopologySnapshotTest.class );
+    }
+
+    public void testWriteAndMap() throws IOException
+    {
+        TopologyGraph graph = new TopologyGraph();
+        int a = graph.addNode( IPUtils.ipToInt( "192.168.0.1" ) );
+        int b = graph.addNode( IPUtils.ipToInt( "10.0.0.2" ) );
+        graph.setHostname( a, "p-\u00e1" );
+        List<Adjacency> adjs = new ArrayList<Adjacency>();
+        adjs.add( adjacency( "10.0.0.2", 501, "xe-0/0/0", 10000L ) );
+        adjs.add( adjacency( "10.0.0.9", 502, "xe-0/0/1", 1000L ) );
+        graph.setAdjacencies( b, adjacencies( adjacency( "192.168.0.1", 7, "Te0/1", 10000L ) ) );
+        graph.setAdjacencies( a, adjs );
+
+        File file = File.createTempFile( "topology", ".snap" );
+        try {
+            TopologySnapshot.write( graph, file );
+            TopologySnapshot snapshot = TopologySnapshot.open( file );
+            assertEquals( 2, snapshot.size() );
+            assertEquals( 3, snapshot.getAdjacencyTotal() );
+            assertEquals( "p-\u00e1", snapshot.getHostname( a ) );
+            assertNull( snapshot.getHostname( b ) );
+            assertEquals( a, snapshot.nodeOf( IPUtils.ipToInt( "192.168.0.1" ) ) );
+            assertEquals( b, snapshot.nodeOf( IPUtils.ipToInt( "10.0.0.2" ) ) );
+            assertEquals( TopologySnapshot.NO_NODE, snapshot.nodeOf( IPUtils.ipToInt( "10.0.0.9" ) ) );
+
+            // Rows are laid out in node order
+            assertEquals( 0, snapshot.getAdjacencyStart( a ) );
+            assertEquals( 2, snapshot.getAdjacencyCount( a ) );
+            int first = snapshot.getAdjacencyStart( b );
+            assertEquals( 2, first );
+            assertEquals( a, snapshot.getPeerNode( first ) );
+            assertEquals( 7, snapshot.getIfIndex( first ) );
+            assertEquals( "Te0/1", snapshot.getInterface( first ) );
+            assertEquals( "xe-0/0/1", snapshot.getInterface( 1 ) );
+            assertEquals( TopologySnapshot.NO_NODE, snapshot.getPeerNode( 1 ) );
+            assertEquals( IPUtils.ipToInt( "10.0.0.9" ), snapshot.getPeerAddress( 1 ) );
+            assertEquals( 1000L, snapshot.getSpeed( 1 ) );
+
+            // Cut short
+            FileOutputStream out = new FileOutputStream( file, true );
+            out.write( 0 );
+            out.close();
+            try {
+                TopologySnapshot.open( file );
+                fail( "Snapshot of the wrong size opened" );
+            } catch ( IOException e ) {
+                // expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static Adjacency adjacency( String peer, int ifIndex, String ifName, long speed )
+    {
+        Adjacency adj = new Adjacency( peer );
+        adj.setSNMPInterface( ifIndex );
+        adj.setRouterInterface( ifName, speed );
+        return adj;
+    }
+
+    private static List<Adjacency> adjacencies( Adjacency adj )
+    {
+        List<Adjacency> result = new ArrayList<Adjacency>();
+        result.add( adj );
+        return result;
+    }
+}
@@ -0,0 +1,80 @@
+package uk.co.gockett.ipbtools.topology;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.Channels;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for TopologyWriter.
+ */
+public class TopologyWriterTest
+    extends TestCase
+{
+    public TopologyWriterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TopologyWriterTest.class );
+    }
+
+    private static Router router( String address, String hostname, String... peers )
+        throws IOException
+    {
+        Router r = new Router( InetAddress.getByName( address ) );
+        RouterStorage.getAdjStorage().newAdjacency( address, r );
+        r.setHostname( hostname );
+        for ( int i = 0; i < peers.length; i++ )
+        {
+            Adjacency adj = new Adjacency( peers[i] );
+            adj.setRouterInterface( "ge-0/0/" + i, 1000L );
+            r.addAdjacency( peers[i], adj );
+        }
+        return r;
+    }
+
+    public void testShadowFilteredInline() throws IOException
+    {
+        RouterStorage.getAdjStorage().reset();
+        Router a = router( "10.0.0.1", "p-a", "10.0.0.2", "10.0.0.3", "10.0.0.4" );
+        Router b = router( "10.0.0.2", "p-b", "10.0.0.1" );
+        Router c = router( "10.0.0.3", "p-shadow-c" );
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TopologyWriter w = new TopologyWriter( Channels.newChannel( bytes ),
+                                               TopologyWriter.Format.TEXT );
+        w.start();
+
+        // Peers not completed yet are held back, but for the shadow, whose
+        // hostname is already known
+        w.routerCompleted( a, true );
+        assertEquals( "# 10.0.0.1 (p-a)\n", bytes.toString() );
+        assertEquals( 2, w.getHeld() );
+
+        w.routerCompleted( b, true );
+        assertEquals( "# 10.0.0.1 (p-a)\n"
+                      + "# 10.0.0.2 (p-b)\n"
+                      + "10.0.0.2:10.0.0.1:ge-0/0/0:1000000\n"
+                      + "10.0.0.1:10.0.0.2:ge-0/0/0:1000000\n", bytes.toString() );
+
+        // The shadow is not written, nor the adjacency held for it
+        bytes.reset();
+        w.routerCompleted( c, true );
+        assertEquals( "", bytes.toString() );
+        assertEquals( 1, w.getHeld() );
+
+        // 10.0.0.4 was never queried
+        w.close();
+        assertEquals( "10.0.0.1:10.0.0.4:ge-0/0/2:1000000\n", bytes.toString() );
+        assertEquals( 2, w.getRouters() );
+        assertEquals( 3, w.getAdjacencies() );
+        RouterStorage.getAdjStorage().reset();
+    }
+}